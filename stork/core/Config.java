@@ -22,8 +22,24 @@ public class Config {
   public static final Config global = loadConfig();
 
   public int max_jobs = 10;
+  public int max_streams = 1;
+  public double admission_interval = 5.0;
+  public int admission_max_jobs = 100;
+  public int admission_max_streams = 16;
+  public double admission_max_lag = 0.25;
+  public double admission_max_heap = 0.9;
   public int max_attempts = 10;
   public int max_history = 10;
+  public int archive_after = 3600;
+  public String archive_dir = null;
+  public int token_lifetime = 86400;
+  public double watch_interval = 1.0;
+  public int watch_buffer = 256;
+  public String cache_dir = null;
+  public int cache_size = 1024;
+  public int buffer_budget = 256;
+  public int user_buffer_budget = 64;
+  public int job_buffer_budget = 16;
 
   //public String libexec = "libexec";
 
@@ -31,6 +47,7 @@ public class Config {
   public int state_save_interval = 120;
 
   public URI connect = URI.create("tcp://localhost:57024");
+  public String session_file = null;
   public URI[] listen;
   public URI web_service_url;
 
@@ -41,6 +58,9 @@ public class Config {
   public String email = "StorkCloud <noreply@storkcloud.org>";
   public String smtp_server = "localhost";
 
+  public boolean ftp_cache_data_channels = false;
+  public boolean ftp_extended_mode = false;
+
   /** Dropbox configuration. */
   public stork.staging.DbxOAuthSession.DropboxConfig dropbox;
 
@@ -40,22 +40,33 @@ public abstract class StorkClient extends Command {
       if (is == null || os == null)
         throw new Exception("problem with socket");
 
-      // Write command ad to the server.
+      // Parse every response from one reader, since a reader may buffer the
+      // start of the next response.
+      Reader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+
+      // Write command ad to the server, with the session token if we have
+      // one.
+      String token = sessionToken();
       do {
         ad = fillCommand(new Ad().put("command", prog));
+        if (token != null && !ad.has("cookie"))
+          ad.put("cookie", new Ad("token", token));
 
         // Write command to server.
         os.write((ad+"\n").getBytes("UTF-8"));
         os.flush();
 
-        ad = Ad.parse(is);
-
-        if (ad == null)
-          throw new RuntimeException("incomplete response from server");
-        if (raw)
-          System.out.println(ad);
-        else
-          handle(ad);
+        // Handle responses until there are no more.
+        do {
+          ad = Ad.parse(reader);
+
+          if (ad == null)
+            throw new RuntimeException("incomplete response from server");
+          if (raw)
+            System.out.println(ad);
+          else
+            handle(ad);
+        } while (hasMoreResponses());
       } while (hasMoreCommands());
 
       if (ad.has("error"))
@@ -78,6 +89,32 @@ public abstract class StorkClient extends Command {
     }
   }
 
+  // Get the file the session token issued on login is kept in.
+  protected static File sessionFile() {
+    String path = Config.global.session_file;
+    String home = System.getProperty("user.home");
+    if (path == null)
+      path = home+"/.stork_session";
+    else if (path.startsWith("~/"))
+      path = home+path.substring(1);
+    return new File(path);
+  }
+
+  // Read the saved session token, or return null if there isn't one.
+  private static String sessionToken() {
+    try {
+      BufferedReader r = new BufferedReader(new FileReader(sessionFile()));
+      try {
+        String token = r.readLine();
+        return (token == null || token.isEmpty()) ? null : token.trim();
+      } finally {
+        r.close();
+      }
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
   ////////////////////////////
   // Override these things. //
   ////////////////////////////
@@ -87,6 +124,11 @@ public abstract class StorkClient extends Command {
     return false;
   }
 
+  // Override this if the server streams multiple responses to a command.
+  public boolean hasMoreResponses() {
+    return false;
+  }
+
   // Return the command ad to send to the server.
   public Ad fillCommand(Ad ad) {
     return ad.addAll(env.getAd("args"));
@@ -1,5 +1,7 @@
 package stork.core.commands;
 
+import java.util.*;
+
 import stork.core.*;
 import stork.ad.*;
 import stork.util.*;
@@ -12,6 +14,10 @@ public class StorkQ extends StorkClient {
   Range range = new Range();
   String status = null;
 
+  // When watching, the jobs from the last listing, updated by events.
+  boolean subscribed = false;
+  Map<Integer,Ad> jobs = new TreeMap<Integer,Ad>();
+
   public StorkQ() {
     super("q");
 
@@ -30,7 +36,7 @@ public class StorkQ extends StorkClient {
     add('n', "limit", "retrieve up to N results")
       .new SimpleParser("N", true);
     add('r', "reverse", "reverse printing order (oldest first)");
-    add('w', "watch", "fetch queue every T seconds (default 2)")
+    add('w', "watch", "watch queue, updating every T seconds (default 2)")
       .new SimpleParser("T", true);
     add("daglog", "output results to FILE in DAGMan log format")
       .new SimpleParser("FILE", true);
@@ -49,6 +55,10 @@ public class StorkQ extends StorkClient {
   }
 
   public Ad fillCommand(Ad ad) {
+    // After the first listing, subscribe to changes.
+    if (subscribed)
+      return ad.put("command", "watch").put("interval", watch);
+
     if (!range.isEmpty())
       ad.put("range", range.toString());
     if (status == null)
@@ -66,14 +76,38 @@ public class StorkQ extends StorkClient {
   }
 
   public boolean hasMoreCommands() {
-    // Sleep if we're watching.
-    while (watch > 0) try {
-      System.out.println("\nPress ctrl-C to stop querying.");
-      Thread.sleep(watch*1000);
-      break;
-    } catch (Exception e) {
-      // Sleep again...
-    } return watch > 0;
+    // If we're watching, subscribe once we have the initial listing.
+    if (watch > 0 && !subscribed) {
+      System.out.println("\nPress ctrl-C to stop watching.");
+      return subscribed = true;
+    } return false;
+  }
+
+  public boolean hasMoreResponses() {
+    return subscribed;
+  }
+
+  // Apply an event from the server to the last listing.
+  private void applyEvent(Ad ev) {
+    String type = ev.get("type");
+    Ad job = jobs.get(ev.getInt("job_id"));
+
+    if ("resync".equals(type)) {
+      // Archived jobs aren't included, but they can't have changed.
+      if (ev.has("jobs")) for (Ad a : ev.getAds("jobs"))
+        jobs.put(a.getInt("job_id"), a);
+    } else if ("job".equals(type)) {
+      jobs.put(ev.getInt("job_id"), ev.getAd("job"));
+    } else if (job == null) {
+      return;
+    } else if ("status".equals(type)) {
+      job.put("status", ev.get("status"));
+      job.remove("message");
+      if (ev.has("message"))
+        job.put("message", ev.get("message"));
+    } else if ("progress".equals(type)) {
+      job.put("bytes", ev.getAd("bytes"));
+    }
   }
 
   // Print a job ad in a nice and pretty format.
@@ -100,18 +134,26 @@ public class StorkQ extends StorkClient {
       bar[i] = '=';
     if (prog.done() > 0)
       bar[j] = (prog.done() != prog.total()) ? '>' : '=';
-    return "    ["+new String(bar)+"] "+prog.toPercent();
+    return "    ["+new String(bar)+"] "+prog.toPercentString();
+  } private String eta(Ad ad, Ad bytes) {
+    long eta = bytes.getLong("eta", -1);
+    if (eta <= 0 || !"processing".equals(ad.get("status")))
+      return "";
+    String s = "  "+Time.format(eta)+" left";
+    return bytes.getBoolean("counting") ? s+" (still counting)" : s;
   } private void formatJobAd(Ad ad) {
+    Ad bytes = ad.getAd("bytes", new Ad());
     System.out.printf("%3d  %-12s  %8s  %8s  %9s  %s\n",
         ad.getInt("job_id"), ad.get("status", "(unknown)"),
         time(ad.getAd("queue_timer")), time(ad.getAd("run_timer")),
-        Throughput.prettySize(ad.getLong("progress.bytes.total")),
-        Throughput.format(ad.getLong("progress.bytes.avg")));
-    if (ad.getInt("progress.bytes.avg") > 0)
-      System.out.println(progressBar(ad.getAd("progress.bytes"), 50));
+        Throughput.prettySize(Math.max(
+          bytes.getLong("total", 0), bytes.getLong("done", 0))),
+        Throughput.format(bytes.getDouble("avg", 0)));
+    if (bytes.getLong("total", 0) > 0)
+      System.out.println(progressBar(bytes, 50)+eta(ad, bytes));
 
-    System.out.println("    "+ad.get("src.uri"));
-    System.out.println("    "+ad.get("dest.uri"));
+    System.out.println("    "+ad.getAd("src", new Ad()).get("uri"));
+    System.out.println("    "+ad.getAd("dest", new Ad()).get("uri"));
 
     if (ad.has("message"))
       System.out.println("    Message: "+ad.get("message"));
@@ -120,6 +162,15 @@ public class StorkQ extends StorkClient {
   }
 
   public void handle(Ad ad) {
+    // Keep track of jobs if we're watching, and list them after each event.
+    if (subscribed) {
+      applyEvent(ad);
+      ad = new Ad(jobs.values());
+    } else if (watch > 0 && ad.isList()) {
+      for (Ad a : ad.getAds())
+        jobs.put(a.getInt("job_id"), a);
+    }
+
     // Check if we just wanted the count.
     if (count_only) {
       if (ad.isMap() && ad.has("error"))  // Should we print instead?
@@ -134,7 +185,7 @@ public class StorkQ extends StorkClient {
     // If we're watching, clear the screen. TODO: Portability.
     if (watch > 0) {
       System.out.print("\033[H\033[2J");
-      System.out.print("Querying every "+watch+"s...\n\n");
+      System.out.print("Watching for changes every "+watch+"s...\n\n");
     }
 
     // Print this so the user knows what exactly was requested.
@@ -5,6 +5,7 @@ import stork.ad.*;
 import stork.util.*;
 
 import java.io.*;
+import java.util.*;
 
 public class StorkSubmit extends StorkClient {
   private int submitted = 0, accepted = 0;
@@ -16,7 +17,7 @@ public class StorkSubmit extends StorkClient {
     args = new String[] {
       "[option...]",
       "[option...] <job_file>",
-      "[option...] <src_url> <dest_url>"
+      "[option...] <src_url> <dest_url> [replica_url...]"
     };
     desc = new String[] {
       "This command is used to submit jobs to a Stork server. ",
@@ -29,7 +30,8 @@ public class StorkSubmit extends StorkClient {
 
       "If called with two arguments, assumes they are a source "+
       "and destination URL, which it parses and generates a job "+
-      "ad for.",
+      "ad for. Any further URLs are replicas, which receive copies "+
+      "of the same data as the destination.",
 
       "After each job is submitted, submit outputs the job "+
       "ID, assuming it was submitted successfully.",
@@ -40,21 +42,39 @@ public class StorkSubmit extends StorkClient {
       "as \"x509_proxy\". This may be removed in the future.)"
     };
     add('b', "brief", "print only submitted job IDs");
+    add('d', "drop-failed-replicas",
+        "continue without replicas that fail instead of failing the job");
+    add('s', "sync", "only copy files which differ from the destination");
+    add("checksum", "compare files by checksum when syncing");
+    add("delete", "delete destination files not in the source when syncing");
+    add('n', "dry-run", "report what syncing would do without doing it");
+    add('p', "prescan", "count the source while transferring, listing up "+
+        "to N directories at once (default 4)")
+      .new SimpleParser("N", false) {
+        public String handle() { return "4"; }
+      };
+    add('P', "priority", "run before jobs with a lower priority, pausing "+
+        "them if need be").new SimpleParser("N", true);
   }
 
   private boolean parsedArgs = false;
   private boolean echo = true;
 
   public void parseArgs(String[] args) {
-    assertArgsLength(args, 0, 2);
+    assertArgsLength(args, 0, -1);
 
     // Determine if we're going to read from stream or generator our
     // own ad.
     switch (args.length) {
-      case 2:  // src_url and dest_url
+      default:  // src_url, dest_url, and replica_urls
+        List<Ad> replicas = new ArrayList<Ad>();
+        for (int i = 2; i < args.length; i++)
+          replicas.add(new Ad("uri", args[i]));
         jobs = new Ad[] { new Ad() };
         jobs[0].put("src",  new Ad("uri", args[0]));
         jobs[0].put("dest", new Ad("uri", args[1]));
+        if (!replicas.isEmpty())
+          jobs[0].put("replicas", new Ad(replicas));
         break;
       case 1:  // From file
         jobs = Ad.parse(new File(args[0]), true).getAds();
@@ -74,8 +94,39 @@ public class StorkSubmit extends StorkClient {
   }
 
   public Ad fillCommand(Ad ad) {
-    Ad job = jobs[accepted];
+    // Several jobs are submitted together as a batch.
+    if (jobs.length > 1) {
+      List<Ad> list = new ArrayList<Ad>(jobs.length);
+      for (Ad job : jobs)
+        list.add(fillJob(new Ad(), job));
+      ad.put("jobs", new Ad(list));
+    } else {
+      fillJob(ad, jobs[0]);
+    }
+
+    // Print the command sent if we're echoing.
+    if (echo)
+      System.out.print(ad+"\n\n");
+    return ad;
+  }
+
+  // Fill in the fields for a job.
+  private Ad fillJob(Ad ad, Ad job) {
     ad.addAll(job);
+    if (env.getBoolean("drop-failed-replicas"))
+      ad.put("drop_failed_replicas", true);
+    if (env.getBoolean("sync"))
+      ad.put("sync", true);
+    if (env.getBoolean("checksum"))
+      ad.put("sync_checksum", true);
+    if (env.getBoolean("delete"))
+      ad.put("sync_delete", true);
+    if (env.getBoolean("dry-run"))
+      ad.put("dry_run", true);
+    if (env.has("prescan"))
+      ad.put("prescan", env.getInt("prescan"));
+    if (env.has("priority"))
+      ad.put("priority", env.getInt("priority"));
 
     // Replace x509_proxy in job ad.
     // TODO: A better way of doing this would be nice...
@@ -89,12 +140,7 @@ public class StorkSubmit extends StorkClient {
         ad.put("x509_proxy", proxy);
     } catch (Exception e) {
       throw new RuntimeException("Couldn't open x509_file...", e);
-    }
-
-    // Print the command sent if we're echoing.
-    if (echo)
-      System.out.print(ad+"\n\n");
-    return ad;
+    } return ad;
   }
 
   public boolean hasMoreCommands() {
@@ -103,6 +149,19 @@ public class StorkSubmit extends StorkClient {
 
   // Print status information for every submitted job.
   public void handle(Ad ad) {
+    if (jobs.length > 1 && ad.isList()) {
+      for (Ad a : ad.getAds())
+        handleJob(a);
+    } else if (jobs.length > 1) {
+      // The whole batch was rejected.
+      handleJob(ad);
+      submitted = jobs.length;
+    } else {
+      handleJob(ad);
+    }
+  }
+
+  private void handleJob(Ad ad) {
     boolean error = ad.has("error");
 
     submitted++;
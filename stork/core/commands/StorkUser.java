@@ -46,12 +46,38 @@ public class StorkUser extends StorkClient {
 
     if (env.getBoolean("register"))
       ad.put("action", "register");
+    else
+      ad.put("action", "login");
     ad.put("email", email);
     return ad.put("password", password);
   }
-      
+
   public void handle(Ad ad) {
-    if (!ad.has("error"))
-      System.out.println("Logged in as: "+ad.get("email"));
+    if (ad.has("error"))
+      return;
+    if (ad.has("token"))
+      saveToken(ad.get("token"));
+    System.out.println("Logged in as: "+ad.get("email"));
+  }
+
+  // Save the session token for later commands, readable only by the user.
+  private static void saveToken(String token) {
+    File file = sessionFile();
+    try {
+      file.delete();
+      file.createNewFile();
+      file.setReadable(false, false);
+      file.setWritable(false, false);
+      file.setReadable(true, true);
+      file.setWritable(true, true);
+      Writer w = new FileWriter(file);
+      try {
+        w.write(token+"\n");
+      } finally {
+        w.close();
+      }
+    } catch (Exception e) {
+      throw new RuntimeException("couldn't save session to: "+file, e);
+    }
   }
 }
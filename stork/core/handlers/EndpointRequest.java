@@ -1,5 +1,8 @@
 package stork.core.handlers;
 
+import java.util.concurrent.*;
+
+import stork.ad.*;
 import stork.core.server.*;
 import stork.feather.*;
 
@@ -34,9 +37,26 @@ public class EndpointRequest extends Request {
     return this;
   }
 
+  /**
+   * Validate the request, taking the credential and module from {@code
+   * shared} if an earlier request resolved the same ones. This is used to
+   * validate many requests at once without resolving the same credential or
+   * module for each of them.
+   */
+  EndpointRequest validateAs(
+      String name, ConcurrentMap<String,RealEndpoint> shared) {
+    validateAndResolve(name, shared);
+    return this;
+  }
+
+  private RealEndpoint validateAndResolve(String name) {
+    return validateAndResolve(name, null);
+  }
+
   // This method might be doing too much, but it's useful to have this in one
   // place.
-  private RealEndpoint validateAndResolve(String name) {
+  private RealEndpoint validateAndResolve(
+      String name, ConcurrentMap<String,RealEndpoint> shared) {
     name = (name == null) ? "" : name+" ";
     RealEndpoint result = new RealEndpoint();
 
@@ -46,6 +66,20 @@ public class EndpointRequest extends Request {
       throw new RuntimeException("No URI provided for "+name+"endpoint.");
     if (result.uri.scheme() == null)
       throw new RuntimeException("No URI scheme for "+name+"endpoint.");
+
+    // The credential and module don't depend on the rest of the URI.
+    String key = null;
+    if (shared != null) {
+      key = (module != null ? module : result.uri.scheme())+" "+
+            (credential != null ? Ad.marshal(credential) : "");
+      RealEndpoint known = shared.get(key);
+      if (known != null) {
+        result.credential = known.credential;
+        result.module = known.module;
+        return result;
+      }
+    }
+
     if (credential != null)
       result.credential = credential.resolve();
     if (credential != null && result.credential == null)
@@ -54,6 +88,8 @@ public class EndpointRequest extends Request {
       result.module = server().modules.byHandle(module);
     else
       result.module = server().modules.byProtocol(result.uri.scheme());
+    if (key != null)
+      shared.putIfAbsent(key, result);
     return result;
   }
 
@@ -62,15 +98,15 @@ public class EndpointRequest extends Request {
 
   /** This may be overridden by subclasses. */
   public User user() { return super.user(); }
-}
 
-// This is really just a holder for three objects.
-class RealEndpoint {
-  URI uri;
-  Credential credential;
-  stork.module.Module module;
+  // This is really just a holder for three objects.
+  static class RealEndpoint {
+    URI uri;
+    Credential credential;
+    stork.module.Module module;
 
-  public Resource resolve() {
-    return module.select(uri, credential);
+    public Resource resolve() {
+      return module.select(uri, credential);
+    }
   }
 }
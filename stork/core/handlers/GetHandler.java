@@ -5,15 +5,21 @@ import java.util.*;
 import stork.core.server.*;
 import stork.feather.*;
 
-/** Handles retrieving files. */
+/**
+ * Handles retrieving files. Files are read through the server's content
+ * cache, so files which are downloaded repeatedly, such as shared files, are
+ * only fetched from their source once.
+ */
 public class GetHandler extends Handler<SharedEndpointRequest> {
   public void handle(final SharedEndpointRequest req) {
     req.assertLoggedIn();
 
     final Resource resource = req.user().sessions.take(req.resolve());
-    Transfer t = resource.transferTo(req.resource);
-    t.start();
-    t.onStop().new Promise() {
+    server.cache.tap(resource).new AsBell<Object>() {
+      public Bell<Object> convert(Tap tap) {
+        return transfer(tap, req.resource.sink());
+      }
+    }.new Promise() {
       public void done() {
         req.ring();
       } public void fail(Throwable t) {
@@ -23,6 +29,24 @@ public class GetHandler extends Handler<SharedEndpointRequest> {
       }
     };
   }
+
+  // Drain a tap to a sink, returning a bell which rings when it's done.
+  private Bell<Object> transfer(Tap tap, Sink sink) {
+    final Bell<Object> bell = new Bell<Object>();
+    tap.attach(new Pipe() {
+      protected void finish(Throwable t) {
+        super.finish(t);
+        if (t == null)
+          bell.ring();
+        else
+          bell.ring(t);
+      }
+    }).attach(sink);
+    tap.start().new Promise() {
+      public void fail(Throwable t) { bell.ring(t); }
+    };
+    return bell;
+  }
 }
 
 /** Request for either an endpoint or a shared endpoint. */
@@ -4,6 +4,7 @@ import java.util.*;
 
 import stork.core.server.*;
 import stork.core.*;
+import stork.util.*;
 
 /** Send information about the server. */
 public class InfoHandler extends Handler<InfoRequest> {
@@ -21,6 +22,13 @@ public class InfoHandler extends Handler<InfoRequest> {
     });
   }
 
+  // Send server statistics. These describe every user's jobs, so only
+  // logged in users may see them.
+  void sendMetrics(InfoRequest req) {
+    req.assertLoggedIn();
+    req.ring(Metrics.snapshot());
+  }
+
   // Send information about a credential or about all credentials.
   void sendCredInfo(InfoRequest req) {
     req.assertLoggedIn();
@@ -40,6 +48,8 @@ public class InfoHandler extends Handler<InfoRequest> {
       sendServerInfo(req);
     else if (req.action.equals("cred"))
       sendCredInfo(req);
+    else if (req.action.equals("metrics"))
+      sendMetrics(req);
     else
       throw new RuntimeException("Invalid action.");
   }
@@ -9,6 +9,8 @@ import stork.util.*;
 
 /** A handler for performing listings. */
 public class ListHandler extends Handler<ListRequest> {
+  private static final Log.Category log = Log.category("sessions");
+
   // Map of ongoing listings, for request aggregation.
   private static Map<Resource, Bell<Stat>> aggregator =
     new ConcurrentHashMap<Resource, Bell<Stat>>();
@@ -19,7 +21,7 @@ public class ListHandler extends Handler<ListRequest> {
     final Resource resource;
     Bell<Stat> listing = null;
 
-    Log.info("Taking session out...");
+    log.fine("Taking session out...");
     if (!req.forceRefresh)
       resource = req.user().sessions.take(req.resolve());
     else
@@ -29,12 +31,15 @@ public class ListHandler extends Handler<ListRequest> {
       listing = aggregator.get(resource);
 
     if (listing != null) {
-      Log.fine("Waiting on existing list request...");
+      log.fine("Waiting on existing list request...");
       listing.promise(req);
       return;
     }
 
-    listing = resource.stat();
+    if (resource.isSingleton())
+      listing = resource.stat();
+    else
+      listing = globListing(resource);
 
     // Register the ongoing listing.
     aggregator.put(resource, listing);
@@ -47,7 +52,7 @@ public class ListHandler extends Handler<ListRequest> {
     // Put the session back when we're done.
     listing.new Promise() {
       public void always() {
-        Log.info("Putting session back...");
+        log.fine("Putting session back...");
         req.user().sessions.put(resource.session);
         aggregator.remove(resource);
       }
@@ -55,6 +60,19 @@ public class ListHandler extends Handler<ListRequest> {
 
     listing.promise(req);
   }
+
+  // List the matches of a glob resource, named relative to its trunk.
+  private Bell<Stat> globListing(Resource resource) {
+    final Stat stat = new Stat(resource.path.name(true));
+    stat.dir = true;
+    Emitter<Stat> matches = resource.expandStat();
+    return matches.asList().new As<Stat>() {
+      public Stat convert(List<Stat> list) {
+        stat.files = list.toArray(new Stat[list.size()]);
+        return stat;
+      }
+    };
+  }
 }
 
 // A listing request is just an endpoint request with some options.
@@ -5,11 +5,18 @@ import java.util.*;
 import stork.ad.*;
 import stork.core.server.*;
 import stork.scheduler.*;
+import stork.util.*;
 
 public class QHandler extends Handler<QRequest> {
   public void handle(QRequest req) {
     req.assertLoggedIn();
-    final List list = req.user().jobs();
+
+    // Filter by status and ID, so archived jobs can be skipped unread.
+    EnumSet<JobStatus> status = (req.status != null) ?
+      JobStatus.filter(req.status) : JobStatus.all.filter();
+    Range range = (req.range != null) ? Range.parseRange(req.range) : null;
+
+    final List list = req.user().jobs(status, range);
     req.ring(!req.count ? list : new Object() {
       int count = list.size();
     });
@@ -18,4 +25,6 @@ public class QHandler extends Handler<QRequest> {
 
 class QRequest extends Request {
   boolean count = false;
+  String status;
+  String range;
 }
@@ -1,16 +1,34 @@
 package stork.core.handlers;
 
+import java.util.*;
+import java.util.concurrent.*;
+
 import stork.ad.*;
 import stork.core.server.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.scheduler.*;
 
-/** Handles scheduling jobs. */
+/**
+ * Handles scheduling jobs. A request may either describe a single job, or
+ * contain a {@code jobs} list describing many. A batch is validated in
+ * parallel, and every valid job in it is scheduled at once before the server
+ * state is saved. The reply to a batch has an entry for each job in the
+ * same order, giving either the job's ID or why it was rejected.
+ */
 public class SubmitHandler extends Handler<JobRequest> {
+  // The fewest jobs worth giving a validation thread.
+  private static final int CHUNK_SIZE = 64;
+
   public void handle(JobRequest req) {
     req.assertLoggedIn();
     req.assertMayChangeState();
 
+    if (req.asAd().has("jobs")) {
+      submitBatch(req);
+      return;
+    }
+
     req.validate();
 
     Job job = req.createJob();
@@ -21,10 +39,65 @@ public class SubmitHandler extends Handler<JobRequest> {
 
     req.ring(job);
   }
+
+  // Validate the jobs in chunks on separate threads, then schedule the valid
+  // ones together.
+  private void submitBatch(final JobRequest req) {
+    final Ad[] specs = req.asAd().getAds("jobs");
+    final Job[] jobs = new Job[specs.length];
+    final BatchResult[] results = new BatchResult[specs.length];
+    final ConcurrentMap<String,EndpointRequest.RealEndpoint> shared =
+      new ConcurrentHashMap<String,EndpointRequest.RealEndpoint>();
+    final User user = req.user();
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    threads = Math.max(1, Math.min(threads, specs.length/CHUNK_SIZE));
+    int chunk = (specs.length+threads-1)/threads;
+
+    Bell bell = Bell.rungBell();
+    for (int from = 0; from < specs.length; from += chunk) {
+      final int start = from, end = Math.min(from+chunk, specs.length);
+      bell = bell.and(new ThreadBell() {
+        public Object run() {
+          for (int i = start; i < end; i++) try {
+            JobRequest jr = new BatchedJobRequest(req);
+            jr.unmarshalFrom(specs[i]);
+            jobs[i] = jr.validate(shared).createJob();
+          } catch (Exception e) {
+            results[i] = new BatchResult(e);
+          } return null;
+        }
+      }.start());
+    }
+
+    bell.new Promise() {
+      public void done() {
+        List<Job> valid = new ArrayList<Job>(jobs.length);
+        for (Job job : jobs)
+          if (job != null) valid.add(job);
+
+        user.saveJobs(valid);
+        server.schedule(valid);
+        if (!valid.isEmpty())
+          server.dumpState();
+
+        for (int i = 0; i < jobs.length; i++)
+          if (jobs[i] != null) results[i] = new BatchResult(jobs[i]);
+        req.ring(Arrays.asList(results));
+      } public void fail(Throwable t) {
+        req.ring(t);
+      }
+    };
+  }
 }
 
 class JobRequest extends Request {
   private JobEndpointRequest src, dest;
+  private JobEndpointRequest[] replicas;
+  private boolean drop_failed_replicas;
+  private boolean sync, sync_checksum, sync_delete, dry_run;
+  private int prescan;
+  private int priority;
 
   // Hack to get around marshalling limitations.
   private class JobEndpointRequest extends EndpointRequest {
@@ -32,10 +105,37 @@ class JobRequest extends Request {
     public User user() { return JobRequest.this.user(); }
   };
 
+  // Array elements don't get the right enclosing instance when unmarshalled,
+  // so copy them into ones that do.
+  private JobEndpointRequest[] replicas() {
+    if (replicas == null)
+      return new JobEndpointRequest[0];
+    JobEndpointRequest[] r = new JobEndpointRequest[replicas.length];
+    for (int i = 0; i < r.length; i++)
+      r[i] = Ad.marshal(replicas[i]).unmarshal(new JobEndpointRequest());
+    return r;
+  }
+
   // TODO: More validations.
   public JobRequest validate() {
     src.validateAs("source");
     dest.validateAs("destination");
+    for (JobEndpointRequest r : replicas())
+      r.validateAs("replica");
+    return this;
+  }
+
+  /** Validate the request, sharing endpoint resolution with a batch. */
+  JobRequest validate(
+      ConcurrentMap<String,EndpointRequest.RealEndpoint> shared) {
+    if (src == null)
+      throw new RuntimeException("No source endpoint.");
+    if (dest == null)
+      throw new RuntimeException("No destination endpoint.");
+    src.validateAs("source", shared);
+    dest.validateAs("destination", shared);
+    for (JobEndpointRequest r : replicas())
+      r.validateAs("replica", shared);
     return this;
   }
 
@@ -45,3 +145,33 @@ class JobRequest extends Request {
     return job;
   }
 }
+
+// One job from a batch, which belongs to the batch's user.
+class BatchedJobRequest extends JobRequest {
+  private final transient JobRequest batch;
+
+  BatchedJobRequest(JobRequest batch) {
+    this.batch = batch;
+    command = batch.command;
+    server = batch.server;
+    mayChangeState = batch.mayChangeState;
+  }
+
+  public User user() { return batch.user(); }
+}
+
+// The outcome of submitting one job from a batch.
+class BatchResult {
+  Integer job_id;
+  UUID uuid;
+  String error;
+
+  BatchResult(Job job) {
+    job_id = job.jobId();
+    uuid = job.uuid();
+  }
+
+  BatchResult(Throwable t) {
+    error = (t.getMessage() != null) ? t.getMessage() : t.toString();
+  }
+}
@@ -106,6 +106,7 @@ class UserLogin extends Request {
   public String email;
   public String password;
   public String hash;
+  public String token;
 
   /** Attempt to log in with the given information. */
   public User login() {
@@ -114,6 +115,7 @@ class UserLogin extends Request {
     cookie.email = email;
     cookie.password = password;
     cookie.hash = hash;
+    cookie.token = token;
 
     User user = cookie.login();
 
@@ -154,5 +156,6 @@ class PasswordChange extends Request {
       throw new PermissionDenied();
 
     user().setPassword(newPassword);
+    server.tokens.revoke(user());
   }
 }
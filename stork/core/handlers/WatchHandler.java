@@ -0,0 +1,19 @@
+package stork.core.handlers;
+
+import stork.core.server.*;
+
+/**
+ * Subscribes to events for the user's jobs. The request is answered with a
+ * {@link JobEvents.Subscription}, which interfaces stream to the client as
+ * a series of events until the client disconnects.
+ */
+public class WatchHandler extends Handler<WatchRequest> {
+  public void handle(WatchRequest req) {
+    req.assertLoggedIn();
+    req.ring(server.events.subscribe(req.user(), req.interval));
+  }
+}
+
+class WatchRequest extends Request {
+  double interval = 0;  // Seconds between progress reports.
+}
@@ -0,0 +1,70 @@
+package stork.core.net;
+
+import java.util.*;
+
+import io.netty.buffer.*;
+import io.netty.channel.*;
+import io.netty.handler.codec.*;
+
+import stork.ad.*;
+
+/**
+ * A decoder for reading serialized ads from a byte channel. Ads are framed by
+ * matching brackets outside of strings and comments, so an ad that arrives
+ * over several reads is only parsed once it is complete, and is only scanned
+ * once. Comments are skipped the same way {@code AdParser} skips them: from
+ * {@code #} or {@code //} to the end of the line.
+ */
+public class AdDecoder extends ByteToMessageDecoder {
+  private int scanned = 0;  // Bytes of the pending ad already scanned.
+  private int depth = 0;
+  private boolean quoted = false, escaped = false, comment = false;
+
+  protected void decode(
+      ChannelHandlerContext ctx, final ByteBuf buf, List<Object> out) {
+    int start = buf.readerIndex(), end = buf.writerIndex(), i;
+
+    for (i = start+scanned; i < end; i++) {
+      char c = (char) buf.getByte(i);
+      if (comment) {
+        if (c == '\n' || c == '\r')
+          comment = false;
+      } else if (quoted) {
+        if (escaped)
+          escaped = false;
+        else if (c == '\\')
+          escaped = true;
+        else if (c == '"')
+          quoted = false;
+      } else if (c == '#') {
+        comment = true;
+      } else if (c == '/' && i+1 == end) {
+        // Wait to see if it starts a comment.
+        break;
+      } else if (c == '/' && buf.getByte(i+1) == '/') {
+        comment = true;
+      } else if (AdParser.OB.indexOf(c) >= 0) {
+        depth++;
+      } else if (depth > 0 && c == '"') {
+        quoted = true;
+      } else if (depth > 0 && AdParser.CB.indexOf(c) >= 0 && --depth == 0) {
+        ByteBuf frame = buf.readSlice(i+1-start);
+        scanned = 0;
+        out.add(Ad.parse(new ByteBufInputStream(frame)));
+        return;
+      }
+
+      // Discard anything between ads.
+      if (depth == 0) {
+        buf.skipBytes(1);
+        start++;
+      }
+    } scanned = i-start;
+  }
+
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable t) {
+    // We got a parse error. This may lead to desynchronization, but we should
+    // leave closing of the connection up to another handler.
+    t.printStackTrace();
+  }
+}
@@ -80,6 +80,10 @@ public class HTTPBody extends Resource<HTTPRequest,HTTPBody> {
   public class HTTPSink extends Sink<HTTPBody> {
     HTTPSink() { super(HTTPBody.this); }
 
+    // Netty writes content in the order it's given, so the tap may run
+    // ahead of the client.
+    public long window() { return 1 << 20; }
+
     // If this is the root, send a header through Netty.
     public Bell start() {
       if (!destination().path.isRoot())
@@ -128,6 +132,8 @@ public class HTTPBody extends Resource<HTTPRequest,HTTPBody> {
 
         if (stat.size > 0)
           r.headers().set(CONTENT_LENGTH, stat.size);
+        else if (session.version() == HTTP_1_1)
+          setTransferEncodingChunked(r);
         r.headers().set(CONTENT_TYPE, contentType);
 
         if (location != null) {
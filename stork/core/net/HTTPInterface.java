@@ -73,7 +73,9 @@ public class HTTPInterface extends StorkInterface {
   private Bell<Object> requestDoneHandler(final HTTPBody body) {
     return new Bell<Object>() {
       public void done(Object o) {
-        if (o != null)
+        if (o instanceof JobEvents.Subscription)
+          streamEvents((JobEvents.Subscription) o);
+        else if (o != null)
           sendJSON(Pipes.tapFromString(Ad.marshal(o)));
       } public void fail(Throwable t) {
         // If it's a special redirect error, send a redirect.
@@ -89,6 +91,49 @@ public class HTTPInterface extends StorkInterface {
       } private void sendJSON(Tap tap) {
         body.contentType = "application/json; charset=UTF-8";
         tap.attach(body.sink()).tap().start();
+      } private void streamEvents(JobEvents.Subscription sub) {
+        body.contentType = "application/x-ndjson; charset=UTF-8";
+        eventTap(body, sub).attach(body.sink()).tap().start();
+      }
+    };
+  }
+
+  // A tap which streams events to the client as lines of JSON in a chunked
+  // response, until the client disconnects. The next batch of events isn't
+  // taken until the client has caught up with the last one.
+  private Tap eventTap(
+      final HTTPBody body, final JobEvents.Subscription sub) {
+    Stat stat = new Stat();
+    stat.file = true;
+    stat.size = -1;
+
+    body.session.onClose().new Promise() {
+      public void always() { sub.close(); }
+    };
+
+    return new Tap(Resources.anonymous(stat)) {
+      public Bell start(Bell bell) {
+        return bell.new Promise() {
+          public void done() { pump(); }
+          public void fail(Throwable t) { sub.close(); }
+        };
+      }
+
+      private void pump() {
+        sub.next().new Promise() {
+          public void done(List<JobEvents.Event> events) {
+            StringBuilder sb = new StringBuilder();
+            for (JobEvents.Event e : events)
+              sb.append(Ad.marshal(e).toJSON(false)).append('\n');
+            drain(new Slice(sb.toString().getBytes(CharsetUtil.UTF_8)))
+              .new Promise() {
+                public void done() { pump(); }
+                public void fail(Throwable t) { sub.close(); }
+              };
+          } public void fail(Throwable t) {
+            finish();
+          }
+        };
       }
     };
   }
@@ -45,8 +45,12 @@ public abstract class HTTPRequest extends Session<HTTPRequest,HTTPBody> {
     return netty.headers().get(name);
   }
 
-  /** Send something back to Netty. */
-  public abstract Bell toNetty(HttpObject obj);
+  /**
+   * Send something back to Netty. This may be an {@code HttpObject}, or
+   * anything else the HTTP encoder passes through, such as a {@code
+   * FileRegion}.
+   */
+  public abstract Bell toNetty(Object obj);
 
   /** Force a read on the underlying socket. */
   public abstract void read();
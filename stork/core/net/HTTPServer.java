@@ -49,6 +49,9 @@ public class HTTPServer {
   private Map<HttpMethod,Map<Path,Route>> routes =
     new HashMap<HttpMethod,Map<Path,Route>>();
 
+  // Rings once the server is listening.
+  private final Bell<HTTPServer> bound = new Bell<HTTPServer>();
+
   /**
    * Return an {@code HTTPServer} bound to the given host and port. If an
    * {@code HTTPServer} has already been instantiated bound to an equivalent
@@ -78,7 +81,22 @@ public class HTTPServer {
     sb.option(ChannelOption.TCP_NODELAY, true);
     sb.option(ChannelOption.SO_KEEPALIVE, true);
 
-    sb.bind(isa);
+    sb.bind(isa).addListener(new ChannelFutureListener() {
+      public void operationComplete(ChannelFuture f) {
+        if (f.isSuccess())
+          bound.ring(HTTPServer.this);
+        else
+          bound.ring(f.cause());
+      }
+    });
+  }
+
+  /**
+   * Get a {@code Bell} which rings once the server is listening, or fails if
+   * it couldn't bind to its address.
+   */
+  public Bell<HTTPServer> bound() {
+    return bound;
   }
 
   private synchronized void addRoute(String[] methods, Route route) {
@@ -119,50 +137,12 @@ public class HTTPServer {
 
   /**
    * Create a web server that will serve static files from a local directory.
+   *
+   * @see StaticRoute
    */
   public static Route createStaticServer(URI uri, String root) {
-    Path path = Path.DOT.appendLiteral(root);
-    final LocalSession local = new LocalSession(path);
-
     Log.info("Serving static web files from "+root+" directory at "+uri);
-
-    return new Route(uri, "GET") {
-      // The name of the index file.
-      private String index = "index.html";
-
-      public void handle(HTTPRequest request) {
-        trySend(request, request.uri.path());
-      }
-
-      private void trySend(final HTTPRequest request, final Path path) {
-        final LocalResource file = local.select(path);
-
-        file.stat().new Promise() {
-          public void done(Stat s) {
-            if (s.dir && !path.name().equals(index)) {
-              trySend(request, path.append(index));
-            } else if (s.file) {
-              HTTPBody body = request.root();
-              Tap tap = file.tap();
-              tap.attach(body.sink());
-              tap.start();
-            } else {
-              // Directory was requested but no index could be found.
-              request.sendError(404);
-            }
-          } public void fail(Throwable t) {
-            if (!path.name().equals(index)) {
-              // File doesn't exist, but might be a path the Angular router can
-              // handle, so serve the index and let Angular determine if it's a
-              // valid route or not. Don't do this for the index!
-              trySend(request, Path.ROOT.append(index));
-            } else {
-              request.sendError(404);
-            }
-          }
-        };
-      }
-    };
+    return new StaticRoute(uri, root);
   }
 
   /**
@@ -226,7 +206,7 @@ public class HTTPServer {
 
         // Pass to route handler.
         route.handle(request = new HTTPRequest(head) {
-          public synchronized Bell toNetty(HttpObject o) {
+          public synchronized Bell toNetty(Object o) {
             ctx.channel().writeAndFlush(o);
             return pauseBell;
           } public void read() {
@@ -257,6 +237,13 @@ public class HTTPServer {
       }
     }
 
+    public void channelInactive(ChannelHandlerContext ctx) {
+      // Let anything still responding know the client has gone away.
+      if (request != null)
+        request.close();
+      ctx.fireChannelInactive();
+    }
+
     public void read(ChannelHandlerContext ctx) {
       if (request == null || request.ready)
         ctx.read();
@@ -0,0 +1,322 @@
+package stork.core.net;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import io.netty.buffer.*;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+import static io.netty.handler.codec.http.HttpHeaders.Values.*;
+import static io.netty.handler.codec.http.HttpHeaders.*;
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpMethod.*;
+
+import stork.feather.*;
+import stork.feather.URI;
+import stork.feather.Path;
+import stork.feather.util.*;
+import stork.util.*;
+
+/**
+ * A route which serves static files from a local directory. Files are sent
+ * with a Netty {@code FileRegion}, so their contents are copied to the socket
+ * by the kernel where possible. Small files are kept in memory, and files
+ * whose type compresses well are gzipped once when they are first served,
+ * then sent compressed to clients which accept it.
+ * <p/>
+ * Responses carry an {@code ETag} and {@code Last-Modified} header, and
+ * conditional requests for unchanged files get a {@code 304 Not Modified}.
+ * Single byte ranges are supported. A file is checked for changes at most
+ * once a second.
+ * <p/>
+ * Requests for paths which don't exist are served the index, so the web
+ * client's router can decide what to do with them.
+ */
+class StaticRoute extends HTTPServer.Route {
+  private static final String INDEX = "index.html";
+  private static final long MAX_CACHED = 64*1024;
+  private static final long MAX_GZIP = 1024*1024;
+  private static final long CACHE_SIZE = 16*1024*1024;
+  private static final long RECHECK_MS = 1000;
+  private static final int MAX_AGE = 60;
+
+  private final File root;
+
+  // Threads which find and read files, so the event loop doesn't block.
+  private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+    4, 4, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+  static {
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  // Assets in access order, and the number of bytes they hold in memory.
+  private final LinkedHashMap<File,Asset> assets =
+    new LinkedHashMap<File,Asset>(16, .75f, true);
+  private long cached = 0;
+
+  /**
+   * Create a route serving files from {@code root} under {@code uri}.
+   *
+   * @param uri the URI to serve files under.
+   * @param root the directory to serve files from.
+   */
+  StaticRoute(URI uri, String root) {
+    super(uri, "GET", "HEAD");
+    this.root = canonical(new File(root));
+  }
+
+  // What we know about a file, and its contents if it's small.
+  private class Asset {
+    final File file;
+    final long length, time;
+    final String etag, type;
+    byte[] data, gzip;
+    long checked;
+
+    Asset(File file) {
+      this.file = file;
+      length = file.length();
+      time = file.lastModified();
+      etag = "\""+Long.toHexString(length)+"-"+Long.toHexString(time)+"\"";
+      String t = MimeTypeMap.forFile(file.getName());
+      type = (t != null) ? t : "application/octet-stream";
+      checked = System.currentTimeMillis();
+    }
+
+    // Check if the file has changed since this was made.
+    boolean stale() {
+      long now = System.currentTimeMillis();
+      if (now - checked < RECHECK_MS)
+        return false;
+      checked = now;
+      return file.length() != length || file.lastModified() != time;
+    }
+
+    // Read the file if it's small, and compress it if it's worth it.
+    void load() throws IOException {
+      if (length > MAX_GZIP || length > MAX_CACHED && !compressible())
+        return;
+      byte[] bytes = read();
+      if (compressible()) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(bytes);
+        gos.close();
+        if (bos.size() < bytes.length)
+          gzip = bos.toByteArray();
+      } if (length <= MAX_CACHED) {
+        data = bytes;
+      }
+    }
+
+    private byte[] read() throws IOException {
+      byte[] bytes = new byte[(int) length];
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.readFully(bytes);
+      } finally {
+        in.close();
+      }
+      return bytes;
+    }
+
+    boolean compressible() {
+      return type.startsWith("text/") || type.endsWith("javascript") ||
+             type.endsWith("json") || type.endsWith("xml");
+    }
+
+    long size() {
+      return (data == null ? 0 : data.length) +
+             (gzip == null ? 0 : gzip.length);
+    }
+  }
+
+  public void handle(final HTTPRequest request) {
+    final Path path = request.uri.path();
+
+    // Finding and loading the file may block, so do it off the event loop.
+    new ThreadBell<Asset>(executor) {
+      public Asset run() throws Exception {
+        File file = resolve(path);
+        if (file == null)
+          throw new FileNotFoundException(path.toString());
+        return asset(file);
+      } public void done(Asset asset) {
+        send(request, asset);
+      } public void fail(Throwable t) {
+        request.sendError(404);
+      }
+    }.start();
+  }
+
+  // Find the file for a request path, falling back to the index. The file is
+  // built from the unescaped names in the path.
+  private File resolve(Path path) {
+    File file = root;
+    for (String name : path.explode())
+      file = new File(file, name);
+    file = canonical(file);
+    if (!file.equals(root) &&
+        !file.getPath().startsWith(root.getPath()+File.separator))
+      return null;
+    if (file.isDirectory())
+      file = new File(file, INDEX);
+    if (file.isFile())
+      return file;
+    file = new File(root, INDEX);
+    return file.isFile() ? file : null;
+  }
+
+  private static File canonical(File file) {
+    try {
+      return file.getCanonicalFile();
+    } catch (IOException e) {
+      return file.getAbsoluteFile();
+    }
+  }
+
+  // Get the asset for a file, loading it if it isn't cached or has changed.
+  private Asset asset(File file) throws IOException {
+    synchronized (this) {
+      Asset a = assets.get(file);
+      if (a != null && !a.stale())
+        return a;
+      if (a != null) {
+        assets.remove(file);
+        cached -= a.size();
+      }
+    }
+
+    Asset a = new Asset(file);
+    a.load();
+
+    synchronized (this) {
+      Asset old = assets.put(file, a);
+      if (old != null)
+        cached -= old.size();
+      cached += a.size();
+      Iterator<Asset> it = assets.values().iterator();
+      while (cached > CACHE_SIZE && it.hasNext()) {
+        Asset e = it.next();
+        if (e == a) continue;
+        it.remove();
+        cached -= e.size();
+      }
+    }
+    return a;
+  }
+
+  // Send an asset, honoring conditional and range headers.
+  private void send(HTTPRequest request, Asset asset) {
+    HttpResponse r = new DefaultHttpResponse(request.version(), OK);
+    HttpHeaders h = r.headers();
+    h.set(ETAG, asset.etag);
+    setDateHeader(r, LAST_MODIFIED, new Date(asset.time));
+    h.set(CACHE_CONTROL, asset.file.getName().equals(INDEX) ?
+      "no-cache" : "public, max-age="+MAX_AGE);
+    h.set(ACCEPT_RANGES, BYTES);
+    if (asset.gzip != null)
+      h.set(VARY, ACCEPT_ENCODING);
+
+    if (notModified(request, asset)) {
+      r.setStatus(NOT_MODIFIED);
+      request.toNetty(r);
+      request.finishResponse();
+      return;
+    }
+
+    h.set(CONTENT_TYPE, asset.type);
+
+    long start = 0, length = asset.length;
+    long[] range = range(request, asset);
+    byte[] data = asset.data;
+
+    if (range != null && range.length == 0) {
+      r.setStatus(REQUESTED_RANGE_NOT_SATISFIABLE);
+      h.set(CONTENT_RANGE, "bytes */"+asset.length);
+      setContentLength(r, 0);
+      request.toNetty(r);
+      request.finishResponse();
+      return;
+    } if (range != null) {
+      start = range[0];
+      length = range[1]-range[0];
+      r.setStatus(PARTIAL_CONTENT);
+      h.set(CONTENT_RANGE,
+        "bytes "+range[0]+"-"+(range[1]-1)+"/"+asset.length);
+    } else if (asset.gzip != null && acceptsGzip(request)) {
+      data = asset.gzip;
+      length = data.length;
+      h.set(CONTENT_ENCODING, GZIP);
+    }
+
+    setContentLength(r, length);
+    request.toNetty(r);
+
+    if (request.method() != HEAD && length > 0) {
+      if (data != null) {
+        ByteBuf buf = Unpooled.wrappedBuffer(data, (int) start, (int) length);
+        request.toNetty(new DefaultHttpContent(buf));
+      } else try {
+        RandomAccessFile raf = new RandomAccessFile(asset.file, "r");
+        request.toNetty(new DefaultFileRegion(raf.getChannel(), start, length));
+      } catch (IOException e) {
+        // The headers have gone out, so all we can do is hang up.
+        Log.warning("Could not send "+asset.file+": "+e);
+        request.close();
+        return;
+      }
+    }
+
+    request.finishResponse();
+  }
+
+  // Check the conditional request headers.
+  private static boolean notModified(HTTPRequest request, Asset asset) {
+    String inm = request.header(IF_NONE_MATCH);
+    if (inm != null) {
+      for (String tag : inm.split(","))
+        if (tag.trim().equals(asset.etag) || tag.trim().equals("*"))
+          return true;
+      return false;
+    }
+
+    Date ims = getDateHeader(request.netty, IF_MODIFIED_SINCE, null);
+    return ims != null && asset.time/1000 <= ims.getTime()/1000;
+  }
+
+  // Parse a single byte range as a start and end. Return null if the whole
+  // file should be sent, or an empty array if the range can't be satisfied.
+  private static long[] range(HTTPRequest request, Asset asset) {
+    String range = request.header(RANGE);
+    String ifRange = request.header(IF_RANGE);
+    if (range == null || !range.startsWith("bytes=") || range.contains(","))
+      return null;
+    if (ifRange != null && !ifRange.equals(asset.etag))
+      return null;
+
+    try {
+      String[] p = range.substring(6).trim().split("-", 2);
+      long len = asset.length, start, end;
+      if (p[0].isEmpty()) {
+        start = Math.max(0, len-Long.parseLong(p[1]));
+        end = len;
+      } else {
+        start = Long.parseLong(p[0]);
+        end = p[1].isEmpty() ? len : Math.min(len, Long.parseLong(p[1])+1);
+      }
+      return (start < end) ? new long[] { start, end } : new long[0];
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static boolean acceptsGzip(HTTPRequest request) {
+    String ae = request.header(ACCEPT_ENCODING);
+    return ae != null && ae.toLowerCase().contains(GZIP);
+  }
+}
@@ -34,9 +34,14 @@ public class TCPInterface extends BaseTCPInterface {
       public void messageReceived(final ChannelHandlerContext ctx, Ad ad) {
         Request r = getRequestForm(ad.get("command")).unmarshalFrom(ad);
         r.mayChangeState = true;  // Always allow state change.
+        if (ad.has("cookie"))
+          r.cookie(ad.getAd("cookie"));
         issueRequest(r).new Promise() {
           public void done(Object res) {
-            ctx.channel().writeAndFlush(Ad.marshal(res));
+            if (res instanceof JobEvents.Subscription)
+              stream(ctx.channel(), (JobEvents.Subscription) res);
+            else
+              ctx.channel().writeAndFlush(Ad.marshal(res));
           } public void fail(Throwable t) {
             ctx.channel().writeAndFlush(errorToAd(t));
           }
@@ -46,32 +51,39 @@ public class TCPInterface extends BaseTCPInterface {
     channel.pipeline().addLast(new AdEncoder());
   }
 
-  public int port(URI uri) {
-    return uri.port() > 0 ? uri.port() : 57024;
+  // Write each batch of events as a series of ads, waiting for the previous
+  // batch to be written before getting the next one.
+  private void stream(
+      final Channel channel, final JobEvents.Subscription sub) {
+    channel.closeFuture().addListener(new ChannelFutureListener() {
+      public void operationComplete(ChannelFuture f) { sub.close(); }
+    });
+    pump(channel, sub);
   }
-}
-
-class AdDecoder extends ReplayingDecoder<Void> {
-  protected void decode(
-      ChannelHandlerContext ctx, final ByteBuf buf, List<Object> out) {
-    // A decoder for reading serialized ads from a byte channel.
-    // TODO: We should use a smarter method of finding message ends.
-    if (actualReadableBytes() == 0)
-      return;
 
-    Ad ad = Ad.parse(new InputStream() {
-      int i = 0, len = actualReadableBytes();
-      public int read() {
-        return (i++ == len) ? -1 : buf.readByte();
+  private void pump(final Channel channel, final JobEvents.Subscription sub) {
+    sub.next().new Promise() {
+      public void done(List<JobEvents.Event> events) {
+        ChannelFuture f = null;
+        for (JobEvents.Event e : events)
+          f = channel.write(Ad.marshal(e));
+        channel.flush();
+        f.addListener(new ChannelFutureListener() {
+          public void operationComplete(ChannelFuture f) {
+            if (f.isSuccess())
+              pump(channel, sub);
+            else
+              sub.close();
+          }
+        });
+      } public void fail(Throwable t) {
+        sub.close();
       }
-    });
-    out.add(ad);
+    };
   }
 
-  public void exceptionCaught(ChannelHandlerContext ctx, Throwable t) {
-    // We got a parse error. This may lead to desynchronization, but we should
-    // leave closing of the connection up to another handler.
-    t.printStackTrace();
+  public int port(URI uri) {
+    return uri.port() > 0 ? uri.port() : 57024;
   }
 }
 
@@ -0,0 +1,442 @@
+package stork.core.server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import io.netty.buffer.*;
+
+import stork.feather.*;
+import stork.feather.util.*;
+import stork.util.*;
+
+/**
+ * A size-bounded cache of file contents on local disk, used to avoid fetching
+ * the same remote file again for every client that downloads it. Entries are
+ * keyed by the URI of the {@code Resource} and the credential of its {@code
+ * Session}, along with the size and modification time from its {@code Stat},
+ * so a file which changes is fetched again. Since a cached file is only
+ * served to clients using the credential it was fetched with, the cache
+ * can't be used to read a file a client couldn't read from its source. The
+ * least recently used entries are evicted to keep the cache under its
+ * capacity.
+ * <p/>
+ * A file is fetched into the cache independently of the clients reading it.
+ * Every client, including the one whose request caused the fetch, reads the
+ * cache entry and follows it as it grows, so concurrent downloads of the same
+ * file only fetch it once. If every client leaves before the file has been
+ * fetched, the fetch is cancelled.
+ * <p/>
+ * Entries are not kept across restarts, and the cache directory is emptied
+ * when the cache is created.
+ */
+public class ContentCache {
+  private static final Log.Category log = Log.category("cache");
+  private static final int CHUNK_SIZE = 64*1024;
+  private static final String SUFFIX = ".cache";
+
+  private static final Metrics.Counter hits =
+    Metrics.counter("cache.hits");
+  private static final Metrics.Counter misses =
+    Metrics.counter("cache.misses");
+  private static final Metrics.Counter tails =
+    Metrics.counter("cache.tails");
+  private static final Metrics.Counter saved =
+    Metrics.counter("cache.bytes_saved");
+  private static final Metrics.Counter evictions =
+    Metrics.counter("cache.evictions");
+
+  private final File dir;
+  private final long capacity;
+  private ThreadPoolExecutor executor;
+
+  // Entries in access order, and the latest entry for each source.
+  private final LinkedHashMap<Key,Entry> entries =
+    new LinkedHashMap<Key,Entry>(16, .75f, true);
+  private final Map<Source,Entry> latest = new HashMap<Source,Entry>();
+  private long size = 0;
+  private long serial = 0;
+
+  /**
+   * Create a cache which stores up to {@code capacity} bytes of file contents
+   * in {@code dir}. If {@code dir} is {@code null} or {@code capacity} is not
+   * positive, the cache is disabled, and everything is fetched directly.
+   *
+   * @param dir the directory to store cached files in.
+   * @param capacity the number of bytes the cache may hold.
+   */
+  public ContentCache(String dir, long capacity) {
+    this.capacity = capacity;
+    this.dir = (dir == null || capacity <= 0) ?
+      null : new File(dir).getAbsoluteFile();
+
+    if (this.dir != null) {
+      this.dir.mkdirs();
+      File[] files = this.dir.listFiles();
+      if (files != null) for (File f : files)
+        if (f.getName().endsWith(SUFFIX)) f.delete();
+
+      executor = new ThreadPoolExecutor(
+        1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+      executor.allowCoreThreadTimeOut(true);
+    }
+
+    Metrics.register("cache.size", new Metrics.Metric() {
+      public Object value() { return size(); }
+    });
+  }
+
+  /** Check if the cache is enabled. */
+  public boolean enabled() { return dir != null; }
+
+  /** Get the number of bytes currently held in the cache. */
+  public synchronized long size() { return size; }
+
+  // A file as seen through a session's credential.
+  private static class Source {
+    final String uri;
+    final Credential credential;
+
+    Source(Resource<?,?> resource) {
+      uri = resource.toString();
+      credential = resource.session.credential;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Source))
+        return false;
+      Source s = (Source) o;
+      return uri.equals(s.uri) && (credential == null ?
+        s.credential == null : credential.equals(s.credential));
+    }
+
+    public int hashCode() {
+      return uri.hashCode() + (credential == null ? 0 : credential.hashCode());
+    }
+
+    public String toString() { return uri; }
+  }
+
+  // A version of a source's contents.
+  private static class Key {
+    final Source source;
+    final long size, time;
+
+    Key(Source source, Stat stat) {
+      this.source = source;
+      size = stat.size;
+      time = stat.time;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key k = (Key) o;
+      return source.equals(k.source) && size == k.size && time == k.time;
+    }
+
+    public int hashCode() {
+      return source.hashCode() + 13*(int) size + 17*(int) time;
+    }
+  }
+
+  // A cached file, which may still be being fetched.
+  private class Entry {
+    final Key key;
+    final Source source;
+    final long length;
+    final File file;
+    long written = 0;
+    boolean complete = false;
+    Throwable error;
+    int readers = 0;
+    volatile boolean cancelled = false;
+    private Bell<Entry> progress = new Bell<Entry>();
+
+    Entry(Key key) {
+      this.key = key;
+      source = key.source;
+      length = key.size;
+      file = new File(dir, (serial++)+SUFFIX);
+    }
+
+    boolean isDone() { return complete || error != null; }
+
+    // Return a bell which rings once there is data past offset, or the entry
+    // is done.
+    synchronized Bell<Entry> await(long offset) {
+      if (offset < written || isDone())
+        return new Bell<Entry>(this);
+      return progress;
+    }
+
+    // Record that data has been written, or that the entry is done.
+    void wrote(long n) {
+      Bell<Entry> b;
+      synchronized (this) {
+        written += n;
+        b = progress;
+        progress = new Bell<Entry>();
+      } b.ring(this);
+    }
+
+    void done(Throwable t) {
+      synchronized (this) {
+        if (t != null)
+          error = t;
+        else if (length >= 0 && written != length)
+          error = new IOException("Cached file has the wrong size.");
+        else
+          complete = true;
+      } wrote(0);
+    }
+  }
+
+  /**
+   * Get a {@code Tap} for {@code resource} which reads from the cache, first
+   * starting to fetch it into the cache if necessary. Directories, resources
+   * whose size isn't known, and files too large to cache are tapped
+   * directly.
+   *
+   * @param resource the {@code Resource} to read.
+   * @return A {@code Bell} which rings with the {@code Tap}.
+   */
+  public Bell<Tap> tap(final Resource<?,?> resource) {
+    if (!enabled())
+      return new Bell<Tap>(resource.tap());
+    return resource.stat().new As<Tap>() {
+      public Tap convert(Stat stat) {
+        return tap(resource, stat);
+      }
+    };
+  }
+
+  private synchronized Tap tap(Resource<?,?> resource, Stat stat) {
+    if (!stat.file || stat.size < 0 || stat.size > capacity)
+      return resource.tap();
+
+    Key key = new Key(new Source(resource), stat);
+    Entry entry = entries.get(key);
+    boolean hit = entry != null && entry.error == null;
+
+    if (hit) {
+      if (entry.complete)
+        hits.increment();
+      else
+        tails.increment();
+    } else {
+      misses.increment();
+      entry = new Entry(key);
+      Entry old = latest.put(key.source, entry);
+      if (old != null)
+        remove(old, false);
+      entries.put(key, entry);
+      fill(resource, entry);
+    }
+
+    entry.readers++;
+    return new CacheTap(resource, entry, hit);
+  }
+
+  // Fetch a resource into an entry.
+  private void fill(Resource<?,?> resource, final Entry entry) {
+    log.fine("Caching ", entry.source, " in ", entry.file);
+    final FileChannel channel;
+    try {
+      channel = new RandomAccessFile(entry.file, "rw").getChannel();
+    } catch (Exception e) {
+      failed(entry, e);
+      return;
+    }
+
+    Tap tap = resource.tap();
+    tap.attach(new Sink(Resources.anonymous()) {
+      protected Bell drain(final Slice slice) {
+        if (entry.cancelled) {
+          slice.asByteBuf().release();
+          return new Bell(new CancellationException());
+        }
+        return new ThreadBell(executor) {
+          public Object run() throws Exception {
+            ByteBuffer buf = slice.asByteBuf().nioBuffer();
+            long n = buf.remaining();
+            try {
+              while (buf.hasRemaining())
+                channel.write(buf, entry.written+n-buf.remaining());
+            } finally {
+              slice.asByteBuf().release();
+            }
+            grow(entry, n);
+            return null;
+          }
+        }.start();
+      } protected void finish(final Throwable t) {
+        new ThreadBell(executor) {
+          public Object run() throws Exception {
+            channel.close();
+            if (t == null)
+              entry.done(null);
+            else
+              failed(entry, t);
+            return null;
+          }
+        }.start();
+      }
+    });
+    tap.start();
+  }
+
+  // Account for data written to an entry, then make room for it.
+  private void grow(Entry entry, long n) {
+    synchronized (this) {
+      size += n;
+    } entry.wrote(n);
+    evict();
+  }
+
+  // Fail an entry and remove it from the cache.
+  private void failed(Entry entry, Throwable t) {
+    log.fine("Failed to cache ", entry.source, ": ", t);
+    entry.done(t);
+    synchronized (this) {
+      remove(entry, true);
+    }
+  }
+
+  // Evict the least recently used entries which aren't being read until the
+  // cache is under capacity.
+  private synchronized void evict() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (size > capacity && it.hasNext()) {
+      Entry e = it.next();
+      if (e.readers > 0 || !e.isDone())
+        continue;
+      it.remove();
+      remove(e, true);
+      evictions.increment();
+    }
+  }
+
+  // Remove an entry, deleting its file once nothing is reading it or, if
+  // force is set, as soon as it's done.
+  private synchronized void remove(Entry entry, boolean force) {
+    if (entry == null)
+      return;
+    if (!force && (entry.readers > 0 || !entry.isDone()))
+      return;
+    if (entries.get(entry.key) == entry)
+      entries.remove(entry.key);
+    if (latest.get(entry.source) == entry)
+      latest.remove(entry.source);
+    if (entry.readers == 0 && entry.file.delete())
+      size -= entry.written;
+  }
+
+  // Called when a reader is finished with an entry. If it was the last reader
+  // of an entry still being fetched, cancel the fetch. The file is deleted
+  // once the fetch has stopped.
+  private synchronized void release(Entry entry) {
+    if (--entry.readers > 0)
+      return;
+    if (!entry.isDone()) {
+      log.fine("Nothing is reading ", entry.source, ", cancelling fetch");
+      entry.cancelled = true;
+      if (entries.get(entry.key) == entry)
+        entries.remove(entry.key);
+      if (latest.get(entry.source) == entry)
+        latest.remove(entry.source);
+    } else if (entries.get(entry.key) != entry && entry.file.delete()) {
+      size -= entry.written;
+    }
+  }
+
+  // Reads an entry, following it as it's written.
+  private class CacheTap extends Tap<Resource> {
+    private final Entry entry;
+    private final boolean hit;
+    private RandomAccessFile raf;
+    private long offset = 0;
+    private boolean finished = false;
+
+    CacheTap(Resource resource, Entry entry, boolean hit) {
+      super(resource);
+      this.entry = entry;
+      this.hit = hit;
+    }
+
+    protected Bell start(Bell bell) throws Exception {
+      raf = new RandomAccessFile(entry.file, "r");
+      return bell.new Promise() {
+        public void done() { next(Bell.rungBell()); }
+      };
+    }
+
+    // Read the next chunk once the sink is ready and there's data for it.
+    private void next(Bell<?> pause) {
+      pause.new AsBell<Entry>() {
+        public Bell<Entry> convert(Object o) {
+          return entry.await(offset);
+        }
+      }.new Promise() {
+        public void done() {
+          try {
+            read();
+          } catch (Exception e) {
+            finish(e);
+          }
+        } public void fail(Throwable t) {
+          finish(t);
+        }
+      };
+    }
+
+    private void read() throws Exception {
+      long end;
+      Throwable error;
+      synchronized (entry) {
+        end = entry.written;
+        error = entry.error;
+      }
+
+      if (error != null) {
+        finish(error);
+      } else if (offset >= end) {
+        finish(null);
+      } else {
+        int len = (int) Math.min(CHUNK_SIZE, end-offset);
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(len);
+        try {
+          ByteBuffer nio = buf.nioBuffer(0, len);
+          FileChannel channel = raf.getChannel();
+          while (nio.hasRemaining())
+            if (channel.read(nio, offset+nio.position()) < 0)
+              throw new EOFException("Cached file was truncated.");
+          buf.writerIndex(len);
+        } catch (Exception e) {
+          buf.release();
+          throw e;
+        }
+        offset += len;
+        next(drain(new Slice(buf)));
+      }
+    }
+
+    protected void finish(Throwable t) {
+      synchronized (this) {
+        if (finished)
+          return;
+        finished = true;
+      } try {
+        if (raf != null) raf.close();
+      } catch (Exception e) {
+        // Ignore it.
+      }
+      release(entry);
+      if (t == null && hit)
+        saved.add(offset);
+      super.finish(t);
+    }
+  }
+}
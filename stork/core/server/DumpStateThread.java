@@ -54,6 +54,12 @@ public class DumpStateThread extends Thread {
     this.config = config;
   }
 
+  /**
+   * Called on the dump thread before each dump. Subclasses may override this
+   * to trim the state first.
+   */
+  protected void beforeDump() { }
+
   /** Dump the state ahead of schedule. */
   public synchronized void dumpState() { interrupt(); }
 
@@ -64,6 +70,7 @@ public class DumpStateThread extends Thread {
     PrintWriter pw = null;
 
     if (state_path != null) try {
+      beforeDump();
       state_file = new File(state_path).getAbsoluteFile();
 
       // Some initial sanity checks.
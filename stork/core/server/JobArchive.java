@@ -0,0 +1,254 @@
+package stork.core.server;
+
+import java.io.*;
+import java.util.*;
+
+import stork.ad.*;
+import stork.scheduler.*;
+import stork.util.*;
+
+/**
+ * Cold storage for jobs which have terminated, so they needn't be kept in
+ * memory or written to the state file. Archived jobs are appended to segment
+ * files in a directory, and an index giving the owner, ID, status, and
+ * location of each job is kept in memory and appended to an index file. Jobs
+ * can then be filtered without being read, and are only read back when asked
+ * for. A few recently read jobs are cached.
+ * <p/>
+ * Files in the archive are only ever appended to. If a job is archived more
+ * than once, e.g. because the server stopped after archiving it but before
+ * saving its state, the last record in the index is the one used.
+ */
+public class JobArchive {
+  private static final Log.Category log = Log.category("archive");
+  /** Segments are rolled over once they would exceed this size. */
+  private static final long SEGMENT_SIZE = 16*1024*1024;
+  /** The most jobs to keep cached after reading them. */
+  private static final int CACHED = 256;
+  private static final String INDEX = "index", SUFFIX = ".seg";
+
+  private static final Metrics.Counter archived =
+    Metrics.counter("archive.archived");
+  private static final Metrics.Counter loads =
+    Metrics.counter("archive.loads");
+
+  private final File dir;
+  private final Map<UUID,Entry> index = new HashMap<UUID,Entry>();
+  private final Cache cache = new Cache();
+
+  // The segment being appended to, and its size.
+  private int segment = 0;
+  private long segmentSize = 0;
+
+  // Recently read jobs, in order of use.
+  private static class Cache extends LinkedHashMap<UUID,Job> {
+    private static final long serialVersionUID = 1L;
+    Cache() { super(16, .75f, true); }
+    protected boolean removeEldestEntry(Map.Entry<UUID,Job> e) {
+      return size() > CACHED;
+    }
+  }
+
+  // Where an archived job is, and what it can be filtered by.
+  private static class Entry {
+    final UUID uuid;
+    final String owner;
+    final int id;
+    final JobStatus status;
+    final int segment;
+    final long offset;
+    final int length;
+
+    Entry(Job job, int segment, long offset, int length) {
+      uuid = job.uuid();
+      owner = job.owner;
+      id = job.jobId();
+      status = job.status();
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    // Parse an index line.
+    Entry(String line) {
+      String[] f = line.split(" ");
+      if (f.length != 7)
+        throw new RuntimeException("Bad index line.");
+      uuid = UUID.fromString(f[0]);
+      owner = f[1].equals("-") ? null : f[1];
+      id = Integer.parseInt(f[2]);
+      status = JobStatus.byName(f[3]);
+      segment = Integer.parseInt(f[4]);
+      offset = Long.parseLong(f[5]);
+      length = Integer.parseInt(f[6]);
+    }
+
+    public String toString() {
+      return uuid+" "+(owner == null ? "-" : owner)+" "+id+" "+status+" "+
+             segment+" "+offset+" "+length;
+    }
+  }
+
+  /**
+   * Open or create an archive in {@code dir}, and read its index.
+   *
+   * @param dir the directory to keep the archive in.
+   */
+  public JobArchive(String dir) {
+    this.dir = new File(dir).getAbsoluteFile();
+    this.dir.mkdirs();
+    readIndex();
+
+    File f = segmentFile(segment);
+    if (f.exists())
+      segmentSize = f.length();
+
+    Metrics.register("archive.jobs", new Metrics.Metric() {
+      public Object value() { return size(); }
+    });
+  }
+
+  // Read the index, skipping anything unreadable, such as a line torn by a
+  // crash.
+  private void readIndex() {
+    File f = new File(dir, INDEX);
+    if (!f.exists())
+      return;
+    BufferedReader r = null;
+    try {
+      r = new BufferedReader(
+        new InputStreamReader(new FileInputStream(f), "UTF-8"));
+      for (String line; (line = r.readLine()) != null;) try {
+        Entry e = new Entry(line);
+        index.put(e.uuid, e);
+        segment = Math.max(segment, e.segment);
+      } catch (Exception e) {
+        log.warning("Skipping bad archive index line: ", line);
+      }
+    } catch (IOException e) {
+      log.warning("Couldn't read archive index: ", e.getMessage());
+    } finally {
+      close(r);
+    }
+    log.info("Opened job archive with ", index.size(), " jobs: ", dir);
+  }
+
+  private File segmentFile(int n) {
+    return new File(dir, String.format("%06d", n)+SUFFIX);
+  }
+
+  /** Get the number of jobs in the archive. */
+  public synchronized int size() { return index.size(); }
+
+  /** Check if a job is in the archive. */
+  public synchronized boolean contains(UUID uuid) {
+    return index.containsKey(uuid);
+  }
+
+  /**
+   * Get the status an archived job had when it was archived, without
+   * reading it.
+   *
+   * @return The job's status, or {@code null} if it isn't archived.
+   */
+  public synchronized JobStatus status(UUID uuid) {
+    Entry e = index.get(uuid);
+    return (e != null) ? e.status : null;
+  }
+
+  /**
+   * Append jobs to the archive. The jobs are written and synced to disk
+   * before they're added to the index, so once this returns they may be
+   * dropped from memory.
+   *
+   * @param jobs the jobs to archive.
+   * @throws IOException if the jobs could not be written. Some may have been
+   * written, but none will be in the index.
+   */
+  public synchronized void archive(Collection<Job> jobs) throws IOException {
+    if (jobs.isEmpty())
+      return;
+
+    List<Entry> entries = new ArrayList<Entry>(jobs.size());
+    FileOutputStream out = null;
+    try {
+      for (Job job : jobs) {
+        byte[] b = Ad.marshal(job).toJSON(false).getBytes("UTF-8");
+        if (out == null || segmentSize > 0 &&
+            segmentSize + b.length > SEGMENT_SIZE) {
+          if (out != null) {
+            out.getFD().sync();
+            out.close();
+            segment++;
+            segmentSize = 0;
+          } out = new FileOutputStream(segmentFile(segment), true);
+        }
+        out.write(b);
+        entries.add(new Entry(job, segment, segmentSize, b.length));
+        segmentSize += b.length;
+      }
+      out.getFD().sync();
+    } finally {
+      close(out);
+    }
+
+    Writer w = null;
+    try {
+      FileOutputStream fos = new FileOutputStream(new File(dir, INDEX), true);
+      w = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+      for (Entry e : entries)
+        w.write(e+"\n");
+      w.flush();
+      fos.getFD().sync();
+    } finally {
+      close(w);
+    }
+
+    for (Entry e : entries) {
+      index.put(e.uuid, e);
+      cache.remove(e.uuid);
+    }
+    archived.add(entries.size());
+  }
+
+  /**
+   * Read a job from the archive. The returned job is not attached to a
+   * scheduler.
+   *
+   * @return The archived job, or {@code null} if it isn't archived or
+   * couldn't be read.
+   */
+  public synchronized Job load(UUID uuid) {
+    Job job = cache.get(uuid);
+    if (job != null)
+      return job;
+    Entry e = index.get(uuid);
+    if (e == null)
+      return null;
+
+    RandomAccessFile f = null;
+    try {
+      byte[] b = new byte[e.length];
+      f = new RandomAccessFile(segmentFile(e.segment), "r");
+      f.seek(e.offset);
+      f.readFully(b);
+      job = Ad.parse(new String(b, "UTF-8")).unmarshal(new Job());
+      loads.increment();
+      cache.put(uuid, job);
+      return job;
+    } catch (Exception ex) {
+      log.warning("Couldn't read archived job ", uuid, ": ", ex.getMessage());
+      return null;
+    } finally {
+      close(f);
+    }
+  }
+
+  private static void close(Closeable c) {
+    if (c != null) try {
+      c.close();
+    } catch (Exception e) {
+      // Ignore.
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package stork.core.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import stork.ad.*;
+import stork.core.*;
+import stork.feather.*;
+import stork.feather.util.*;
+import stork.scheduler.*;
+import stork.util.*;
+
+import static stork.scheduler.JobStatus.*;
+
+/**
+ * Publishes job events to subscribed clients, so they don't have to poll the
+ * queue. Status changes are published as they happen. Transfer progress is
+ * sampled for each subscriber at the rate it asked for, and only reported for
+ * jobs which have made progress since the last sample.
+ * <p/>
+ * Each subscriber has a bounded buffer of undelivered events. Progress events
+ * for a job replace any undelivered progress event for the same job. If the
+ * buffer overflows anyway, its contents are discarded and replaced with a
+ * single {@code resync} event, telling the client to query the queue again.
+ */
+public class JobEvents {
+  // Subscriptions by user, and each user's jobs which are in progress.
+  private final ConcurrentMap<User,Set<Subscription>> subscriptions =
+    new ConcurrentHashMap<User,Set<Subscription>>();
+  private final ConcurrentMap<User,Set<Job>> active =
+    new ConcurrentHashMap<User,Set<Job>>();
+
+  private static final Timer timer = new Timer("Job Events", true);
+
+  private static final Metrics.Counter published =
+    Metrics.counter("watch.events");
+  private static final Metrics.Counter dropped =
+    Metrics.counter("watch.dropped");
+  private static final Metrics.Counter resyncs =
+    Metrics.counter("watch.resyncs");
+
+  /** Create a hub and report its subscriber count as a metric. */
+  public JobEvents() {
+    Metrics.register("watch.subscribers", new Metrics.Metric() {
+      public Object value() { return subscribers(); }
+    });
+  }
+
+  /** An event delivered to a subscriber. */
+  public static class Event {
+    /** One of {@code job}, {@code status}, {@code progress}, or {@code
+     *  resync}. */
+    public String type;
+    public Integer job_id;
+    public JobStatus status;
+    public String message;
+    public TransferInfo bytes;
+    /** The whole job, for newly submitted jobs. */
+    public Ad job;
+    /** The user's jobs which haven't been archived, for resync events.
+     *  Archived jobs have terminated, so they can't have changed. */
+    public List<Job> jobs;
+
+    private transient Job source;
+
+    Event(String type) { this.type = type; }
+
+    Event(String type, Job job) {
+      this(type);
+      job_id = job.jobId();
+      source = job;
+    }
+
+    Job source() { return source; }
+  }
+
+  /**
+   * A client's subscription to the events of a user's jobs. Events are
+   * collected by calling {@link #next()} repeatedly until the subscription
+   * is closed. A {@code resync} event carries the user's jobs which are
+   * still in memory, so the client can start over without making another
+   * request or reading the archive.
+   */
+  public class Subscription {
+    private final User user;
+    private final int capacity;
+    private final TimerTask sampler;
+
+    private LinkedList<Event> queue = new LinkedList<Event>();
+    private final Map<Job,Event> progress = new HashMap<Job,Event>();
+    private final Map<Job,Long> reported = new WeakHashMap<Job,Long>();
+    private boolean resync = false;
+    private boolean closed = false;
+    private Bell<List<Event>> waiting;
+
+    Subscription(User user, double interval, int capacity) {
+      this.user = user;
+      this.capacity = Math.max(1, capacity);
+
+      long ms = (long) (interval*1000);
+      timer.schedule(sampler = new TimerTask() {
+        public void run() { sample(); }
+      }, ms, ms);
+    }
+
+    /**
+     * Get the next batch of events. The returned {@code Bell} rings as soon
+     * as there is at least one event, and fails if the subscription is
+     * closed. Only one batch may be waited for at a time.
+     */
+    public Bell<List<Event>> next() {
+      return take().new As<List<Event>>() {
+        public List<Event> convert(List<Event> events) {
+          // Done here, since events are published with jobs locked.
+          for (Event e : events) if (e.type.equals("resync"))
+            e.jobs = user.liveJobs();
+          return events;
+        }
+      };
+    }
+
+    private synchronized Bell<List<Event>> take() {
+      if (closed)
+        return new Bell<List<Event>>(new Exception("Subscription closed."));
+      if (waiting != null)
+        return waiting;
+      if (!queue.isEmpty())
+        return new Bell<List<Event>>(drain());
+      return waiting = new Bell<List<Event>>();
+    }
+
+    /** Stop receiving events. */
+    public void close() {
+      Bell<List<Event>> w;
+      synchronized (this) {
+        if (closed)
+          return;
+        closed = true;
+        w = waiting;
+        waiting = null;
+        queue.clear();
+        progress.clear();
+      }
+
+      sampler.cancel();
+      Set<Subscription> set = subscriptions.get(user);
+      if (set != null)
+        set.remove(this);
+      if (w != null)
+        w.ring(new Exception("Subscription closed."));
+    }
+
+    // Take everything in the queue.
+    private List<Event> drain() {
+      List<Event> list = queue;
+      queue = new LinkedList<Event>();
+      progress.clear();
+      resync = false;
+      return list;
+    }
+
+    // Add an event to the queue, handling overflow. Returns a waiting bell
+    // which should be rung with the given batch outside the lock, or null.
+    private Bell<List<Event>> enqueue(Event e, List<List<Event>> batch) {
+      if (closed) {
+        return null;
+      } if (resync) {
+        dropped.increment();
+        return null;
+      } if (queue.size() >= capacity) {
+        dropped.add(queue.size()+1);
+        resyncs.increment();
+        queue.clear();
+        progress.clear();
+        queue.add(new Event("resync"));
+        resync = true;
+      } else {
+        queue.add(e);
+        published.increment();
+        if (e.type.equals("progress"))
+          progress.put(e.source(), e);
+      } if (waiting == null) {
+        return null;
+      }
+
+      Bell<List<Event>> w = waiting;
+      waiting = null;
+      batch.add(drain());
+      return w;
+    }
+
+    private void offer(Event e) {
+      List<List<Event>> batch = new ArrayList<List<Event>>(1);
+      Bell<List<Event>> w;
+      synchronized (this) {
+        w = enqueue(e, batch);
+      } if (w != null) {
+        w.ring(batch.get(0));
+      }
+    }
+
+    // Report progress for any active job which has made some since the last
+    // sample, coalescing with undelivered progress events.
+    private void sample() {
+      Set<Job> jobs = active.get(user);
+      if (jobs == null)
+        return;
+      for (Job job : jobs) {
+        TransferInfo info = job.bytes;
+        if (info == null)
+          continue;
+
+        TransferInfo copy = info.snapshot();
+
+        List<List<Event>> batch = new ArrayList<List<Event>>(1);
+        Bell<List<Event>> w;
+        synchronized (this) {
+          Long last = reported.get(job);
+          if (last != null && last == copy.done)
+            continue;
+          reported.put(job, copy.done);
+
+          Event e = progress.get(job);
+          if (e != null) {
+            e.bytes = copy;
+            continue;
+          }
+
+          e = new Event("progress", job);
+          e.bytes = copy;
+          w = enqueue(e, batch);
+        } if (w != null) {
+          w.ring(batch.get(0));
+        }
+      }
+    }
+  }
+
+  /**
+   * Subscribe to the events of {@code user}'s jobs, sampling progress every
+   * {@code interval} seconds. The interval is raised to the configured
+   * minimum if necessary.
+   */
+  public Subscription subscribe(User user, double interval) {
+    Config config = Config.global;
+    interval = Math.max(interval, config.watch_interval);
+    Subscription s = new Subscription(user, interval, config.watch_buffer);
+
+    Set<Subscription> set = subscriptions.get(user);
+    if (set == null) {
+      Set<Subscription> ns = new CopyOnWriteArraySet<Subscription>();
+      set = subscriptions.putIfAbsent(user, ns);
+      if (set == null)
+        set = ns;
+    } set.add(s);
+    return s;
+  }
+
+  /**
+   * Publish the submission of a job. This should be called before the job
+   * is scheduled, so it comes before any change in its status.
+   */
+  public void submitted(User user, Job job) {
+    Set<Subscription> set = (user == null) ? null : subscriptions.get(user);
+    if (set == null || set.isEmpty())
+      return;
+    Event e = new Event("job", job);
+    e.job = Ad.marshal(job);
+    publish(user, e);
+  }
+
+  /** Publish a change in the status of a job. */
+  public void statusChanged(Job job) {
+    User user = job.user();
+    JobStatus status = job.status();
+
+    if (status == processing) {
+      Set<Job> set = active.get(user);
+      if (set == null) {
+        Set<Job> ns = Collections.newSetFromMap(
+          new ConcurrentHashMap<Job,Boolean>());
+        set = active.putIfAbsent(user, ns);
+        if (set == null)
+          set = ns;
+      } set.add(job);
+    } else {
+      Set<Job> set = active.get(user);
+      if (set != null)
+        set.remove(job);
+    }
+
+    Event e = new Event("status", job);
+    e.status = status;
+    e.message = job.message();
+    publish(user, e);
+  }
+
+  private void publish(User user, Event e) {
+    Set<Subscription> set = (user == null) ? null : subscriptions.get(user);
+    if (set != null) for (Subscription s : set)
+      s.offer(e);
+  }
+
+  /** Get the number of open subscriptions. */
+  public int subscribers() {
+    int n = 0;
+    for (Set<Subscription> set : subscriptions.values())
+      n += set.size();
+    return n;
+  }
+}
@@ -3,12 +3,14 @@ package stork.core.server;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.logging.Level;
 
 import stork.ad.*;
 import stork.core.*;
 import stork.core.handlers.*;
 import stork.cred.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.module.*;
 import stork.scheduler.*;
 import stork.util.*;
@@ -75,6 +77,24 @@ public class Server {
   private transient LinkedBlockingQueue<Request> requests =
     new LinkedBlockingQueue<Request>();
 
+  /** Session tokens issued to logged in users. */
+  public transient TokenCache tokens =
+    new TokenCache(Config.global.token_lifetime);
+
+  /** Publishes job events to watching clients. */
+  public transient JobEvents events = new JobEvents();
+
+  /** Caches the contents of downloaded files. */
+  public transient ContentCache cache = new ContentCache(
+    Config.global.cache_dir, Config.global.cache_size*1024L*1024L);
+
+  /** Limits the data transfers may buffer in memory at once. */
+  public transient Budget buffers =
+    new Budget(Config.global.buffer_budget*1024L*1024L);
+
+  /** Terminated jobs moved out of memory, or null if not archiving. */
+  public transient JobArchive archive;
+
   /** The anonymous user. */
   public ServerUser anonymous = new ServerUser();
 
@@ -106,7 +126,8 @@ public class Server {
     if (request.handler == null) {
       request.ring(new Exception("Invalid command."));
     } else try {
-      Log.fine("Enqueuing request: "+Ad.marshal(request));
+      if (Log.isLoggable(Level.FINE))
+        Log.fine("Enqueuing request: ", Ad.marshal(request));
       Bell.dispatch(request);
     } catch (Exception e) {
       // This can happen if the queue is full. Which right now it never should
@@ -134,14 +155,74 @@ public class Server {
   /** Schedule a job. */
   public void schedule(Job job) {
     Log.info("Scheduling job: ", job.uuid());
+    events.submitted(findUser(job.owner), job);
     scheduler.add(job);
   }
 
-  /** Find a job by its UUID. */
+  /** Schedule several jobs, holding the scheduler while adding them. */
+  public void schedule(Collection<Job> jobs) {
+    Log.info("Scheduling ", jobs.size(), " jobs.");
+    for (Job job : jobs)
+      events.submitted(findUser(job.owner), job);
+    scheduler.addAll(jobs);
+  }
+
+  /** Find a job by its UUID, reading it from the archive if necessary. */
   public Job findJob(UUID uuid) {
+    Job job = scheduler.get(uuid);
+    if (job == null && archive != null) {
+      job = archive.load(uuid);
+      if (job != null)
+        job.scheduler = scheduler;
+    } return job;
+  }
+
+  /**
+   * Find a job by its UUID if its status is in {@code status}. Archived jobs
+   * are only read if they match.
+   */
+  public Job findJob(UUID uuid, EnumSet<JobStatus> status) {
+    Job job = scheduler.get(uuid);
+    if (job != null)
+      return status.contains(job.status()) ? job : null;
+    if (archive == null || !status.contains(archive.status(uuid)))
+      return null;
+    return findJob(uuid);
+  }
+
+  // Find a job which is in memory.
+  Job liveJob(UUID uuid) {
     return scheduler.get(uuid);
   }
 
+  /**
+   * Move terminated jobs out of memory and into the archive. A job is
+   * archived once it has been over {@code archive_after} seconds since it
+   * terminated, or if its owner has more than {@code max_history} more
+   * recently terminated jobs.
+   */
+  public void archiveJobs() {
+    Config c = Config.global;
+    if (archive == null || c.archive_after < 0)
+      return;
+
+    long before = System.currentTimeMillis() - c.archive_after*1000L;
+    List<Job> jobs = new ArrayList<Job>();
+    synchronized (this) {
+      for (User user : users.values())
+        jobs.addAll(user.archivable(before, c.max_history));
+    } jobs.addAll(anonymous.archivable(before, c.max_history));
+
+    if (!jobs.isEmpty()) try {
+      archive.archive(jobs);
+      for (Job job : jobs)
+        scheduler.retire(job);
+      Log.info("Archived ", jobs.size(), " jobs.");
+    } catch (Exception e) {
+      Log.warning("Couldn't archive jobs: ", e.getMessage());
+    }
+  }
+
   /** Create a shared endpoint. */
   public UUID createSharedEndpoint(User user, EndpointRequest ep) {
     SharedEndpoint share = new SharedEndpoint(user.email);
@@ -198,6 +279,12 @@ public class Server {
     if (config.state_file != null)
       loadServerState(config.state_file);
 
+    String dir = (config.archive_dir != null) ? config.archive_dir :
+                 (config.state_file != null) ? config.state_file+".archive" :
+                 null;
+    if (dir != null)
+      archive = new JobArchive(dir);
+
     handlers.put("cancel", CancelHandler.class);
     handlers.put("cred",   CredHandler.class);
     handlers.put("delete", DeleteHandler.class);
@@ -211,11 +298,27 @@ public class Server {
     handlers.put("status", QHandler.class);
     handlers.put("submit", SubmitHandler.class);
     handlers.put("user",   UserHandler.class);
+    handlers.put("watch",  WatchHandler.class);
+
+    Metrics.register("buffers.used", new Metrics.Metric() {
+      public Object value() { return buffers.used(); }
+    });
+    Metrics.register("buffers.peak", new Metrics.Metric() {
+      public Object value() { return buffers.peak(); }
+    });
+    Metrics.register("buffers.limit", new Metrics.Metric() {
+      public Object value() { return buffers.limit(); }
+    });
+    Metrics.register("buffers.waiting", new Metrics.Metric() {
+      public Object value() { return buffers.waiting(); }
+    });
 
     modules.populate();
     scheduler.start();
 
-    dumpStateThread = new DumpStateThread(config, this);
+    dumpStateThread = new DumpStateThread(config, this) {
+      protected void beforeDump() { archiveJobs(); }
+    };
     dumpState();
   }
 }
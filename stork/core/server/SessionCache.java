@@ -6,6 +6,9 @@ import stork.feather.*;
 import stork.util.*;
 
 public class SessionCache {
+  private static final Log.Category log = Log.category("sessions");
+  private static final Log.Category reuseLog = log.sample(100);
+
   private Map<Session,Session> map = new HashMap<Session, Session>();
 
   public synchronized Resource take(Resource resource) {
@@ -18,11 +21,11 @@ public class SessionCache {
   public synchronized Session take(Session session) {
     Session cached = map.get(session);
     if (cached == null || cached.isClosed()) {
-      Log.info("Using new session: "+session);
+      log.info("Using new session: ", session);
       return session;
     }
     map.remove(cached);
-    Log.info("Reusing existing session: "+session);
+    reuseLog.info("Reusing existing session: ", session);
     return cached;
   }
 
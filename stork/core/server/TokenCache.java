@@ -0,0 +1,99 @@
+package stork.core.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import stork.util.*;
+
+/**
+ * Opaque session tokens issued to users on login. Once a user has a token,
+ * requests can be authenticated with a single lookup instead of finding the
+ * user and hashing a password.
+ * <p/>
+ * Tokens expire after a period of disuse. A token is also invalidated if the
+ * user's password hash has changed since it was issued, so changing the
+ * password revokes every token issued with the old one.
+ */
+public class TokenCache {
+  private final ConcurrentMap<String,Entry> tokens =
+    new ConcurrentHashMap<String,Entry>();
+  private final long lifetime;
+  private int issued = 0;
+
+  // How often to sweep expired tokens, in terms of tokens issued.
+  private static final int SWEEP_INTERVAL = 256;
+
+  private static class Entry {
+    final User user;
+    final String hash;  // The user's password hash when this was issued.
+    volatile long expires;
+
+    Entry(User user, long expires) {
+      this.user = user;
+      this.hash = user.hash;
+      this.expires = expires;
+    }
+  }
+
+  /** Create a cache of tokens which expire after {@code lifetime} seconds. */
+  public TokenCache(long lifetime) {
+    this.lifetime = lifetime*1000;
+  }
+
+  /** Issue a new token for {@code user}. */
+  public String issue(User user) {
+    String token = User.salt(24);
+    tokens.put(token, new Entry(user, System.currentTimeMillis()+lifetime));
+    synchronized (this) {
+      if (++issued % SWEEP_INTERVAL == 0)
+        sweep();
+    } return token;
+  }
+
+  /**
+   * Get the user a token was issued to, or {@code null} if the token is not
+   * valid. Using a token extends its lifetime.
+   */
+  public User lookup(String token) {
+    Entry e = tokens.get(token);
+    if (e == null)
+      return null;
+    long now = System.currentTimeMillis();
+    if (now >= e.expires || !e.hash.equals(e.user.hash)) {
+      tokens.remove(token, e);
+      return null;
+    }
+    e.expires = now+lifetime;
+    return e.user;
+  }
+
+  /** Revoke a single token. */
+  public void revoke(String token) {
+    tokens.remove(token);
+  }
+
+  /** Revoke every token issued to {@code user}. */
+  public void revoke(User user) {
+    Iterator<Entry> it = tokens.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().user == user)
+        it.remove();
+    }
+  }
+
+  /** Get the number of outstanding tokens. */
+  public int size() {
+    return tokens.size();
+  }
+
+  // Remove expired and revoked tokens.
+  private void sweep() {
+    long now = System.currentTimeMillis();
+    Iterator<Entry> it = tokens.values().iterator();
+    while (it.hasNext()) {
+      Entry e = it.next();
+      if (now >= e.expires || !e.hash.equals(e.user.hash))
+        it.remove();
+    }
+  }
+}
@@ -8,6 +8,7 @@ import stork.ad.*;
 import stork.core.*;
 import stork.cred.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.scheduler.*;
 import stork.util.*;
 
@@ -38,11 +39,27 @@ public abstract class User {
   /** Used to hold session connections for reuse. */
   public transient SessionCache sessions = new SessionCache();
 
-  /** Basic user login cookie. */
+  // Limits the data this user's transfers may buffer. Created on first use.
+  private transient Budget buffers;
+
+  // Authentication statistics.
+  private static final Metrics.Latency authTime =
+    Metrics.latency("auth.time");
+  private static final Metrics.Counter
+    authToken    = Metrics.counter("auth.token"),
+    authHash     = Metrics.counter("auth.hash"),
+    authPassword = Metrics.counter("auth.password"),
+    authFailed   = Metrics.counter("auth.failed");
+
+  /**
+   * Basic user login cookie. A cookie may contain a session token issued by
+   * the server, or an email address and either a password or password hash.
+   */
   public static class Cookie {
     public String email;
     public String hash;
     public String password;
+    public String token;
     private transient Server server;
 
     protected Cookie() { }
@@ -54,6 +71,28 @@ public abstract class User {
 
     /** Attempt to log in with the given information. */
     public User login() {
+      long start = authTime.start();
+      try {
+        return doLogin();
+      } catch (RuntimeException e) {
+        authFailed.increment();
+        throw e;
+      } finally {
+        authTime.stop(start);
+      }
+    }
+
+    private User doLogin() {
+      if (token != null) {
+        User user = server().tokens.lookup(token);
+        if (user != null) {
+          authToken.increment();
+          return user;
+        } if (email == null && hash == null) {
+          throw new RuntimeException("Session has expired.");
+        }
+      }
+
       if (email == null || (email = email.trim()).isEmpty())
         throw new RuntimeException("No email address provided.");
       if (hash == null && (password == null || password.isEmpty()))
@@ -61,9 +100,12 @@ public abstract class User {
       User user = server().users.get(User.normalizeEmail(email));
       if (user == null)
         throw new RuntimeException("Invalid username or password.");
-      if (hash == null)
+      if (hash == null) {
+        authPassword.increment();
         hash = user.hash(password);
-      if (!hash.equals(user.hash))
+      } else {
+        authHash.increment();
+      } if (!hash.equals(user.hash))
         throw new RuntimeException("Invalid username or password.");
       if (!user.validated)
         throw new RuntimeException("This account has not been validated.");
@@ -92,6 +134,18 @@ public abstract class User {
   /** Get the server this user belongs to. */
   public abstract Server server();
 
+  /**
+   * Get the {@code Budget} limiting the data this user's transfers may buffer
+   * in memory. It's a part of the server's budget, or the server's budget
+   * itself if users have no limit of their own.
+   */
+  public synchronized Budget buffers() {
+    if (buffers == null) {
+      long limit = server().config.user_buffer_budget*1024L*1024L;
+      buffers = (limit > 0) ? server().buffers.child(limit) : server().buffers;
+    } return buffers;
+  }
+
   /** Check if the given password is correct for this user. */
   public synchronized boolean checkPassword(String password) {
     return hash(password).equals(hash);
@@ -107,11 +161,15 @@ public abstract class User {
     hash = hash(pass);
   }
 
-  /** Get an object containing information to return on login. */
+  /**
+   * Get an object containing information to return on login. This issues a
+   * new session token for the user.
+   */
   public Cookie getLoginCookie() {
     Cookie cookie = new Cookie(server());
     cookie.email = email;
     cookie.hash = hash;
+    cookie.token = server().tokens.issue(this);
     return cookie;
   }
 
@@ -153,6 +211,12 @@ public abstract class User {
     return job;
   }
 
+  /** Save several jobs at once, giving them consecutive IDs. */
+  public synchronized void saveJobs(Collection<Job> jobs) {
+    for (Job job : jobs)
+      saveJob(job);
+  }
+
   /** Get one of this user's jobs by its ID. */
   public synchronized Job getJob(int id) {
     try {
@@ -163,6 +227,52 @@ public abstract class User {
     }
   }
 
+  /**
+   * Get this user's jobs with IDs in {@code range}, or any ID if it's {@code
+   * null}, and statuses in {@code status}. Archived jobs are only read if
+   * they match.
+   */
+  public synchronized List<Job> jobs(EnumSet<JobStatus> status, Range range) {
+    List<Job> list = new LinkedList<Job>();
+    for (int i = 0; i < jobs.size(); i++) {
+      if (range != null && !range.contains(i+1))
+        continue;
+      Job job = server().findJob(jobs.get(i), status);
+      if (job != null)
+        list.add(job);
+    } return list;
+  }
+
+  /**
+   * Get this user's jobs in memory which should be archived: those which
+   * terminated before {@code before}, and any which terminated earlier than
+   * the user's {@code keep} most recent. If {@code keep} is not positive,
+   * only the time is considered.
+   */
+  synchronized List<Job> archivable(long before, int keep) {
+    List<Job> list = new LinkedList<Job>();
+    int kept = 0;
+    for (int i = jobs.size()-1; i >= 0; i--) {
+      Job job = server().liveJob(jobs.get(i));
+      if (job == null || !job.isDone())
+        continue;
+      if (job.completedTime() < before || keep > 0 && kept >= keep)
+        list.add(job);
+      else
+        kept++;
+    } return list;
+  }
+
+  /** Get this user's jobs which are in memory, i.e. not archived. */
+  synchronized List<Job> liveJobs() {
+    List<Job> list = new LinkedList<Job>();
+    for (UUID uuid : jobs) {
+      Job job = server().liveJob(uuid);
+      if (job != null)
+        list.add(job);
+    } return list;
+  }
+
   /** Get a list of actual jobs owned by the user. */
   public synchronized List<Job> jobs() {
     // FIXME: Inefficient...
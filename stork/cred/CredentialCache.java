@@ -0,0 +1,169 @@
+package stork.cred;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import stork.feather.*;
+import stork.util.*;
+
+/**
+ * A cache of materialized credentials, shared by all equal credential
+ * objects. Materializing a credential may be expensive (e.g., fetching a
+ * proxy from a MyProxy server), so the result is kept until shortly before
+ * it expires, and concurrent requests for the same credential share a single
+ * fetch.
+ * <p/>
+ * When a cached value enters the last part of its lifetime, the next request
+ * starts a refresh in the background and is given the cached value, which is
+ * still valid. Values are evicted when they expire, or after a maximum age if
+ * they never expire, so sensitive material isn't held indefinitely. For the
+ * same reason, a credential whose fetch fails is dropped unless it still has
+ * a valid value.
+ *
+ * @param <C> the credential type used as the key.
+ * @param <T> the materialized credential type.
+ */
+public abstract class CredentialCache<C,T> {
+  private static final Log.Category log = Log.category("cred");
+
+  /** Refresh no earlier than this long before expiration. */
+  public static final long MAX_REFRESH_AHEAD = 10*60*1000;
+
+  // Evictions are scheduled here rather than on the Bell dispatcher so that
+  // pending evictions don't keep the process alive.
+  static final Timer timer = new Timer("Credential Cache", true);
+
+  private final ConcurrentMap<C,Entry> entries =
+    new ConcurrentHashMap<C,Entry>();
+  private final long maxAge;
+
+  /**
+   * Create a cache which holds values for no longer than {@code maxAge}
+   * milliseconds.
+   */
+  public CredentialCache(long maxAge) {
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * Materialize {@code cred}. Only one fetch per credential will be in
+   * progress at a time.
+   */
+  protected abstract Bell<T> fetch(C cred);
+
+  /**
+   * Get the time in milliseconds at which {@code value} expires, or 0 if it
+   * does not expire.
+   */
+  protected abstract long expiration(T value);
+
+  /** Get the materialized value of {@code cred}. */
+  public Bell<T> get(C cred) {
+    Entry e = entries.get(cred);
+    if (e == null) {
+      Entry ne = new Entry(cred);
+      e = entries.putIfAbsent(cred, ne);
+      if (e == null) e = ne;
+    } return e.get();
+  }
+
+  /**
+   * Get the time the cached value of {@code cred} expires, or 0 if it is not
+   * cached or does not expire.
+   */
+  public long expires(C cred) {
+    Entry e = entries.get(cred);
+    return (e == null) ? 0 : e.expires;
+  }
+
+  /** Drop the cached value of {@code cred}, if there is one. */
+  public void invalidate(C cred) {
+    entries.remove(cred);
+  }
+
+  /** Get the number of cached credentials. */
+  public int size() {
+    return entries.size();
+  }
+
+  // The cached state of a single credential. The value is only replaced once
+  // a fetch has succeeded, so a failed refresh doesn't discard a value which
+  // is still valid.
+  private class Entry {
+    final C cred;
+    Bell<T> value;    // The last successful fetch.
+    Bell<T> pending;  // An ongoing fetch.
+    volatile long expires;
+    long refresh;
+
+    Entry(C cred) { this.cred = cred; }
+
+    synchronized Bell<T> get() {
+      settle();
+
+      long now = System.currentTimeMillis();
+      if (value != null && now < expires) {
+        if (now >= refresh && pending == null) {
+          log.fine("Refreshing credential ahead of expiration: ", cred);
+          fetch();
+        } return value.detach();
+      }
+
+      if (pending == null)
+        fetch();
+      return pending.detach();
+    }
+
+    // Start a fetch, and settle when it finishes in case nobody asks again.
+    private void fetch() {
+      pending = CredentialCache.this.fetch(cred);
+      pending.new Promise() {
+        public void fail(Throwable t) {
+          log.fine("Could not materialize credential: ", t);
+        } public void always() {
+          synchronized (Entry.this) { settle(); }
+        }
+      };
+    }
+
+    // Adopt the result of a finished fetch.
+    private void settle() {
+      if (pending == null || !pending.isDone())
+        return;
+      Bell<T> b = pending;
+      pending = null;
+      if (b.isFailed()) {
+        if (value != null)
+          evictAt(expires);
+        else
+          entries.remove(cred, this);
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+      long exp = expiration(b.sync());
+      if (exp <= 0 || exp > now+maxAge)
+        exp = now+maxAge;
+
+      value = b;
+      expires = exp;
+      refresh = exp - Math.min((exp-now)/4, MAX_REFRESH_AHEAD);
+      evictAt(exp);
+    }
+
+    // Remove this entry once the value expires, unless it has been refreshed
+    // by then.
+    private void evictAt(final long time) {
+      timer.schedule(new TimerTask() {
+        public void run() {
+          synchronized (Entry.this) {
+            if (expires != time || pending != null)
+              return;
+            value = null;
+            entries.remove(cred, Entry.this);
+          }
+        }
+      }, Math.max(0, time-System.currentTimeMillis()));
+    }
+  }
+}
@@ -20,19 +20,43 @@ public class StorkGSSCred extends StorkCred<Bell<GSSCredential>> {
   private String myproxy_user;
   private String myproxy_pass;
   private String myproxy_host;
-  private int myproxy_port;
-  private transient Bell<GSSCredential> credential;
+  private int myproxy_port = MyProxy.DEFAULT_PORT;
+
+  // Materialized credentials, shared by equal credentials. Credentials which
+  // don't report a lifetime are dropped after a day.
+  private static final CredentialCache<StorkGSSCred,GSSCredential> cache =
+    new CredentialCache<StorkGSSCred,GSSCredential>(24*3600*1000) {
+      protected Bell<GSSCredential> fetch(StorkGSSCred cred) {
+        return cred.initialize();
+      } protected long expiration(GSSCredential cred) {
+        try {
+          int life = cred.getRemainingLifetime();
+          if (life == GSSCredential.INDEFINITE_LIFETIME)
+            return 0;
+          return System.currentTimeMillis() + life*1000L;
+        } catch (GSSException e) {
+          return System.currentTimeMillis();
+        }
+      }
+    };
 
   public StorkGSSCred() { super("gss"); }
 
-  /** Lazily instantiate this credential. */
+  /**
+   * Lazily instantiate this credential. The result is cached until shortly
+   * before it expires, and shared with equal credentials.
+   */
   public Bell<GSSCredential> data() {
-    return (credential != null) ? credential : initialize();
+    return cache.get(this);
+  }
+
+  public long duration() {
+    return cache.expires(this);
   }
 
   /**
-   * Call this after unmarshalling to instantiate credential from stored
-   * information. Can be called again to refresh the credential as well.
+   * Instantiate the credential from stored information. This is called by
+   * the cache whenever the credential needs to be fetched or refreshed.
    */
   private Bell<GSSCredential> initialize() {
     // TODO: Don't use a thread here.
@@ -41,9 +65,7 @@ public class StorkGSSCred extends StorkCred<Bell<GSSCredential>> {
         if (proxy_life < 3600) {
           throw new Exception("Cred lifetime must be at least one hour.");
         } if (myproxy_user != null) {
-          if (myproxy_port <= 0 || myproxy_port > 0xFFFF)
-            myproxy_port = MyProxy.DEFAULT_PORT;
-          MyProxy mp = new MyProxy(myproxy_host, myproxy_port);
+          MyProxy mp = new MyProxy(myproxy_host, myproxyPort());
           return mp.get(myproxy_user, myproxy_pass, proxy_life);
         } if (proxy_string != null) {
           byte[] buf = proxy_string.getBytes("UTF-8");
@@ -58,6 +80,14 @@ public class StorkGSSCred extends StorkCred<Bell<GSSCredential>> {
     }.start();
   }
 
+  // The MyProxy port, or the default if it's not valid. This doesn't change
+  // the field, since it's part of the cache key.
+  private int myproxyPort() {
+    if (myproxy_port <= 0 || myproxy_port > 0xFFFF)
+      return MyProxy.DEFAULT_PORT;
+    return myproxy_port;
+  }
+
   // Read a certificate from a local file.
   public static StorkGSSCred fromFile(String cred_file) {
     return fromFile(new File(cred_file));
@@ -69,7 +99,7 @@ public class StorkGSSCred extends StorkCred<Bell<GSSCredential>> {
 
   protected Object[] hashables() {
     return new Object[] {
-      proxy_string, myproxy_user, myproxy_pass, myproxy_host, myproxy_port
+      proxy_string, myproxy_user, myproxy_pass, myproxy_host, myproxyPort()
     };
   }
 }
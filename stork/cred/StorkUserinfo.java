@@ -1,6 +1,7 @@
 package stork.cred;
 
 import java.security.*;
+import java.util.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 
@@ -15,6 +16,13 @@ public class StorkUserinfo extends StorkCred<String[]> {
   /** Used to cache an unwrapped key. */
   private transient Key realKey;
 
+  /** How long to keep decrypted values in memory, in milliseconds. */
+  public static long cacheTime = 60*1000;
+
+  /** Decrypted username and password, and when they were decrypted. */
+  private transient String[] plain;
+  private transient long plainTime;
+
   /** Used for serialization. */
   protected StorkUserinfo() { super("userinfo"); }
 
@@ -38,14 +46,38 @@ public class StorkUserinfo extends StorkCred<String[]> {
 
   /** Decrypt and return the username and password. */
   public String[] data() {
-    return new String[] { decrypt(username), decrypt(password) };
+    return plain().clone();
   }
 
   /** Decrypt and return the username. */
-  public String username() { return decrypt(username); }
+  public String username() { return plain()[0]; }
 
   /** Decrypt and return the password. */
-  public String password() { return decrypt(password); }
+  public String password() { return plain()[1]; }
+
+  /**
+   * Get the decrypted username and password. These are kept for {@link
+   * #cacheTime} milliseconds after decryption, then forgotten.
+   */
+  private synchronized String[] plain() {
+    long now = System.currentTimeMillis();
+    if (plain == null || now-plainTime >= cacheTime) {
+      plain = new String[] { decrypt(username), decrypt(password) };
+      plainTime = now;
+      forget(now);
+    } return plain;
+  }
+
+  // Drop the decrypted values after they've been cached long enough.
+  private void forget(final long time) {
+    CredentialCache.timer.schedule(new TimerTask() {
+      public void run() {
+        synchronized (StorkUserinfo.this) {
+          if (plainTime == time) plain = null;
+        }
+      }
+    }, cacheTime);
+  }
 
   /** Return a user/pass pair from a colon-separated string. */
   public static String[] split(String ui) {
@@ -67,8 +99,7 @@ public class StorkUserinfo extends StorkCred<String[]> {
     if (key == null) {
       throw new RuntimeException("Credential has no key.");
     } if (realKey == null) try {
-      Cipher cipher = cipher();
-      return new SecretKeySpec(key, "AES");
+      realKey = new SecretKeySpec(key, "AES");
     } catch (Exception e) {
       throw new RuntimeException(e);
     } return realKey;
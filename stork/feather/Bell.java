@@ -731,6 +731,11 @@ public class Bell<T> implements Future<T> {
     dispatcher.dispatch(runnable, delay);
   }
 
+  /** Check if there is nothing on the main dispatch queue. */
+  public static boolean isDispatchIdle() {
+    return dispatcher.isIdle();
+  }
+
   /** A task for the dispatch loop. */
   private static abstract class Task implements Runnable {
     final void dispatch() {
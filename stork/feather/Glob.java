@@ -0,0 +1,76 @@
+package stork.feather;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A compiled glob pattern for matching a single path segment. Patterns are
+ * compiled from escaped glob strings and match unescaped names, so matching a
+ * name from a listing doesn't require escaping it first. Compiled patterns are
+ * cached, and common patterns are matched without regular expressions.
+ */
+abstract class Glob {
+  private static final int CACHE_SIZE = 1024;
+  private static final Cache cache = new Cache();
+
+  // The most recently used patterns, in order of use.
+  private static class Cache extends LinkedHashMap<String,Glob> {
+    private static final long serialVersionUID = 1L;
+    Cache() { super(CACHE_SIZE, .75f, true); }
+    protected boolean removeEldestEntry(Map.Entry<String,Glob> e) {
+      return size() > CACHE_SIZE;
+    }
+  }
+
+  /** The escaped glob string this was compiled from. */
+  final String glob;
+
+  private Glob(String glob) { this.glob = glob; }
+
+  /** Check if an unescaped name matches this pattern. */
+  abstract boolean matches(String name);
+
+  public String toString() { return glob; }
+
+  /** Get the compiled form of an escaped glob string. */
+  static Glob compile(String glob) {
+    synchronized (cache) {
+      Glob g = cache.get(glob);
+      if (g == null)
+        cache.put(glob, g = create(glob));
+      return g;
+    }
+  }
+
+  // Split an escaped glob into unescaped literal pieces around the stars.
+  static String[] pieces(String glob) {
+    String[] pieces = glob.split("\\*", -1);
+    for (int i = 0; i < pieces.length; i++)
+      pieces[i] = URI.decode(pieces[i]);
+    return pieces;
+  }
+
+  private static Glob create(final String glob) {
+    final String[] p = pieces(glob);
+
+    // A literal, *, foo*, *foo, or foo*bar.
+    if (p.length == 1) return new Glob(glob) {
+      boolean matches(String n) { return n.equals(p[0]); }
+    }; if (p.length == 2) return new Glob(glob) {
+      final int min = p[0].length()+p[1].length();
+      boolean matches(String n) {
+        return n.length() >= min && n.startsWith(p[0]) && n.endsWith(p[1]);
+      }
+    };
+
+    // Anything else is compiled to a regular expression.
+    StringBuilder sb = new StringBuilder(Pattern.quote(p[0]));
+    for (int i = 1; i < p.length; i++)
+      sb.append(".*").append(Pattern.quote(p[i]));
+    final Pattern pattern = Pattern.compile(sb.toString(), Pattern.DOTALL);
+
+    return new Glob(glob) {
+      boolean matches(String n) { return pattern.matcher(n).matches(); }
+    };
+  }
+}
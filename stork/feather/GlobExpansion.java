@@ -0,0 +1,172 @@
+package stork.feather;
+
+import java.util.*;
+
+/**
+ * The expansion of a glob {@code Resource} into the singleton {@code
+ * Resource}s it matches. Expansion starts at the trunk of the {@code
+ * Resource} and proceeds one segment at a time, only listing directories
+ * whose path can still match. Literal segments after a glob segment are
+ * selected directly rather than listed. Independent directories are listed
+ * in parallel, up to a limit, and matches are reported as they are found.
+ * <p/>
+ * Failing to list the trunk fails the expansion. Failing to list anything
+ * below it just means nothing under it matched.
+ *
+ * @param <R> the type of {@code Resource} being expanded.
+ */
+abstract class GlobExpansion<R extends Resource<?,R>> extends Bell {
+  private final R trunk;
+  private final String[] names;  // The literal or escaped glob names.
+  private final Glob[] globs;    // Compiled globs, or null for literals.
+  private final int parallelism;
+
+  private final LinkedList<Dir> queue = new LinkedList<Dir>();
+  private int active = 0;
+
+  // A directory waiting to be listed, and the index of the segment its
+  // children should be matched against.
+  private static class Dir {
+    final Path path;
+    final int depth;
+    Dir(Path path, int depth) {
+      this.path = path;
+      this.depth = depth;
+    }
+  }
+
+  GlobExpansion(R resource, int parallelism) {
+    this.trunk = resource.trunk();
+    this.parallelism = Math.max(1, parallelism);
+
+    // Collect the segments between the trunk and the resource.
+    int n = resource.path.length() - trunk.path.length();
+    names = new String[n];
+    globs = new Glob[n];
+    Path p = resource.path;
+    for (int i = n-1; i >= 0; i--, p = p.up()) {
+      Glob glob = p.segmentGlob();
+      if (glob != null) {
+        globs[i] = glob;
+        names[i] = p.name(true);
+      } else {
+        names[i] = p.name(false);
+      }
+    }
+  }
+
+  /**
+   * Called for each match with its path relative to the trunk, and its
+   * metadata as reported by its parent's listing.
+   */
+  protected abstract void match(Path path, Stat stat);
+
+  /**
+   * Start the expansion, ringing {@code emitter} when it's done. If {@code
+   * emitter} is rung first, the expansion stops.
+   */
+  void start(Emitter emitter) {
+    promise(emitter);
+    emitter.promise(this);
+
+    if (names.length == 0) {
+      // Nothing to expand.
+      trunk.stat().new Promise() {
+        public void done(Stat s) {
+          match(Path.ROOT, s);
+          GlobExpansion.this.ring();
+        } public void fail(Throwable t) {
+          GlobExpansion.this.ring(t);
+        }
+      };
+    } else synchronized (this) {
+      queue.add(new Dir(Path.ROOT, 0));
+      pump();
+    }
+  }
+
+  // Start listings until the parallelism limit is reached, and finish once
+  // everything has been listed.
+  private synchronized void pump() {
+    if (isDone())
+      return;
+    while (active < parallelism && !queue.isEmpty())
+      expand(queue.poll());
+    if (active == 0 && queue.isEmpty())
+      ring();
+  }
+
+  private synchronized void expand(final Dir dir) {
+    boolean last = dir.depth == names.length-1;
+    final Glob glob = globs[dir.depth];
+
+    // A literal segment can be selected without listing its parent.
+    if (glob == null) {
+      final Path path = dir.path.appendLiteral(names[dir.depth]);
+      if (!last) {
+        queue.add(new Dir(path, dir.depth+1));
+      } else {
+        active++;
+        trunk.select(path).stat().new Promise() {
+          public void done(Stat s) { match(path, s); }
+          public void always()     { finished(); }
+        };
+      } return;
+    }
+
+    active++;
+
+    // Prefer a stat with the directory contents, since it says which
+    // children are directories. Otherwise fall back to listing names.
+    trunk.select(dir.path).stat().new Promise() {
+      public void done(Stat s) {
+        if (s.files != null) for (Stat f : s.files) {
+          if (f.name != null && glob.matches(f.name))
+            found(dir, f.name, f, f.dir);
+        } else if (s.dir) {
+          list(dir, glob);
+        }
+      } public void fail(Throwable t) {
+        if (dir.path.isRoot())
+          GlobExpansion.this.ring(t);
+      } public void always() {
+        finished();
+      }
+    };
+  }
+
+  // List a directory whose stat didn't include its contents.
+  private synchronized void list(final Dir dir, final Glob glob) {
+    active++;
+    trunk.select(dir.path).list().new ForEach() {
+      public void each(String name) {
+        if (glob.matches(name))
+          found(dir, name, null, true);
+      } public void always() {
+        finished();
+      }
+    };
+  }
+
+  // Handle a child of a directory that matched. If the listing didn't give
+  // metadata for the last segment, stat it.
+  private synchronized void found(Dir dir, String name, Stat stat, boolean d) {
+    final Path path = dir.path.appendLiteral(name);
+    if (dir.depth < names.length-1) {
+      if (d) queue.add(new Dir(path, dir.depth+1));
+    } else if (stat != null) {
+      match(path, stat);
+    } else {
+      active++;
+      trunk.select(path).stat().new Promise() {
+        public void done(Stat s) { match(path, s); }
+        public void always()     { finished(); }
+      };
+    }
+  }
+
+  private synchronized void finished() {
+    active--;
+    pump();
+  }
+}
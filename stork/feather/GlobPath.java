@@ -0,0 +1,30 @@
+package stork.feather;
+
+/**
+ * A path whose last segment is a glob expression.
+ */
+class GlobPath extends SegmentPath {
+  final Glob glob;
+
+  // Name must be escaped.
+  GlobPath(Path up, String name, int hash) {
+    super(up, name, hash);
+    glob = Glob.compile(name);
+  }
+
+  public String name(boolean encode) {
+    return encode ? name: URI.decode(name);
+  }
+
+  public boolean isGlob() { return true; }
+
+  Glob segmentGlob() { return glob; }
+
+  public Path appendTo(Path path) {
+    return PathTable.glob(up.appendTo(path), name);
+  }
+
+  public boolean segmentMatches(Path path) {
+    return glob.matches(path.name(false));
+  }
+}
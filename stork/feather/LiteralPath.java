@@ -0,0 +1,27 @@
+package stork.feather;
+
+/**
+ * A path segment that matches an exact string.
+ */
+class LiteralPath extends SegmentPath {
+  // Name must be unescaped.
+  LiteralPath(Path up, String name, int hash) {
+    super(up, name, hash);
+  }
+
+  public Path appendTo(Path path) {
+    return PathTable.literal(up.appendTo(path), name);
+  }
+
+  public String name(boolean encode) {
+    return encode ? URI.encode(name) : name;
+  }
+
+  public boolean segmentMatches(Path path) {
+    if (path instanceof LiteralPath)
+      return name.equals(path.name(false));
+    else if (path instanceof GlobPath)
+      return path.segmentMatches(this);
+    return false;
+  }
+}
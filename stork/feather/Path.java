@@ -13,7 +13,11 @@ import stork.feather.util.*;
  * This class is designed to be memory-efficient for storing very large path
  * trees. The instantiation of new {@code Path}s is controlled internally, and
  * {@link #create(String)} must be used to parse strings into {@code Path}
- * objects.
+ * objects. {@code Path}s are canonicalized as they are created: there is only
+ * ever one {@code Path} object for a given path, which shares its parent with
+ * every other {@code Path} under that parent. This means that {@code Path}s
+ * can be compared by identity, and that hash codes are computed once per
+ * segment.
  * <p/>
  * All paths are absolute paths and will never contain components with the
  * names {@code ".."} or {@code "."}.
@@ -22,7 +26,6 @@ import stork.feather.util.*;
  * entries in a set.
  */
 public abstract class Path {
-  //static final Intern<Path> INTERN = new Intern<Path>();
   static final String[] EMPTY_SEGMENT_ARRAY = new String[0];
 
   // Paths can only be constructed in this package. This isn't class private
@@ -77,17 +80,6 @@ public abstract class Path {
    */
   public abstract Path appendTo(Path path);
 
-  /**
-   * Check if the last segments of this {@code Path} and the given {@code Path}
-   * are equal. This will only check if the end segments match. Use {@link
-   * #equals(Object)} to test for matches over all segments.
-   *
-   * @param path the {@code Path} to test last segments against.
-   * @return {@code true} if this {@code Path}'s last segment equals the given
-   * {@code Path}'s last segment; {@code false} otherwise.
-   */
-  abstract boolean segmentEquals(Path path);
-
   /**
    * Check if the last segment of {@code Path} matches the last segment of the
    * given {@code Path}. This will only check if the end segments match. Use
@@ -156,8 +148,8 @@ public abstract class Path {
     if (name.equals(".."))
       return parent.up();
     if (name.contains("*"))
-      return new GlobPath(parent, name);
-    return new LiteralPath(parent, URI.decode(name));
+      return PathTable.glob(parent, name);
+    return PathTable.literal(parent, URI.decode(name));
   }
 
   /**
@@ -198,7 +190,7 @@ public abstract class Path {
       return this;
     if (name.equals(".."))
       return up();
-    return new LiteralPath(this, name);
+    return PathTable.literal(this, name);
   }
 
   /**
@@ -216,15 +208,11 @@ public abstract class Path {
    * @param path the path to check if this path is a prefix of.
    */
   public boolean prefixes(Path path) {
-    if (path == this)
-      return true;
     if (this.isRoot())
       return true;
-    if (path.isRoot())
-      return false;
-    if (this.name().equals(path.name()))
-      return this.up().prefixes(path.up());
-    return this.prefixes(path.up());
+    for (int n = path.length()-length(); n > 0; n--)
+      path = path.up();
+    return path == this;
   }
 
   /**
@@ -339,6 +327,10 @@ public abstract class Path {
     return up().isGlob();
   }
 
+  // Get the compiled glob of the last segment, or null if the last segment
+  // is not a glob.
+  Glob segmentGlob() { return null; }
+
   /**
    * Return the first glob segment of this {@code Path}.  If the {@code Path}
    * is a trunk {@code Path}, this {@code Path} is returned.
@@ -412,14 +404,12 @@ public abstract class Path {
    * @return A regular expression {@code String} based on {@code glob}.
    */
   public static String globToRegex(String glob) {
-    StringBuffer sb = new StringBuffer();
-    String[] sa = glob.split("*", -1);
+    StringBuilder sb = new StringBuilder();
+    String[] sa = Glob.pieces(glob);
 
-    if (sa.length != 0) {
-      sb.append(Pattern.quote(sa[0]));
-      for (int i = 1; i < sa.length; i++)
-        sb.append(".*"+Pattern.quote(sa[i]));
-    }
+    sb.append(Pattern.quote(sa[0]));
+    for (int i = 1; i < sa.length; i++)
+      sb.append(".*").append(Pattern.quote(sa[i]));
 
     return sb.toString();
   }
@@ -434,38 +424,34 @@ public abstract class Path {
    * {@code false} otherwise.
    */
   public boolean matches(Path path) {
-    if (path == this)
-      return true;
-    if (!segmentMatches(path))
-      return false;
-    return up().matches(path.up());
+    // Canonical paths with a common ancestor share it, so stop there. If
+    // only one side reaches the root, the paths differ in depth.
+    for (Path p = this; p != path; p = p.up(), path = path.up()) {
+      if (p.isRoot() || path.isRoot() || !p.segmentMatches(path))
+        return false;
+    } return true;
   }
 
   /**
    * Check if two {@code Path}s are equal. That is, check that two {@code
-   * Path}s are component-wise equal.
+   * Path}s are component-wise equal. Since {@code Path}s are canonical, this
+   * is an identity comparison. Note that a glob segment never equals a literal
+   * segment, even if their names are the same.
    *
    * @param object the object to test equality against.
    * @return {@code true} if {@code object} is a {@code Path} and equals this
    * {@code Path}; {@code false} otherwise.
    */
-  public boolean equals(Object object) {
-    if (object == this)
-      return true;
-    if (!(object instanceof Path))
-      return false;
-    Path path = (Path) object;
-    return segmentEquals(path) && up().equals(path.up());
+  public final boolean equals(Object object) {
+    return object == this;
   }
 
   /**
-   * The hash code of a path should be equal to the hash code of the string
-   * representation of the path.
+   * The hash code of a path is equal to the hash code of the string
+   * representation of the path. Segments compute this once, from the hash
+   * code of their parent.
    */
   public int hashCode() {
-    // TODO: Of course we should do this without actually stringifying the
-    // entire path, which we can with a little bit of math. The hash code of a
-    // string is defined in the Java documentation.
     return toString().hashCode();
   }
 
@@ -494,11 +480,11 @@ class RootPath extends Path {
   public boolean isAbsolute() { return true; }
   public Path appendTo(Path path) { return path; }
   public boolean segmentMatches(Path p) { return p == this; }
-  public boolean segmentEquals(Path p) { return p == this; }
 }
 
 class DotPath extends RootPath {
   private final int depth;
+  private DotPath up;
 
   private DotPath(int depth) { this.depth = depth; }
 
@@ -509,15 +495,21 @@ class DotPath extends RootPath {
   };
   public static DotPath DOTDOT = new DotPath(1);
 
+  // Dot paths are canonical too, so walk up from DOT.
   static DotPath create(int depth) {
-    switch (depth) {
-      case 0 : return DOT;
-      case 1 : return DOTDOT;
-      default: return new DotPath(depth);
-    }
+    DotPath p = DOT;
+    while (depth-- > 0)
+      p = p.up();
+    return p;
   }
 
-  public Path up() { return create(depth+1); }
+  public synchronized DotPath up() {
+    if (depth == 0)
+      return DOTDOT;
+    if (up == null)
+      up = new DotPath(depth+1);
+    return up;
+  }
   public int length() { return depth; }
   public String name(boolean e) { return ".."; }
   public boolean isAbsolute() { return false; }
@@ -525,10 +517,6 @@ class DotPath extends RootPath {
   public Path appendTo(Path path) { return path.up(depth); }
   public boolean segmentMatches(Path p) { return equals(p); }
 
-  public boolean segmentEquals(Path p) {
-    return (p instanceof DotPath) && ((DotPath)p).depth == depth;
-  }
-
   public String toString() {
     StringBuilder sb = new StringBuilder("..");
     for (int i = 1; i < depth; i++)
@@ -537,91 +525,6 @@ class DotPath extends RootPath {
   }
 }
 
-// A path segment that matches an exact string.
-class LiteralPath extends Path {
-  protected final String name;
-  protected final Path up;
-
-  // Name must be unescaped.
-  public LiteralPath(Path up, String name) {
-    this.up = up;
-    this.name = name;
-  }
-
-  public Path up() { return up; }
-
-  public Path appendTo(Path path) {
-    path = new LiteralPath(up.appendTo(path), name);
-    return path;
-  }
-
-  public String name(boolean encode) {
-    return encode ? URI.encode(name) : name;
-  }
-
-  public boolean segmentMatches(Path path) {
-    if (path instanceof LiteralPath)
-      return name.equals(path.name(false));
-    else if (path instanceof GlobPath)
-      return path.matches(this);
-    return false;
-  }
-
-  public boolean segmentEquals(Path path) {
-    if (path instanceof LiteralPath)
-      return name.equals(path.name(false));
-    return name(true).equals(path.name(true));
-  }
-}
-
-// A path whose last segment is a glob expression.
-class GlobPath extends Path {
-  protected final Path up;
-  protected final String name;
-  protected Pattern pattern;
-
-  // Name must be escaped.
-  public GlobPath(Path up, String name) {
-    this.up = up;
-    this.name = name;
-  }
-
-  public GlobPath(Path up, String name, Pattern pattern) {
-    this.up = up;
-    this.name = name;
-    this.pattern = pattern;
-  }
-
-  public Path up() { return up; }
-
-  public String name(boolean encode) {
-    return encode ? name: URI.decode(name);
-  }
-
-  private synchronized Pattern pattern() {
-    if (pattern != null)
-      return pattern;
-    return pattern = Pattern.compile(Path.globToRegex(name));
-  }
-
-  public boolean isGlob() { return true; }
-
-  public Path appendTo(Path path) {
-    path = new GlobPath(up.appendTo(path), name);
-    return path;
-  }
-
-  public boolean segmentMatches(Path path) {
-    return pattern().matcher(path.name(true)).matches();
-  }
-
-  public boolean segmentEquals(Path path) {
-    if (path instanceof GlobPath)
-      return name.equals(path.name(false));
-    return name(true).equals(path.name(true));
-  }
-}
-
 // A path segment that can match subpaths.
 /*
 class PathGroup extends SegmentPath {
@@ -0,0 +1,140 @@
+package stork.feather;
+
+import java.lang.ref.*;
+
+/**
+ * The table of canonical {@code Path} segments. Every segment is created
+ * through this table, so there is only ever one live {@code Path} object for
+ * a given parent and name, and {@code Path}s can be compared by identity.
+ * <p/>
+ * The table only holds weak references to segments. A segment holds a strong
+ * reference to its parent, so a segment is kept alive as long as it or any of
+ * its descendants is in use, and the table never keeps a tree alive on its
+ * own. The table is split into independently locked stripes to reduce
+ * contention.
+ */
+final class PathTable {
+  private static final int STRIPES = 64;
+  private static final Stripe[] stripes = new Stripe[STRIPES];
+
+  static {
+    for (int i = 0; i < STRIPES; i++)
+      stripes[i] = new Stripe();
+  }
+
+  private PathTable() { }
+
+  /**
+   * Get the canonical literal segment with the given parent and unescaped
+   * name.
+   */
+  static Path literal(Path up, String name) {
+    int hash = SegmentPath.hash(up, name);
+    return stripe(hash).get(up, name, false, hash);
+  }
+
+  /**
+   * Get the canonical glob segment with the given parent and escaped name.
+   */
+  static Path glob(Path up, String name) {
+    int hash = SegmentPath.hash(up, URI.decode(name));
+    return stripe(hash).get(up, name, true, hash);
+  }
+
+  /** Get the number of live segments. Used for testing. */
+  static int size() {
+    int n = 0;
+    for (Stripe s : stripes) synchronized (s) {
+      s.expunge();
+      n += s.count;
+    } return n;
+  }
+
+  private static Stripe stripe(int hash) {
+    // Spread the bits, since path hashes share low bits with their parents.
+    hash ^= (hash >>> 16);
+    hash *= 0x85ebca6b;
+    hash ^= (hash >>> 13);
+    return stripes[hash & (STRIPES-1)];
+  }
+
+  // A weak reference to a segment, and a link in a hash chain. The key is
+  // copied here so entries can be matched without dereferencing.
+  private static final class Ref extends WeakReference<SegmentPath> {
+    final int hash;
+    Ref next;
+
+    Ref(SegmentPath path, ReferenceQueue<SegmentPath> queue, Ref next) {
+      super(path, queue);
+      this.hash = path.hash;
+      this.next = next;
+    }
+  }
+
+  // A chained hash table of weak references.
+  private static final class Stripe {
+    final ReferenceQueue<SegmentPath> queue =
+      new ReferenceQueue<SegmentPath>();
+    Ref[] table = new Ref[16];
+    int count = 0;
+
+    synchronized Path get(Path up, String name, boolean glob, int hash) {
+      expunge();
+
+      int i = index(hash, table.length);
+      for (Ref r = table[i]; r != null; r = r.next) {
+        if (r.hash != hash)
+          continue;
+        SegmentPath p = r.get();
+        if (p != null && p.up == up && (p instanceof GlobPath) == glob &&
+            p.name.equals(name))
+          return p;
+      }
+
+      SegmentPath p = glob ?
+        new GlobPath(up, name, hash) : new LiteralPath(up, name, hash);
+      table[i] = new Ref(p, queue, table[i]);
+      if (++count > table.length*3/4)
+        resize();
+      return p;
+    }
+
+    // Remove references to segments which have been collected.
+    void expunge() {
+      Reference<? extends SegmentPath> ref;
+      while ((ref = queue.poll()) != null) {
+        Ref dead = (Ref) ref;
+        int i = index(dead.hash, table.length);
+        for (Ref r = table[i], prev = null; r != null; prev = r, r = r.next) {
+          if (r != dead)
+            continue;
+          if (prev == null)
+            table[i] = r.next;
+          else
+            prev.next = r.next;
+          count--;
+          break;
+        }
+      }
+    }
+
+    void resize() {
+      Ref[] old = table;
+      Ref[] nt = new Ref[old.length*2];
+      for (Ref r : old) while (r != null) {
+        Ref next = r.next;
+        int i = index(r.hash, nt.length);
+        r.next = nt[i];
+        nt[i] = r;
+        r = next;
+      } table = nt;
+    }
+
+    static int index(int hash, int length) {
+      // Stripes were chosen with the mixed low bits, so use the high bits.
+      hash ^= (hash >>> 16);
+      hash *= 0xc2b2ae35;
+      return (hash >>> 7) & (length-1);
+    }
+  }
+}
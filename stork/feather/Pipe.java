@@ -15,17 +15,41 @@ public class Pipe {
   /** Will ring when this pipe has finished. */
   private final Bell finishBell = new Bell() {
     public void always() {
-      drainBell.new Promise() {
+      whenIdle().new Promise() {
         public void done() {
-          downstream().finish();
-        } public void fail(Throwable t) {
-          downstream().finish(t);
+          downstream().finish(finishError());
         }
       };
     }
   };
-  /** Synchronizes drains. First ring should be by start(). */
-  private Bell drainBell = new Bell();
+
+  // Flow control state. Drained slices are queued in order, and passed
+  // downstream while the downstream pipe has credit for them. The upstream
+  // pipe is let go once the queued and in-flight bytes fit in this pipe's
+  // window. Everything below is guarded by the pipe's lock.
+  private final ArrayDeque<Credit> queue = new ArrayDeque<Credit>();
+  private final ArrayDeque<Credit> waiting = new ArrayDeque<Credit>();
+  private long queued = 0, inflight = 0;
+  private boolean started = false, pumping = false;
+  private Throwable error, finishError;
+  private Bell idleBell;
+
+  // A slice waiting to be passed downstream, where it goes, and the bell the
+  // upstream pipe is waiting on. Empty slices are charged one byte, so that
+  // they still occupy the window.
+  private static class Credit {
+    final Slice slice;
+    final int length;
+    final long size;
+    long offset;
+    final Bell bell = new Bell();
+
+    Credit(Slice slice) {
+      this.slice = slice;
+      length = (slice == null) ? 0 : slice.length();
+      size = Math.max(1, length);
+    }
+  }
 
   /** The orientation of a {@code Pipe} in a pipeline. */
   public static enum Orientation {
@@ -142,11 +166,26 @@ public class Pipe {
   protected synchronized Bell start() throws Exception {
     if (startBell == null) {
       startBell = safeStart();
-      startBell.promise(drainBell);
+      startBell.new Promise() {
+        public void done() {
+          started(null);
+        } public void fail(Throwable t) {
+          started(t);
+        }
+      };
     }
     return startBell.detach();
   }
 
+  // Called when the downstream pipe has started.
+  private void started(Throwable t) {
+    synchronized (this) {
+      started = true;
+    } if (t != null) {
+      abort(t);
+    } pump();
+  }
+
   // Safe wrapper around downstream.start().
   private Bell safeStart() {
     try {
@@ -157,12 +196,38 @@ public class Pipe {
     }
   }
 
+  /**
+   * Get the number of bytes which may be drained to this {@code Pipe} before
+   * earlier drains have completed. An upstream {@code Pipe} passes along
+   * {@code Slice}s while it has this much credit, and the {@code Bell}s it
+   * returns from {@link #drain(Slice)} ring right away while there is credit
+   * left, letting a {@code Tap} read ahead of the {@code Sink}. Once the
+   * window is full, drained {@code Slice}s are buffered in order until
+   * earlier drains complete.
+   * <p/>
+   * A window of zero means each {@code Slice} must be fully drained before
+   * the next is passed along. By default, a {@code Pipe} advertises the
+   * window of the {@code Pipe} it drains to, and a {@code Sink} advertises
+   * a window of zero. A {@code Sink} should only advertise a larger window
+   * if it completes overlapping drains in the order they were made, or if
+   * it writes each {@code Slice} at its offset.
+   *
+   * @return The number of bytes of credit this {@code Pipe} gives.
+   */
+  public long window() {
+    return (downstream == null) ? 0 : downstream.window();
+  }
+
   /**
    * Drain a {@code Slice} through the pipeline. This method returns as soon as
    * possible, with the actual I/O operation taking place asynchronously. The
    * default implementation is guaranteed never to throw an {@code Exception}.
    * Any {@code Exception} thrown by a downstream {@code Pipe} will be wrapped
    * in a {@code Bell}.
+   * <p/>
+   * {@code Slice}s are passed downstream in the order they are drained, as
+   * long as the downstream {@code Pipe} has credit for them. See {@link
+   * #window()}.
    *
    * @param slice a {@code Slice} being drained through the pipeline.
    * @return A {@code Bell} that rings when the pipeline is ready for more
@@ -174,21 +239,157 @@ public class Pipe {
    * some reason known immediately. The default implementation will never
    * throw.
    */
-  protected synchronized Bell drain(final Slice slice) throws Exception {
-    if (finishBell.isDone())
+  protected Bell drain(final Slice slice) throws Exception {
+    Credit c = new Credit(slice);
+    boolean finished;
+    Throwable t;
+    // Charge it first, since it may be passed on and discharged by another
+    // thread as soon as it's queued.
+    charge(c.length);
+    synchronized (this) {
+      finished = finishBell.isDone();
+      t = error;
+      if (!finished && t == null) {
+        queue.add(c);
+        waiting.add(c);
+        queued += c.size;
+      }
+    } if (finished || t != null) {
+      discharge(c.length);
+    } if (finished) {
       throw new IllegalStateException("Pipeline has finished.");
-    final Bell next = new Bell();
-    drainBell.new Promise() {
-      public void done() {
-        safeDrain(slice).promise(next);
-      } public void fail(Throwable t) {
-        finish(t);
+    } if (t != null) {
+      return new Bell(t);
+    }
+    pump();
+    return c.bell.detach();
+  }
+
+  // Pass queued slices downstream while there is credit for them. Only one
+  // thread does this at a time, and it drains without holding the lock.
+  private void pump() {
+    while (true) {
+      final Credit c;
+      synchronized (this) {
+        if (pumping || !started || error != null || queue.isEmpty())
+          break;
+        c = queue.peek();
+        if (inflight > 0 && inflight+c.size > credit())
+          break;
+        queue.poll();
+        queued -= c.size;
+        inflight += c.size;
+        c.offset = downstream.place(c.slice, c.length);
+        pumping = true;
+      } try {
+        safeDrain(c.slice).new Promise() {
+          public void done() {
+            drained(c, null);
+          } public void fail(Throwable t) {
+            drained(c, t);
+          }
+        };
+      } finally {
+        synchronized (this) {
+          pumping = false;
+        }
+      }
+    } release();
+  }
+
+  // Called when a downstream drain has completed.
+  private void drained(Credit c, Throwable t) {
+    synchronized (this) {
+      inflight -= c.size;
+    } discharge(c.length);
+    if (t == null) {
+      downstream.drained(c.offset, c.length);
+    } else {
+      abort(t);
+      finish(t);
+    } pump();
+  }
+
+  // The credit given by the downstream pipe.
+  private long credit() {
+    return (downstream == null) ? 0 : downstream.window();
+  }
+
+  // Let the upstream pipe continue once everything it has drained fits in
+  // the window, and there is room in the budget.
+  void release() {
+    List<Bell> bells = new ArrayList<Bell>();
+    Bell idle = null;
+    boolean budgeted = !overBudget();
+    synchronized (this) {
+      if (budgeted && queued+inflight <= window()) {
+        for (Credit c : waiting)
+          bells.add(c.bell);
+        waiting.clear();
+      } if (idleBell != null && isIdle()) {
+        idle = idleBell;
+        idleBell = null;
       }
-    };
-    drainBell = next;
-    return next.detach();
+    } for (Bell b : bells) {
+      b.ring();
+    } if (idle != null) {
+      idle.ring();
+    }
+  }
+
+  // Fail everything waiting on this pipe after an error, and release the
+  // slices which will now never be passed downstream.
+  private void abort(Throwable t) {
+    List<Credit> failed = new ArrayList<Credit>();
+    List<Credit> dropped = new ArrayList<Credit>();
+    synchronized (this) {
+      if (error == null)
+        error = t;
+      failed.addAll(waiting);
+      waiting.clear();
+      dropped.addAll(queue);
+      queue.clear();
+      queued = 0;
+    } for (Credit c : dropped) {
+      if (c.slice != null)
+        c.slice.asByteBuf().release();
+      discharge(c.length);
+    } for (Credit c : failed) {
+      c.bell.ring(t);
+    }
+  }
+
+  private synchronized boolean isIdle() {
+    return started && queue.isEmpty() && inflight == 0;
+  }
+
+  // Return a bell which rings once everything drained has completed.
+  private synchronized Bell whenIdle() {
+    if (isIdle())
+      return Bell.rungBell();
+    if (idleBell == null)
+      idleBell = new Bell();
+    return idleBell;
+  }
+
+  // The error to finish the downstream pipe with.
+  private synchronized Throwable finishError() {
+    return (finishError != null) ? finishError : error;
   }
 
+  // Called in order as each slice is passed to this pipe, to work out where
+  // it goes, and again once it has been written. Sinks use these to keep
+  // track of which ranges are complete.
+  long place(Slice slice, long length) { return -1; }
+  void drained(long offset, long length) { }
+
+  // Called as slices are drained to this pipe, and again once they have been
+  // passed on or dropped, and before letting the upstream pipe continue. Taps
+  // use these to count what they have read against their budget.
+  void charge(long length) { }
+  void discharge(long length) { }
+  boolean overBudget() { return false; }
+
   // Safe wrapper around downstream.drain().
   private Bell safeDrain(Slice slice) {
     try {
@@ -218,6 +419,8 @@ public class Pipe {
    * null} if the transfer finished successfully.
    */
   protected synchronized void finish(final Throwable error) {
+    if (!finishBell.isDone())
+      finishError = error;
     if (error == null)
       finishBell.ring();
     else
@@ -7,6 +7,45 @@ import stork.feather.util.*;
 
 /**
  * A mediator for a locally proxied data transfer.
+ * <p/>
+ * A {@code ProxyTransfer} may also write everything it transfers to any
+ * number of replica {@code Resource}s. Each file is read from the source
+ * once and drained to the destination and every replica through a {@link
+ * Tee}, so the transfer proceeds at the pace of the slowest of them. By
+ * default, a failed replica fails the transfer. If failed replicas are
+ * dropped instead, a replica which fails is left out of the rest of the
+ * transfer, and the reason is reported by {@link #failedReplicas()}.
+ * <p/>
+ * In sync mode, only files which differ from the destination are copied.
+ * The source and destination listings of each directory are fetched
+ * concurrently and merged in name order. A file is copied if it's missing
+ * from the destination, if the sizes differ, or if the source was modified
+ * after the destination. If checksums are enabled, files of the same size
+ * are compared by digest instead of modification time. Destination resources
+ * which aren't in the source may optionally be deleted. In a dry run, nothing
+ * is changed, and the work which would be done is only reported. Either way,
+ * a {@link SyncReport} tells what was done. Replicas are not compared, and
+ * only receive what is copied to the destination.
+ * <p/>
+ * A {@code ProxyTransfer} may optionally pre-scan the source, walking the
+ * tree with a bounded number of listings in progress while data is already
+ * being moved, and adding the files and bytes it finds to the totals of
+ * {@link #info} and {@link #files}, so that an estimate of the time remaining
+ * can be given. Listings are shared between the scan and the transfer, so
+ * the tree is usually not listed twice. Only a bounded number are held for
+ * sharing, so a scan far ahead of the transfer doesn't keep the whole tree
+ * in memory. Files which sync mode finds it needn't copy are taken back out
+ * of the totals.
+ * <p/>
+ * A {@code ProxyTransfer} can be paused. Pausing stops new data transfers and
+ * listings of the scan from starting, and tears down the data transfers in
+ * progress by refusing the next {@code Slice} from each tap, releasing their
+ * data connections. Each is put back at the front of the queue along with
+ * how far its sink got, and when the transfer is resumed, it carries on from
+ * there, if both ends support it, rather than starting the file over. A
+ * paused transfer may also be picked up by a new one with {@link
+ * #resumeFrom(ProxyTransfer)}, e.g. once the sessions of the paused one have
+ * been closed.
  *
  * @param <S> the source {@code Resource} type.
  * @param <D> the destination {@code Resource} type.
@@ -16,21 +55,86 @@ extends Transfer<S,D> {
   private LinkedList<Pending> queue = new LinkedList<Pending>();
   private Throwable error = null;
 
-  // A pending transfer and a bell to ring when it starts.
+  // The most listings to keep for whichever of the scan and the transfer
+  // hasn't taken them yet.
+  private static final int LISTED = 1024;
+
+  // Used to tear down the pipelines of data transfers when pausing.
+  private static final RuntimeException PAUSED =
+    new RuntimeException("Transfer paused.");
+
+  // A pending transfer and a bell to ring when it starts. In sync mode, the
+  // source and destination stats may already be known from listings. A data
+  // transfer abandoned by a pause is resumed from where it got to.
   private static class Pending {
     final Bell bell;
     final Path path;
+    final Stat stat, dest;
+    final Partial partial;
     protected Pending(Path path) {
-      this(new Bell(), path);
-    } protected Pending(Bell bell, Path path) {
-      this.bell = bell;
+      this(path, null, null, null);
+    } protected Pending(Path path, Stat stat, Stat dest) {
+      this(path, stat, dest, null);
+    } protected Pending(Path path, Stat stat, Stat dest, Partial partial) {
+      this.bell = new Bell();
       this.path = path;
+      this.stat = stat;
+      this.dest = dest;
+      this.partial = partial;
+    }
+  }
+
+  // How far a data transfer got before it was abandoned by a pause. Its sink
+  // may still finish writing a little more, so it is asked again on resume.
+  private static class Partial {
+    final Sink<?> sink;
+    final long offset;
+    Partial(Sink<?> sink, long offset) {
+      this.sink = sink;
+      this.offset = offset;
+    } long offset() {
+      return (sink == null) ? offset : sink.completed().end(offset);
     }
   }
 
-  // Sets of ongoing transfers and listings.
+  // Sets of ongoing transfers, listings, and deletions.
   private Set<Path> transfers = new HashSet<Path>();
+  private Map<Path,Gate> flowing = new HashMap<Path,Gate>();
   private Set<Path> listings = new HashSet<Path>();
+  private Set<Path> deletions = new HashSet<Path>();
+
+  // Sync mode settings, and the report of what has been done.
+  private boolean sync = false, checksum = false, delete = false;
+  private SyncReport report = new SyncReport();
+
+  // What to do with a source file in sync mode.
+  private static enum Plan { COPY, COMPARE, SKIP };
+
+  // Replicas which also receive the data, and why any have been dropped.
+  private final List<Resource<?,?>> replicas = new ArrayList<Resource<?,?>>();
+  private final Map<Resource<?,?>,Throwable> failed =
+    new LinkedHashMap<Resource<?,?>,Throwable>();
+  private boolean dropFailedReplicas = false;
+
+  // The most pre-scan listings to have in progress, or zero to not scan.
+  // Listings are shared by the scan and the transfer, and each is forgotten
+  // once both have taken it. Only so many are kept, since the scan may get
+  // far ahead of the transfer. Past that, a directory is listed twice.
+  private int prescan = 0, scanning = 0;
+  private Bell<Stat> rootStat;
+  private final LinkedList<Path> unscanned = new LinkedList<Path>();
+  private final Map<Path,Bell<Map<String,Stat>>> listed =
+    new HashMap<Path,Bell<Map<String,Stat>>>();
+
+  // The most files to move at once.
+  private int concurrency = 1;
+  // Whether popTransfers() is running.
+  private boolean popping = false;
+
+  // Rung once nothing is in flight while pausing, whether this transfer has
+  // picked up from a paused one, and whether its work has been queued.
+  private Bell quiet;
+  private boolean resumed = false, begun = false;
 
   /**
    * Create a {@code ProxyTransfer} that will transfer from {@code source} to
@@ -43,20 +147,293 @@ extends Transfer<S,D> {
     super(source, destination);
 
     onStart().new Promise() {
-      public void done() { transfer(Path.ROOT); }
+      public void done() { begin(); }
+    };
+
+    onStop().new Promise() {
+      public void always() { forgetScan(); }
     };
   }
 
+  // Queue the work of the transfer once it has started. A pause which comes
+  // first waits for this, so the work is there for a resumed transfer.
+  private synchronized void begin() {
+    if (resumed)
+      carryOn();
+    else if (prescan > 0)
+      startScan();
+    if (!resumed)
+      transfer(new Pending(Path.ROOT));
+    begun = true;
+    checkIfQuiet();
+  }
+
+  /**
+   * Also write everything transferred to {@code replicas}. This must be
+   * called before the transfer starts.
+   *
+   * @param replicas the {@code Resource}s to write copies to.
+   * @return This {@code ProxyTransfer}.
+   * @throws IllegalStateException if the transfer has already started.
+   */
+  public synchronized ProxyTransfer<S,D> replicate(Resource<?,?>... replicas) {
+    if (isStarted())
+      throw new IllegalStateException("Transfer has already started.");
+    this.replicas.addAll(Arrays.asList(replicas));
+    return this;
+  }
+
+  /**
+   * Set whether a replica which fails should be dropped from the transfer
+   * rather than failing it. The destination is never dropped.
+   *
+   * @param drop whether to drop failed replicas.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> dropFailedReplicas(boolean drop) {
+    dropFailedReplicas = drop;
+    return this;
+  }
+
+  /**
+   * Get the replicas which have been dropped, and the reason each failed.
+   *
+   * @return A map from dropped replicas to the errors which caused them to be
+   * dropped, in the order they were dropped.
+   */
+  public synchronized Map<Resource<?,?>,Throwable> failedReplicas() {
+    return new LinkedHashMap<Resource<?,?>,Throwable>(failed);
+  }
+
+  /**
+   * Pre-scan the source to count the totals, with up to {@code listings}
+   * directory listings in progress at once. This must be called before the
+   * transfer starts.
+   *
+   * @param listings the most listings to have in progress, or zero to not
+   * pre-scan.
+   * @return This {@code ProxyTransfer}.
+   * @throws IllegalStateException if the transfer has already started.
+   */
+  public synchronized ProxyTransfer<S,D> prescan(int listings) {
+    if (isStarted())
+      throw new IllegalStateException("Transfer has already started.");
+    prescan = Math.max(listings, 0);
+    return this;
+  }
+
+  /**
+   * Move up to {@code files} files at once. This is the most {@link
+   * #limitStreams(int)} will allow, though it's lowered to what the {@code
+   * Session}s involved can handle. By default, one file is moved at a time.
+   *
+   * @param files the most files to move at once, or zero for no limit.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> concurrency(int files) {
+    concurrency = Math.max(files, 0);
+    streamsChanged();
+    return this;
+  }
+
+  public synchronized int concurrency() {
+    int c = cap(concurrency, source.session);
+    c = cap(c, destination.session);
+    for (Resource<?,?> r : replicas)
+      c = cap(c, r.session);
+    return c;
+  }
+
+  // Lower c to what session can handle. Zero means no limit.
+  private static int cap(int c, Session<?,?> session) {
+    int l = (session != null) ? session.concurrency() : 0;
+    return (l > 0 && (c <= 0 || c > l)) ? l : c;
+  }
+
+  /**
+   * Pick up where a paused transfer left off. The queue of the paused
+   * transfer, including the files it was partway through, is taken over
+   * along with its progress, sync report, dropped replicas, and scan state,
+   * so nothing already done is done again. This lets a transfer be resumed
+   * on new sessions once those of the paused one have been released. The
+   * paused transfer must have finished pausing, and should not be resumed
+   * itself. Settings are not carried over, and should be the same for both.
+   * This must be called before the transfer starts.
+   *
+   * @param paused the paused transfer to pick up from.
+   * @return This {@code ProxyTransfer}.
+   * @throws IllegalStateException if this transfer has already started, or
+   * {@code paused} hasn't finished pausing.
+   */
+  public synchronized ProxyTransfer<S,D> resumeFrom(ProxyTransfer<?,?> paused) {
+    if (isStarted())
+      throw new IllegalStateException("Transfer has already started.");
+    synchronized (paused) {
+      if (!paused.isPaused() || !paused.isQuiet())
+        throw new IllegalStateException("Transfer has not finished pausing.");
+      queue.addAll(paused.queue);
+      paused.queue.clear();
+      error = paused.error;
+      report = paused.report;
+      addProgressOf(paused);
+
+      // Replicas are matched up by position.
+      for (int i = 0; i < paused.replicas.size() && i < replicas.size(); i++) {
+        Throwable t = paused.failed.get(paused.replicas.get(i));
+        if (t != null)
+          failed.put(replicas.get(i), t);
+      }
+
+      rootStat = paused.rootStat;
+      unscanned.addAll(paused.unscanned);
+      listed.putAll(paused.listed);
+      resumed = paused.begun;
+    } return this;
+  }
+
+  /**
+   * Set whether to only copy files which differ from the destination.
+   *
+   * @param sync whether to enable sync mode.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> sync(boolean sync) {
+    this.sync = sync;
+    return this;
+  }
+
+  /**
+   * Set whether to compare the digests of files of the same size in sync
+   * mode, rather than their modification times. Enabling this enables sync
+   * mode.
+   *
+   * @param checksum whether to compare digests.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> checksum(boolean checksum) {
+    this.checksum = checksum;
+    sync |= checksum;
+    return this;
+  }
+
+  /**
+   * Set whether to delete destination resources which aren't in the source.
+   * Enabling this enables sync mode.
+   *
+   * @param delete whether to delete extraneous resources.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> deleteExtraneous(boolean delete) {
+    this.delete = delete;
+    sync |= delete;
+    return this;
+  }
+
+  /**
+   * Set whether to only report what would be done, without changing
+   * anything. Enabling this enables sync mode.
+   *
+   * @param dryRun whether to do a dry run.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> dryRun(boolean dryRun) {
+    report.dry_run = dryRun;
+    sync |= dryRun;
+    return this;
+  }
+
+  /**
+   * Get the report of what this transfer has done in sync mode. It is updated
+   * as the transfer proceeds.
+   *
+   * @return The {@code SyncReport} for this transfer.
+   */
+  public SyncReport syncReport() { return report; }
+
+  /**
+   * A proxy transfer puts data back in order for any destination which
+   * isn't random-access, so its pipelines can always take data in any order.
+   */
+  public boolean random() { return true; }
+
+  /** A proxy transfer can always be paused. */
+  public boolean pausable() { return true; }
+
+  // Stop starting new work, and tear down the data transfers in progress.
+  protected synchronized Bell<?> pauseFlow() {
+    quiet = new Bell();
+    for (Gate gate : new ArrayList<Gate>(flowing.values()))
+      gate.halt();
+    checkIfQuiet();
+    return quiet;
+  }
+
+  // Start whatever has been held up by a pause.
+  protected synchronized void resumeFlow() {
+    if (quiet != null)
+      quiet.ring();
+    quiet = null;
+    carryOn();
+  }
+
+  // Carry on with queued work after a pause.
+  private synchronized void carryOn() {
+    if (!unscanned.isEmpty()) {
+      countingTotal(true);
+      popScans();
+    }
+    popTransfers();
+    checkIfComplete();
+  }
+
+  // Check if nothing is in flight.
+  private synchronized boolean isQuiet() {
+    return (begun || !isStarted()) && transfers.isEmpty() &&
+           listings.isEmpty() && deletions.isEmpty() && scanning == 0;
+  }
+
+  // Ring the quiet bell if pausing and nothing is in flight.
+  private synchronized void checkIfQuiet() {
+    if (quiet != null && isPaused() && isQuiet())
+      quiet.ring();
+  }
+
+  // Get the replicas which haven't been dropped.
+  private synchronized List<Resource<?,?>> liveReplicas() {
+    List<Resource<?,?>> list = new ArrayList<Resource<?,?>>(replicas);
+    list.removeAll(failed.keySet());
+    return list;
+  }
+
+  // Record the failure of a replica, returning whether it has been dropped.
+  private synchronized boolean replicaFailed(Resource<?,?> r, Throwable t) {
+    if (!dropFailedReplicas)
+      return false;
+    if (!failed.containsKey(r))
+      failed.put(r, t);
+    return true;
+  }
+
   // Check if we're able to start a data transfer according to the configured
   // concurrency level.
   private synchronized boolean canStartDataTransfer() {
-    int c = concurrency();
+    if (isPaused())
+      return false;
+    int c = streams();
     return c <= 0 || transfers.size() < c;
   }
 
+  // Start anything held back by a lower stream limit. If the limit is lower,
+  // transfers in progress are left to finish.
+  protected synchronized void streamsChanged() {
+    if (!isDone())
+      popTransfers();
+  }
+
   // The total number of tasks pending.
   private synchronized int pendingTasks() {
-    return queue.size() + transfers.size() + listings.size();
+    return queue.size() + transfers.size() + listings.size() +
+           deletions.size();
   }
 
   // Check if the transfer is complete. If there are no more pending tasks,
@@ -67,19 +444,22 @@ extends Transfer<S,D> {
         stop(error);
       else
         stop();
+    } else {
+      checkIfQuiet();
     }
   }
 
   // Transfer a resource given its path, and return a bell that rings when the
   // transfer begins.
-  private synchronized Bell transfer(final Path path) {
+  private synchronized Bell transfer(Pending task) {
+    final Path path = task.path;
     if (isDone()) {
       return Bell.rungBell();
     } if (!canStartDataTransfer()) {
-      return enqueueTransfer(path, false);
+      return enqueueTransfer(task, false);
     } try {
       transferStarted(path);
-      return transfer0(path).new Promise() {
+      return transfer0(task).new Promise() {
         public void fail(Throwable t) {
           error = t;
           transferEnded(path);
@@ -90,31 +470,66 @@ extends Transfer<S,D> {
       transferEnded(path);
       return new Bell(e);
     }
-  } private synchronized Bell transfer0(final Path path) {
+  } private synchronized Bell transfer0(Pending task) {
+    final Path path = task.path;
     if (isDone())
       return Bell.rungBell();
+    if (task.partial != null)
+      return resumeData(path, task.stat, task.partial);
+    if (task.stat != null && sync)
+      return syncEntry(path, task.stat, task.dest);
+    if (task.stat != null)
+      return transferEntry(path, task.stat);
 
-    final S src  = source.select(path);
     final D dest = destination.select(path);
 
     // Stat the source to see what it is.
-    return src.stat().new AsBell<Object>() {
-      public Bell<Object> convert(Stat stat) {
-        Bell b = Bell.rungBell();
-        if (stat.dir)
-          b = b.and(dest.mkdir()).and(transferList(path));
-        if (stat.file)
-          b = b.and(transferData(path));
-        else
-          transferEnded(path);
-        return b;
+    return sourceStat(path).new AsBell<Object>() {
+      public Bell<Object> convert(final Stat stat) {
+        if (sync) return dest.stat().new AsBell<Object>() {
+          public Bell<Object> convert(Stat d) {
+            return syncEntry(path, stat, d);
+          } public Bell<Object> convert(Throwable t) {
+            return syncEntry(path, stat, null);
+          }
+        };
+        return transferEntry(path, stat);
       }
     };
   }
 
+  // Transfer a resource given its source stat.
+  private synchronized Bell transferEntry(final Path path, Stat stat) {
+    Bell b = Bell.rungBell();
+    if (stat.dir) {
+      // Don't list until the destination directory exists.
+      listingStarted(path);
+      b = destination.select(path).mkdir().and(mkdirReplicas(path))
+      .new AsBell<Object>() {
+        public Bell<Object> convert(Object o) {
+          return transferList(path);
+        } public void fail(Throwable t) {
+          listingEnded(path);
+        }
+      };
+    } if (stat.file)
+      b = b.and(data(path, stat));
+    else
+      transferEnded(path);
+    return b;
+  }
+
+  // Stat a source resource. The root is stat'd only once if pre-scanning.
+  private synchronized Bell<Stat> sourceStat(Path path) {
+    if (rootStat != null && path.isRoot())
+      return rootStat;
+    return source.select(path).stat();
+  }
+
   // If we are not yet able to start a transfer, put it in the transfer queue.
   private synchronized Bell enqueueTransfer(Path path, boolean first) {
-    Pending pending = new Pending(path);
+    return enqueueTransfer(new Pending(path), first);
+  } private synchronized Bell enqueueTransfer(Pending pending, boolean first) {
     if (first)
       queue.addFirst(pending);
     else
@@ -123,34 +538,265 @@ extends Transfer<S,D> {
   }
 
   // Remove resource paths from the transfer queue and begin transferring them.
+  // Entries which end right away, like directories whose stats came from a
+  // listing, call this again. Those calls leave it to the loop already
+  // running, rather than recursing once per entry.
   private synchronized void popTransfers() {
-    while (canStartDataTransfer()) {
-      Pending pending = queue.poll();
-      if (pending == null)
-        return;
-      transfer(pending.path).promise(pending.bell);
+    if (popping)
+      return;
+    popping = true;
+    try {
+      while (canStartDataTransfer()) {
+        Pending pending = queue.poll();
+        if (pending == null)
+          return;
+        transfer(pending).promise(pending.bell);
+      }
+    } finally {
+      popping = false;
     }
   }
 
-  // Transfer a resource once we know it's a data resource.
-  private synchronized Bell transferData(final Path path) {
-    return source.select(path).tap().attach(new Pipe() {
-      protected Bell start() throws Exception {
-        return super.start();
-      } protected Bell drain(Slice slice) throws Exception {
-        addProgress(slice.length());
-        return super.drain(slice);
-      } protected void finish(Throwable t) {
-        super.finish(t);
-        if (t != null)
-          stop(t);
-        transferEnded(path);
+  /**
+   * Transfer a resource once we know it's a data resource. Subclasses may
+   * override this to move data by other means, in which case they must call
+   * {@link #transferEnded(Path)} when the data transfer has ended. Data moved
+   * by other means can't be abandoned by a pause, so pausing waits for it.
+   *
+   * @param path the path of the resource relative to the transfer root.
+   * @param stat the source {@code Stat} for the resource.
+   * @return A {@code Bell} which rings when the data transfer begins.
+   */
+  protected synchronized Bell transferData(final Path path, Stat stat) {
+    return proxyData(path, stat, 0);
+  }
+
+  // Transfer data unless paused, in which case put it back in the queue.
+  private synchronized Bell data(Path path, Stat stat) {
+    if (isPaused())
+      return requeue(path, stat, new Partial(null, 0));
+    return transferData(path, stat);
+  }
+
+  // Put a data transfer back at the front of the queue to resume later.
+  private synchronized Bell requeue(Path path, Stat stat, Partial partial) {
+    enqueueTransfer(new Pending(path, stat, null, partial), true);
+    transferEnded(path);
+    return Bell.rungBell();
+  }
+
+  // Resume a data transfer abandoned by a pause. The offset is checked
+  // against the size of the destination in case the sink was told more was
+  // written than actually got there.
+  private synchronized Bell resumeData(
+      final Path path, final Stat stat, final Partial partial) {
+    if (partial.sink == null && partial.offset == 0)
+      return data(path, stat);
+    return destination.select(path).stat().new AsBell<Object>() {
+      public Bell<Object> convert(Stat d) {
+        long offset = partial.offset();
+        if (d.size >= 0)
+          offset = Math.min(offset, d.size);
+        return from(offset);
+      } public Bell<Object> convert(Throwable t) {
+        return from(partial.offset());
+      } private Bell<Object> from(long offset) {
+        addProgress(offset-partial.offset);
+        return proxyData(path, stat, offset, partial.sink != null);
       }
-    }).attach(destination.select(path).sink()).tap().start();
+    };
   }
 
-  // Transfer directory listing.
+  // Proxy data from offset, starting over if either end can't seek. If the
+  // destination was opened by a sink before a pause, it isn't truncated
+  // again, so it's written over from the start.
+  private synchronized Bell proxyData(Path path, Stat stat, long offset) {
+    return proxyData(path, stat, offset, false);
+  }
+
+  private synchronized Bell proxyData(
+      Path path, Stat stat, long offset, boolean opened) {
+    if (isPaused())
+      return requeue(path, stat, new Partial(null, offset));
+
+    Tap tap;
+    Sink sink;
+    try {
+      tap = source.select(path).tap(offset).budget(budget());
+      sink = sinkFor(path, offset, opened);
+    } catch (UnsupportedOperationException e) {
+      if (offset == 0)
+        throw e;
+      addProgress(-offset);
+      return proxyData(path, stat, 0, opened);
+    }
+
+    final Gate gate = new Gate(path, stat, offset, tap, sink);
+    Pipe pipe = tap.attach(gate);
+
+    // Restore the order of the data unless the sink is random-access, and
+    // regroup it if the sink has a preferred chunk size.
+    pipe = pipe.attach(new Reorderer(offset));
+    Rechunker rechunker = Rechunker.forSink(sink);
+    if (rechunker != null)
+      pipe = pipe.attach(rechunker);
+
+    flowing.put(path, gate);
+    final Bell bell = new Bell();
+    pipe.attach(sink).tap().start().new Promise() {
+      public void done() {
+        bell.ring();
+      } public void fail(Throwable t) {
+        // Being torn down before starting isn't a failure.
+        if (gate.halted)
+          bell.ring();
+        else
+          bell.ring(t);
+      }
+    };
+    return bell;
+  }
+
+  // The first pipe after the tap of a data transfer. It notes progress,
+  // gives offsets to data which is resumed partway, and refuses data once
+  // halted, which tears down the pipeline.
+  private class Gate extends Pipe {
+    final Path path;
+    final Stat stat;
+    final long start;
+    final Tap tap;
+    final Sink sink;
+    long position, moved = 0;
+    volatile boolean halted = false;
+
+    Gate(Path path, Stat stat, long start, Tap tap, Sink sink) {
+      this.path = path;
+      this.stat = stat;
+      this.start = position = start;
+      this.tap = tap;
+      this.sink = sink;
+    }
+
+    protected Bell drain(Slice slice) throws Exception {
+      if (halted) {
+        slice.asByteBuf().release();
+        return new Bell(PAUSED);
+      }
+      if (start > 0 && slice.offset() < 0)
+        slice = slice.offset(position);
+      position += slice.length();
+      moved += slice.length();
+      addProgress(slice.length());
+      return super.drain(slice);
+    }
+
+    // Stop the tap, which finishes the pipeline once it has settled.
+    void halt() {
+      halted = true;
+      tap.finish(PAUSED);
+    }
+
+    // A pipeline which has been halted was torn down by a pause, even if
+    // something failed as it was.
+    protected void finish(Throwable t) {
+      super.finish(t);
+      dataEnded(this, halted ? PAUSED : t);
+    }
+  }
+
+  // Called when a pipeline has finished. One torn down by a pause is put
+  // back in the queue once its sink has closed.
+  private synchronized void dataEnded(final Gate gate, Throwable t) {
+    if (flowing.get(gate.path) == gate)
+      flowing.remove(gate.path);
+    if (t == PAUSED) {
+      // Wait for the sink to let go of the destination, so nothing it does
+      // lands after the transfer has been picked up again.
+      gate.sink.onClose().new Promise() {
+        public void always() { dataPaused(gate); }
+      };
+      return;
+    } if (t != null) {
+      stop(t);
+    } else {
+      addFileProgress(1);
+    } transferEnded(gate.path);
+  }
+
+  // Put a data transfer torn down by a pause back in the queue with how far
+  // its sink got.
+  private synchronized void dataPaused(Gate gate) {
+    long offset = gate.sink.completed().end(gate.start);
+    addProgress(offset-gate.start-gate.moved);
+    requeue(gate.path, gate.stat, new Partial(gate.sink, offset));
+  }
+
+  // Get a sink for the destination and any live replicas, writing from
+  // offset.
+  private synchronized Sink sinkFor(Path path, long offset, boolean opened) {
+    final Sink<?> primary = sink(destination.select(path), offset, opened);
+    List<Resource<?,?>> live = liveReplicas();
+    if (live.isEmpty())
+      return primary;
+
+    final Map<Sink<?>,Resource<?,?>> sinks =
+      new LinkedHashMap<Sink<?>,Resource<?,?>>();
+    sinks.put(primary, destination);
+    for (Resource<?,?> r : live)
+      sinks.put(sink(r.select(path), offset, opened), r);
+
+    return new Tee(new ArrayList<Sink<?>>(sinks.keySet())) {
+      protected boolean drop(Sink<?> sink, Throwable error) {
+        return sink != primary && replicaFailed(sinks.get(sink), error);
+      }
+    };
+  }
+
+  // Get a sink for a resource, which only truncates it if starting over on
+  // a resource which hasn't been opened.
+  private static Sink<?> sink(Resource<?,?> r, long offset, boolean opened) {
+    return (offset > 0 || opened) ? r.sink(offset) : r.sink();
+  }
+
+  // Make a directory on each live replica, dropping those that fail if
+  // possible.
+  private synchronized Bell<Object> mkdirReplicas(Path path) {
+    Bell<Object> bell = Bell.rungBell();
+    for (final Resource<?,?> r : liveReplicas()) {
+      final Bell<Object> b = new Bell<Object>();
+      r.select(path).mkdir().new Promise() {
+        public void done() {
+          b.ring();
+        } public void fail(Throwable t) {
+          if (replicaFailed(r, t))
+            b.ring();
+          else
+            b.ring(t);
+        }
+      };
+      bell = bell.and(b);
+    } return bell;
+  }
+
+  // Transfer directory listing. If pre-scanning, the listing is shared with
+  // the scan, and its stats are passed along so entries needn't be stat'd.
   private synchronized Bell transferList(final Path path) {
+    if (prescan > 0) {
+      listing(path).new Promise() {
+        public void done(Map<String,Stat> map) {
+          for (Map.Entry<String,Stat> e : map.entrySet()) {
+            Path p = path.appendLiteral(e.getKey());
+            enqueueTransfer(new Pending(p, e.getValue(), null), true);
+          }
+        } public void fail(Throwable t) {
+          error = t;
+        } public void always() {
+          listingEnded(path);
+        }
+      };
+      return Bell.rungBell();
+    }
+
     Emitter<String> emitter = source.select(path).list();
     final Bell bell = new Bell();
     listingStarted(path);
@@ -164,10 +810,290 @@ extends Transfer<S,D> {
     return Bell.rungBell();
   }
 
+  // Sync a resource given its source stat and its destination stat, or null
+  // if it doesn't exist at the destination.
+  private synchronized Bell syncEntry(Path path, Stat stat, Stat dest) {
+    if (stat.dir)
+      return syncDir(path, dest);
+    if (stat.file)
+      return syncFile(path, stat, dest);
+    transferEnded(path);
+    return Bell.rungBell();
+  }
+
+  // Decide what to do with a source file given its destination stat.
+  private synchronized Plan plan(Stat stat, Stat dest) {
+    if (dest == null || !dest.file || stat.size < 0 || stat.size != dest.size)
+      return Plan.COPY;
+    if (checksum)
+      return Plan.COMPARE;
+    if (seconds(stat.time) > seconds(dest.time))
+      return Plan.COPY;
+    return Plan.SKIP;
+  }
+
+  // Modification times are in seconds for most modules, and milliseconds for
+  // a few, so convert anything too large to be seconds.
+  private static long seconds(long time) {
+    return (time > 100000000000L) ? time/1000 : time;
+  }
+
+  // Copy, compare, or skip a file.
+  private synchronized Bell syncFile(Path path, Stat stat, Stat dest) {
+    switch (plan(stat, dest)) {
+      case COPY:
+        return copy(path, stat);
+      case COMPARE:
+        return compare(path, stat);
+      default:
+        report.unchanged(path);
+        uncount(stat);
+        transferEnded(path);
+        return Bell.rungBell();
+    }
+  }
+
+  // Copy a file, or just report it in a dry run.
+  private synchronized Bell copy(Path path, Stat stat) {
+    report.copied(path, stat.size);
+    if (!report.dry_run)
+      return data(path, stat);
+    uncount(stat);
+    transferEnded(path);
+    return Bell.rungBell();
+  }
+
+  // Compare the digests of a file at the source and destination, and copy it
+  // if they differ.
+  private synchronized Bell compare(final Path path, final Stat stat) {
+    final Bell<byte[]> sd = Pipes.digest(source.select(path).tap(), "MD5");
+    Bell<byte[]> dd = Pipes.digest(destination.select(path).tap(), "MD5");
+    return sd.and(dd).new AsBell<Object>() {
+      public Bell<Object> convert(byte[] digest) {
+        if (!Arrays.equals(sd.sync(), digest))
+          return copy(path, stat);
+        report.unchanged(path);
+        uncount(stat);
+        transferEnded(path);
+        return Bell.rungBell();
+      }
+    };
+  }
+
+  // Sync a directory. Create it at the destination if it doesn't exist, then
+  // merge the source and destination listings.
+  private synchronized Bell syncDir(final Path path, Stat dest) {
+    if (dest != null && !dest.dir)
+      throw new RuntimeException("Destination is not a directory: "+path);
+
+    listingStarted(path);
+    transferEnded(path);
+
+    Bell<?> ready = Bell.rungBell();
+    final Bell<Map<String,Stat>> sl = listing(path), dl;
+    if (dest != null) {
+      dl = children(destination.select(path));
+    } else {
+      dl = new Bell<Map<String,Stat>>(new TreeMap<String,Stat>());
+      if (!report.dry_run)
+        ready = destination.select(path).mkdir().and(mkdirReplicas(path));
+    }
+
+    return ready.and(sl).and(dl).new As<Object>() {
+      public Object convert(Map<String,Stat> d) {
+        merge(path, sl.sync(), d);
+        return null;
+      }
+    }.new Promise() {
+      public void fail(Throwable t) {
+        error = t;
+      } public void always() {
+        listingEnded(path);
+      }
+    };
+  }
+
+  // Get the contents of a directory by name, in name order. Prefer a stat
+  // with the contents, and otherwise list the names and stat each one.
+  private static Bell<Map<String,Stat>> children(Resource<?,?> r) {
+    return children(r, r.stat());
+  } private static Bell<Map<String,Stat>> children(
+      final Resource<?,?> r, Bell<Stat> stat) {
+    final Map<String,Stat> map = new TreeMap<String,Stat>();
+    return stat.new AsBell<Map<String,Stat>>() {
+      public Bell<Map<String,Stat>> convert(Stat stat) {
+        if (stat.files != null) {
+          for (Stat f : stat.files) if (f.name != null)
+            if (!f.name.equals(".") && !f.name.equals("..")) map.put(f.name, f);
+          return new Bell<Map<String,Stat>>(map);
+        } if (!stat.dir) {
+          throw new RuntimeException("Resource is not a directory.");
+        } return r.list().asList().new AsBell<Map<String,Stat>>() {
+          public Bell<Map<String,Stat>> convert(List<String> names) {
+            Bell<?> bell = Bell.rungBell();
+            for (final String name : names) {
+              // Wait for the entry to be put, not just for the stat.
+              bell = bell.and(r.select(name).stat().new As<Stat>() {
+                public Stat convert(Stat s) {
+                  synchronized (map) { map.put(name, s); }
+                  return s;
+                }
+              });
+            } return bell.as(map);
+          }
+        };
+      }
+    };
+  }
+
+  // Merge the sorted source and destination listings of a directory, and
+  // plan what to do with each entry.
+  private synchronized void merge(
+      Path path, Map<String,Stat> src, Map<String,Stat> dest) {
+    Iterator<Map.Entry<String,Stat>> si = src.entrySet().iterator();
+    Iterator<Map.Entry<String,Stat>> di = dest.entrySet().iterator();
+    Map.Entry<String,Stat> s = next(si), d = next(di);
+
+    while (s != null || d != null) {
+      int c = (s == null) ? 1 : (d == null) ? -1 :
+              s.getKey().compareTo(d.getKey());
+      if (c > 0) {
+        if (delete)
+          deleteExtraneous(path.appendLiteral(d.getKey()));
+        d = next(di);
+      } else {
+        Path p = path.appendLiteral(s.getKey());
+        schedule(p, s.getValue(), (c == 0) ? d.getValue() : null);
+        s = next(si);
+        if (c == 0) d = next(di);
+      }
+    }
+  }
+
+  private static <T> T next(Iterator<T> it) {
+    return it.hasNext() ? it.next() : null;
+  }
+
+  // Queue whatever needs doing for an entry from a listing. Unchanged files
+  // and, in a dry run, files to copy are just reported.
+  private synchronized void schedule(Path path, Stat stat, Stat dest) {
+    if (stat.file) switch (plan(stat, dest)) {
+      case SKIP:
+        report.unchanged(path);
+        uncount(stat);
+        return;
+      case COPY:
+        if (report.dry_run) {
+          report.copied(path, stat.size);
+          uncount(stat);
+          return;
+        }
+    } if (stat.file || stat.dir) {
+      enqueueTransfer(new Pending(path, stat, dest), true);
+    }
+  }
+
+  // Get the contents of a source directory. If pre-scanning, the listing is
+  // kept for the other of the scan and the transfer, if there's room.
+  private synchronized Bell<Map<String,Stat>> listing(Path path) {
+    if (prescan <= 0)
+      return children(source.select(path));
+    Bell<Map<String,Stat>> bell = listed.remove(path);
+    if (bell != null)
+      return bell;
+    bell = children(source.select(path), sourceStat(path));
+    if (listed.size() < LISTED)
+      listed.put(path, bell);
+    return bell;
+  }
+
+  // Start pre-scanning the source from the root.
+  private synchronized void startScan() {
+    countingTotal(true);
+    rootStat = source.stat();
+    scanning++;
+    rootStat.new Promise() {
+      public void done(Stat stat) {
+        count(Path.ROOT, stat);
+      } public void always() {
+        scanEnded();
+      }
+    };
+  }
+
+  // Count an entry found by the scan, and queue directories to be scanned.
+  private synchronized void count(Path path, Stat stat) {
+    if (stat.file)
+      addTotal(Math.max(stat.size, 0), 1);
+    else if (stat.dir)
+      unscanned.add(path);
+  }
+
+  // Take a file which was counted but won't be transferred out of the totals.
+  private synchronized void uncount(Stat stat) {
+    if (prescan > 0)
+      addTotal(-Math.max(stat.size, 0), -1);
+  }
+
+  // Start listing unscanned directories, up to the limit.
+  private synchronized void popScans() {
+    while (scanning < prescan && !unscanned.isEmpty() && !isDone() &&
+           !isPaused()) {
+      final Path path = unscanned.poll();
+      scanning++;
+      listing(path).new Promise() {
+        public void done(Map<String,Stat> map) {
+          for (Map.Entry<String,Stat> e : map.entrySet())
+            count(path.appendLiteral(e.getKey()), e.getValue());
+        } public void always() {
+          scanEnded();
+        }
+      };
+    }
+  }
+
+  // Called whenever a scan listing completes. The totals are final once
+  // there's nothing left to scan. A listing which failed is left to fail
+  // the transfer.
+  private synchronized void scanEnded() {
+    scanning--;
+    popScans();
+    if (scanning == 0 && (unscanned.isEmpty() || isDone()))
+      countingTotal(false);
+    checkIfQuiet();
+  }
+
+  // Forget any scan state once the transfer is over.
+  private synchronized void forgetScan() {
+    unscanned.clear();
+    listed.clear();
+  }
+
+  // Delete a destination resource which isn't in the source, or just report
+  // it in a dry run.
+  private synchronized void deleteExtraneous(final Path path) {
+    report.deleted(path);
+    if (report.dry_run)
+      return;
+    deletions.add(path);
+    destination.select(path).delete().new Promise() {
+      public void fail(Throwable t) {
+        error = t;
+      } public void always() {
+        deletionEnded(path);
+      }
+    };
+  }
+
+  private synchronized void deletionEnded(Path path) {
+    deletions.remove(path);
+    checkIfComplete();
+  }
+
   // Called whenever a data transfer starts or completes.
   private synchronized void transferStarted(Path path) {
     transfers.add(path);
-  } private synchronized void transferEnded(Path path) {
+  } protected synchronized void transferEnded(Path path) {
     transfers.remove(path);
     popTransfers();
     checkIfComplete();
@@ -93,6 +93,43 @@ public class Resource<S extends Session<S,R>, R extends Resource<S,R>> {
     return !path.isGlob();
   }
 
+  /**
+   * Expand this {@code Resource} into the singleton {@code Resource}s it
+   * matches. If this is a singleton, it is emitted by itself if it exists.
+   * Only directories whose paths can still match are listed, and up to eight
+   * independent directories are listed at a time.
+   *
+   * @return An {@code Emitter} of matching singleton {@code Resource}s.
+   */
+  public Emitter<R> expand() {
+    final Emitter<R> emitter = new Emitter<R>();
+    new GlobExpansion<R>((R) this, 8) {
+      protected void match(Path path, Stat stat) {
+        emitter.emit(trunk().select(path));
+      }
+    }.start(emitter);
+    return emitter;
+  }
+
+  /**
+   * Expand this {@code Resource} like {@link #expand()}, emitting the
+   * metadata of each match instead. Each {@code Stat} is named with the
+   * escaped path of the match relative to the trunk.
+   *
+   * @return An {@code Emitter} of metadata for matching resources.
+   */
+  public Emitter<Stat> expandStat() {
+    final Emitter<Stat> emitter = new Emitter<Stat>();
+    new GlobExpansion<R>((R) this, 8) {
+      protected void match(Path path, Stat stat) {
+        Stat s = new Stat().copy(stat);
+        s.name = path.isRoot() ? stat.name : path.toString().substring(1);
+        emitter.emit(s);
+      }
+    }.start(emitter);
+    return emitter;
+  }
+
   /**
    * Reselect this {@code Resource} through an equivalent {@code Session}.
    * Assuming {@code session} is actually equivalent to this {@code Resource}'s
@@ -223,6 +260,25 @@ public class Resource<S extends Session<S,R>, R extends Resource<S,R>> {
    */
   public Sink<R> sink() { throw unsupported("sink"); }
 
+  /**
+   * Return a {@code Sink} which writes to this {@code Resource} starting at
+   * {@code offset}, leaving the data before it in place. This is used to
+   * resume a transfer which was interrupted. Unlike {@link #sink()}, the
+   * returned {@code Sink} should not truncate the resource. The default
+   * implementation only supports an offset of zero.
+   *
+   * @param offset the offset to start writing at.
+   * @return A {@code Sink} which drains {@code Slice}s to this {@code
+   * Resource} from {@code offset}.
+   * @throws UnsupportedOperationException if this {@code Resource} does not
+   * support writing from an offset.
+   */
+  public Sink<R> sink(long offset) {
+    if (offset == 0)
+      return sink();
+    throw unsupported("resumed sink");
+  }
+
   /**
    * Return a {@code Tap} that will emit data from this {@code Resource}. Any
    * connection operation, if necessary, should begin asynchronously as soon as
@@ -236,6 +292,24 @@ public class Resource<S extends Session<S,R>, R extends Resource<S,R>> {
    */
   public Tap<R> tap() { throw unsupported("tap"); }
 
+  /**
+   * Return a {@code Tap} which emits data from this {@code Resource} starting
+   * at {@code offset}. This is used with {@link #sink(long)} to resume a
+   * transfer which was interrupted. The default implementation only supports
+   * an offset of zero.
+   *
+   * @param offset the offset to start reading at.
+   * @return A {@code Tap} which emits {@code Slice}s from this {@code
+   * Resource} from {@code offset}.
+   * @throws UnsupportedOperationException if this {@code Resource} does not
+   * support reading from an offset.
+   */
+  public Tap<R> tap(long offset) {
+    if (offset == 0)
+      return tap();
+    throw unsupported("resumed tap");
+  }
+
   private UnsupportedOperationException unsupported(String op) {
     throw new UnsupportedOperationException(
       "The "+op+" operation is unsupported.");
@@ -261,6 +335,27 @@ public class Resource<S extends Session<S,R>, R extends Resource<S,R>> {
     return new ProxyTransfer<R,D>((R)this, resource);
   }
 
+  /**
+   * Initiate a transfer from this {@code Resource} to {@code resource}, also
+   * writing everything transferred to {@code replicas}. The data is read from
+   * this {@code Resource} once and fed to every destination. If there are no
+   * replicas, this is equivalent to {@link #transferTo(Resource)}.
+   *
+   * @param resource the destination resource to transfer this resource to
+   * @param replicas additional destinations to write copies to
+   * @return A {@link Transfer} on success.
+   * @throws UnsupportedOperationException if the direction of transfer is not
+   * supported by one of the resources.
+   * @throws NullPointerException if {@code resource} is {@code null}.
+   * @see ProxyTransfer#replicate(Resource...)
+   */
+  public <D extends Resource<?,D>> Transfer<R,D> transferTo(
+      D resource, Resource<?,?>... replicas) {
+    if (replicas.length == 0)
+      return transferTo(resource);
+    return new ProxyTransfer<R,D>((R)this, resource).replicate(replicas);
+  }
+
   /**
    * Called whenever a {@code Transfer} involving this {@code Resource} has
    * completed.
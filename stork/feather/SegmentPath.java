@@ -0,0 +1,52 @@
+package stork.feather;
+
+/**
+ * A named segment under some parent. Segments are only created by
+ * {@code PathTable}, which guarantees there is one per parent and name.
+ */
+abstract class SegmentPath extends Path {
+  final Path up;
+  final String name;
+  final int hash;
+
+  SegmentPath(Path up, String name, int hash) {
+    this.up = up;
+    this.name = name;
+    this.hash = hash;
+  }
+
+  // Continue the string hash of the parent with "/" and the unescaped name.
+  // Children of the root start from an empty string, since the root is not
+  // repeated in the string form of its children.
+  static int hash(Path up, String name) {
+    int h = (up == ROOT) ? 0 : up.hashCode();
+    h = 31*h + '/';
+    for (int i = 0; i < name.length(); i++)
+      h = 31*h + name.charAt(i);
+    return h;
+  }
+
+  public final Path up() { return up; }
+
+  public final int hashCode() { return hash; }
+
+  // Build the string in one pass rather than concatenating up the tree.
+  public String toString() {
+    int len = 0;
+    Path p = this;
+    for (; !p.isRoot(); p = p.up())
+      len += p.name(false).length()+1;
+
+    String base = (p == ROOT) ? "" : p.toString();
+    char[] buf = new char[base.length()+len];
+    int end = buf.length;
+    for (p = this; !p.isRoot(); p = p.up()) {
+      String n = p.name(false);
+      end -= n.length();
+      n.getChars(0, n.length(), buf, end);
+      buf[--end] = '/';
+    }
+    base.getChars(0, base.length(), buf, 0);
+    return new String(buf);
+  }
+}
@@ -140,6 +140,17 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
    */
   protected Bell<S> initialize() throws Exception { return null; }
 
+  /**
+   * Get the number of {@code Resource}s this {@code Session} can transfer
+   * data to or from at once. A {@code ProxyTransfer} moves no more files at
+   * once than the {@code Session}s at either end can handle. By default,
+   * there is no limit.
+   *
+   * @return The number of {@code Resource}s this {@code Session} can
+   * transfer at once, or zero if there is no limit.
+   */
+  public int concurrency() { return 0; }
+
   /**
    * Release any resources allocated during the initialization of this {@code
    * Session}. This method should close any connections and finalize any
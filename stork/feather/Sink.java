@@ -15,6 +15,8 @@ import stork.feather.util.*;
  */
 public abstract class Sink<D extends Resource> extends Pipe {
   private D destination;
+  private final Ranges completed = new Ranges();
+  private long position;
 
   /**
    * Create a {@code Sink} associated with {@code destination}.
@@ -24,9 +26,24 @@ public abstract class Sink<D extends Resource> extends Pipe {
    * @throws NullPointerException if {@code destination} is {@code null}.
    */
   public Sink(D destination) {
+    this(destination, 0);
+  }
+
+  /**
+   * Create a {@code Sink} associated with {@code destination} which starts
+   * writing at {@code offset}. {@code Slice}s without an offset are taken
+   * to follow on from there.
+   *
+   * @param destination the {@code Resource} this {@code Sink} receives data
+   * for.
+   * @param offset the offset this {@code Sink} starts writing at.
+   * @throws NullPointerException if {@code destination} is {@code null}.
+   */
+  public Sink(D destination, long offset) {
     if (destination == null)
       throw new NullPointerException("destination");
     this.destination = destination;
+    this.position = offset;
   }
 
   public final D destination() { return destination; }
@@ -41,6 +58,61 @@ public abstract class Sink<D extends Resource> extends Pipe {
     return Bell.rungBell();
   }
 
+  /**
+   * Check if this {@code Sink} writes each {@code Slice} at its offset, and
+   * so can accept {@code Slice}s in any order. A {@code Slice} without an
+   * offset is written after the previous {@code Slice}. Sinks which are not
+   * random-access must be given {@code Slice}s in order, and should be fed
+   * through a {@link stork.feather.util.Reorderer} if they might not be.
+   * <p/>
+   * This may depend on what is negotiated when the {@code Sink} starts, so
+   * it should not be relied on before then.
+   *
+   * @return {@code true} if this {@code Sink} is random-access.
+   */
+  public boolean random() { return false; }
+
+  /**
+   * Get the ranges of the destination which have been written so far. This
+   * can be saved, and used to work out what is left to transfer if the
+   * transfer is resumed later.
+   *
+   * @return The ranges which have been written.
+   */
+  public final Ranges completed() { return completed; }
+
+  final long place(Slice slice, long length) {
+    long offset = (slice != null && slice.offset() >= 0) ?
+      slice.offset() : position;
+    position = offset+length;
+    return offset;
+  }
+
+  final void drained(long offset, long length) {
+    completed.add(offset, offset+length);
+  }
+
+  /**
+   * Get the size of the {@code Slice}s this {@code Sink} prefers to drain.
+   * Sinks which do a costly operation for every {@code Slice}, such as a
+   * blocking write or a flush, should override this to ask for large
+   * {@code Slice}s. A {@code ProxyTransfer} will regroup data into chunks of
+   * this size using a {@link stork.feather.util.Rechunker}.
+   *
+   * @return The preferred {@code Slice} size in bytes, or zero if this {@code
+   * Sink} has no preference.
+   */
+  public int chunkSize() { return 0; }
+
+  /**
+   * Get the alignment of the chunk boundaries this {@code Sink} prefers, as
+   * a number of bytes from the start of the resource. This is only used if
+   * {@link #chunkSize()} is positive.
+   *
+   * @return The preferred alignment of chunk boundaries in bytes.
+   */
+  public int chunkAlignment() { return 1; }
+
   /**
    * Drain a {@code Slice} to the endpoint storage system. This method returns
    * as soon as possible, with the actual I/O operation taking place
@@ -57,4 +129,16 @@ public abstract class Sink<D extends Resource> extends Pipe {
   protected abstract Bell drain(Slice slice) throws Exception;
 
   protected abstract void finish(Throwable t);
+
+  /**
+   * Get a {@code Bell} which rings once this {@code Sink} has finished and
+   * let go of its destination, e.g. once a file it had open is closed.
+   * Nothing this {@code Sink} does to the destination happens after that,
+   * so it's safe to start writing to it again. Sinks which start or finish
+   * asynchronously should override this. The default implementation returns
+   * a rung {@code Bell}.
+   *
+   * @return A {@code Bell} which rings once this {@code Sink} has closed.
+   */
+  public Bell<?> onClose() { return Bell.rungBell(); }
 }
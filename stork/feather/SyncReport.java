@@ -0,0 +1,54 @@
+package stork.feather;
+
+import java.util.*;
+
+/**
+ * A report of what a {@code ProxyTransfer} in sync mode has done or, in a
+ * dry run, would do. The counts are updated as the transfer proceeds. Only
+ * the first thousand paths of each kind are listed, so that syncing a
+ * large tree doesn't produce an unreasonably large report.
+ */
+public class SyncReport {
+  private static final int MAX_PATHS = 1000;
+
+  /** Whether this is a report of planned work, rather than work done. */
+  public boolean dry_run;
+  /** The number of files copied. */
+  public long copied = 0;
+  /** The number of bytes in the copied files. */
+  public long bytes = 0;
+  /** The number of files which were unchanged, and so not copied. */
+  public long unchanged = 0;
+  /** The number of extraneous destination resources deleted. */
+  public long deleted = 0;
+  /** The paths of copied files. */
+  public List<String> copy = new ArrayList<String>();
+  /** The paths of deleted resources. */
+  public List<String> delete = new ArrayList<String>();
+
+  synchronized void copied(Path path, long size) {
+    copied++;
+    if (size > 0)
+      bytes += size;
+    if (copy.size() < MAX_PATHS)
+      copy.add(path.toString());
+  }
+
+  synchronized void unchanged(Path path) {
+    unchanged++;
+  }
+
+  synchronized void deleted(Path path) {
+    deleted++;
+    if (delete.size() < MAX_PATHS)
+      delete.add(path.toString());
+  }
+
+  /** Summarize the report in a sentence. */
+  public synchronized String toString() {
+    String s = dry_run ?
+      "Would copy %d files (%d bytes), skip %d unchanged, delete %d." :
+      "Copied %d files (%d bytes), skipped %d unchanged, deleted %d.";
+    return String.format(s, copied, bytes, unchanged, deleted);
+  }
+}
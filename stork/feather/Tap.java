@@ -1,9 +1,19 @@
 package stork.feather;
 
+import stork.feather.util.*;
+
 /**
  * A {@code Tap} emits {@link Slice}s through a pipeline. The {@code Tap} is
  * responsible for producing data from a source {@code Resource} and "draining"
  * it to an attached {@code Sink}.
+ * <p/>
+ * A {@code Tap} may be given a {@link Budget}, in which case the data it has
+ * drained is counted against the budget until the pipeline has taken it, and
+ * the {@code Bell}s returned by {@link #drain(Slice)} only ring while there
+ * is room in the budget. A {@code Tap} which can choose when to read should
+ * {@link #reserve(long)} room before reading. Data drained without a
+ * reservation is counted anyway. Room is taken from the budget in batches,
+ * so a {@code Tap} may count a little more than it has drained.
  *
  * @see Sink
  * @see Slice
@@ -14,6 +24,17 @@ public abstract class Tap<S extends Resource> extends Pipe {
   private Pipe sink;
   private S source;
 
+  // The budget, room reserved but not yet drained, room taken from the budget
+  // but not yet used, and whether something is waiting for room to let the
+  // tap continue.
+  private Budget budget;
+  private long reserved = 0, credit = 0;
+  private boolean awaitingBudget = false, finished = false;
+
+  // Room is taken from the budget in batches of this many bytes, so the
+  // budget's lock isn't taken for every slice.
+  private static final long BATCH = 256*1024;
+
   /**
    * Create a {@code Tap} associated with {@code source}.
    *
@@ -51,6 +72,117 @@ public abstract class Tap<S extends Resource> extends Pipe {
    */
   protected abstract Bell start(Bell bell) throws Exception;
 
+  /**
+   * Set the {@code Budget} to count data drained by this {@code Tap} against.
+   * This should be done before the {@code Tap} is started.
+   *
+   * @param budget the {@code Budget}, or {@code null} for none.
+   * @return This {@code Tap}.
+   */
+  public final synchronized Tap<S> budget(Budget budget) {
+    this.budget = budget;
+    return this;
+  }
+
+  /** Get the {@code Budget} this {@code Tap} counts data against. */
+  public final synchronized Budget budget() { return budget; }
+
+  /**
+   * Reserve room in the budget for {@code size} bytes about to be read. The
+   * reservation is used up by the next {@code Slice}s drained.
+   *
+   * @param size the number of bytes about to be read.
+   * @return A {@code Bell} which rings once the room has been reserved.
+   */
+  protected final Bell<?> reserve(final long size) {
+    Budget b = budget();
+    if (b == null || size <= 0)
+      return Bell.rungBell();
+    synchronized (this) {
+      if (credit >= size) {
+        credit -= size;
+        reserved += size;
+        return Bell.rungBell();
+      }
+    }
+    return b.reserve(size).new Promise() {
+      public void done() { reserved(size); }
+    };
+  }
+
+  // Note a granted reservation, or give it back if it's too late to use.
+  private void reserved(long size) {
+    synchronized (this) {
+      if (!finished) {
+        reserved += size;
+        return;
+      }
+    } budget.release(size);
+  }
+
+  // Count drained data against the reservation, then the credit, and anything
+  // over them against the budget directly, taking another batch of credit if
+  // there's room for it.
+  void charge(long length) {
+    long over;
+    synchronized (this) {
+      if (budget == null)
+        return;
+      long used = Math.min(reserved, length);
+      reserved -= used;
+      length -= used;
+      used = Math.min(credit, length);
+      credit -= used;
+      over = length-used;
+    } if (over > 0) {
+      budget.take(over);
+      if (budget.tryReserve(BATCH))
+        discharge(BATCH);
+    }
+  }
+
+  // Put data which has left the pipeline back in the credit, giving back what
+  // is over a batch once there's two batches' worth.
+  void discharge(long length) {
+    long over;
+    synchronized (this) {
+      if (budget == null)
+        return;
+      credit += length;
+      if (!finished && credit <= 2*BATCH)
+        return;
+      over = finished ? credit : credit-BATCH;
+      credit -= over;
+    } budget.release(over);
+  }
+
+  // Hold the tap back while the budget is full and it has no credit, and let
+  // it continue once there is room.
+  boolean overBudget() {
+    Budget b = budget();
+    if (b == null)
+      return false;
+    synchronized (this) {
+      if (credit > 0)
+        return false;
+    } if (b.isAvailable()) {
+      return false;
+    }
+    synchronized (this) {
+      if (awaitingBudget)
+        return true;
+      awaitingBudget = true;
+    }
+    b.whenAvailable().new Promise() {
+      public void always() {
+        synchronized (Tap.this) {
+          awaitingBudget = false;
+        } release();
+      }
+    };
+    return true;
+  }
+
   protected Bell drain(Slice slice) {
     try {
       Bell bell = super.drain(slice);
@@ -62,6 +194,23 @@ public abstract class Tap<S extends Resource> extends Pipe {
     }
   }
 
+  /**
+   * Finish the flow of data from this {@code Tap}, giving back any room
+   * reserved in the budget which hasn't been used. Subclasses which override
+   * this should call {@code super.finish(error)}.
+   */
+  protected void finish(Throwable error) {
+    long left;
+    synchronized (this) {
+      finished = true;
+      left = reserved+credit;
+      reserved = credit = 0;
+    } if (left > 0) {
+      budget.release(left);
+    }
+    super.finish(error);
+  }
+
   public final Bell start() {
     return start0().new Promise() {
       public void fail(Throwable t) { finish(t); }
@@ -0,0 +1,184 @@
+package stork.feather;
+
+import java.util.*;
+
+import io.netty.buffer.*;
+
+import stork.feather.util.*;
+
+/**
+ * A {@code Sink} which drains each {@code Slice} it receives to several other
+ * {@code Sink}s, so data read once from a {@code Tap} can be written to many
+ * destinations. Each {@code Sink} is fed through its own {@code Pipe}, so
+ * {@code Slice}s reach each of them in order regardless of how quickly the
+ * others drain. The {@code Bell} returned by {@link #drain(Slice)} rings once
+ * every {@code Sink} is ready for more data, so the pipeline moves at the pace
+ * of the slowest {@code Sink}.
+ * <p/>
+ * By default, a failure in any {@code Sink} fails the whole pipeline.
+ * Subclasses may override {@link #drop(Sink, Throwable)} to detach failed
+ * {@code Sink}s instead and carry on with the rest.
+ *
+ * The {@code Sink}s may have destinations of different types. The {@code
+ * Tee}'s destination is that of the first {@code Sink}.
+ */
+public class Tee extends Sink<Resource> {
+  private final List<Branch> branches = new LinkedList<Branch>();
+  private final List<Sink<?>> all = new ArrayList<Sink<?>>();
+
+  // A pipe feeding one of the sinks, regrouping data for the sink if it
+  // has a preferred chunk size. The sinks see the tee's source as theirs.
+  private class Branch extends Pipe {
+    final Sink<?> sink;
+    Branch(Sink<?> sink) {
+      this.sink = sink;
+      Rechunker rechunker = Rechunker.forSink(sink);
+      if (rechunker == null) {
+        attach(sink);
+      } else {
+        rechunker.attach(sink);
+        attach(rechunker);
+      }
+    }
+    public Resource source() { return Tee.this.source(); }
+  }
+
+  /**
+   * Create a {@code Tee} which drains to {@code sinks}. The first {@code
+   * Sink}'s destination is the {@code Tee}'s destination.
+   *
+   * @param sinks the {@code Sink}s to drain to.
+   * @throws IllegalArgumentException if {@code sinks} is empty.
+   */
+  public Tee(Sink<?>... sinks) {
+    this(Arrays.asList(sinks));
+  }
+
+  /**
+   * Create a {@code Tee} which drains to {@code sinks}. The first {@code
+   * Sink}'s destination is the {@code Tee}'s destination.
+   *
+   * @param sinks the {@code Sink}s to drain to.
+   * @throws IllegalArgumentException if {@code sinks} is empty.
+   */
+  public Tee(List<? extends Sink<?>> sinks) {
+    super(first(sinks).destination());
+    for (Sink<?> sink : sinks)
+      branches.add(new Branch(sink));
+    all.addAll(sinks);
+  }
+
+  private static Sink<?> first(List<? extends Sink<?>> sinks) {
+    if (sinks.isEmpty())
+      throw new IllegalArgumentException("No sinks given.");
+    return sinks.get(0);
+  }
+
+  /**
+   * Decide what to do when {@code sink} fails. Return {@code true} to detach
+   * {@code sink} and continue with the others, or {@code false} to fail the
+   * pipeline. This is not called for the last remaining {@code Sink}. The
+   * default implementation returns {@code false}.
+   *
+   * @param sink the {@code Sink} which failed.
+   * @param error the reason it failed.
+   * @return Whether or not to detach {@code sink} and continue.
+   */
+  protected boolean drop(Sink<?> sink, Throwable error) {
+    return false;
+  }
+
+  /** Get the {@code Sink}s which are still attached. */
+  public synchronized List<Sink<?>> sinks() {
+    List<Sink<?>> list = new ArrayList<Sink<?>>(branches.size());
+    for (Branch b : branches)
+      list.add(b.sink);
+    return list;
+  }
+
+  /** A {@code Tee} is random-access if all of its {@code Sink}s are. */
+  public boolean random() {
+    for (Sink<?> s : sinks())
+      if (!s.random()) return false;
+    return true;
+  }
+
+  protected Bell start() {
+    Map<Branch,Bell> bells = new HashMap<Branch,Bell>();
+    for (Branch b : branches()) try {
+      bells.put(b, b.start());
+    } catch (Exception e) {
+      bells.put(b, new Bell(e));
+    } return all(bells);
+  }
+
+  protected Bell drain(Slice slice) {
+    Map<Branch,Bell> bells = new HashMap<Branch,Bell>();
+    ByteBuf buf = slice.asByteBuf();
+    for (Branch b : branches()) try {
+      // Give each sink its own view of the buffer, since draining may move
+      // its indices, and its own reference, since sinks release what they
+      // drain.
+      Slice s = new Slice(buf.duplicate().retain(), slice.offset());
+      bells.put(b, b.drain(s));
+    } catch (Exception e) {
+      bells.put(b, new Bell(e));
+    }
+    buf.release();
+    return all(bells);
+  }
+
+  protected void finish(Throwable t) {
+    for (Branch b : branches())
+      b.finish(t);
+  }
+
+  /** A {@code Tee} has closed once all of its {@code Sink}s have. */
+  public Bell<?> onClose() {
+    Bell bell = Bell.rungBell();
+    for (Sink<?> s : all)
+      bell = bell.and(s.onClose());
+    return bell;
+  }
+
+  private synchronized List<Branch> branches() {
+    return new ArrayList<Branch>(branches);
+  }
+
+  // Return a bell which rings when all of the given bells have rung, dropping
+  // the branches of bells which fail if possible.
+  private Bell all(final Map<Branch,Bell> bells) {
+    final Bell bell = new Bell();
+    if (bells.isEmpty())
+      return bell.ring();
+    final int[] pending = { bells.size() };
+
+    for (Map.Entry<Branch,Bell> e : bells.entrySet()) {
+      final Branch branch = e.getKey();
+      Bell b = e.getValue();
+      b.new Promise() {
+        public void fail(Throwable t) {
+          if (!unplug(branch, t))
+            bell.ring(t);
+        } public void always() {
+          synchronized (pending) {
+            if (--pending[0] == 0)
+              bell.ring();
+          }
+        }
+      };
+    } return bell;
+  }
+
+  // Detach a failed branch if allowed.
+  private boolean unplug(Branch branch, Throwable t) {
+    synchronized (this) {
+      if (!branches.contains(branch))
+        return true;
+      if (branches.size() <= 1 || !drop(branch.sink, t))
+        return false;
+      branches.remove(branch);
+    } branch.finish(t);
+    return true;
+  }
+}
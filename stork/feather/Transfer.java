@@ -22,27 +22,40 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
 
   /** Periodically updated information about the ongoing transfer. */
   public final TransferInfo info = new TransferInfo();
+  /** Periodically updated information about files transferred. */
+  public final TransferInfo files = new TransferInfo();
 
-  private Time timer;
-  private Progress progress = new Progress();
-  private Throughput throughput = new Throughput();
+  private final Meter byteMeter = new Meter(info);
+  private final Meter fileMeter = new Meter(files);
+
+  // Bytes moved by every transfer, for measuring the host's throughput.
+  private static final Counter moved = new Counter();
+
+  // A cap on concurrency() imposed from outside, or zero if there is none.
+  private volatile int streamLimit = 0;
+  // What data read by the transfer is counted against, if anything.
+  private volatile Budget budget;
 
   private boolean startCalled = false;
+  // Rings once a paused transfer has stopped moving data. Null unless paused.
+  private Bell<Transfer<S,D>> paused;
   private final Bell onStart = new Bell() {
     public void done() {
-      if (!Transfer.this.isDone())
-        timer = new Time();
+      if (!Transfer.this.isDone()) {
+        byteMeter.start();
+        fileMeter.start();
+      }
     } public void fail(Throwable t) {
       onStop.ring(t);
     }
   };
   private final Bell onStop = new Bell() {
     public void done() {
-      if (timer != null) timer.stop();
+      stopMeters();
       source.onTransferComplete(Transfer.this);
       destination.onTransferComplete(Transfer.this);
     } public void fail(Throwable t) {
-      if (timer != null) timer.stop();
+      stopMeters();
     } public void always() {
       onStart.cancel();
     }
@@ -139,37 +152,156 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
   }
 
   /**
-   * Pause the transfer temporarily. {@code resume()} should be called to
-   * resume transfer after pausing. Implementors should assume this method will
-   * only be called from a running state.
+   * Check if this transfer can be paused. By default, it can't.
    *
-   * @return This {@code Transfer}.
+   * @return {@code true} if {@link #pause()} is supported.
    */
-  protected Transfer<S,D> pause() {
-    return this;
+  public boolean pausable() { return false; }
+
+  /**
+   * Pause the transfer temporarily. No more data is pulled from the source
+   * while paused, and data transfers in progress may be abandoned, to be
+   * resumed from where they left off by {@link #resume()}. The meters stop
+   * timing while the transfer is paused.
+   *
+   * @return A {@code Bell} which rings with this {@code Transfer} once it has
+   * stopped moving data, or when it stops, if that happens first.
+   * @throws UnsupportedOperationException if the transfer can't be paused.
+   */
+  public final synchronized Bell<Transfer<S,D>> pause() {
+    if (!pausable())
+      throw new UnsupportedOperationException("Transfer can't be paused.");
+    if (isDone())
+      return onStop();
+    if (paused == null) {
+      final Bell<Transfer<S,D>> bell = paused = new Bell<Transfer<S,D>>();
+      byteMeter.pause();
+      fileMeter.pause();
+      Bell quiet = new Bell() {
+        public void always() { bell.ring(Transfer.this); }
+      };
+      Bell<?> flow = pauseFlow();
+      (flow != null ? flow : Bell.rungBell()).promise(quiet);
+      onStop.promise(quiet);
+    } return paused;
   }
 
   /**
-   * Resume the transfer after a pause. Implementors should assume this method
-   * will only be called from a paused state.
+   * Resume the transfer after a pause. Has no effect if the transfer isn't
+   * paused.
    *
    * @return This {@code Transfer}.
    */
-  protected Transfer<S,D> resume() { return this; }
+  public final synchronized Transfer<S,D> resume() {
+    if (paused != null && !isDone()) {
+      paused = null;
+      byteMeter.resume();
+      fileMeter.resume();
+      resumeFlow();
+    } return this;
+  }
+
+  /** Check if the transfer is paused. */
+  public final synchronized boolean isPaused() { return paused != null; }
+
+  /**
+   * Called by {@link #pause()} for subclasses to stop moving data. This will
+   * only be called from a running state, and {@link #isPaused()} will be
+   * {@code true} when it is.
+   *
+   * @return A {@code Bell} which rings once no data is in flight, or {@code
+   * null} if there is none.
+   */
+  protected Bell<?> pauseFlow() { return null; }
+
+  /**
+   * Called by {@link #resume()} for subclasses to start moving data again.
+   * This will only be called from a paused state.
+   */
+  protected void resumeFlow() { }
+
+  /**
+   * Check if the transfer has been started. Unlike the {@code Bell} returned
+   * by {@link #onStart()}, this is true as soon as {@link #start()} returns.
+   */
+  public final boolean isStarted() { return onStart.isDone(); }
 
   /** Check if the transfer is complete. */
   public final boolean isDone() { return onStop.isDone(); }
 
   /**
-   * Used by subclasses to note progress.
+   * Used by subclasses to note progress. This may be called very often and
+   * from many threads, so it only adds to a counter. {@link #info} is brought
+   * up to date periodically.
+   *
+   * @param size the number of bytes transferred.
+   * @return This {@code Transfer}.
    */
   protected final Transfer<S,D> addProgress(long size) {
-    progress.add(size);
-    throughput.update(size);
-    info.update(timer, progress, throughput);
+    byteMeter.add(size);
+    moved.add(size);
+    return this;
+  }
+
+  /**
+   * Used by subclasses to note that files have been transferred.
+   *
+   * @param count the number of files transferred.
+   * @return This {@code Transfer}.
+   */
+  protected final Transfer<S,D> addFileProgress(long count) {
+    fileMeter.add(count);
+    return this;
+  }
+
+  /**
+   * Used by subclasses to note that more bytes and files are to be
+   * transferred. Totals may be added as they are discovered, and may be
+   * negative if something counted turns out not to need transferring.
+   *
+   * @param bytes the number of bytes to add to the total.
+   * @param files the number of files to add to the total.
+   * @return This {@code Transfer}.
+   */
+  protected final Transfer<S,D> addTotal(long bytes, long files) {
+    byteMeter.add(0, bytes);
+    fileMeter.add(0, files);
     return this;
   }
 
+  /**
+   * Used by subclasses to note whether the totals are still being counted,
+   * and so may grow. This is reported in {@link #info} and {@link #files}.
+   *
+   * @param counting whether the totals are still being counted.
+   * @return This {@code Transfer}.
+   */
+  protected final Transfer<S,D> countingTotal(boolean counting) {
+    byteMeter.counting(counting);
+    fileMeter.counting(counting);
+    return this;
+  }
+
+  /**
+   * Used by subclasses which pick up where another transfer left off to carry
+   * over its progress and totals.
+   *
+   * @param other the transfer being picked up from.
+   * @return This {@code Transfer}.
+   */
+  protected final Transfer<S,D> addProgressOf(Transfer<?,?> other) {
+    byteMeter.add(other.byteMeter.done(), other.byteMeter.total());
+    fileMeter.add(other.fileMeter.done(), other.fileMeter.total());
+    return this;
+  }
+
+  // Stop the meters, publishing the final figures.
+  private void stopMeters() {
+    countingTotal(false);
+    byteMeter.stop();
+    fileMeter.stop();
+  }
+
   /**
    * Check if the pipeline is capable of draining {@code Slice}s in arbitrary
    * order. The return value of this method should remain constant across
@@ -196,6 +328,65 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
    */
   public int concurrency() { return 1; }
 
+  /**
+   * Limit the number of {@code Resource}s this transfer may move at once,
+   * e.g. to relieve an overloaded host. This may be changed at any time, and
+   * a transfer which supports it will start or hold back data transfers to
+   * match. It never raises the limit beyond {@link #concurrency()}.
+   *
+   * @param streams the most {@code Resource}s to transfer at once, or a
+   * number less than or equal to zero to remove the limit.
+   * @return This {@code Transfer}.
+   */
+  public final Transfer<S,D> limitStreams(int streams) {
+    streamLimit = (streams > 0) ? streams : 0;
+    streamsChanged();
+    return this;
+  }
+
+  /**
+   * Get the number of {@code Resource}s this transfer may move at once,
+   * taking into account any limit set with {@link #limitStreams(int)}.
+   *
+   * @return The concurrency level, or a number less than or equal to zero if
+   * it is unlimited.
+   */
+  public final int streams() {
+    int c = concurrency(), l = streamLimit;
+    return (l > 0 && (c <= 0 || c > l)) ? l : c;
+  }
+
+  /**
+   * Called by {@link #limitStreams(int)} for subclasses to act on a new
+   * limit, e.g. by starting data transfers which were held back.
+   */
+  protected void streamsChanged() { }
+
+  /**
+   * Set the {@code Budget} to count data buffered by this transfer against.
+   * Transfers which move data through a pipeline give it to their {@code
+   * Tap}s, so they only read while there is room. This should be done before
+   * the transfer is started.
+   *
+   * @param budget the {@code Budget}, or {@code null} for none.
+   * @return This {@code Transfer}.
+   */
+  public final Transfer<S,D> budget(Budget budget) {
+    this.budget = budget;
+    return this;
+  }
+
+  /** Get the {@code Budget} set with {@link #budget(Budget)}, if any. */
+  public final Budget budget() { return budget; }
+
+  /**
+   * Get the number of bytes moved by every transfer so far. Sampling this
+   * periodically gives the aggregate throughput of the host.
+   *
+   * @return The number of bytes moved by every transfer.
+   */
+  public static long bytesMoved() { return moved.sum(); }
+
   /**
    * Return a {@code Bell} which rings when the {@code Transfer} starts.
    *
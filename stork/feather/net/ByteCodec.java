@@ -0,0 +1,30 @@
+package stork.feather.net;
+
+import io.netty.buffer.*;
+
+/**
+ * A {@code Codec} between byte arrays and {@code ByteBuf}s, for attaching
+ * {@code Coder}s which work on byte arrays to a {@code Socket}. Arrays are
+ * wrapped without copying. Buffers have to be copied out into arrays, and
+ * are released once they have been.
+ * <p/>
+ * For example, {@code new ByteCodec().wrap(coder)} makes a {@code
+ * Coder<byte[],byte[]>} usable where a {@code Coder<ByteBuf,ByteBuf>} is
+ * expected.
+ */
+public class ByteCodec extends Codec<byte[],ByteBuf> {
+  public ByteCodec() {
+    super(new Coder<byte[],ByteBuf>("ByteCodec.encoder") {
+      protected void code(byte[] bytes) {
+        emit(Unpooled.wrappedBuffer(bytes));
+      }
+    }, new Coder<ByteBuf,byte[]>("ByteCodec.decoder") {
+      protected void code(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        buf.release();
+        emit(bytes);
+      }
+    });
+  }
+}
@@ -1,5 +1,7 @@
 package stork.feather.net;
 
+import java.util.*;
+
 import stork.feather.*;
 
 /**
@@ -20,6 +22,13 @@ public abstract class Coder<A,B> {
   private Bell<?> onJoin;
   /** Bell used to indicate pause status. */
   private Bell<?> pause;
+  /** The pause bell we're waiting on to flush. */
+  private Bell<?> waiting;
+  /** Messages waiting to be fed to the next coder, and their bells. */
+  private final ArrayDeque<Object> outbox = new ArrayDeque<Object>();
+  private final ArrayDeque<Bell> outbells = new ArrayDeque<Bell>();
+  /** Whether a thread is feeding the next coder. */
+  private boolean flushing;
 
   /** Create a {@code Coder} with no name. */
   public Coder() { this((String) null); }
@@ -74,21 +83,71 @@ public abstract class Coder<A,B> {
   }
 
   /** Called by implementation to emit a message. */
-  protected final synchronized Bell<?> emit(final B b) {
-    if (next == null)
-      pause(onJoin);
-    return pause.new Promise() {
-      public void done() { pause(next.feed(b)); }
-    }.as(null);
+  protected final Bell<?> emit(final B b) {
+    return enqueue(b);
   }
 
   /** Called to emit an error. */
-  protected final synchronized Bell<?> emit(final Throwable error) {
-    if (next == null)
-      pause(onJoin);
-    return pause.new Promise() {
-      public void done() { pause(next.feed(error)); }
-    }.as(null);
+  protected final Bell<?> emit(final Throwable error) {
+    return enqueue(new Failure(error));
+  }
+
+  // Queue an outgoing message. Messages are fed to the next coder in the
+  // order they were emitted, by one thread at a time.
+  private Bell<?> enqueue(Object message) {
+    Bell<?> bell = new Bell<Void>();
+    synchronized (this) {
+      if (next == null)
+        pause(onJoin);
+      outbox.add(message);
+      outbells.add(bell);
+    }
+    flush();
+    return bell;
+  }
+
+  // Feed queued messages to the next coder until the queue is empty or we
+  // have been paused. This coder's lock is not held while feeding, unless
+  // the message was emitted while coding.
+  private void flush() {
+    while (true) {
+      Object message;
+      Bell bell;
+      synchronized (this) {
+        if (flushing || outbox.isEmpty())
+          return;
+        if (!pause.isDone()) {
+          if (waiting != pause) (waiting = pause).new Promise() {
+            public void always() { flush(); }
+          };
+          return;
+        }
+        message = outbox.poll();
+        bell = outbells.poll();
+        if (pause.isFailed()) {
+          // Messages held up by a failure are dropped.
+          pause.promise(bell);
+          continue;
+        }
+        flushing = true;
+      }
+
+      Bell<?> result;
+      try {
+        result = (message instanceof Failure) ?
+          next.feed(((Failure) message).error) : next.feed((B) message);
+      } finally {
+        synchronized (this) { flushing = false; }
+      }
+      pause(result);
+      bell.ring();
+    }
+  }
+
+  // Marks an error in the outbox.
+  private static class Failure {
+    final Throwable error;
+    Failure(Throwable error) { this.error = error; }
   }
 
   /**
@@ -129,10 +188,12 @@ public abstract class Coder<A,B> {
     if (next != null)
       throw new RuntimeException("Already joined");
 
-    if (tail != this)
+    if (tail != this) {
       tail.join(coder);
-    next = coder.head;
-    onJoin.ring();
+    } else {
+      next = coder.head;
+      onJoin.ring();
+    }
 
     return new Coder<A,C>(this, coder) {
       protected final void code(A a) {
@@ -1,30 +1,329 @@
 package stork.feather.net;
 
 import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import stork.feather.*;
-import stork.feather.util.*;
 
 /**
- * An asychronous DNS resolver.
+ * An asychronous, caching DNS resolver. Lookups run on a small shared pool of
+ * threads, and their results are cached for a time-to-live. Failed lookups
+ * are cached as well, for a shorter time. Concurrent lookups of the same host
+ * share a single query. Address literals are answered immediately.
+ * <p/>
+ * Addresses are returned in "happy eyeballs" order: interleaved by address
+ * family, starting with the family of the first address the system returned.
+ * A client which tries addresses in order will then fall back to the other
+ * family quickly if the preferred one is broken.
+ * <p/>
+ * A process-wide resolver is used by the static methods, and can be replaced
+ * with {@link #setDefault(DNSResolver)}, e.g. with a {@link Stub} in tests.
  */
 public class DNSResolver {
+  private static volatile DNSResolver instance = new DNSResolver();
+
+  /** How long "forever" is, in seconds. */
+  private static final long FOREVER = 365*24*3600;
+
+  /** The most entries to cache before expired ones are swept out. */
+  private static final int MAX_CACHED = 1024;
+
+  /** Threads used for lookups, shared by all resolvers. */
+  private static final ThreadPoolExecutor executor =
+    new ThreadPoolExecutor(4, 4, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "DNSResolver");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  static {
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  private final long ttl, negativeTtl;
+
+  // Answers by host, and lookups in progress.
+  private final Map<String,Entry> cache = new HashMap<String,Entry>();
+  private final Map<String,Bell<InetAddress[]>> pending =
+    new HashMap<String,Bell<InetAddress[]>>();
+
+  // A cached answer and when it expires.
+  private static class Entry {
+    final Bell<InetAddress[]> answer;
+    final long expires;
+
+    Entry(Bell<InetAddress[]> answer, long ttl) {
+      this.answer = answer;
+      expires = System.nanoTime() + ttl*1000000;
+    }
+
+    boolean expired(long now) { return now - expires >= 0; }
+  }
+
+  /**
+   * Create a resolver which uses the JVM's configured cache times, from the
+   * {@code networkaddress.cache.ttl} and {@code
+   * networkaddress.cache.negative.ttl} security properties.
+   */
+  public DNSResolver() {
+    this(property("networkaddress.cache.ttl", 30)*1000,
+         property("networkaddress.cache.negative.ttl", 10)*1000);
+  }
+
+  /**
+   * Create a resolver which caches answers for {@code ttl} milliseconds and
+   * failures for {@code negativeTtl} milliseconds.
+   */
+  public DNSResolver(long ttl, long negativeTtl) {
+    this.ttl = ttl;
+    this.negativeTtl = negativeTtl;
+  }
+
+  private static long property(String name, long def) {
+    try {
+      long v = Long.parseLong(Security.getProperty(name));
+      return (v < 0) ? FOREVER : v;
+    } catch (Exception e) {
+      return def;
+    }
+  }
+
+  /** Get the process-wide resolver. */
+  public static DNSResolver getDefault() {
+    return instance;
+  }
+
+  /** Replace the process-wide resolver. */
+  public static void setDefault(DNSResolver resolver) {
+    instance = (resolver != null) ? resolver : new DNSResolver();
+  }
+
   /** Resolve the host address into an array of Internet addresses. */
-  public static Bell<InetAddress[]> resolveAll(final String host) {
-    // TODO: Replace this with a real asynchronous lookup.
-    return new ThreadBell<InetAddress[]>() {
-      public InetAddress[] run() throws UnknownHostException {
-        return InetAddress.getAllByName(host);
-      }
-    }.start();
+  public static Bell<InetAddress[]> resolveAll(String host) {
+    return instance.lookupAll(host);
   }
 
   /** Resolve the host address into an Internet address. */
-  public static Bell<InetAddress> resolve(final String host) {
-    return resolveAll(host).new As<InetAddress>() {
+  public static Bell<InetAddress> resolve(String host) {
+    return instance.lookup(host);
+  }
+
+  /**
+   * Resolve the host address into an Internet address, blocking until it is
+   * known.
+   *
+   * @see #lookupAllSync(String)
+   */
+  public static InetAddress resolveSync(String host) {
+    return instance.lookupSync(host);
+  }
+
+  /**
+   * Look up all the addresses of {@code host}, in happy eyeballs order. The
+   * returned array should not be modified, as it may be shared.
+   */
+  public Bell<InetAddress[]> lookupAll(String host) {
+    return answer(host).promise(new Bell<InetAddress[]>());
+  }
+
+  /**
+   * Look up all the addresses of {@code host}, blocking until they are
+   * known. Unlike syncing on the bell from {@link #lookupAll(String)}, this
+   * does not depend on bell handlers being dispatched, so it is safe to call
+   * from a bell handler. Cached answers are returned immediately.
+   *
+   * @throws RuntimeException wrapping an {@code UnknownHostException} if the
+   * host could not be resolved.
+   */
+  public InetAddress[] lookupAllSync(String host) {
+    return answer(host).sync();
+  }
+
+  /** Like {@link #lookupAllSync(String)}, but for the preferred address. */
+  public InetAddress lookupSync(String host) {
+    return lookupAllSync(host)[0];
+  }
+
+  // Get the shared answer for a host. Its bell is rung directly by the
+  // resolver thread, and must not be handed out.
+  private Bell<InetAddress[]> answer(final String host) {
+    if (host == null || isLiteral(host)) try {
+      return Bell.wrap(InetAddress.getAllByName(host));
+    } catch (UnknownHostException e) {
+      return Bell.wrap((Throwable) e);
+    }
+
+    final String key = host.toLowerCase();
+    final Bell<InetAddress[]> bell;
+
+    synchronized (this) {
+      Entry e = cache.get(key);
+      if (e != null && !e.expired(System.nanoTime()))
+        return e.answer;
+      Bell<InetAddress[]> p = pending.get(key);
+      if (p != null)
+        return p;
+      pending.put(key, bell = new Bell<InetAddress[]>());
+    }
+
+    executor.execute(new Runnable() {
+      public void run() {
+        InetAddress[] addrs = null;
+        Exception error = null;
+        try {
+          addrs = order(query(host));
+        } catch (Exception e) {
+          error = e;
+        }
+        long time = (error == null) ? ttl : negativeTtl;
+        synchronized (DNSResolver.this) {
+          pending.remove(key);
+          if (time > 0)
+            store(key, new Entry(bell, time));
+        }
+        if (error == null)
+          bell.ring(addrs);
+        else
+          bell.ring(error);
+      }
+    });
+
+    return bell;
+  }
+
+  /** Look up the preferred address of {@code host}. */
+  public Bell<InetAddress> lookup(String host) {
+    return lookupAll(host).new As<InetAddress>() {
       public InetAddress convert(InetAddress[] addrs) {
         return addrs[0];
       }
     };
   }
+
+  // Cache an answer, sweeping out expired entries if the cache is big.
+  private void store(String key, Entry entry) {
+    if (cache.size() >= MAX_CACHED) {
+      long now = System.nanoTime();
+      Iterator<Entry> it = cache.values().iterator();
+      while (it.hasNext()) if (it.next().expired(now))
+        it.remove();
+      if (cache.size() >= MAX_CACHED)
+        cache.clear();
+    }
+    cache.put(key, entry);
+  }
+
+  /** Forget all cached answers. */
+  public synchronized void clear() {
+    cache.clear();
+  }
+
+  /**
+   * Query the system for the addresses of {@code host}. This may block, and
+   * is called on a resolver thread. Subclasses may override this to answer
+   * from somewhere else.
+   */
+  protected InetAddress[] query(String host) throws UnknownHostException {
+    return InetAddress.getAllByName(host);
+  }
+
+  // Check if a host is an address literal, which needs no lookup.
+  private static boolean isLiteral(String host) {
+    return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+  }
+
+  /**
+   * Put addresses in happy eyeballs order, alternating between address
+   * families and starting with the family of the first address. Addresses
+   * of the same family keep their order.
+   *
+   * @param addrs the addresses to order.
+   * @return The addresses in happy eyeballs order.
+   */
+  public static InetAddress[] order(InetAddress[] addrs) {
+    if (addrs.length < 2)
+      return addrs;
+    boolean six = addrs[0] instanceof Inet6Address;
+    List<InetAddress> first = new ArrayList<InetAddress>();
+    List<InetAddress> second = new ArrayList<InetAddress>();
+    for (InetAddress a : addrs)
+      ((a instanceof Inet6Address) == six ? first : second).add(a);
+
+    InetAddress[] out = new InetAddress[addrs.length];
+    for (int i = 0, f = 0, s = 0; i < out.length; i++) {
+      if (s >= second.size() || f < first.size() && f <= s)
+        out[i] = first.get(f++);
+      else
+        out[i] = second.get(s++);
+    }
+    return out;
+  }
+
+  /**
+   * A resolver which answers from a table instead of the network, for
+   * testing. Hosts which aren't in the table are unknown. It counts the
+   * queries it has answered, so caching can be observed.
+   */
+  public static class Stub extends DNSResolver {
+    private final Map<String,InetAddress[]> hosts =
+      new ConcurrentHashMap<String,InetAddress[]>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private volatile long delay;
+
+    /** Create a {@code Stub} with the given cache times. */
+    public Stub(long ttl, long negativeTtl) {
+      super(ttl, negativeTtl);
+    }
+
+    /**
+     * Add a host to the table.
+     *
+     * @param host the host name.
+     * @param addrs address literals for the host.
+     * @return This {@code Stub}.
+     * @throws IllegalArgumentException if an address is not a literal.
+     */
+    public Stub add(String host, String... addrs) {
+      InetAddress[] ia = new InetAddress[addrs.length];
+      for (int i = 0; i < addrs.length; i++) try {
+        if (!isLiteral(addrs[i]))
+          throw new Exception();
+        ia[i] = InetAddress.getByName(addrs[i]);
+      } catch (Exception e) {
+        throw new IllegalArgumentException("Not an address: "+addrs[i]);
+      }
+      hosts.put(host.toLowerCase(), ia);
+      return this;
+    }
+
+    /** Make each query take {@code delay} milliseconds. */
+    public Stub delay(long delay) {
+      this.delay = delay;
+      return this;
+    }
+
+    /** Get the number of queries answered. */
+    public int queries() {
+      return queries.get();
+    }
+
+    protected InetAddress[] query(String host) throws UnknownHostException {
+      queries.incrementAndGet();
+      if (delay > 0) try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        // Answer early, then.
+      }
+      InetAddress[] ia = hosts.get(host.toLowerCase());
+      if (ia == null)
+        throw new UnknownHostException(host);
+      return ia.clone();
+    }
+  }
 }
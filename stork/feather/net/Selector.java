@@ -2,135 +2,278 @@ package stork.feather.net;
 
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import stork.feather.*;
 
 import static java.nio.channels.SelectionKey.*;
 
+/**
+ * Readiness notifications for a {@code SelectableChannel}. Channels are
+ * spread round-robin over a set of selector loops, one per processor, each
+ * with its own NIO selector and thread. A channel stays with the loop it was
+ * given for as long as it is open.
+ * <p/>
+ * Interest in an operation is registered by asking for a bell with one of
+ * the {@code on*()} methods, or with {@link #interest(int)} if the selector
+ * was created with a {@link Handler}. Interest lasts for a single event. The
+ * interest set is only ever changed by the owning loop, so changes made from
+ * other threads are queued for the loop, which is woken at most once per
+ * round of selection.
+ */
 public class Selector<C extends SelectableChannel> {
+  /** The number of selector loops. */
+  public static final int LOOPS =
+    Math.max(1, Runtime.getRuntime().availableProcessors());
+
+  private static Loop[] loops;
+  private static final AtomicInteger next = new AtomicInteger();
+
   /** The channel associated with this selector. */
-  private C channel;
+  private final C channel;
+  private final Loop loop;
+  private final Handler<? super C> handler;
   private SelectionKey key;
 
-  private static boolean selecting;
-  private static boolean inited;
-  private static java.nio.channels.Selector nioSelector;
+  /** Operations we want, and whether we're queued for the loop. */
+  private final AtomicInteger wanted = new AtomicInteger();
+  private final AtomicBoolean queued = new AtomicBoolean();
 
-  private Bell<?> onAcceptable = new Bell<Void>();
-  private Bell<?> onConnectable = new Bell<Void>();
-  private Bell<?> onReadable = new Bell<Void>();
-  private Bell<?> onWritable = new Bell<Void>();
+  // Bells are only made when someone asks for one, and are forgotten when
+  // they're rung. Guarded by this.
+  private Bell<C> onAcceptable, onConnectable, onReadable, onWritable;
 
-  private static Thread thread = new Thread("Selector") {
-    public void run() { while (true) select(); }
-  };
+  /**
+   * Receives readiness events on the selector loop thread. This avoids the
+   * allocation of a bell per event, but the handler must not block.
+   */
+  public interface Handler<C extends SelectableChannel> {
+    /**
+     * Called when {@code channel} is ready for the operations in {@code
+     * ready}, which are no longer in the interest set.
+     */
+    void ready(C channel, int ready);
+  }
 
+  /** Create a selector which rings bells for {@code channel}. */
   public Selector(C channel) {
+    this(channel, null);
+  }
+
+  /**
+   * Create a selector which calls {@code handler} for events on {@code
+   * channel}, in addition to ringing any bells which have been asked for.
+   */
+  public Selector(C channel, Handler<? super C> handler) {
     try {
       channel.configureBlocking(false);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
-    synchronized (Selector.class) {
-      init();
-      try {
-        nioSelector.wakeup();
-        key = channel.register(nioSelector, 0, this);
-        this.channel = channel;
-      } catch (Exception e) {
-        throw new RuntimeException("Could not register", e);
-      }
-    }
+    this.channel = channel;
+    this.handler = handler;
+    loop = loops()[(next.getAndIncrement() & Integer.MAX_VALUE) % LOOPS];
+    schedule();
   }
 
-  private static synchronized void init() {
-    if (!inited) try {
-      nioSelector = java.nio.channels.Selector.open();
-      thread.setDaemon(true);
-      thread.start();
-      inited = true;
+  private static synchronized Loop[] loops() {
+    if (loops == null) try {
+      Loop[] l = new Loop[LOOPS];
+      for (int i = 0; i < LOOPS; i++)
+        l[i] = new Loop(i);
+      loops = l;
     } catch (Exception e) {
-      throw new RuntimeException("Could not initialize selector");
+      throw new RuntimeException("Could not initialize selector", e);
     }
+    return loops;
   }
 
   /** Rings when there are incoming connections. */
-  public final synchronized Bell<C> onAcceptable() {
-    setInterest(OP_ACCEPT, true);
-    return onAcceptable.as(channel);
+  public final Bell<C> onAcceptable() {
+    Bell<C> bell;
+    synchronized (this) {
+      if (onAcceptable == null)
+        onAcceptable = new Bell<C>();
+      bell = onAcceptable;
+    }
+    interest(OP_ACCEPT);
+    return bell;
   }
 
   /** Rings when the channel has finished connecting. */
-  public final synchronized Bell<C> onConnectable() {
-    setInterest(OP_CONNECT, true);
-    return onConnectable.as(channel);
+  public final Bell<C> onConnectable() {
+    Bell<C> bell;
+    synchronized (this) {
+      if (onConnectable == null)
+        onConnectable = new Bell<C>();
+      bell = onConnectable;
+    }
+    interest(OP_CONNECT);
+    return bell;
   }
 
   /** Rings when there is data waiting to be read. */
-  public final synchronized Bell<C> onReadable() {
-    setInterest(OP_READ, true);
-    return onReadable.as(channel);
+  public final Bell<C> onReadable() {
+    Bell<C> bell;
+    synchronized (this) {
+      if (onReadable == null)
+        onReadable = new Bell<C>();
+      bell = onReadable;
+    }
+    interest(OP_READ);
+    return bell;
   }
 
   /** Rings when it's possible to write data. */
-  public final synchronized Bell<C> onWritable() {
-    setInterest(OP_WRITE, true);
-    return onWritable.as(channel);
+  public final Bell<C> onWritable() {
+    Bell<C> bell;
+    synchronized (this) {
+      if (onWritable == null)
+        onWritable = new Bell<C>();
+      bell = onWritable;
+    }
+    interest(OP_WRITE);
+    return bell;
   }
 
-  private synchronized void setInterest(int op, boolean interest) {
-    if ((channel.validOps() & op) == 0)
+  /**
+   * Register interest in the operations in {@code ops} for the next event.
+   * This may be called from any thread.
+   */
+  public final void interest(int ops) {
+    if ((channel.validOps() & ops) != ops)
       throw new IllegalArgumentException("Invalid operation");
 
-    int from = key.interestOps();
-    int to = interest ? (from | op) : (from & ~op);
+    int from, to;
+    do {
+      from = wanted.get();
+      to = from | ops;
+    } while (from != to && !wanted.compareAndSet(from, to));
 
-    if (from != to) synchronized (Selector.class) {
-      if (selecting) nioSelector.wakeup();
-      key.interestOps(to);
-    }
+    if (from != to)
+      schedule();
   }
 
-  /** Do selection and fire event handler for each channel. */
-  private static void select() {
-    Set<SelectionKey> set = doNioSelect();
-    for (SelectionKey k : doNioSelect())
-      ((Selector) k.attachment()).handleEvents();
-    set.clear();
+  // Have the loop update our key, or do it now if we're on the loop.
+  private void schedule() {
+    if (Thread.currentThread() == loop.thread && key != null)
+      update();
+    else if (queued.compareAndSet(false, true))
+      loop.submit(this);
   }
 
-  private static Set<SelectionKey> doNioSelect() {
+  // Register or update the key. Only called on the loop thread.
+  private void update() {
+    queued.set(false);
     try {
-      synchronized (Selector.class) { selecting = true; }
-      nioSelector.select();
-      return nioSelector.selectedKeys();
+      if (key == null)
+        key = channel.register(loop.selector, 0, this);
+      if (!key.isValid())
+        throw new ClosedChannelException();
+      key.interestOps(wanted.get());
     } catch (Exception e) {
-      // If this happens, something has gone terribly wrong, i.e. someone
-      // closed the NIO selector or there was an I/O error. In either case,
-      // it means the whole system is broken.
-      throw new Error();
-    } finally {
-      synchronized (Selector.class) { selecting = false; }
+      fail(e);
     }
   }
 
-  /** Called when some event has occurred. */
-  private synchronized void handleEvents() {
-    if (key.isAcceptable()) {
-      onAcceptable.ring();
-      onAcceptable = new Bell<Void>();
-    } if (key.isConnectable()) {
-      onConnectable.ring();
-      onConnectable = new Bell<Void>();
-    } if (key.isReadable()) {
-      onReadable.ring();
-      onReadable = new Bell<Void>();
-    } if (key.isWritable()) {
-      onWritable.ring();
-      onWritable = new Bell<Void>();
+  // Handle the ready operations. Only called on the loop thread.
+  private void ready() {
+    int ops;
+    try {
+      ops = key.readyOps();
+    } catch (CancelledKeyException e) {
+      fail(e);
+      return;
     }
 
     // We're no longer interested in events that just triggered.
-    key.interestOps(key.interestOps() & ~key.readyOps());
+    int from, to;
+    do {
+      from = wanted.get();
+      to = from & ~ops;
+    } while (!wanted.compareAndSet(from, to));
+    key.interestOps(to);
+
+    Bell<C> a = null, c = null, r = null, w = null;
+    synchronized (this) {
+      if ((ops & OP_ACCEPT) != 0) {
+        a = onAcceptable; onAcceptable = null;
+      } if ((ops & OP_CONNECT) != 0) {
+        c = onConnectable; onConnectable = null;
+      } if ((ops & OP_READ) != 0) {
+        r = onReadable; onReadable = null;
+      } if ((ops & OP_WRITE) != 0) {
+        w = onWritable; onWritable = null;
+      }
+    }
+
+    if (a != null) a.ring(channel);
+    if (c != null) c.ring(channel);
+    if (r != null) r.ring(channel);
+    if (w != null) w.ring(channel);
+
+    if (handler != null) try {
+      handler.ready(channel, ops);
+    } catch (Throwable t) {
+      fail(t);
+    }
+  }
+
+  // Fail any outstanding bells, e.g. if the channel was closed.
+  private void fail(Throwable t) {
+    Bell<C> a, c, r, w;
+    synchronized (this) {
+      a = onAcceptable; c = onConnectable; r = onReadable; w = onWritable;
+      onAcceptable = onConnectable = onReadable = onWritable = null;
+    }
+    if (a != null) a.ring(t);
+    if (c != null) c.ring(t);
+    if (r != null) r.ring(t);
+    if (w != null) w.ring(t);
+  }
+
+  /** A selector loop, with its own NIO selector and thread. */
+  private static class Loop implements Runnable {
+    final java.nio.channels.Selector selector;
+    final Thread thread;
+    final Queue<Selector<?>> pending =
+      new ConcurrentLinkedQueue<Selector<?>>();
+    final AtomicBoolean awake = new AtomicBoolean();
+
+    Loop(int id) throws Exception {
+      selector = java.nio.channels.Selector.open();
+      thread = new Thread(this, "Selector-"+id);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    // Queue a selector to have its key updated, waking the loop if needed.
+    void submit(Selector<?> s) {
+      pending.add(s);
+      if (awake.compareAndSet(false, true))
+        selector.wakeup();
+    }
+
+    public void run() {
+      while (true) try {
+        selector.select();
+        awake.set(false);
+
+        for (Selector<?> s; (s = pending.poll()) != null;)
+          s.update();
+
+        Set<SelectionKey> keys = selector.selectedKeys();
+        for (SelectionKey k : keys)
+          ((Selector<?>) k.attachment()).ready();
+        keys.clear();
+      } catch (ClosedSelectorException e) {
+        // If this happens, something has gone terribly wrong. There's no
+        // way to recover, so give up on this loop.
+        throw new Error(e);
+      } catch (Exception e) {
+        // An I/O error in select. Try again.
+      }
+    }
   }
 }
@@ -1,5 +1,7 @@
 package stork.feather.net;
 
+import io.netty.buffer.*;
+
 import stork.feather.*;
 
 /**
@@ -7,8 +9,12 @@ import stork.feather.*;
  * can be used either to make an outgoing connection, or to accept incoming
  * connections (using the {@link #accept(Socket)} method). For connectionless
  * sockets, this can be used to either send data or receive incoming data.
+ * <p/>
+ * Data moves in and out of a {@code Socket} as {@code ByteBuf}s. Whoever
+ * receives a buffer owns it and is responsible for releasing it. A {@link
+ * ByteCodec} can be used to attach {@code Coder}s which work on byte arrays.
  */
-public abstract class Socket extends Coder<byte[],byte[]> {
+public abstract class Socket extends Coder<ByteBuf,ByteBuf> {
   private Bell<?> connectBell, listenBell;
 
   /** Will ring after the socket is connected. */
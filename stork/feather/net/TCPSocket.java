@@ -5,14 +5,22 @@ import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
 
+import io.netty.buffer.*;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+
 import stork.feather.*;
 
 import static java.net.StandardSocketOptions.*;
+import static java.nio.channels.SelectionKey.*;
 
 /**
- *
+ * A TCP {@code Socket} built on the feather.net selector loops. Reads go into
+ * pooled direct buffers sized to recent reads, which are passed downstream
+ * without copying. Buffers fed to the socket are queued and written with
+ * gathering writes, and the pipeline is paused while the queue drains.
  */
-class TCPSocket extends Socket {
+public class TCPSocket extends Socket {
   private Bell<SocketAddress> addr;
   private Bell<SocketChannel> channel;
   private Bell<ServerSocketChannel> server;
@@ -21,8 +29,31 @@ class TCPSocket extends Socket {
   private Selector<SocketChannel> selector;
   private Selector<ServerSocketChannel> acceptor;
 
-  private ByteBuffer readBuffer;
-  private List<ByteBuffer> writeBuffer = new LinkedList<ByteBuffer>();
+  /** Reads and flushes on the selector loop as the channel becomes ready. */
+  private final Selector.Handler<SocketChannel> handler =
+    new Selector.Handler<SocketChannel>() {
+      public void ready(SocketChannel ch, int ops) {
+        if ((ops & OP_WRITE) != 0)
+          flush(ch);
+        if ((ops & OP_READ) != 0)
+          doRead(ch);
+      }
+    };
+
+  /** Rings with the channel once it's connected. */
+  private final Bell<SocketChannel> connected = new Bell<SocketChannel>();
+
+  /** Guesses read sizes from how much recent reads returned. */
+  private final RecvByteBufAllocator.Handle readSize =
+    AdaptiveRecvByteBufAllocator.DEFAULT.newHandle();
+
+  /** Buffers waiting to be written, and the bell for when they are. */
+  private final ArrayDeque<ByteBuf> writeQueue = new ArrayDeque<ByteBuf>();
+  private Bell<Void> drained;
+
+  /** The most buffers to hand to a single gathering write. */
+  private static final int MAX_GATHER = 64;
+  private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
 
   public TCPSocket() {
     this(0);
@@ -81,7 +112,7 @@ class TCPSocket extends Socket {
   private SocketChannel makeSocket(SocketAddress addr) throws Exception {
     SocketChannel ch = SocketChannel.open();
     configureSocket(ch);
-    selector = new Selector<SocketChannel>(ch);
+    selector = new Selector<SocketChannel>(ch, handler);
     selector.onConnectable().new As<SocketChannel>() {
       public SocketChannel convert(SocketChannel ch) throws Exception {
         ch.finishConnect();
@@ -105,8 +136,8 @@ class TCPSocket extends Socket {
   /** Call this to set up state when a socket is connected. */
   private synchronized void setConnectedSocket(SocketChannel ch) {
     if (selector == null)
-      selector = new Selector<SocketChannel>(ch);
-    allocateReadBuffer();
+      selector = new Selector<SocketChannel>(ch, handler);
+    connected.ring(ch);
     expectRead();
   }
 
@@ -134,6 +165,7 @@ class TCPSocket extends Socket {
         if (sc == null)
           throw new RuntimeException();
         sc.configureBlocking(false);
+        configureSocket(sc);
         return new TCPSocket(sc);
       } public void done(Socket socket) {
         try {
@@ -149,62 +181,62 @@ class TCPSocket extends Socket {
     };
   }
 
-  /** Allocate a new read buffer. */
-  private synchronized void allocateReadBuffer() {
-    readBuffer = ByteBuffer.allocate(4096);
-  }
-
   // Call when we're expecting to read.
   private void expectRead() {
-    selector.onReadable().new Promise() {
-      public void done(SocketChannel ch) { doRead(ch); }
-    };
+    selector.interest(OP_READ);
   }
 
-  // Read into the readBuffer.
+  // Read into a pooled buffer sized by recent reads, and pass it along.
   private synchronized void doRead(SocketChannel ch) {
+    ByteBuf buf = readSize.allocate(PooledByteBufAllocator.DEFAULT);
     int size;
-    byte[] bytes;
 
     try {
-      size = ch.read(readBuffer);
+      size = buf.writeBytes(ch, buf.writableBytes());
     } catch (Exception e) {
+      buf.release();
       close(e);
       return;
     }
 
+    if (size < 0) {
+      buf.release();
+      close();
+      return;
+    }
+
     // There was nothing to read after all...
     if (size == 0) {
+      buf.release();
       expectRead();
       return;
     }
 
-    // If we used the whole read buffer, just emit it.
-    if (!readBuffer.hasRemaining()) {
-      bytes = readBuffer.array();
-      allocateReadBuffer();
-    } else {
-      bytes = new byte[size];
-      readBuffer.position(0);
-      readBuffer.get(bytes);
-      readBuffer.position(0);
-    }
+    readSize.record(size);
 
     // Emit and don't try to read again until the pipeline is ready.
-    emit(bytes).new Promise() {
+    emit(buf).new Promise() {
       public void done() { expectRead(); }
     };
   }
 
-  private Bell<Void> lastWrite = Bell.rungBell();
+  protected synchronized void code(ByteBuf buf) {
+    if (!buf.isReadable() || isClosed()) {
+      buf.release();
+      return;
+    }
 
-  protected synchronized void code(byte[] bytes) {
-    if (bytes.length == 0)
+    writeQueue.add(buf);
+    if (drained != null)
       return;
-    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-    lastWrite = lastWrite.new AsBell<Void>() {
-      public Bell<Void> convert(Void _) { return write(buffer); }
-    }.detach();
+
+    // Start flushing once we're connected, and hold up the pipeline until
+    // everything queued has been written.
+    pause(drained = new Bell<Void>());
+    connected.new Promise() {
+      public void done(SocketChannel ch) { flush(ch); }
+      public void fail(Throwable t) { close(t); }
+    };
   }
 
   protected void code(Throwable error) {
@@ -212,27 +244,62 @@ class TCPSocket extends Socket {
   }
 
   /**
-   * Write to the channel. Returns a bell that rings when all of the bytes have
-   * been written to the channel.
+   * Write as much of the queue as the channel will take in one gathering
+   * write, and wait for the channel to be writable if anything is left.
    */
-  private Bell<Void> write(final ByteBuffer bytes) {
-    return channel.new AsBell<Void>() {
-      public Bell<Void> convert(SocketChannel ch) throws Exception {
-        ch.write(bytes);
-        if (!bytes.hasRemaining())
-          return Bell.rungBell();
-        Bell<Void> pause = selector.onWritable().new AsBell<Void>() {
-          public Bell<Void> convert(SocketChannel ch) { return write(bytes); }
-        };
-        pause(pause);
-        return pause;
-      } public void fail(Throwable t) {
-        close(t);
+  private synchronized void flush(SocketChannel ch) {
+    try {
+      while (!writeQueue.isEmpty()) {
+        int n = 0;
+        long want = 0;
+        for (ByteBuf b : writeQueue) {
+          if (n + b.nioBufferCount() > MAX_GATHER && n > 0)
+            break;
+          for (ByteBuffer bb : b.nioBuffers()) {
+            if (n == MAX_GATHER)
+              break;
+            gather[n++] = bb;
+            want += bb.remaining();
+          }
+        }
+
+        long written = ch.write(gather, 0, n);
+        Arrays.fill(gather, 0, n, null);
+        boolean full = written < want;
+
+        // Advance past what was written, and release finished buffers.
+        while (written > 0) {
+          ByteBuf b = writeQueue.peek();
+          int w = (int) Math.min(written, b.readableBytes());
+          b.skipBytes(w);
+          written -= w;
+          if (!b.isReadable())
+            writeQueue.poll().release();
+        }
+
+        // The socket buffer is full. Wait until there's room.
+        if (full) {
+          selector.interest(OP_WRITE);
+          return;
+        }
       }
-    };
+    } catch (Exception e) {
+      close(e);
+    }
+
+    Bell<Void> bell = drained;
+    drained = null;
+    if (bell != null)
+      bell.ring();
   }
 
   protected void doClose() throws Exception {
+    synchronized (this) {
+      for (ByteBuf b : writeQueue)
+        b.release();
+      writeQueue.clear();
+    }
+    connected.cancel();
     if (channel != null) {
       if (!channel.isDone())
         channel.cancel();
@@ -0,0 +1,312 @@
+package stork.feather.util;
+
+import java.util.*;
+
+import stork.feather.*;
+
+/**
+ * A limit on the number of bytes which may be buffered at once. Budgets form
+ * a tree, e.g. one for the whole process, with one for each user under it,
+ * and one for each transfer under those. Bytes taken from a {@code Budget}
+ * are counted against it and every budget above it, and a reservation is
+ * only granted once there is room for it at every level.
+ * <p/>
+ * Reservations waiting for room are granted in the order they were made.
+ * Each is queued by the budget whose limit holds it up, so one held up by a
+ * sub-budget doesn't hold up those which aren't, and releasing bytes only
+ * looks at the queues of the budgets they were counted against. A
+ * reservation larger than a limit is granted once nothing else is counted
+ * against that budget, so it can't wait forever.
+ * <p/>
+ * Every budget in a tree shares the root's lock. Users which count many small
+ * amounts, like {@code Tap}s, should take room in batches rather than taking
+ * the lock for each.
+ */
+public class Budget {
+  private final Budget parent, root;
+  private volatile long limit;
+  private long used = 0, peak = 0;
+
+  // Reservations held up by this budget's limit, in the order they were made,
+  // and the number waiting in the whole tree, kept by the root.
+  private LinkedList<Waiter> blocked;
+  private int waiting = 0;
+
+  // A reservation waiting for room, or a wait for any room at all.
+  private class Waiter {
+    final Budget budget;
+    final long size;
+    final boolean grant;
+    Budget queue;  // The budget it's queued by.
+
+    // Withdraw the reservation if it's cancelled while queued.
+    final Bell<Long> bell = new Bell<Long>() {
+      public void fail() {
+        synchronized (root) {
+          if (queue != null && queue.blocked.remove(Waiter.this))
+            root.waiting--;
+        }
+      }
+    };
+
+    Waiter(Budget budget, long size, boolean grant) {
+      this.budget = budget;
+      this.size = size;
+      this.grant = grant;
+    }
+  }
+
+  /**
+   * Create a root {@code Budget} with the given limit.
+   *
+   * @param limit the most bytes which may be counted against the budget, or
+   * a number less than or equal to zero for no limit.
+   */
+  public Budget(long limit) {
+    this(null, limit);
+  }
+
+  private Budget(Budget parent, long limit) {
+    this.parent = parent;
+    this.limit = limit;
+    root = (parent == null) ? this : parent.root;
+  }
+
+  /**
+   * Create a {@code Budget} under this one. Bytes counted against it are also
+   * counted against this one.
+   *
+   * @param limit the most bytes which may be counted against the new budget,
+   * or a number less than or equal to zero for no limit of its own.
+   * @return The new {@code Budget}.
+   */
+  public Budget child(long limit) {
+    return new Budget(this, limit);
+  }
+
+  /** Get the parent of this {@code Budget}, or {@code null} if it's a root. */
+  public Budget parent() { return parent; }
+
+  /** Get the limit of this {@code Budget}, or zero if there is none. */
+  public long limit() {
+    long l = limit;
+    return (l > 0) ? l : 0;
+  }
+
+  /**
+   * Change the limit of this {@code Budget}. Raising it may grant waiting
+   * reservations. Lowering it doesn't take back anything already granted.
+   *
+   * @param limit the new limit, or a number less than or equal to zero for
+   * no limit.
+   * @return This {@code Budget}.
+   */
+  public Budget limit(long limit) {
+    List<Waiter> granted = new ArrayList<Waiter>();
+    synchronized (root) {
+      this.limit = limit;
+      grantBlocked(granted);
+    }
+    ring(granted);
+    return this;
+  }
+
+  /** Get the number of bytes counted against this {@code Budget}. */
+  public long used() {
+    synchronized (root) {
+      return used;
+    }
+  }
+
+  /** Get the most bytes ever counted against this {@code Budget} at once. */
+  public long peak() {
+    synchronized (root) {
+      return peak;
+    }
+  }
+
+  /** Get the number of reservations waiting for room in the whole tree. */
+  public int waiting() {
+    synchronized (root) {
+      return root.waiting;
+    }
+  }
+
+  /**
+   * Reserve {@code size} bytes, once there is room for them.
+   *
+   * @param size the number of bytes to reserve.
+   * @return A {@code Bell} which rings with {@code size} once the bytes have
+   * been counted against this {@code Budget}. Cancelling it withdraws the
+   * reservation if it hasn't been granted.
+   */
+  public Bell<Long> reserve(long size) {
+    if (size <= 0)
+      return new Bell<Long>().ring(0L);
+    return enqueue(new Waiter(this, size, true));
+  }
+
+  /**
+   * Reserve {@code size} bytes if there is room for them right now.
+   *
+   * @param size the number of bytes to reserve.
+   * @return {@code true} if the bytes have been counted against this {@code
+   * Budget}.
+   */
+  public boolean tryReserve(long size) {
+    synchronized (root) {
+      if (size > 0 && (queued() != null || !fits(size)))
+        return false;
+      take(size);
+      return true;
+    }
+  }
+
+  /**
+   * Count {@code size} bytes against this {@code Budget} whether or not
+   * there is room for them. This is for bytes which have already been
+   * buffered, e.g. by something which couldn't wait for a reservation.
+   *
+   * @param size the number of bytes to count.
+   */
+  public void take(long size) {
+    if (size <= 0)
+      return;
+    synchronized (root) {
+      for (Budget b = this; b != null; b = b.parent) {
+        b.used += size;
+        b.peak = Math.max(b.peak, b.used);
+      }
+    }
+  }
+
+  /**
+   * Stop counting {@code size} bytes against this {@code Budget}, e.g. once
+   * they have been written out, granting waiting reservations which now fit.
+   *
+   * @param size the number of bytes to release.
+   */
+  public void release(long size) {
+    if (size <= 0)
+      return;
+    List<Waiter> granted = new ArrayList<Waiter>();
+    synchronized (root) {
+      for (Budget b = this; b != null; b = b.parent)
+        b.used = Math.max(0, b.used-size);
+      for (Budget b = this; b != null; b = b.parent)
+        b.grantBlocked(granted);
+    }
+    ring(granted);
+  }
+
+  /**
+   * Check if there is room for at least one more byte at every level.
+   *
+   * @return {@code true} if there is room in this {@code Budget}.
+   */
+  public boolean isAvailable() {
+    synchronized (root) {
+      return fits(1);
+    }
+  }
+
+  /**
+   * Get a {@code Bell} which rings once there is room for at least one more
+   * byte at every level. Nothing is reserved.
+   *
+   * @return A {@code Bell} which rings when there is room.
+   */
+  public Bell<Long> whenAvailable() {
+    return enqueue(new Waiter(this, 1, false));
+  }
+
+  // Queue a waiter, or grant it right away if it can be. A waiter which fits
+  // still waits behind those queued above it.
+  private Bell<Long> enqueue(Waiter w) {
+    List<Waiter> granted = new ArrayList<Waiter>();
+    synchronized (root) {
+      root.waiting++;
+      Budget b = blocker(w.size);
+      if (b == null)
+        b = queued();
+      if (b != null)
+        b.queue(w);
+      else
+        grant(w, granted);
+    }
+    ring(granted);
+    return w.bell;
+  }
+
+  // Check if size bytes fit at every level. Call with the root locked.
+  private boolean fits(long size) {
+    return blocker(size) == null;
+  }
+
+  // Get the first budget from this one up whose limit holds up size bytes, or
+  // null if they fit. Call with the root locked.
+  private Budget blocker(long size) {
+    for (Budget b = this; b != null; b = b.parent) {
+      long l = b.limit;
+      if (l > 0 && b.used > 0 && b.used+size > l)
+        return b;
+    } return null;
+  }
+
+  // Get the highest budget from this one up with reservations queued, or
+  // null if there are none. Call with the root locked.
+  private Budget queued() {
+    Budget q = null;
+    for (Budget b = this; b != null; b = b.parent)
+      if (b.blocked != null && !b.blocked.isEmpty())
+        q = b;
+    return q;
+  }
+
+  // Queue a waiter held up by this budget. Call with the root locked.
+  private void queue(Waiter w) {
+    if (blocked == null)
+      blocked = new LinkedList<Waiter>();
+    w.queue = this;
+    blocked.add(w);
+  }
+
+  // Grant a waiter. Call with the root locked.
+  private void grant(Waiter w, List<Waiter> granted) {
+    if (w.grant)
+      w.budget.take(w.size);
+    root.waiting--;
+    granted.add(w);
+  }
+
+  // Grant reservations queued by this budget, in order, until one is still
+  // held up by it. Those now held up by another budget are queued there.
+  // Call with the root locked.
+  private void grantBlocked(List<Waiter> granted) {
+    while (blocked != null && !blocked.isEmpty()) {
+      Waiter w = blocked.peek();
+      if (w.bell.isDone()) {
+        blocked.poll();
+        root.waiting--;
+        continue;
+      }
+      Budget b = w.budget.blocker(w.size);
+      if (b == this)
+        break;
+      blocked.poll();
+      if (b != null)
+        b.queue(w);
+      else
+        grant(w, granted);
+    }
+  }
+
+  // Ring granted waiters once the lock has been released.
+  private static void ring(List<Waiter> granted) {
+    for (Waiter w : granted) {
+      w.bell.ring(w.grant ? w.size : 0L);
+      if (w.grant && w.bell.isFailed())
+        w.budget.release(w.size);  // Cancelled in the meantime.
+    }
+  }
+}
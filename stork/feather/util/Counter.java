@@ -0,0 +1,67 @@
+package stork.feather.util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A counter which many threads can add to without contending, in the manner
+ * of Java 8's {@code LongAdder}. The count is split over a number of cells,
+ * each on its own cache line, and each thread adds to one of them, moving to
+ * another if it finds its cell contended. Reading the count sums the cells,
+ * so it is more expensive than adding to it, and is meant to be done
+ * periodically rather than on every update.
+ * <p/>
+ * The sum is exact once all updates have finished, but a sum taken while
+ * updates are in progress may or may not include them.
+ */
+public class Counter {
+  /** The number of cells, a power of two. */
+  private static final int CELLS;
+  /** Longs per cell, so that cells don't share cache lines. */
+  private static final int PAD = 8;
+
+  static {
+    int n = 1, cpus = Runtime.getRuntime().availableProcessors();
+    while (n < 2*cpus) n <<= 1;
+    CELLS = n;
+  }
+
+  /** Each thread's current cell. */
+  private static final ThreadLocal<int[]> probe = new ThreadLocal<int[]>() {
+    protected int[] initialValue() {
+      int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+      return new int[] { (h == 0) ? 1 : h };
+    }
+  };
+
+  private final AtomicLongArray cells = new AtomicLongArray(CELLS*PAD);
+
+  /** Create a {@code Counter} starting at zero. */
+  public Counter() { }
+
+  /** Add {@code n} to the count. */
+  public void add(long n) {
+    int[] p = probe.get();
+    int i = (p[0] & (CELLS-1)) * PAD;
+    long v = cells.get(i);
+    if (!cells.compareAndSet(i, v, v+n)) {
+      // Contended. Move this thread somewhere else for next time.
+      int h = p[0];
+      h ^= h << 13; h ^= h >>> 17; h ^= h << 5;
+      p[0] = h;
+      cells.getAndAdd(i, n);
+    }
+  }
+
+  /** Add one to the count. */
+  public void increment() { add(1); }
+
+  /** Get the sum of everything added so far. */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < CELLS; i++)
+      sum += cells.get(i*PAD);
+    return sum;
+  }
+
+  public String toString() { return Long.toString(sum()); }
+}
@@ -1,15 +1,18 @@
 package stork.feather.util;
 
-import java.util.*;
+import java.util.concurrent.*;
 
 /**
- * A dispatch loop used internally. The dispatch loop maintains a timer thread
- * that will be destroyed when there are no dispatched tasks.
+ * A dispatch loop used internally. The dispatch loop maintains a thread that
+ * will be destroyed when there are no dispatched tasks. Tasks which are due at
+ * the same time run in the order they were dispatched.
  */
 public class Dispatcher {
   private String name;
   private long count;
-  private Timer timer;
+  // A Timer would do, but it runs tasks due in the same millisecond in no
+  // particular order, and callers rely on them running in order.
+  private ScheduledThreadPoolExecutor executor;
 
   /** Create an unnamed {@code Dispatcher}. */
   public Dispatcher() { this(null); }
@@ -18,8 +21,8 @@ public class Dispatcher {
   public Dispatcher(String name) { this.name = name; }
 
   // Wrap a runnable for safety.
-  private TimerTask wrap(final Runnable r) {
-    return new TimerTask() {
+  private Runnable wrap(final Runnable r) {
+    return new Runnable() {
       public void run() {
         try {
           r.run();
@@ -39,17 +42,32 @@ public class Dispatcher {
 
   /** Schedule {@code runnable} to be executed after a delay. */
   public synchronized void dispatch(Runnable runnable, double delay) {
-    if (timer == null)
-      timer = new Timer(name == null ? "Dispatcher" : name);
-    timer.schedule(wrap(runnable), (long)(delay*1E3));
+    if (executor == null)
+      executor = newExecutor();
+    executor.schedule(wrap(runnable), (long)(delay*1E9), TimeUnit.NANOSECONDS);
     count++;
   }
 
+  // Create an executor with a single named thread.
+  private ScheduledThreadPoolExecutor newExecutor() {
+    return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        return new Thread(r, name == null ? "Dispatcher" : name);
+      }
+    });
+  }
+
+  /**
+   * Check if there are no dispatched tasks, including delayed ones. The
+   * dispatch thread only exists while there are.
+   */
+  public synchronized boolean isIdle() { return count == 0; }
+
   /** Called when a dispatch has completed. */
   private synchronized void dispatchFinished() {
     if (--count == 0) {
-      timer.cancel();
-      timer = null;
+      executor.shutdown();
+      executor = null;
     }
   }
 }
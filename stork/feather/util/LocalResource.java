@@ -4,6 +4,8 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 
+import io.netty.buffer.*;
+
 import stork.feather.*;
 
 /** A {@code Resource} produced by a {@code LocalSession}. */
@@ -132,11 +134,19 @@ public class LocalResource extends Resource<LocalSession,LocalResource> {
   }
 
   public Tap<LocalResource> tap() {
-    return new LocalTap(this);
+    return new LocalTap(this, 0);
+  }
+
+  public Tap<LocalResource> tap(long offset) {
+    return new LocalTap(this, offset);
   }
 
   public Sink<LocalResource> sink() {
-    return new LocalSink(this);
+    return new LocalSink(this, -1);
+  }
+
+  public Sink<LocalResource> sink(long offset) {
+    return new LocalSink(this, offset);
   }
 }
 
@@ -149,7 +159,10 @@ class LocalTap extends Tap<LocalResource> {
   private long chunkSize = 4096;
 
   // State of the current transfer.
-  public LocalTap(LocalResource root) { super(root); }
+  public LocalTap(LocalResource root, long offset) {
+    super(root);
+    this.offset = offset;
+  }
 
   public Bell start(Bell bell) throws Exception {
     if (!file.exists())
@@ -162,22 +175,25 @@ class LocalTap extends Tap<LocalResource> {
     // Set up state.
     raf = new RandomAccessFile(file, "r");
     channel = raf.getChannel();
-    remaining = file.length();
+    channel.position(offset);
+    remaining = Math.max(file.length()-offset, 0);
 
     return bell.new Promise() {
       public void done() { doRead(); }
     };
   }
 
+  // Read the next chunk once the last has been drained and there is room in
+  // the budget for it.
   public void doRead() {
-    pause.new As<Void>() {
+    final long size = remaining < chunkSize ? remaining : chunkSize;
+    pause.and(reserve(size)).new As<Void>() {
       public Void convert(Object o) throws Exception {
-        long len = remaining < chunkSize ? remaining : chunkSize;
-        ByteBuffer buffer = ByteBuffer.allocate((int) len);
-        len = channel.read(buffer);
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        long len = channel.read(buffer);
 
         if (len >= 0) {
-          buffer.rewind();
+          buffer.flip();
           Slice slice = new Slice(buffer);
           pause = drain(slice);
           offset += len;
@@ -197,27 +213,42 @@ class LocalTap extends Tap<LocalResource> {
     };
   }
 
+  // Finish before closing, so a read which fails because the file has been
+  // closed doesn't finish the pipeline with that error instead.
   protected void finish(Throwable t) {
+    super.finish(t);
     try {
       raf.close();
       channel.close();
     } catch (Exception e) { }
-    super.finish(t);
   }
 }
 
 class LocalSink extends Sink<LocalResource> {
+  private static final long WINDOW = 1 << 20;
   final File file = destination().file();
   private RandomAccessFile raf;
   private FileChannel channel;
-  private long offset = 0, remaining = 0;
-  private long chunkSize = 4096;
-
-  // State of the current transfer.
-  public LocalSink(LocalResource root) { super(root); }
+  private final boolean resume;
+  private long position;
+  // The bell the file is opened on, once started, and one which rings once
+  // it has been closed.
+  private Bell started;
+  private final Bell closed = new Bell();
+  private boolean closing = false;
+
+  // Write from offset, or truncate and write from the start if offset is
+  // negative.
+  public LocalSink(LocalResource root, long offset) {
+    super(root, Math.max(offset, 0));
+    resume = offset >= 0;
+    position = resume ? offset : 0;
+  }
 
-  public Bell start() {
-    return new ThreadBell(destination().session.executor) {
+  public synchronized Bell start() {
+    if (closing)
+      return new Bell(new IllegalStateException("Sink has finished."));
+    return started = new ThreadBell(destination().session.executor) {
       public Object run() throws Exception {
         if (file.exists()) {
           if (!file.canWrite())
@@ -229,27 +260,69 @@ class LocalSink extends Sink<LocalResource> {
         // Set up state.
         raf = new RandomAccessFile(file, "rw");
         channel = raf.getChannel();
-        remaining = file.length();
+        if (!resume)
+          channel.truncate(0);
 
         return null;
       }
     }.start();
   }
 
+  // Writes are queued on the session's single thread, so they complete in
+  // order and the tap may run ahead.
+  public long window() { return WINDOW; }
+
+  // Coalesce small slices into block-aligned writes.
+  public int chunkSize() { return 64*1024; }
+  public int chunkAlignment() { return 4096; }
+
+  // Every slice is written at its offset.
+  public boolean random() { return true; }
+
   public Bell drain(final Slice slice) {
+    final long offset = (slice.offset() >= 0) ? slice.offset() : position;
+    position = offset + slice.length();
     return new ThreadBell(destination().session.executor) {
       public Object run() throws Exception {
-        channel.write(slice.asByteBuf().nioBuffer());
-        slice.asByteBuf().release();
+        ByteBuf buf = slice.asByteBuf();
+        try {
+          // Write composite slices without merging them first.
+          long pos = offset;
+          for (ByteBuffer b : buf.nioBuffers())
+            while (b.hasRemaining())
+              pos += channel.write(b, pos);
+        } finally {
+          buf.release();
+        }
         return null;
       }
     }.start();
   }
 
-  protected void finish(Throwable t) {
-    try {
-      raf.close();
-      channel.close();
-    } catch (Exception e) { }
+  // Close the file on the session's thread once it has been opened, so it
+  // happens after any writes queued before it. If the sink hasn't started,
+  // it never will.
+  protected synchronized void finish(Throwable t) {
+    if (closing)
+      return;
+    closing = true;
+    if (started == null) {
+      closed.ring();
+      return;
+    } started.new Promise() {
+      public void always() { close(); }
+    };
   }
+
+  private void close() {
+    new ThreadBell(destination().session.executor) {
+      public Object run() throws Exception {
+        if (raf != null)
+          raf.close();
+        return null;
+      }
+    }.start().promise(closed);
+  }
+
+  public Bell<?> onClose() { return closed; }
 }
@@ -0,0 +1,168 @@
+package stork.feather.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Accounts for the progress of an operation, and periodically publishes it
+ * to a {@link TransferInfo}. Progress is added to striped {@link Counter}s,
+ * so it can be noted from many threads at a high rate without locking or
+ * allocating. Rates are only worked out on a sampler tick, every {@link
+ * #TICK} milliseconds, while the {@code Meter} is running.
+ * <p/>
+ * On each tick, the {@code TransferInfo} is given the amount done and total,
+ * the average rate since the {@code Meter} was started, and an
+ * exponentially weighted moving average of the rate over recent ticks,
+ * which serves as the instantaneous rate. Once there is a total, it is also
+ * given an estimate of the time remaining at the instantaneous rate, or the
+ * average rate if nothing has been done lately. While the total is still
+ * being counted, the estimate is only a lower bound.
+ */
+public class Meter {
+  /** How often running meters are sampled, in milliseconds. */
+  public static final long TICK = 500;
+  /** The time constant of the moving average, in milliseconds. */
+  private static final double TAU = 2000;
+
+  private static final Set<Meter> running =
+    Collections.newSetFromMap(new ConcurrentHashMap<Meter,Boolean>());
+  private static Timer sampler;
+
+  private final Counter done = new Counter(), total = new Counter();
+  private final TransferInfo info;
+  private volatile boolean counting;
+
+  // Sampler state, guarded by this.
+  private Time time;
+  private long lastDone, lastTick;
+  private double ewma;
+
+  /**
+   * Create a {@code Meter} which publishes to {@code info}.
+   *
+   * @param info the {@code TransferInfo} to publish to.
+   */
+  public Meter(TransferInfo info) {
+    this.info = info;
+  }
+
+  /** Note that {@code done} more units have been done. */
+  public void add(long done) {
+    this.done.add(done);
+  }
+
+  /**
+   * Note that {@code done} more units have been done, and that there are
+   * {@code total} more units in total.
+   */
+  public void add(long done, long total) {
+    this.done.add(done);
+    this.total.add(total);
+  }
+
+  /**
+   * Set whether the total is still being counted. This is published along
+   * with the figures, so readers know the total and estimate may grow.
+   */
+  public Meter counting(boolean counting) {
+    this.counting = counting;
+    return this;
+  }
+
+  /** Get the number of units done so far. */
+  public long done() { return done.sum(); }
+
+  /** Get the total number of units known so far. */
+  public long total() { return total.sum(); }
+
+  /** Start timing and sampling. Has no effect if already started. */
+  public synchronized Meter start() {
+    if (time == null) {
+      time = new Time();
+      lastTick = Time.now();
+      running.add(this);
+      startSampler();
+    }
+    return this;
+  }
+
+  /**
+   * Stop timing and sampling, and publish the final figures. The rates
+   * published are then the average rate and zero.
+   */
+  public synchronized Meter stop() {
+    running.remove(this);
+    if (time != null)
+      time.stop();
+    tick();
+    ewma = 0;
+    publish();
+    return this;
+  }
+
+  /**
+   * Stop timing and sampling for a while, and publish the figures. Time spent
+   * paused doesn't count towards the average rate. Has no effect if not
+   * running.
+   */
+  public synchronized Meter pause() {
+    if (time == null || !time.running())
+      return this;
+    running.remove(this);
+    time.stop();
+    tick();
+    ewma = 0;
+    publish();
+    return this;
+  }
+
+  /** Resume timing and sampling after a pause. */
+  public synchronized Meter resume() {
+    if (time == null || time.running())
+      return this;
+    time.resume();
+    lastDone = done();
+    lastTick = Time.now();
+    running.add(this);
+    return this;
+  }
+
+  /** Sample the counters and publish them. */
+  synchronized void tick() {
+    long now = Time.now(), d = done();
+    long dt = now-lastTick;
+    if (time != null && dt > 0) {
+      double rate = (d-lastDone)*1000.0/dt;
+      ewma += (1-Math.exp(-dt/TAU)) * (rate-ewma);
+      lastDone = d;
+      lastTick = now;
+    }
+    publish();
+  }
+
+  private void publish() {
+    long d = done(), t = total();
+    long elapsed = (time == null) ? 0 : time.elapsed();
+    double avg = (elapsed > 0) ? d*1000.0/elapsed : 0;
+    double rate = (ewma > 0) ? ewma : avg;
+    long eta = (t <= 0) ? -1 : (d >= t) ? 0 :
+               (rate > 0) ? (long) ((t-d)*1000/rate) : -1;
+    info.set(d, t, avg, ewma, eta, counting);
+  }
+
+  // Start the sampler thread if it isn't running.
+  private static synchronized void startSampler() {
+    if (sampler != null)
+      return;
+    sampler = new Timer("Meter", true);
+    sampler.scheduleAtFixedRate(new TimerTask() {
+      public void run() {
+        for (Meter m : running) try {
+          m.tick();
+        } catch (Exception e) {
+          // Don't let one meter stop the others.
+        }
+      }
+    }, TICK, TICK);
+  }
+}
@@ -106,6 +106,22 @@ public final class Pipes {
     };
   }
 
+  /**
+   * Create a {@code Pipe} which buffers up to {@code capacity} bytes ahead of
+   * the {@code Pipe} it drains to. Placing this between a {@code Tap} and a
+   * {@code Sink} lets the {@code Tap} keep reading while the {@code Sink} is
+   * busy, until the buffer is full. {@code Slice}s leave the buffer in the
+   * order they entered it.
+   *
+   * @param capacity the number of bytes to buffer.
+   * @return A buffering {@code Pipe}.
+   */
+  public static Pipe buffer(final long capacity) {
+    return new Pipe() {
+      public long window() { return capacity; }
+    };
+  }
+
   /**
    * A {@code Sink} which receives and aggregates {@code Slice}s.
    */
@@ -136,6 +152,42 @@ public final class Pipes {
     return new AggregatorSink(Resources.anonymous());
   }
 
+  /**
+   * Compute a digest of the data emitted by {@code tap}. This will attach to
+   * and start {@code tap}.
+   *
+   * @param tap the {@code Tap} to read data from.
+   * @param algorithm the name of a {@code MessageDigest} algorithm.
+   * @return A {@code Bell} which rings with the digest.
+   */
+  public static Bell<byte[]> digest(Tap tap, String algorithm) {
+    final java.security.MessageDigest md;
+    try {
+      md = java.security.MessageDigest.getInstance(algorithm);
+    } catch (Exception e) {
+      return new Bell<byte[]>(e);
+    }
+
+    final Bell<byte[]> bell = new Bell<byte[]>();
+    tap.attach(new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        ByteBuf buf = slice.asByteBuf();
+        md.update(buf.nioBuffer());
+        buf.release();
+        return null;
+      } public void finish(Throwable t) {
+        if (t == null)
+          bell.ring(md.digest());
+        else
+          bell.ring(t);
+      }
+    });
+    tap.start().new Promise() {
+      public void fail(Throwable t) { bell.ring(t); }
+    };
+    return bell;
+  }
+
   /**
    * View {@code pipe} as an {@code InputStream}. This will attach to {@code
    * pipe}, but will not start it.
@@ -149,11 +201,17 @@ public final class Pipes {
  * View a Tap as an InputStream.
  */
 class PipeInputStream extends InputStream {
+  /** The most bytes to buffer ahead of the reader. */
+  private static final long CAPACITY = 1 << 20;
   /** Queue of buffers received. */
   private LinkedBlockingDeque<ByteBuffer> buffers =
     new LinkedBlockingDeque<ByteBuffer>();
+  /** The number of bytes in the queue. */
+  private long buffered = 0;
   /** Ring on read. */
   private Bell readBell = new Bell();
+  /** Ring once the queue has room, if the tap is waiting for it. */
+  private Bell roomBell;
   /** True when tap has finished. */
   private boolean done;
   /** Non-null if tap finished with error. */
@@ -187,11 +245,32 @@ class PipeInputStream extends InputStream {
    */
   private synchronized Bell handleDrain(Slice slice) {
     ByteBuffer buf = slice.asByteBuffer();
-    if (buf.remaining() > 0)
-      buffers.add(slice.asByteBuffer());
+    if (buf.remaining() > 0) {
+      buffers.add(buf);
+      buffered += buf.remaining();
+    } if (buffered > CAPACITY) {
+      if (roomBell == null)
+        roomBell = new Bell();
+      return readBell.and(roomBell);
+    }
     return readBell.detach();
   }
 
+  // Note that bytes have been read from the queue, letting the tap continue
+  // if there's room.
+  private void consumed(long size) {
+    Bell room = null;
+    synchronized (this) {
+      buffered -= size;
+      if (buffered <= CAPACITY) {
+        room = roomBell;
+        roomBell = null;
+      }
+    } if (room != null) {
+      room.ring();
+    }
+  }
+
   public int read() throws IOException {
     byte[] b = new byte[1];
     if (read(b, 0, 1) <= 0)
@@ -221,6 +300,7 @@ class PipeInputStream extends InputStream {
       int size = Math.min(len-total, buf.remaining());
       buf.get(b, off+total, size);
       total += size;
+      consumed(size);
       if (buf.hasRemaining())
         buffers.addFirst(buf);
     } catch (InterruptedException e) {
@@ -0,0 +1,147 @@
+package stork.feather.util;
+
+import java.util.*;
+
+/**
+ * A set of byte ranges, kept as a minimal list of disjoint, non-adjacent
+ * intervals. This is used to keep track of which parts of a resource have
+ * been written when {@code Slice}s may arrive in any order. Each range
+ * includes its start and excludes its end.
+ * <p/>
+ * The string form of a {@code Ranges} is a comma-separated list of {@code
+ * start-end} pairs, and can be parsed back with {@link #parse(String)}, so it
+ * may be saved and used to resume a transfer later.
+ */
+public class Ranges {
+  // Map from range start to range end.
+  private final TreeMap<Long,Long> ranges = new TreeMap<Long,Long>();
+
+  /** Create an empty {@code Ranges}. */
+  public Ranges() { }
+
+  /**
+   * Parse a {@code Ranges} from its string form.
+   *
+   * @param string a string produced by {@link #toString()}.
+   * @return The parsed {@code Ranges}.
+   * @throws IllegalArgumentException if {@code string} is malformed.
+   */
+  public static Ranges parse(String string) {
+    Ranges r = new Ranges();
+    if (string == null || string.trim().isEmpty())
+      return r;
+    try {
+      for (String s : string.split(",")) {
+        String[] p = s.trim().split("-");
+        r.add(Long.parseLong(p[0]), Long.parseLong(p[1]));
+      }
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Malformed ranges: "+string);
+    }
+    return r;
+  }
+
+  /**
+   * Add the range from {@code start} to {@code end}, merging it with any
+   * ranges it overlaps or touches. Empty ranges are ignored.
+   *
+   * @param start the first byte in the range.
+   * @param end the byte after the last byte in the range.
+   * @return This {@code Ranges}.
+   */
+  public synchronized Ranges add(long start, long end) {
+    if (end <= start)
+      return this;
+    Map.Entry<Long,Long> e = ranges.floorEntry(start);
+    if (e != null && e.getValue() >= start) {
+      start = e.getKey();
+      end = Math.max(end, e.getValue());
+    }
+    e = ranges.floorEntry(end);
+    if (e != null && e.getValue() > end)
+      end = e.getValue();
+    ranges.subMap(start, true, end, true).clear();
+    ranges.put(start, end);
+    return this;
+  }
+
+  /**
+   * Check if every byte from {@code start} to {@code end} is in the set.
+   *
+   * @param start the first byte in the range.
+   * @param end the byte after the last byte in the range.
+   * @return {@code true} if the range is covered.
+   */
+  public synchronized boolean contains(long start, long end) {
+    if (end <= start)
+      return true;
+    Map.Entry<Long,Long> e = ranges.floorEntry(start);
+    return e != null && e.getValue() >= end;
+  }
+
+  /**
+   * Get the number of bytes covered by the set.
+   *
+   * @return The total length of the ranges.
+   */
+  public synchronized long size() {
+    long n = 0;
+    for (Map.Entry<Long,Long> e : ranges.entrySet())
+      n += e.getValue()-e.getKey();
+    return n;
+  }
+
+  /**
+   * Get the end of the range starting at {@code start}, or {@code start}
+   * itself if no range covers it. For a resource written from the beginning,
+   * {@code end(0)} is the length of the intact prefix.
+   *
+   * @param start the offset to look from.
+   * @return The first offset after {@code start} which is not covered.
+   */
+  public synchronized long end(long start) {
+    Map.Entry<Long,Long> e = ranges.floorEntry(start);
+    return (e != null && e.getValue() > start) ? e.getValue() : start;
+  }
+
+  /**
+   * Get the parts of the first {@code size} bytes which are not covered.
+   *
+   * @param size the length of the whole resource.
+   * @return The missing ranges.
+   */
+  public synchronized Ranges missing(long size) {
+    Ranges r = new Ranges();
+    long last = 0;
+    for (Map.Entry<Long,Long> e : ranges.entrySet()) {
+      if (e.getKey() >= size)
+        break;
+      r.add(last, e.getKey());
+      last = e.getValue();
+    }
+    return r.add(last, size);
+  }
+
+  /** Check if the set is empty. */
+  public synchronized boolean isEmpty() {
+    return ranges.isEmpty();
+  }
+
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<Long,Long> e : ranges.entrySet()) {
+      if (sb.length() > 0)
+        sb.append(',');
+      sb.append(e.getKey()).append('-').append(e.getValue());
+    }
+    return sb.toString();
+  }
+
+  public boolean equals(Object o) {
+    return o instanceof Ranges && toString().equals(o.toString());
+  }
+
+  public int hashCode() {
+    return toString().hashCode();
+  }
+}
@@ -0,0 +1,126 @@
+package stork.feather.util;
+
+import java.util.*;
+
+import io.netty.buffer.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code Pipe} which regroups the data passing through it into {@code
+ * Slice}s of a fixed size, regardless of how the data was sliced upstream.
+ * Small {@code Slice}s are coalesced into composite buffers, and large ones
+ * are split into views of the original buffer, so no data is copied.
+ * <p/>
+ * Chunk boundaries fall on multiples of an alignment, counted from the start
+ * of the resource, so a chunk may be shorter than the chunk size if the data
+ * does not start on a boundary. If upstream {@code Slice}s carry offsets, the
+ * emitted {@code Slice}s do as well, and a {@code Slice} which does not follow
+ * on from the buffered data causes the buffered data to be drained first.
+ * Whatever is left over when the pipeline finishes is drained as a final,
+ * short chunk.
+ *
+ * @see Sink#chunkSize()
+ */
+public class Rechunker extends Pipe {
+  private final int size, alignment;
+  private final ArrayDeque<ByteBuf> buffers = new ArrayDeque<ByteBuf>();
+  private int buffered = 0;
+  private long position = 0;
+  private boolean positioned = false;
+
+  /**
+   * Create a {@code Rechunker} which emits {@code Slice}s of {@code size}
+   * bytes, ending on multiples of {@code alignment} bytes.
+   *
+   * @param size the preferred chunk size in bytes.
+   * @param alignment the alignment of chunk boundaries in bytes.
+   * @throws IllegalArgumentException if {@code size} is not positive.
+   */
+  public Rechunker(int size, int alignment) {
+    if (size <= 0)
+      throw new IllegalArgumentException("Chunk size must be positive.");
+    this.alignment = (alignment > 0) ? alignment : 1;
+    this.size = Math.max(size, this.alignment);
+  }
+
+  /**
+   * Create a {@code Rechunker} for the chunk size and alignment preferred by
+   * {@code sink}.
+   *
+   * @param sink the {@code Sink} whose preferences should be used.
+   * @return A {@code Rechunker}, or {@code null} if {@code sink} has no
+   * preferred chunk size.
+   */
+  public static Rechunker forSink(Sink<?> sink) {
+    if (sink.chunkSize() <= 0)
+      return null;
+    return new Rechunker(sink.chunkSize(), sink.chunkAlignment());
+  }
+
+  protected synchronized Bell drain(Slice slice) throws Exception {
+    Bell bell = null;
+    ByteBuf buf = slice.asByteBuf();
+    long offset = slice.offset();
+
+    // Drain what we have if this doesn't follow on from it.
+    if (offset >= 0 && buffered > 0 && offset != position+buffered)
+      bell = flush(buffered);
+    if (buffered == 0 && offset >= 0) {
+      position = offset;
+      positioned = true;
+    }
+
+    if (buf.isReadable()) {
+      buffers.add(buf);
+      buffered += buf.readableBytes();
+    } else {
+      buf.release();
+    }
+
+    for (int n = next(); buffered >= n; n = next())
+      bell = flush(n);
+    return (bell != null) ? bell : Bell.rungBell();
+  }
+
+  // The length of the chunk starting at the current position.
+  private int next() {
+    long end = (position+size) / alignment * alignment;
+    return (int) ((end > position) ? end-position : size);
+  }
+
+  // Drain the next n buffered bytes as a single slice.
+  private Bell flush(int n) throws Exception {
+    List<ByteBuf> parts = new ArrayList<ByteBuf>();
+    for (int left = n; left > 0;) {
+      ByteBuf head = buffers.peek();
+      if (head.readableBytes() <= left) {
+        parts.add(buffers.poll());
+        left -= head.readableBytes();
+      } else {
+        parts.add(head.readSlice(left).retain());
+        left = 0;
+      }
+    }
+
+    ByteBuf chunk = (parts.size() == 1) ? parts.get(0) :
+      Unpooled.wrappedBuffer(parts.size(), parts.toArray(new ByteBuf[0]));
+    Slice slice = new Slice(chunk, positioned ? position : -1);
+    buffered -= n;
+    position += n;
+    return super.drain(slice);
+  }
+
+  protected synchronized void finish(Throwable t) {
+    if (t == null && buffered > 0) try {
+      flush(buffered);
+    } catch (Exception e) {
+      t = e;
+    }
+    for (ByteBuf b : buffers)
+      b.release();
+    buffers.clear();
+    buffered = 0;
+    super.finish(t);
+  }
+}
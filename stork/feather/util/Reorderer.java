@@ -0,0 +1,122 @@
+package stork.feather.util;
+
+import java.util.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code Pipe} which restores the order of {@code Slice}s for a {@code
+ * Sink} which must receive them sequentially. {@code Slice}s which arrive
+ * ahead of their offset are held until the data before them has been
+ * drained. {@code Slice}s without an offset are taken to follow on from the
+ * previous {@code Slice}, and are passed straight through once nothing is
+ * held.
+ * <p/>
+ * Up to a limit, early {@code Slice}s are held without holding up the
+ * upstream pipe, since what they're waiting for is still to come. Past it,
+ * the upstream pipe is held up until the gap has been filled. The window
+ * given to the upstream pipe is widened by the limit, so the missing data
+ * can still get through.
+ * <p/>
+ * If the attached {@code Sink} turns out to be random-access, everything is
+ * passed straight through. If the pipeline finishes with data still held,
+ * the held {@code Slice}s are drained in order of offset, gaps and all.
+ *
+ * @see Sink#random()
+ */
+public class Reorderer extends Pipe {
+  /** The default most bytes to hold without holding up the upstream pipe. */
+  public static final long LIMIT = 16 << 20;
+
+  private final TreeMap<Long,Slice> held = new TreeMap<Long,Slice>();
+  private final long limit;
+  private long position, size = 0;
+  // Rings once what's held is back under the limit.
+  private Bell room;
+
+  /** Create a {@code Reorderer} for data starting at offset zero. */
+  public Reorderer() { this(0); }
+
+  /**
+   * Create a {@code Reorderer} for data starting at {@code offset}.
+   *
+   * @param offset the offset of the first byte the sink expects.
+   */
+  public Reorderer(long offset) {
+    this(offset, LIMIT);
+  }
+
+  /**
+   * Create a {@code Reorderer} for data starting at {@code offset} which
+   * holds up to {@code limit} bytes without holding up the upstream pipe.
+   *
+   * @param offset the offset of the first byte the sink expects.
+   * @param limit the most bytes to hold before holding up the upstream pipe.
+   */
+  public Reorderer(long offset, long limit) {
+    position = offset;
+    this.limit = Math.max(limit, 0);
+  }
+
+  public long window() {
+    Sink sink = sink();
+    if (sink != null && sink.random())
+      return super.window();
+    return super.window()+limit;
+  }
+
+  protected synchronized Bell drain(Slice slice) throws Exception {
+    Sink sink = sink();
+    if (held.isEmpty() && sink != null && sink.random())
+      return super.drain(slice);
+
+    long offset = slice.offset();
+    if (offset > position) {
+      held.put(offset, slice);
+      size += slice.length();
+      if (size <= limit)
+        return Bell.rungBell();
+      if (room == null)
+        room = new Bell();
+      return room;
+    }
+
+    Bell bell = pass(slice);
+    for (Map.Entry<Long,Slice> e = held.firstEntry();
+         e != null && e.getKey() <= position; e = held.firstEntry()) {
+      held.remove(e.getKey());
+      size -= e.getValue().length();
+      bell = pass(e.getValue());
+    } if (room != null && size <= limit) {
+      room.ring();
+      room = null;
+    }
+    return bell;
+  }
+
+  // Drain a slice which is in order.
+  private Bell pass(Slice slice) throws Exception {
+    long offset = slice.offset();
+    long end = ((offset >= 0) ? offset : position) + slice.length();
+    position = Math.max(position, end);
+    return super.drain(slice);
+  }
+
+  protected synchronized void finish(Throwable t) {
+    if (t == null) try {
+      for (Slice s : held.values())
+        pass(s);
+    } catch (Exception e) {
+      t = e;
+    } else {
+      for (Slice s : held.values())
+        s.asByteBuf().release();
+    }
+    held.clear();
+    size = 0;
+    if (room != null)
+      room.ring();
+    room = null;
+    super.finish(t);
+  }
+}
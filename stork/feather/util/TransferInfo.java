@@ -1,7 +1,9 @@
 package stork.feather.util;
 
 /**
- * This is used to track the progress of a transfer in real time.
+ * This is used to track the progress of a transfer in real time. It is
+ * updated periodically by a {@link Meter}, and {@link #snapshot()} can be used
+ * to get a consistent copy.
  */
 public class TransferInfo {
   /** Units complete. */
@@ -12,12 +14,31 @@ public class TransferInfo {
   public double avg;
   /** Instantaneous throughput. */
   public double inst;
+  /** Estimated milliseconds remaining, or -1 if unknown. */
+  public long eta = -1;
+  /** Whether the total is still being counted, and may grow. */
+  public boolean counting;
 
-  /** Update based on the given information. */
-  public void update(Time time, Progress p, Throughput tp) {
-    done = p.done();
-    total = p.total();
-    avg = p.rate(time).value();
-    inst = tp.value();
+  /** Set all the figures at once. */
+  public synchronized void set(long done, long total, double avg, double inst) {
+    set(done, total, avg, inst, -1, false);
+  }
+
+  /** Set all the figures at once, including the estimate. */
+  public synchronized void set(long done, long total, double avg, double inst,
+                               long eta, boolean counting) {
+    this.done = done;
+    this.total = total;
+    this.avg = avg;
+    this.inst = inst;
+    this.eta = eta;
+    this.counting = counting;
+  }
+
+  /** Get a copy of the figures as of the last update. */
+  public synchronized TransferInfo snapshot() {
+    TransferInfo copy = new TransferInfo();
+    copy.set(done, total, avg, inst, eta, counting);
+    return copy;
   }
 }
@@ -109,6 +109,9 @@ public class DbxResource extends Resource<DbxSession, DbxResource> {
       };
     }
 
+    // Each write blocks a thread, so write in large chunks.
+    public int chunkSize() { return 1024*1024; }
+
     protected Bell drain(final Slice slice) {
       return new ThreadBell<Void>() {
         public Void run() throws Exception {
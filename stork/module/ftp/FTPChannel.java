@@ -2,6 +2,7 @@ package stork.module.ftp;
 
 import java.net.*;
 import java.util.*;
+import java.util.logging.Level;
 import java.nio.charset.*;
 
 import io.netty.bootstrap.*;
@@ -22,6 +23,7 @@ import org.gridforum.jgss.*;
 import stork.feather.*;
 import stork.feather.errors.*;
 import stork.feather.URI;
+import stork.feather.net.DNSResolver;
 import stork.util.*;
 
 /**
@@ -35,9 +37,14 @@ import stork.util.*;
  * time.
  */
 public class FTPChannel {
+  private static final Log.Category log = Log.category("ftp");
+
   // The maximum amount of time (in ms) to wait for a connection.
   static final int timeout = 2000;
 
+  // The maximum amount of time (in s) to wait for an active mode connection.
+  static final double acceptTimeout = 30;
+
   private final Bell<Void> onClose = new Bell<Void>();
 
   // FIXME: We should use something system-wide.
@@ -86,9 +93,19 @@ public class FTPChannel {
 
     Bell<Character> mode = new Bell<Character>('S');
     Bell<Character> type = new Bell<Character>('A');
+    char typeSet;  // The last type the server acknowledged.
 
     // Whether or not we prefer to put the server in passive mode.
     boolean preferPassive = true;
+
+    // Data connection reuse. The idle connection is an extended block mode
+    // connection left open by the last data channel, which was sending if
+    // idleSend is set. The prefetched bell is a PASV reply requested ahead of
+    // the next data channel.
+    boolean cacheData = false;
+    SocketChannel idle;
+    boolean idleSend;
+    Bell<FTPHostPort> prefetched;
   }
 
   // Deferred commands
@@ -122,10 +139,14 @@ public class FTPChannel {
     Bootstrap b = new Bootstrap();
     b.group(group).channel(NioSocketChannel.class).handler(new Initializer());
 
-    if (host != null)
-      data.future = b.connect(host, port);
-    else
-      data.future = b.connect(addr, port);
+    // This is often called from bell handlers, so wait on the resolver
+    // directly rather than on one of its bells.
+    if (addr == null) try {
+      addr = DNSResolver.resolveSync(host);
+    } catch (RuntimeException e) {
+      throw new RuntimeException("Host could not be resolved.", e);
+    }
+    data.future = b.connect(addr, port);
   }
 
   // This special constructor is used internally to create channel views.
@@ -374,14 +395,14 @@ public class FTPChannel {
     }
 
     public void messageReceived(ChannelHandlerContext ctx, Reply reply) {
-      Log.finer("Got: ", reply);
+      log.finer("Got: ", reply);
       switch (reply.code) {
         case 220:
           if (data.welcome == null)
             data.welcome = reply;
           break;
         case 421:
-          Log.fine("Channel closing due to 421.");
+          log.fine("Channel closing due to 421.");
           FTPChannel.this.close();
           break;
         default:
@@ -390,14 +411,14 @@ public class FTPChannel {
     }
 
     public void channelInactive(ChannelHandlerContext ctx) {
-      Log.fine("Channel closed by peer.");
+      log.fine("Channel closed by peer.");
       FTPChannel.this.close();
     }
 
     // TODO: How should we handle exceptions? Which exceptions can this thing
     // receive anyway?
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable t) {
-      Log.fine("Channel closed by exception.");
+      log.fine("Channel closed by exception.");
       t.printStackTrace();
       FTPChannel.this.close();
     }
@@ -482,7 +503,7 @@ public class FTPChannel {
       ByteBuf RN =
         Unpooled.wrappedBuffer("\r\n".getBytes(data.encoding));
 
-      Log.finer("Sending command: ", msg);
+      log.finer("Sending command: ", msg);
       ByteBuf raw =
         Unpooled.wrappedBuffer(msg.toString().getBytes(data.encoding));
 
@@ -500,16 +521,13 @@ public class FTPChannel {
 
   // Used internally to extract the channel from the future.
   private Channel channel() {
-    try {
-      return data.future.syncUninterruptibly().channel();
-    } catch (java.nio.channels.UnresolvedAddressException e) {
-      throw new RuntimeException("Host could not be resolved.");
-    }
+    return data.future.syncUninterruptibly().channel();
   }
 
   // Close the channel and run the onClose handler.
   public synchronized void close() {
     if (!isClosed()) {
+      cacheDataChannels(false);
       channel().close();
       onClose.ring();
     }
@@ -574,12 +592,12 @@ public class FTPChannel {
   public Bell<Reply> authenticate(Bell<GSSCredential> cred) {
     return cred.new AsBell<Reply>() {
       public Bell<Reply> convert(GSSCredential cred) throws Exception {
-        Log.fine("Authenticating with: ", cred);
+        log.fine("Authenticating with: ", cred);
         return authenticate(cred);
       } public void done(Reply r) {
-        Log.fine("Authentication successful: ", r);
+        log.fine("Authentication successful: ", r);
       } public void fail(Throwable t) {
-        Log.fine("Authentication failed: ", t);
+        log.fine("Authentication failed: ", t);
       }
     };
   }
@@ -617,7 +635,7 @@ public class FTPChannel {
     try {
       ByteBuf ot = Base64.encode(sec.handshake(it), false);
 
-      Log.finer("Sending ADAT: ", ot);
+      log.finer("Sending ADAT: ", ot);
       new Command("ADAT", ot.toString(data.encoding)) {
         public void done(Reply r) throws Exception {
           if (r.isIncomplete()) {
@@ -633,7 +651,7 @@ public class FTPChannel {
         }
       };
     } catch (Exception e) {
-      Log.fine("ADAT failed: ", e);
+      log.fine("ADAT failed: ", e);
       bell.ring(e);
     }
 
@@ -774,7 +792,7 @@ public class FTPChannel {
       }
     }
 
-    Log.finer("Feeding handler: ", handler);
+    log.finer("Feeding handler: ", handler);
 
     // Now we can call the handlers.
     if (reply.isPreliminary())
@@ -786,21 +804,41 @@ public class FTPChannel {
   }
 
   /**
-   * Change the channel data type.
+   * Change the channel data type. If the type has already been set to {@code
+   * t}, no command is sent.
    * @return The data type after this command.
    */
-  public synchronized Bell<Character> type(char t) {
-    return data.type =
-      new Command("TYPE", t).expectComplete().as(t).or(data.type);
+  public Bell<Character> type(final char t) {
+    synchronized (data) {
+      if (data.type.isDone() && data.typeSet == t)
+        return data.type;
+      Bell<Character> bell =
+        new Command("TYPE", t).expectComplete().as(t);
+      bell.new Promise() {
+        public void done() { data.typeSet = t; }
+      };
+      return data.type = orElse(bell, data.type);
+    }
   }
 
   /**
    * Change the channel transfer mode.
    * @return The transfer mode after this command.
    */
-  public synchronized Bell<Character> mode(char m) {
-    return data.mode =
-      new Command("MODE", m).expectComplete().as(m).or(data.mode);
+  public Bell<Character> mode(char m) {
+    synchronized (data) {
+      return data.mode =
+        orElse(new Command("MODE", m).expectComplete().as(m), data.mode);
+    }
+  }
+
+  // Ring with the value of bell, or with the value of previous if bell fails.
+  // Unlike Bell.or(), this will not ring before bell has rung.
+  private static <T> Bell<T> orElse(Bell<T> bell, final Bell<T> previous) {
+    return bell.new AsBell<T>() {
+      public Bell<T> convert(T t) { return Bell.wrap(t); }
+      public Bell<T> convert(Throwable t) { return previous; }
+    };
   }
 
   /** Negotiate a passive mode data channel. */
@@ -810,6 +848,94 @@ public class FTPChannel {
     };
   }
 
+  /** Request an active mode data connection to the given address. */
+  public synchronized Bell<Reply> port(FTPHostPort hp) {
+    return new Command("PORT", hp).expectComplete();
+  }
+
+  /**
+   * Request an active mode data connection to the given address, using EPRT
+   * (RFC 2428) for addresses PORT can't express.
+   */
+  public synchronized Bell<Reply> port(InetSocketAddress addr) {
+    if (addr.getAddress() instanceof Inet4Address)
+      return port(new FTPHostPort(addr));
+    String host = addr.getAddress().getHostAddress();
+    if (host.indexOf('%') >= 0)
+      host = host.substring(0, host.indexOf('%'));
+    return new Command("EPRT", "|2|"+host+"|"+addr.getPort()+"|")
+      .expectComplete();
+  }
+
+  /**
+   * Enable or disable data connection reuse. When enabled, an extended block
+   * mode data connection is kept open after a transfer and handed to the next
+   * data channel sending in the same direction, and in stream mode the PASV
+   * for the next data channel is pipelined behind the current transfer
+   * command.
+   */
+  public void cacheDataChannels(boolean cache) {
+    SocketChannel idle;
+    synchronized (data) {
+      data.cacheData = cache;
+      if (cache)
+        return;
+      idle = data.idle;
+      data.idle = null;
+      data.prefetched = null;
+    } if (idle != null) {
+      idle.close();
+    }
+  }
+
+  // Extended block mode (MODE E) descriptor bits. See GFD.20.
+  static final int EBLOCK_EOR     = 128;
+  static final int EBLOCK_EOD     = 64;
+  static final int EBLOCK_ERR     = 32;
+  static final int EBLOCK_RESTART = 16;
+  static final int EBLOCK_EOF     = 8;
+  static final int EBLOCK_CLOSE   = 4;
+
+  // The size of an extended block header: a descriptor, count, and offset.
+  static final int EBLOCK_HEADER = 17;
+
+  // Create an extended block header.
+  static ByteBuf blockHeader(int desc, long count, long offset) {
+    ByteBuf b = Unpooled.buffer(EBLOCK_HEADER);
+    b.writeByte(desc).writeLong(count).writeLong(offset);
+    return b;
+  }
+
+  // Emitted by the block decoder when the sender has signaled end of data.
+  // If close is set, the sender will close the connection afterwards.
+  static class EndOfData {
+    final boolean close;
+    EndOfData(boolean close) { this.close = close; }
+  }
+
+  // Decodes extended blocks into slices with offsets.
+  static class BlockDecoder extends ByteToMessageDecoder {
+    public void decode(ChannelHandlerContext ctx, ByteBuf in, List out) {
+      while (in.readableBytes() >= EBLOCK_HEADER) {
+        int i = in.readerIndex();
+        int desc = in.getUnsignedByte(i);
+        long count = in.getLong(i+1);
+        long offset = in.getLong(i+9);
+
+        if (count < 0 || count > Integer.MAX_VALUE-EBLOCK_HEADER)
+          throw new RuntimeException("Bad block size: "+count);
+        if (in.readableBytes() < EBLOCK_HEADER+count)
+          return;
+
+        in.skipBytes(EBLOCK_HEADER);
+        if (count > 0)
+          out.add(new Slice(in.readSlice((int) count).retain(), offset));
+        if ((desc & EBLOCK_EOD) != 0)
+          out.add(new EndOfData((desc & EBLOCK_CLOSE) != 0));
+      }
+    }
+  }
+
   /**
    * Instantiating this class requests a lock on the channel and returns a
    * special view of the channel once the lock request is satisfied. The
@@ -821,6 +947,8 @@ public class FTPChannel {
    * channel has been unlocked.
    */
   public class Lock extends FTPChannel {
+    private final Bell<Character> lockedMode = new Bell<Character>();
+
     public Lock() {
       super(FTPChannel.this);
       FTPChannel.this.new Command(null) {
@@ -844,13 +972,28 @@ public class FTPChannel {
       if (data.owner == this)
         FTPChannel.this.assumeControl();
     }
+
+    // The transfer mode must be determined at the moment we take control of
+    // the channel, since a mode change could be in flight.
+    protected synchronized void assumeControl() {
+      synchronized (data) {
+        super.assumeControl();
+        data.mode.promise(lockedMode);
+      }
+    }
+
+    /** Get the transfer mode in effect once the lock is acquired. */
+    public Bell<Character> mode() {
+      return lockedMode;
+    }
   }
 
   // This is called whenever it's the the channel's turn to become the channel
   // owner.
   protected synchronized void assumeControl() {
     synchronized (data) {
-      Log.finer(data.owner.hashCode()+" -> "+hashCode());
+      if (log.isLoggable(Level.FINER))
+        log.finer(data.owner.hashCode(), " -> ", hashCode());
       data.owner = this;
       if (!deferred.isEmpty()) {
         Deque<Deferred> realDeferred = deferred;
@@ -885,11 +1028,13 @@ public class FTPChannel {
       // If we're not the owner, defer the command. Otherwise, send it.
       if (data.owner != FTPChannel.this) {
         deferred.add(this);
-        Log.finer(FTPChannel.this.hashCode()+": Deferring "+this);
+        if (log.isLoggable(Level.FINER))
+          log.finer(FTPChannel.this.hashCode(), ": Deferring ", this);
       } else {
         addHandler(cmd);
         if (verb != null) channel().writeAndFlush(this);
-        Log.finer(FTPChannel.this.hashCode()+": Sending "+this);
+        if (log.isLoggable(Level.FINER))
+          log.finer(FTPChannel.this.hashCode(), ": Sending ", this);
       }
     }
 
@@ -987,92 +1132,261 @@ public class FTPChannel {
    * Asynchronous FTP data channel abstraction. Subclasses must override {@link
    * #receive(Slice)} to handle incoming data. This channel extends {@code
    * Lock}, but handles its own unlocking.
+   *
+   * In extended block mode, the sending side must open the data connection,
+   * so a data channel which sends puts the server in passive mode and one
+   * which receives puts the server in active mode. If data channel caching is
+   * enabled, the connection is kept open after the end of data and reused by
+   * the next data channel going in the same direction.
    */
   public class DataChannel extends Lock {
-    private Bell<SocketChannel> dc;
+    private final Bell<SocketChannel> dc = new Bell<SocketChannel>();
+    private final Bell<Object> reply = new Bell<Object>();
+    private final boolean send;
+    private volatile boolean extended = false;
+    private volatile boolean reusable = false;
+    private volatile boolean eod = false;
+    private long offset = 0;  // Offset of the next unpositioned block.
     private volatile boolean read = false;
     private ChannelHandlerContext context;
     private Bell writeBell;  // Ring when we can write again.
     private Bell lastSend = Bell.rungBell();
+    private volatile ChannelFuture lastWrite;
 
     // Ring this to close the channel.
     private final Bell<DataChannel> onClose = new Bell<DataChannel>() {
       public void always() {
-        dc.cancel().new Promise() {
-          public void done(SocketChannel ch) { ch.close(); }
+        final boolean keep = reusable && isSuccessful();
+        // If it's connected, release it right away, so the next data channel
+        // can reuse it.
+        if (dc.isSuccessful()) {
+          if (keep) release(dc.sync());
+          else dc.sync().close();
+        } else dc.cancel().new Promise() {
+          public void done(SocketChannel ch) {
+            if (keep) release(ch);
+            else ch.close();
+          }
         };
       }
     };
 
+    /** Create a data channel which will receive data. */
     public DataChannel(char type) {
-      this(type, FTPChannel.this.data.preferPassive);
+      this(type, false);
     }
 
-    public DataChannel(char type, boolean preferPassive) {
+    /**
+     * Create a data channel. {@code send} should be true if this channel will
+     * be used to send data to the server.
+     */
+    public DataChannel(char type, boolean send) {
       FTPChannel.this.super();
+      this.send = send;
       type(type);
-      dc = preferPassive ? tryPassiveThenActive() : tryActiveThenPassive();
-      dc.new AsBell<SocketChannel>() {
-        public Bell<SocketChannel> convert(SocketChannel c) {
-          return init().as(c);
+      mode().new AsBell<Bell<SocketChannel>>() {
+        public Bell<Bell<SocketChannel>> convert(Character m) {
+          extended = (m == 'E');
+          return connect();
+        }
+      }.new AsBell<Object>() {
+        public Bell<Object> convert(Bell<SocketChannel> ch) {
+          ch.promise(dc);
+          Bell bell = init();
+          prefetch();
+          return bell;
         } public void fail(Throwable t) {
+          dc.ring(t);
           close(t);
         } public void always() {
           DataChannel.super.unlock();
         }
-      };
+      }.promise(reply);
     }
 
-    private Bell<SocketChannel> tryPassiveThenActive() {
-      return tryPassive().new AsBell<SocketChannel>() {
-        public Bell<SocketChannel> convert(SocketChannel ch) {
+    // Get a data connection. The outer bell rings when the transfer command
+    // may be sent, and the inner bell rings when the connection is
+    // established, which in active mode happens after the transfer command.
+    private Bell<Bell<SocketChannel>> connect() {
+      SocketChannel ch;
+      boolean reuse;
+
+      synchronized (data) {
+        ch = data.idle;
+        reuse = ch != null && extended && data.idleSend == send;
+        data.idle = null;
+      }
+
+      if (reuse && ch.isActive()) {
+        log.finer("Reusing data connection: ", ch);
+        ch.pipeline().replace("slices", "slices", new SliceHandler());
+        ch.config().setAutoRead(true);
+        ch.read();
+        return Bell.wrap(Bell.wrap(ch));
+      } if (ch != null) {
+        ch.close();
+      }
+
+      if (extended && !send)
+        return tryActiveThenStream();
+      boolean passive = extended || data.preferPassive;
+      return passive ? tryPassiveThenActive() : tryActiveThenPassive();
+    }
+
+    // Pipe a PASV for the next data channel behind the transfer command. This
+    // saves a round trip per file when transferring many files.
+    private void prefetch() {
+      synchronized (data) {
+        if (data.cacheData && !extended && data.preferPassive)
+          data.prefetched = passive();
+      }
+    }
+
+    private Bell<Bell<SocketChannel>> tryPassiveThenActive() {
+      return tryPassive().new AsBell<Bell<SocketChannel>>() {
+        public Bell<Bell<SocketChannel>> convert(Bell<SocketChannel> ch) {
           return Bell.wrap(ch);
-        } public Bell<SocketChannel> convert(Throwable t) {
+        } public Bell<Bell<SocketChannel>> convert(Throwable t) {
           return tryActive();
         }
       };
     }
 
-    private Bell<SocketChannel> tryActiveThenPassive() {
-      return tryActive().new AsBell<SocketChannel>() {
-        public Bell<SocketChannel> convert(SocketChannel ch) {
+    // In extended block mode, the server has to connect to us to send. If it
+    // can't, go back to stream mode for this and later data channels, and
+    // connect to the server instead.
+    private Bell<Bell<SocketChannel>> tryActiveThenStream() {
+      return tryActive().new AsBell<Bell<SocketChannel>>() {
+        public Bell<Bell<SocketChannel>> convert(Bell<SocketChannel> ch) {
           return Bell.wrap(ch);
-        } public Bell<SocketChannel> convert(Throwable t) {
+        } public Bell<Bell<SocketChannel>> convert(final Throwable t) {
+          log.fine("Leaving extended block mode: ", t.getMessage());
+          return mode('S').new AsBell<Bell<SocketChannel>>() {
+            public Bell<Bell<SocketChannel>> convert(Character m) {
+              if (m == 'E')
+                return new Bell<Bell<SocketChannel>>(t);
+              extended = false;
+              return tryPassive();
+            }
+          };
+        }
+      };
+    }
+
+    private Bell<Bell<SocketChannel>> tryActiveThenPassive() {
+      return tryActive().new AsBell<Bell<SocketChannel>>() {
+        public Bell<Bell<SocketChannel>> convert(Bell<SocketChannel> ch) {
+          return Bell.wrap(ch);
+        } public Bell<Bell<SocketChannel>> convert(Throwable t) {
           return tryPassive();
         }
       };
     }
 
-    private Bell<SocketChannel> tryPassive() {
-      return passive().new AsBell<SocketChannel>() {
+    // Use a prefetched PASV reply if there is one, falling back to a fresh
+    // PASV if we can't connect to it.
+    private Bell<Bell<SocketChannel>> tryPassive() {
+      Bell<FTPHostPort> pasv;
+      synchronized (data) {
+        pasv = data.prefetched;
+        data.prefetched = null;
+      }
+
+      if (pasv == null)
+        return connectTo(passive());
+      return connectTo(pasv).new AsBell<Bell<SocketChannel>>() {
+        public Bell<Bell<SocketChannel>> convert(Bell<SocketChannel> ch) {
+          return Bell.wrap(ch);
+        } public Bell<Bell<SocketChannel>> convert(Throwable t) {
+          return connectTo(passive());
+        }
+      };
+    }
+
+    private Bell<Bell<SocketChannel>> connectTo(Bell<FTPHostPort> pasv) {
+      return pasv.new AsBell<SocketChannel>() {
         public Bell<SocketChannel> convert(FTPHostPort hp) {
           Bootstrap b = new Bootstrap();
           b.group(FTPChannel.group).channel(NioSocketChannel.class);
           b.handler(new ChannelInitializer<SocketChannel>() {
             public void initChannel(SocketChannel ch) throws Exception {
               ch.config().setConnectTimeoutMillis(timeout);
-              ch.pipeline().addLast(new SliceHandler());
+              initPipeline(ch);
             }
           });
           return futureToBell(b.connect(hp.getAddr()));
         }
+      }.new As<Bell<SocketChannel>>() {
+        public Bell<SocketChannel> convert(SocketChannel ch) {
+          return Bell.wrap(ch);
+        }
       };
     }
 
-    private Bell<SocketChannel> tryActive() {
-      return new Bell<SocketChannel>(new RuntimeException("TODO"));
+    // Listen on the control channel's local address and tell the server to
+    // connect to us. The server will only connect after the transfer command
+    // has been sent, so the inner bell rings later.
+    private Bell<Bell<SocketChannel>> tryActive() {
+      InetSocketAddress local = (InetSocketAddress) channel().localAddress();
+      InetSocketAddress remote = (InetSocketAddress) channel().remoteAddress();
+      if (isPrivate(local.getAddress()) && !isPrivate(remote.getAddress()))
+        return new Bell<Bell<SocketChannel>>(new RuntimeException(
+          "The server can't connect to a private address."));
+
+      final Bell<SocketChannel> accept = new Bell<SocketChannel>();
+
+      ServerBootstrap b = new ServerBootstrap();
+      b.group(FTPChannel.group).channel(NioServerSocketChannel.class);
+      b.childHandler(new ChannelInitializer<SocketChannel>() {
+        public void initChannel(SocketChannel ch) throws Exception {
+          initPipeline(ch);
+          if (!accept.ring(ch).isSuccessful() || accept.sync() != ch)
+            ch.close();
+        }
+      });
+
+      Bell<Channel> bind = futureToBell(b.bind(local.getAddress(), 0));
+      return bind.new AsBell<Bell<SocketChannel>>() {
+        public Bell<Bell<SocketChannel>> convert(final Channel server) {
+          accept.deadline(acceptTimeout).new Promise() {
+            public void always() { server.close(); }
+          };
+          InetSocketAddress addr = (InetSocketAddress) server.localAddress();
+          Bell<Reply> port = port(addr);
+          port.new Promise() {
+            public void fail(Throwable t) { accept.cancel(); }
+          };
+          return port.as(accept);
+        }
+      };
+    }
+
+    // Check if an address is only reachable from the same network, which is
+    // likely the case if we're behind NAT.
+    private boolean isPrivate(InetAddress a) {
+      return a.isLoopbackAddress() || a.isSiteLocalAddress() ||
+             a.isLinkLocalAddress();
+    }
+
+    // Attach the handlers to a new data connection.
+    private void initPipeline(SocketChannel ch) {
+      if (extended)
+        ch.pipeline().addLast("blocks", new BlockDecoder());
+      ch.pipeline().addLast("slices", new SliceHandler());
     }
 
     // Make a future into a bell that reverse cancels.
-    private Bell<SocketChannel> futureToBell(final ChannelFuture cf) {
-      return new Bell<SocketChannel>() {
+    private <C extends Channel> Bell<C> futureToBell(final ChannelFuture cf) {
+      return new Bell<C>() {
         {
           cf.addListener(new GenericFutureListener<ChannelFuture>() {
             public void operationComplete(ChannelFuture f) {
               try {
-                ring((SocketChannel) f.channel());
-              } catch (Exception e) {
-                ring(e);
+                if (!f.isSuccess())
+                  throw f.cause();
+                ring((C) f.channel());
+              } catch (Throwable t) {
+                ring(t);
               }
             }
           });
@@ -1082,13 +1396,38 @@ public class FTPChannel {
       };
     }
 
+    // Hand the connection to the next data channel going the same way.
+    private void release(SocketChannel ch) {
+      SocketChannel old;
+      synchronized (data) {
+        if (!data.cacheData || FTPChannel.this.isClosed()) {
+          old = ch;
+        } else {
+          old = data.idle;
+          data.idle = ch;
+          data.idleSend = send;
+        }
+      } if (old != null) {
+        old.close();
+      }
+    }
+
     // Handle incoming data chunks and forward to handler.
-    // TODO: Mode E, encryption, pause/resume.
+    // TODO: Encryption.
     class SliceHandler extends ChannelHandlerAdapter {
       public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        receive(new Slice((ByteBuf) msg));
+        if (msg instanceof EndOfData)
+          endOfData(((EndOfData) msg).close);
+        else if (msg instanceof Slice)
+          receive((Slice) msg);
+        else
+          receive(new Slice((ByteBuf) msg));
       } public void channelInactive(ChannelHandlerContext ctx) {
-        DataChannel.this.close();
+        if (extended && !eod)
+          DataChannel.this.close(
+            new RuntimeException("Data connection closed early."));
+        else
+          DataChannel.this.close();
       } public void read(ChannelHandlerContext ctx) {
         synchronized (FTPChannel.this) {
           if (read)
@@ -1101,6 +1440,13 @@ public class FTPChannel {
       }
     }
 
+    // Called when the server has signaled the end of data.
+    private void endOfData(boolean closing) {
+      reusable = !closing;
+      eod = true;
+      close();
+    }
+
     /** Called to change writability. */
     private synchronized void writable(boolean writable) {
       if (!writable && writeBell == null) {
@@ -1146,6 +1492,7 @@ public class FTPChannel {
     /** Start reading data. */
     public synchronized void start() {
       read = true;
+      autoRead();
       if (context != null)
         context.read();
       context = null;
@@ -1154,13 +1501,62 @@ public class FTPChannel {
     /** Stop reading data. */
     public synchronized void stop() {
       read = false;
+      autoRead();
+    }
+
+    // Make the socket's auto-read setting match whether we're reading, once
+    // it's connected. Otherwise Netty keeps reading whenever there is data,
+    // and stopping only holds back read requests which are never made. This
+    // is done right away if possible, so a read loop in progress stops.
+    private void autoRead() {
+      if (dc.isSuccessful()) {
+        dc.sync().config().setAutoRead(read);
+        return;
+      } dc.new Promise() {
+        public void done(SocketChannel ch) {
+          ch.config().setAutoRead(read);
+        }
+      };
     }
 
     /** Pipe commands to be run in the lock. */
     public Bell init() { return Bell.rungBell(); }
 
-    /** Close the channel. */
-    public final void close() { onClose.ring(this); }
+    /**
+     * Check if the channel is in extended block mode, in which case every
+     * block carries its offset. This is only known once {@code init()} has
+     * been called.
+     */
+    public boolean isExtended() { return extended; }
+
+    /**
+     * Close the channel. In extended block mode, this signals the end of data
+     * if we are sending, and the channel closes once the transfer command
+     * completes.
+     */
+    public final void close() {
+      if (!extended) {
+        // The end of the stream is the end of the data, so make sure the
+        // last write has gone out first.
+        lastSend.new Promise() {
+          public void always() {
+            ChannelFuture f = lastWrite;
+            if (f == null) onClose.ring(DataChannel.this);
+            else f.addListener(new ChannelFutureListener() {
+              public void operationComplete(ChannelFuture f) {
+                onClose.ring(DataChannel.this);
+              }
+            });
+          }
+        };
+        return;
+      } if (send) {
+        sendEndOfData();
+      } reply.new Promise() {
+        public void done()            { onClose.ring(DataChannel.this); }
+        public void fail(Throwable t) { onClose.ring(t); }
+      };
+    }
 
     /** Close the channel with a failure. */
     public final void close(Throwable t) { onClose.ring(t); }
@@ -1170,11 +1566,31 @@ public class FTPChannel {
 
     /** Send a slice through the data channel. */
     public synchronized Bell send(final Slice slice) {
-      return lastSend = dc.new Promise() {
+      final long off = (slice.offset() >= 0) ? slice.offset() : offset;
+      offset = off + slice.length();
+      lastSend = dc.new Promise() {
         public void done(SocketChannel ch) {
-          ch.writeAndFlush(slice.asByteBuf());
+          ByteBuf buf = slice.asByteBuf();
+          if (extended) {
+            ByteBuf header = blockHeader(0, slice.length(), off);
+            buf = Unpooled.wrappedBuffer(header, buf);
+          }
+          lastWrite = ch.writeAndFlush(buf);
         }
-      }.and(writeBell);
+      };
+      return (writeBell == null) ? lastSend : lastSend.and(writeBell);
+    }
+
+    // Signal the end of data. The offset field of the EOF block carries the
+    // number of data connections, which is always one for us.
+    private synchronized void sendEndOfData() {
+      if (eod) return;
+      eod = reusable = true;
+      lastSend = dc.new Promise() {
+        public void done(SocketChannel ch) {
+          ch.writeAndFlush(blockHeader(EBLOCK_EOD | EBLOCK_EOF, 0, 1));
+        }
+      };
     }
   }
 
@@ -16,6 +16,17 @@ public class FTPHostPort {
     this(reply.message().split("[()]")[1]);
   }
 
+  // Create a host/port pair from a socket address, e.g. to send in a PORT.
+  public FTPHostPort(InetSocketAddress addr) {
+    byte[] b = addr.getAddress().getAddress();
+    if (b.length != 4)
+      throw new RuntimeException("PORT requires an IPv4 address.");
+    bytes = Arrays.copyOf(b, 6);
+    port = addr.getPort();
+    bytes[4] = (byte) (port >> 8);
+    bytes[5] = (byte) port;
+  }
+
   public FTPHostPort(String csv) {
     try {
       bytes = new byte[6];
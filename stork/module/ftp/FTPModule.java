@@ -1,5 +1,6 @@
 package stork.module.ftp;
 
+import stork.core.*;
 import stork.feather.*;
 import stork.module.*;
 
@@ -16,6 +17,9 @@ public class FTPModule extends Module<FTPResource> {
 
   public FTPResource select(URI uri, Credential credential) {
     URI endpoint = uri.endpointURI(), resource = uri.resourceURI();
-    return new FTPSession(endpoint, credential).select(resource.path());
+    return new FTPSession(endpoint, credential)
+      .cacheDataChannels(Config.global.ftp_cache_data_channels)
+      .extendedMode(Config.global.ftp_extended_mode)
+      .select(resource.path());
   }
 }
@@ -248,12 +248,32 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
     }.as(this);
   }
 
+  /**
+   * Transfers between FTP servers are done directly between the servers when
+   * possible, and proxied otherwise. See {@link FXPTransfer}.
+   */
+  public <D extends Resource<?,D>>
+  Transfer<FTPResource,D> transferTo(D resource) {
+    if (resource instanceof FTPResource &&
+        FXPTransfer.supported(this, (FTPResource) resource))
+      return (Transfer) new FXPTransfer(this, (FTPResource) resource);
+    return super.transferTo(resource);
+  }
+
   public Sink<FTPResource> sink() {
-    return new FTPSink(this);
+    return new FTPSink(this, 0);
+  }
+
+  public Sink<FTPResource> sink(long offset) {
+    return new FTPSink(this, offset);
   }
 
   public Tap<FTPResource> tap() {
-    return new FTPTap(this);
+    return new FTPTap(this, 0);
+  }
+
+  public Tap<FTPResource> tap(long offset) {
+    return new FTPTap(this, offset);
   }
 
   // Stringify and relativize a path.
@@ -270,10 +290,19 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
 /**
  * An FTP {@code Tap} which manages data channels autonomonously.
  */
+/**
+ * An FTP {@code Tap}. A tap which starts at an offset sends a {@code REST}
+ * before the {@code RETR}. If the pipeline is torn down early, the data
+ * channel is closed so the server stops sending.
+ */
 class FTPTap extends Tap<FTPResource> {
   private FTPChannel.DataChannel dc;
+  private final long offset;
 
-  public FTPTap(FTPResource resource) { super(resource); }
+  public FTPTap(FTPResource resource, long offset) {
+    super(resource);
+    this.offset = offset;
+  }
 
   protected Bell start(final Bell bell) {
     final Bell<Object> returnBell = new Bell<Object>();
@@ -282,9 +311,19 @@ class FTPTap extends Tap<FTPResource> {
         dc = source().session.channel.new DataChannel('I') {
           public Bell init() {
             String path = source().makePath();
-            return new Command("RETR", path).expectComplete();
+            Bell rest = Bell.rungBell();
+            if (offset > 0 && isExtended())
+              rest = new Command("REST", "0-"+offset).expectIncomplete();
+            else if (offset > 0)
+              rest = new Command("REST", offset).expectIncomplete();
+            return rest.and(new Command("RETR", path).expectComplete());
           } public void receive(Slice slice) {
-            pauseUntil(drain(slice));
+            // A pipeline which has been torn down fails right away.
+            Bell drained = drain(slice);
+            if (drained.isFailed())
+              startWhen(drained);
+            else
+              pauseUntil(drained);
           }
         };
         dc.start();
@@ -297,22 +336,45 @@ class FTPTap extends Tap<FTPResource> {
     };
     return returnBell;
   }
+
+  protected void finish(Throwable t) {
+    if (t != null && dc != null)
+      dc.close(t);
+    super.finish(t);
+  }
 }
 
 /**
- * An FTP {@code Sink} which manages data channels autonomonously.
+ * An FTP {@code Sink} which manages data channels autonomonously. In extended
+ * block mode, every block carries its offset, so slices may be sent in any
+ * order. In stream mode, a sink which starts at an offset sends a {@code
+ * REST} before the {@code STOR}, and slices must be sent in order.
  */
 class FTPSink extends Sink<FTPResource> {
+  private static final long WINDOW = 1 << 20;
   private FTPChannel.DataChannel dc;
-  public FTPSink(FTPResource resource) { super(resource); }
+  private final long offset;
+  private long position;
+
+  public FTPSink(FTPResource resource, long offset) {
+    super(resource, offset);
+    this.offset = position = offset;
+  }
 
   protected Bell start() {
     return destination().initialize().new AsBell<FTPChannel.DataChannel>() {
       public Bell<FTPChannel.DataChannel> convert(FTPResource r) {
-        dc = destination().session.channel.new DataChannel('I') {
+        dc = destination().session.channel.new DataChannel('I', true) {
           public Bell init() {
             String path = destination().makePath();
-            return new Command("STOR", path).expectComplete();
+            // In extended block mode, a restart marker is the list of
+            // ranges the server already has.
+            Bell rest = Bell.rungBell();
+            if (offset > 0 && isExtended())
+              rest = new Command("REST", "0-"+offset).expectIncomplete();
+            else if (offset > 0)
+              rest = new Command("REST", offset).expectIncomplete();
+            return rest.and(new Command("STOR", path).expectComplete());
           }
         };
         return dc.onConnect();
@@ -320,9 +382,22 @@ class FTPSink extends Sink<FTPResource> {
     };
   }
 
+  public boolean random() {
+    return dc != null && dc.isExtended();
+  }
+
+  // Sends are written to the data channel in order, so the tap may run
+  // ahead.
+  public long window() { return WINDOW; }
+
   public Bell drain(final Slice slice) {
-    return dc.send(slice);
+    long off = (slice.offset() >= 0) ? slice.offset() : position;
+    position = off + slice.length();
+    return dc.send(slice.offset(off));
   }
 
-  public void finish(Throwable t) { dc.close(); }
+  public void finish(Throwable t) {
+    if (t == null) dc.close();
+    else dc.close(t);
+  }
 }
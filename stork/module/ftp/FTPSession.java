@@ -17,6 +17,8 @@ import stork.util.*;
 public class FTPSession extends Session<FTPSession, FTPResource> {
   FTPChannel channel;  // The connection to the FTP server.
   boolean mlstOptsAreSet = false;  // Whether we sent OPT MLST.
+  boolean cacheDataChannels = false;  // Whether to reuse data channels.
+  boolean extendedMode = false;  // Whether to use MODE E if supported.
 
   /**
    * Establish an {@code FTPSession} with the endpoint described by {@code uri}
@@ -31,7 +33,7 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
   }
 
   public Bell<FTPSession> initialize() {
-    return new Bell() {{
+    return new Bell<Object>() {{
       String user = "anonymous";
       String pass = "stork@storkcloud.org";
 
@@ -76,11 +78,56 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
         // Unsupported credential. Try anonymous auth.
         channel.authorize(user, pass).promise(this);
       }
-    }}.as(FTPSession.this).new Promise() {
-      public void done() { channel.new Command("DCAU N"); }
+    }}.new AsBell<Boolean>() {
+      public Bell<Boolean> convert(Object o) {
+        channel.new Command("DCAU N");
+        channel.cacheDataChannels(cacheDataChannels);
+        return extendedMode ? useExtendedMode() : Bell.wrap(false);
+      }
+    }.as(FTPSession.this);
+  }
+
+  // Switch to extended block mode if the server seems to support the GridFTP
+  // extensions. The returned bell rings once the mode has been decided, so
+  // the session isn't ready before then.
+  private Bell<Boolean> useExtendedMode() {
+    return channel.supportsAny("ESTO", "ERET", "SPAS").new AsBell<Boolean>() {
+      public Bell<Boolean> convert(Boolean b) {
+        return b ? channel.mode('E').as(true) : Bell.wrap(false);
+      }
     };
   }
 
+  /**
+   * Set whether data channels should be reused between transfers. In stream
+   * mode, this only saves waiting for the PASV reply, which makes little
+   * difference, so it's disabled by default. Extended block mode connections
+   * are only reused if this is enabled. This should be set before the
+   * session is initialized.
+   */
+  public FTPSession cacheDataChannels(boolean cache) {
+    cacheDataChannels = cache;
+    return this;
+  }
+
+  /**
+   * Set whether to switch to extended block mode (MODE E) if the server seems
+   * to support the GridFTP extensions. In extended block mode, data
+   * connections can be reused between files if {@link
+   * #cacheDataChannels(boolean)} is enabled, but the server has to connect
+   * to us to send data. If it can't, the session falls back to stream mode.
+   * This is disabled by default, and should be set before the session is
+   * initialized.
+   */
+  public FTPSession extendedMode(boolean extended) {
+    extendedMode = extended;
+    return this;
+  }
+
+  // Everything goes over one control channel, which can only handle one data
+  // transfer at a time.
+  public int concurrency() { return 1; }
+
   public void cleanup() {
     channel.close();
   }
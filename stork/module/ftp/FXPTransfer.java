@@ -0,0 +1,258 @@
+package stork.module.ftp;
+
+import java.net.*;
+import java.util.*;
+
+import stork.feather.*;
+import stork.util.*;
+
+/**
+ * A third-party transfer between two FTP servers (FXP). For each file, one
+ * server is put in passive mode and the other is told to connect to it, so
+ * data flows directly between the servers instead of through us. Progress is
+ * taken from GridFTP performance markers when the servers send them, and
+ * otherwise reported when each file completes.
+ * <p/>
+ * Directory traversal is inherited from {@code ProxyTransfer}. If a file
+ * can't be moved directly, it is proxied instead. If the servers refuse to
+ * connect to each other at all, the rest of the transfer is proxied.
+ */
+class FXPTransfer extends ProxyTransfer<FTPResource,FTPResource> {
+  private volatile boolean direct = true;
+
+  // Locks on a pair of channels are requested while holding this, so every
+  // channel queues them in the same order.
+  private static final Object pairLock = new Object();
+
+  public FXPTransfer(FTPResource source, FTPResource destination) {
+    super(source, destination);
+  }
+
+  /**
+   * Check if a direct transfer between {@code source} and {@code
+   * destination} is possible. Both ends need their own control channel, and
+   * a server on a loopback address can only reach another on the same host.
+   */
+  static boolean supported(FTPResource source, FTPResource destination) {
+    if (source.session == destination.session)
+      return false;
+    return isLoopback(source.session.uri.host()) ==
+           isLoopback(destination.session.uri.host());
+  }
+
+  // Check if a host is a loopback address, without resolving names.
+  private static boolean isLoopback(String host) {
+    if (host == null || host.equalsIgnoreCase("localhost"))
+      return true;
+    if (!host.matches("[0-9.]+|\\[?[0-9a-fA-F.]*:[0-9a-fA-F:.]*\\]?"))
+      return false;
+    try {
+      return InetAddress.getByName(host).isLoopbackAddress();
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  protected synchronized Bell transferData(final Path path, final Stat stat) {
+    if (!direct)
+      return super.transferData(path, stat);
+
+    final FTPResource src  = source.select(path);
+    final FTPResource dest = destination.select(path);
+    final Bell bell = new Bell();
+
+    src.initialize().and(dest.initialize()).new AsBell<Object>() {
+      public Bell<Object> convert(FTPResource r) {
+        return new Direct(src, dest, stat.size).start();
+      }
+    }.new Promise() {
+      public void done() {
+        addFileProgress(1);
+        transferEnded(path);
+        bell.ring();
+      } public void fail(Throwable t) {
+        Log.fine("Direct transfer failed, proxying instead: ", t);
+        FXPTransfer.super.transferData(path, stat).promise(bell);
+      }
+    };
+
+    return bell;
+  }
+
+  // The direct transfer of a single file. Both control channels are locked
+  // for the duration of the transfer. Transfers in opposite directions
+  // between the same sessions would deadlock if each got one lock and waited
+  // for the other, so the pair is requested together.
+  private class Direct {
+    final FTPResource src, dest;
+    final FTPChannel.Lock sc, dc;
+    final long size;
+
+    // Bytes reported by each server's performance markers, by stripe.
+    final Map<String,Long> stripes = new HashMap<String,Long>();
+    long srcBytes = 0, destBytes = 0, reported = 0;
+
+    Direct(FTPResource src, FTPResource dest, long size) {
+      this.src = src;
+      this.dest = dest;
+      this.size = size;
+      synchronized (pairLock) {
+        sc = src.session.channel.new Lock();
+        dc = dest.session.channel.new Lock();
+      }
+    }
+
+    Bell start() {
+      sc.type('I');
+      dc.type('I');
+
+      return sc.mode().and(dc.mode()).new AsBell<Object>() {
+        boolean extended, restoreSource, restoreDest;
+
+        // Both servers have to agree on the mode. Extended block mode is only
+        // used if both are already using it. Otherwise, use stream mode for
+        // now and restore the mode afterwards.
+        public Bell<Object> convert(Character dm) {
+          char sm = sc.mode().sync();
+          extended = (sm == 'E' && dm == 'E');
+          if (!extended && sm != 'S') {
+            restoreSource = true;
+            sc.mode('S');
+          } if (!extended && dm != 'S') {
+            restoreDest = true;
+            dc.mode('S');
+          } return connect(extended).new AsBell<Object>() {
+            public Bell<Object> convert(FTPChannel passive) {
+              return transfer(passive == dc);
+            }
+          };
+        } public void done() {
+          finish();
+        } public void always() {
+          if (restoreSource) sc.mode(sc.mode().sync());
+          if (restoreDest)   dc.mode(dc.mode().sync());
+          sc.unlock();
+          dc.unlock();
+        }
+      };
+    }
+
+    // Put one server in passive mode and point the other at it, returning the
+    // passive channel. In extended block mode, the sender must be active.
+    Bell<FTPChannel> connect(boolean extended) {
+      Bell<FTPChannel> bell = pair(dc, sc);
+      if (extended)
+        return bell;
+      return bell.new AsBell<FTPChannel>() {
+        public Bell<FTPChannel> convert(FTPChannel passive) {
+          return Bell.wrap(passive);
+        } public Bell<FTPChannel> convert(Throwable t) {
+          return pair(sc, dc);
+        }
+      }.new Promise() {
+        public void fail(Throwable t) { direct = false; }
+      };
+    }
+
+    Bell<FTPChannel> pair(final FTPChannel passive, final FTPChannel active) {
+      return passive.passive().new AsBell<FTPChannel.Reply>() {
+        public Bell<FTPChannel.Reply> convert(FTPHostPort hp) {
+          return active.port(hp);
+        }
+      }.as(passive);
+    }
+
+    // Issue the transfer commands, passive side first so it is ready to
+    // accept the connection.
+    Bell transfer(boolean destIsPassive) {
+      final Bell<FTPChannel.Reply> stor, retr;
+
+      if (destIsPassive) {
+        stor = store();
+        retr = retrieve();
+      } else {
+        retr = retrieve();
+        stor = store();
+      }
+
+      // If one side fails, the other side should stop waiting.
+      abortOnFail(retr, stor, dc);
+      abortOnFail(stor, retr, sc);
+
+      return Bell.all(retr, stor);
+    }
+
+    Bell<FTPChannel.Reply> store() {
+      return dc.new Command("STOR", dest.makePath()) {
+        public void handle(FTPChannel.Reply r) { marker(false, r); }
+      }.expectComplete();
+    }
+
+    Bell<FTPChannel.Reply> retrieve() {
+      return sc.new Command("RETR", src.makePath()) {
+        public void handle(FTPChannel.Reply r) { marker(true, r); }
+      }.expectComplete();
+    }
+
+    void abortOnFail(Bell b, final Bell other, final FTPChannel channel) {
+      b.new Promise() {
+        public void fail(Throwable t) {
+          if (!other.isDone()) channel.new Command("ABOR");
+        }
+      };
+    }
+
+    // Handle a GridFTP performance marker, which looks like this:
+    //
+    //   112-Perf Marker
+    //    Timestamp:  1111111111.1
+    //    Stripe Index: 0
+    //    Stripe Bytes Transferred: 1048576
+    //    Total Stripe Count: 1
+    //   112 End.
+    //
+    // Either server may send them, so progress is based on whichever has
+    // reported more.
+    synchronized void marker(boolean fromSource, FTPChannel.Reply r) {
+      if (r.code != 112)
+        return;
+
+      String stripe = "0";
+      long bytes = -1;
+      for (String line : r.lines()) {
+        String[] kv = line.trim().split(":\\s*", 2);
+        if (kv.length < 2)
+          continue;
+        if (kv[0].equals("Stripe Index"))
+          stripe = kv[1].trim();
+        else if (kv[0].equals("Stripe Bytes Transferred")) try {
+          bytes = Long.parseLong(kv[1].trim());
+        } catch (NumberFormatException e) {
+          return;
+        }
+      } if (bytes < 0) {
+        return;
+      }
+
+      Long last = stripes.put(fromSource+":"+stripe, bytes);
+      long delta = bytes - (last == null ? 0 : last);
+      if (fromSource)
+        srcBytes += delta;
+      else
+        destBytes += delta;
+      progress(Math.max(srcBytes, destBytes));
+    }
+
+    // Account for whatever the markers didn't report.
+    synchronized void finish() {
+      progress(size);
+    }
+
+    void progress(long total) {
+      if (total > reported) {
+        addProgress(total-reported);
+        reported = total;
+      }
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package stork.module.http;
 
+import java.net.InetAddress;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
@@ -15,6 +16,7 @@ import io.netty.util.concurrent.GenericFutureListener;
 import stork.feather.Bell;
 import stork.feather.Path;
 import stork.feather.URI;
+import stork.feather.net.DNSResolver;
 import stork.module.http.HTTPResource.HTTPTap;
 
 /**
@@ -110,20 +112,42 @@ public class HTTPBuilder {
    * Establishes a new socket connection with connection test
    */
   protected void setupWithTest() {
-    ChannelFuture future = boot.connect(uri.host(), port);
-    future.addListener(
-        new GenericFutureListener<ChannelFuture>() {
-
-          public void operationComplete(ChannelFuture f) {
-            if (f.isSuccess()) {
-              channel = (HTTPChannel) f.channel();
-              testConnection();
-              onTestBell.promise(onConnectBell);
-            } else {
-              onConnectBell.ring(f.cause());
+    connect().new Promise() {
+      public void done(HTTPChannel ch) {
+        channel = ch;
+        testConnection();
+        onTestBell.promise(onConnectBell);
+      }
+
+      public void fail(Throwable t) {
+        onConnectBell.ring(t);
+      }
+    };
+  }
+
+  /**
+   * Resolves the host and opens a new socket connection to it.
+   *
+   * @return a {@link Bell} rung with the connected {@link HTTPChannel}
+   */
+  private Bell<HTTPChannel> connect() {
+    return DNSResolver.resolve(uri.host()).new AsBell<HTTPChannel>() {
+      public Bell<HTTPChannel> convert(InetAddress addr) {
+        final Bell<HTTPChannel> bell = new Bell<HTTPChannel>();
+        boot.connect(addr, port).addListener(
+          new GenericFutureListener<ChannelFuture>() {
+
+            public void operationComplete(ChannelFuture f) {
+              if (f.isSuccess()) {
+                bell.ring((HTTPChannel) f.channel());
+              } else {
+                bell.ring(f.cause());
+              }
             }
-          }
-        });
+          });
+        return bell;
+      }
+    };
   }
 
   /**
@@ -158,18 +182,7 @@ public class HTTPBuilder {
       if (channel.onInactiveBell.isDone() &&
           tapBellQueue.isEmpty()) {
         // Starts reconnecting
-        ChannelFuture f = boot.connect(uri.host(), port);
-        f.addListener(
-            new GenericFutureListener<ChannelFuture>() {
-
-              public void operationComplete(ChannelFuture f) {
-                if (f.isSuccess()) {
-                  connectBell.ring((HTTPChannel) f.channel());
-                } else {
-                  connectBell.ring(f.cause());
-                }
-              }
-            });
+        connect().promise(connectBell);
       } else {
         // Case 2. Otherwise, adds the resource request to 
         // waiting queue. Bell rung when the channel finishes
@@ -178,19 +191,7 @@ public class HTTPBuilder {
         Bell<Void> createBell = new Bell<Void>() {
 
           protected void done() {
-            ChannelFuture f = boot.connect(uri.host(), port);
-            f.addListener(
-              new GenericFutureListener<ChannelFuture>() {
-
-                public void operationComplete(ChannelFuture f) {
-                  if (f.isSuccess()) {
-                    connectBell.ring((HTTPChannel) f.channel());
-                  } else {
-                    connectBell.ring(f.cause());
-                  }
-                }
-              }
-            );
+            connect().promise(connectBell);
           }
         };
 
@@ -113,7 +113,14 @@ public class HTTPMessageHandler extends ChannelHandlerAdapter {
         // Ring the bell once the received data is ready
         tap.onStartBell.ring();
 
-        tap.drain(slice);
+        // Stop reading until the pipeline, and its budget, can take more.
+        Bell<?> drained = tap.drain(slice);
+        if (!drained.isDone()) {
+          ch.setReadable(false);
+          drained.new Promise() {
+            public void always() { ch.setReadable(true); }
+          };
+        }
       }
 
       if (content instanceof LastHttpContent) {
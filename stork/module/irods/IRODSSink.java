@@ -29,6 +29,9 @@ public class IRODSSink extends Sink<IRODSResource>{
     }.startOn(destination().initialize());
   }
 
+  // Every write is flushed, so write in large chunks.
+  public int chunkSize() { return 1024*1024; }
+
   public Bell drain(final Slice slice) {
     return new ThreadBell(executor) {
       public Object run() throws Exception {
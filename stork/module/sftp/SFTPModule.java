@@ -1,6 +1,9 @@
 package stork.module.sftp;
 
+import java.io.*;
+import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import com.jcraft.jsch.*;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
@@ -8,6 +11,8 @@ import com.jcraft.jsch.ChannelSftp.LsEntry;
 import stork.cred.*;
 import stork.feather.*;
 import stork.feather.Session;
+import stork.feather.URI;
+import stork.feather.net.DNSResolver;
 import stork.feather.util.*;
 import stork.feather.errors.*;
 import stork.module.*;
@@ -33,6 +38,22 @@ class SFTPSession extends Session<SFTPSession, SFTPResource> {
   private transient String host, username, password;
   private transient int port = 22;
 
+  private static final int TIMEOUT = 3000;
+
+  // Connects JSch sessions to addresses from the shared resolver.
+  private static final SocketFactory SOCKETS = new SocketFactory() {
+    public Socket createSocket(String host, int port) throws IOException {
+      InetAddress addr = DNSResolver.resolveSync(host);
+      Socket socket = new Socket();
+      socket.connect(new InetSocketAddress(addr, port), TIMEOUT);
+      return socket;
+    } public InputStream getInputStream(Socket socket) throws IOException {
+      return socket.getInputStream();
+    } public OutputStream getOutputStream(Socket socket) throws IOException {
+      return socket.getOutputStream();
+    }
+  };
+
   /** Create an SFTPSession. */
   public SFTPSession(URI uri, Credential credential) {
     super(uri, credential);
@@ -78,7 +99,8 @@ class SFTPSession extends Session<SFTPSession, SFTPResource> {
         jsch = new JSch().getSession(username, host, port);
         jsch.setPassword(password);
         jsch.setConfig(conf);
-        jsch.connect(3000);
+        jsch.setSocketFactory(SOCKETS);
+        jsch.connect(TIMEOUT);
         channel = (ChannelSftp) jsch.openChannel("sftp");
         channel.connect();
         return null;
@@ -158,11 +180,19 @@ class SFTPResource extends Resource<SFTPSession, SFTPResource> {
   }
 
   public Tap tap() {
+    return tap(0);
+  }
+
+  public Tap tap(final long offset) {
     return new Tap(this) {
       protected Bell start(Bell bell) {
         return new ThreadBell<Void>() {
           public Void run() throws Exception {
-            session.channel.get(path.toString(), asOutputStream());
+            if (offset > 0)
+              session.channel.get(path.toString(), asOutputStream(), null,
+                                  ChannelSftp.RESUME, offset);
+            else
+              session.channel.get(path.toString(), asOutputStream());
             return null;
           } public void done() {
             finish();
@@ -175,36 +205,105 @@ class SFTPResource extends Resource<SFTPSession, SFTPResource> {
   }
 
   public Sink sink() {
-    return new Sink(this) {
-      private java.io.OutputStream os;
+    return new SFTPSink(this, -1);
+  }
 
-      protected Bell start() {
-        return initialize().and((Bell<Stat>)source().stat()).new As<Void>() {
-          public Void convert(Stat stat) throws Exception {
-            os = session.channel.put(path.toString());
-            return null;
-          } public void fail(Throwable t) {
-            finish(t);
-          }
-        };
+  public Sink sink(long offset) {
+    return new SFTPSink(this, offset);
+  }
+}
+
+/**
+ * An SFTP {@code Sink}. SFTP writes are positioned, so this seeks by
+ * reopening the file at the offset of a slice which doesn't follow on from
+ * the previous one.
+ */
+class SFTPSink extends Sink<SFTPResource> {
+  private static final long WINDOW = 1 << 20;
+  private java.io.OutputStream os;
+  private final boolean resume;
+  private long position;
+
+  // Writes block, so they're done on a thread of our own, one at a time.
+  private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+    1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+  // Write from offset, or truncate and write from the start if offset is
+  // negative.
+  SFTPSink(SFTPResource resource, long offset) {
+    super(resource, Math.max(offset, 0));
+    resume = offset >= 0;
+    position = resume ? offset : 0;
+  }
+
+  protected Bell start() {
+    Bell<Stat> stat = source().stat();
+    return destination().initialize().and(stat).new As<Void>() {
+      public Void convert(Stat stat) throws Exception {
+        String path = destination().path.toString();
+        if (resume)
+          seek(position);
+        else
+          os = destination().session.channel.put(path);
+        return null;
+      } public void fail(Throwable t) {
+        finish(t);
       }
+    };
+  }
 
-      protected Bell drain(final Slice slice) {
-        return new ThreadBell<Void>() {
-          public Void run() throws Exception {
-            os.write(slice.asBytes());
-            return null;
-          }
-        }.start();
+  // Reopen the file for writing at offset. In resume mode, JSch opens the
+  // file without truncating it or setting the append flag, so writes land at
+  // the offset, but it adds the current size of the file to the offset it's
+  // given.
+  private void seek(long offset) throws Exception {
+    ChannelSftp channel = destination().session.channel;
+    String path = destination().path.toString();
+    if (os != null)
+      os.close();
+    long size = 0;
+    try {
+      size = channel.stat(path).getSize();
+    } catch (SftpException e) {
+      // It doesn't exist yet.
+    }
+    os = channel.put(path, null, ChannelSftp.RESUME, offset-size);
+    position = offset;
+  }
+
+  public boolean random() { return true; }
+
+  // Each write blocks a thread, so write in large chunks.
+  public int chunkSize() { return 256*1024; }
+
+  // Writes are queued on our thread, so they complete in order and the tap
+  // may run ahead.
+  public long window() { return WINDOW; }
+
+  protected Bell drain(final Slice slice) {
+    return new ThreadBell<Void>(executor) {
+      public Void run() throws Exception {
+        if (slice.offset() >= 0 && slice.offset() != position)
+          seek(slice.offset());
+        os.write(slice.asBytes());
+        position += slice.length();
+        return null;
       }
+    }.start();
+  }
 
-      protected void finish(Throwable t) {
+  // Close the stream after any writes still queued.
+  protected void finish(Throwable t) {
+    new ThreadBell<Void>(executor) {
+      public Void run() {
         try {
-          os.close();
+          if (os != null) os.close();
         } catch (Exception e) {
           // Ignore.
         }
+        return null;
       }
-    };
+    }.start();
+    executor.shutdown();
   }
 }
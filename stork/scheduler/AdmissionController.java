@@ -0,0 +1,297 @@
+package stork.scheduler;
+
+import java.lang.management.*;
+import java.util.*;
+
+import stork.core.*;
+import stork.feather.*;
+import stork.util.*;
+
+/**
+ * Decides how many jobs may run at once, and how many files each may move at
+ * once, based on how the host is coping. Every so often it measures the
+ * aggregate throughput of all transfers (the goodput), the lag of the event
+ * loop {@code Bell} handlers run on, and heap pressure, and adjusts the
+ * limits:
+ * <ul>
+ *   <li>If the event loop is lagging or the heap is nearly full, the job
+ *   limit is cut multiplicatively. If it's already at one, the stream limit
+ *   is halved instead. Running jobs are not stopped, but no more are started
+ *   until enough have finished.</li>
+ *   <li>Otherwise, if jobs are waiting for a slot and every slot is in use,
+ *   the job limit is raised by one, as long as the goodput observed with as
+ *   many jobs running is better than with one fewer. If it's no better, the
+ *   limit is held, and if it's worse, it's lowered by one. A held limit is
+ *   raised again after a while to see if things have changed.</li>
+ *   <li>The stream limit creeps back up by one while the host is healthy.</li>
+ * </ul>
+ * The job limit starts at {@code max_jobs} and stays between one and {@code
+ * admission_max_jobs}. The stream limit starts at, and never exceeds, the
+ * lower of {@code max_streams} and {@code admission_max_streams}. If {@code
+ * admission_interval} or {@code max_jobs} is zero, the controller is
+ * disabled, and the job limit is {@code max_jobs}.
+ * <p/>
+ * The limits, measurements, decisions, and the goodput observed at each
+ * number of running jobs are reported as metrics under "admission".
+ */
+public abstract class AdmissionController {
+  private static final Log.Category log = Log.category("admission");
+  /** Milliseconds between event loop lag probes. */
+  private static final long PROBE = 250;
+  /** The factor the job limit is cut by under pressure. */
+  private static final double BACKOFF = .7;
+  /** The relative change in goodput taken to be a change. */
+  private static final double TOLERANCE = .05;
+  /** The weight given to a new goodput sample for a number of jobs. */
+  private static final double ALPHA = .5;
+  /** Intervals to hold at a plateau before trying a higher limit again. */
+  private static final int HOLD = 6;
+
+  private static final Metrics.Counter
+    increases = Metrics.counter("admission.increases"),
+    decreases = Metrics.counter("admission.decreases"),
+    holds     = Metrics.counter("admission.holds");
+  private static final Metrics.Latency lagTime =
+    Metrics.latency("admission.lag");
+
+  private final Config config;
+  private volatile int jobs, streams;
+
+  // The goodput observed with some number of jobs running, in bytes/second.
+  private final SortedMap<Integer,Double> curve =
+    new TreeMap<Integer,Double>();
+  private Decision last;
+  private int held = 0;
+
+  // Measurements since the last decision.
+  private long lastBytes = Transfer.bytesMoved();
+  private long lastTime = System.nanoTime();
+  private long maxLag = 0;
+
+  /** A record of an adjustment, as reported in metrics. */
+  private static class Decision {
+    String action, reason;
+    int jobs, streams, running;
+    double goodput, lag_ms, heap;
+  }
+
+  /**
+   * Create an {@code AdmissionController} which reads its settings from
+   * {@code config}. If it's enabled, it starts measuring immediately.
+   *
+   * @param config the configuration to read settings from.
+   */
+  public AdmissionController(Config config) {
+    this.config = config;
+    jobs = config.max_jobs;
+    streams = maxStreams();
+
+    if (config.admission_interval > 0 && config.max_jobs > 0)
+      startTimer();
+
+    Metrics.register("admission.jobs", new Metrics.Metric() {
+      public Object value() { return jobs(); }
+    });
+    Metrics.register("admission.streams", new Metrics.Metric() {
+      public Object value() { return streams(); }
+    });
+    Metrics.register("admission.last", new Metrics.Metric() {
+      public Object value() { return lastDecision(); }
+    });
+    Metrics.register("admission.goodput", new Metrics.Metric() {
+      public Object value() { return goodputCurve(); }
+    });
+  }
+
+  /**
+   * Get the number of jobs which may run at once.
+   *
+   * @return The job limit, or zero if there is none.
+   */
+  public int jobs() { return jobs; }
+
+  /**
+   * Get the number of files each job may move at once.
+   *
+   * @return The stream limit, or zero if there is none.
+   */
+  public int streams() { return streams; }
+
+  /** Get the number of jobs running. */
+  protected abstract int running();
+
+  /** Get the number of jobs waiting for a slot. */
+  protected abstract int waiting();
+
+  /**
+   * Called when the limits have changed, so more jobs can be started, or the
+   * new stream limit applied to running jobs. This is not called with the
+   * controller locked.
+   */
+  protected abstract void limitsChanged();
+
+  // Get the highest the stream limit may go, or zero for no limit. It's no
+  // higher than the number of files transfers move at once anyway, so that
+  // lowering it has an effect.
+  private int maxStreams() {
+    int a = Math.max(config.admission_max_streams, 0);
+    int m = Math.max(config.max_streams, 0);
+    return (a == 0) ? m : (m == 0) ? a : Math.min(a, m);
+  }
+
+  private synchronized Decision lastDecision() { return last; }
+
+  private synchronized Map<Integer,Double> goodputCurve() {
+    return new TreeMap<Integer,Double>(curve);
+  }
+
+  private void startTimer() {
+    Timer timer = new Timer("Admission", true);
+    timer.schedule(new TimerTask() {
+      public void run() { probe(); }
+    }, PROBE, PROBE);
+    long interval = (long) (config.admission_interval*1E3);
+    timer.schedule(new TimerTask() {
+      public void run() {
+        try {
+          if (adjust())
+            limitsChanged();
+        } catch (Exception e) {
+          log.warning("Couldn't adjust limits: ", e);
+        }
+      }
+    }, interval, interval);
+  }
+
+  // Measure how long it takes the event loop to get to a task. An idle loop
+  // isn't lagging, and isn't woken, since that would start its thread.
+  private void probe() {
+    if (Bell.isDispatchIdle())
+      return;
+    final long start = System.nanoTime();
+    Bell.dispatch(new Runnable() {
+      public void run() { lagged(System.nanoTime()-start); }
+    });
+  }
+
+  private synchronized void lagged(long nanos) {
+    lagTime.record(nanos);
+    maxLag = Math.max(maxLag, nanos);
+  }
+
+  // Get the fraction of the heap in use. Where the JVM reports it, the usage
+  // after the last collection is used, since anything more may be garbage.
+  // Pools which haven't been collected yet report nothing.
+  private static double heapPressure() {
+    double pressure = -1;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() != MemoryType.HEAP)
+        continue;
+      MemoryUsage u = pool.getCollectionUsage();
+      if (u != null && u.getMax() > 0 && u.getCommitted() > 0)
+        pressure = Math.max(pressure, (double) u.getUsed() / u.getMax());
+    } if (pressure >= 0) {
+      return pressure;
+    }
+    Runtime rt = Runtime.getRuntime();
+    return (double) (rt.totalMemory()-rt.freeMemory()) / rt.maxMemory();
+  }
+
+  // Take measurements and decide on new limits, returning whether they have
+  // changed.
+  private synchronized boolean adjust() {
+    long now = System.nanoTime(), bytes = Transfer.bytesMoved();
+    double dt = (now-lastTime)/1E9;
+    if (dt <= 0)
+      return false;
+
+    double goodput = (bytes-lastBytes)/dt;
+    long lag = maxLag;
+    lastBytes = bytes;
+    lastTime = now;
+    maxLag = 0;
+
+    return adjust(goodput, lag, heapPressure());
+  }
+
+  /**
+   * Decide on new limits given measurements taken over an interval. This is
+   * called by the controller itself every {@code admission_interval}
+   * seconds, and doesn't call {@link #limitsChanged()}.
+   *
+   * @param goodput the bytes per second moved by all transfers.
+   * @param lag the longest event loop lag seen, in nanoseconds.
+   * @param heap the fraction of the heap in use.
+   * @return Whether the limits have changed.
+   */
+  protected synchronized boolean adjust(double goodput, long lag, double heap) {
+    Decision d = new Decision();
+    d.running = running();
+    d.goodput = goodput;
+    d.lag_ms = lag/1E6;
+    d.heap = heap;
+
+    if (d.running > 0) {
+      Double g = curve.get(d.running);
+      curve.put(d.running,
+        (g == null) ? d.goodput : ALPHA*d.goodput + (1-ALPHA)*g);
+    }
+
+    int max = config.admission_max_jobs > 0 ?
+      Math.max(config.admission_max_jobs, 1) : Integer.MAX_VALUE;
+    int maxStreams = maxStreams();
+    int j = Math.min(jobs, max), s = streams;
+
+    if (d.lag_ms > config.admission_max_lag*1E3) {
+      d.reason = "event loop lag";
+    } else if (d.heap > config.admission_max_heap) {
+      d.reason = "heap pressure";
+    }
+
+    if (d.reason != null) {
+      // Back off multiplicatively.
+      if (j > 1)
+        j = Math.max(1, (int) (j*BACKOFF));
+      else if (s != 1)
+        s = (s == 0) ? 1 : Math.max(1, s/2);
+    } else {
+      if (s != 0 && s < maxStreams)
+        s++;
+      if (d.running >= j && waiting() > 0 && j < max) {
+        // Probe upwards while more jobs help.
+        Double here = curve.get(j), below = curve.get(j-1);
+        boolean known = here != null && below != null;
+        if (known && here < below*(1-TOLERANCE)) {
+          j--;
+          held = 0;
+          d.reason = "goodput fell";
+        } else if (!known || here > below*(1+TOLERANCE) || ++held > HOLD) {
+          j++;
+          held = 0;
+          d.reason = "backlog";
+        } else {
+          d.reason = "goodput plateau";
+        }
+      }
+    }
+
+    d.action = (j > jobs) ? "increase" : (j < jobs) ? "decrease" : "hold";
+    if (j > jobs)
+      increases.increment();
+    else if (j < jobs || s < streams)
+      decreases.increment();
+    else if (d.reason != null)
+      holds.increment();
+
+    boolean changed = j != jobs || s != streams;
+    d.jobs = jobs = j;
+    d.streams = streams = s;
+    last = d;
+
+    if (changed) log.info(
+      "Admission limits now ", j, " jobs, ", s, " streams (", d.reason,
+      "): goodput ", (long) d.goodput, " B/s, lag ", d.lag_ms, " ms, heap ",
+      d.heap);
+    return changed;
+  }
+}
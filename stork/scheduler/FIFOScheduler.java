@@ -3,32 +3,137 @@ package stork.scheduler;
 import java.util.*;
 
 import stork.core.*;
+import stork.feather.*;
+import stork.util.*;
 
-/** A simple first in first out scheduler. */
+import static stork.scheduler.JobStatus.*;
+
+/**
+ * A simple first in first out scheduler. Jobs with a higher priority go ahead
+ * of those with a lower one, and if there is no slot free for a job, the
+ * running job with the lowest priority below it is paused to make room. A
+ * paused job goes back in the queue ahead of others with the same priority,
+ * and is resumed where it left off when its turn comes again.
+ * <p/>
+ * The number of jobs which may run at once, and the number of files each may
+ * move at once, are set by an {@link AdmissionController}.
+ */
 public class FIFOScheduler extends Scheduler {
   private List<Job> queue = new LinkedList<Job>();
-  private int running;
+  private List<Job> running = new LinkedList<Job>();
+  // Slots in use, including by jobs which are still pausing.
+  private int slots;
   private Config config = Config.global;
+  private final AdmissionController admission =
+    new AdmissionController(config) {
+      protected int running() { return runningJobs(); }
+      protected int waiting() { return waitingJobs(); }
+      protected void limitsChanged() { applyLimits(); }
+    };
 
-  protected synchronized void schedule(Job job) {
-    if (config.max_jobs == 0 || running < config.max_jobs)
-      runJob(job);
-    else
-      queue.add(job);
+  protected void schedule(Job job) {
+    synchronized (this) {
+      if (hasFreeSlot()) {
+        runJob(job);
+        return;
+      } enqueue(job);
+    }
+    preemptFor(job);
   }
 
-  /** Starts the job and registers callbacks. */
+  private boolean hasFreeSlot() {
+    int max = admission.jobs();
+    return max == 0 || slots < max;
+  }
+
+  private synchronized int runningJobs() { return running.size(); }
+
+  private synchronized int waitingJobs() { return queue.size(); }
+
+  // Apply new limits from the admission controller. Jobs running over the
+  // job limit are left to finish. Jobs take their own lock, and may call back
+  // into the scheduler while holding it, so they're limited from a copy of
+  // the running list without holding ours.
+  private void applyLimits() {
+    List<Job> jobs;
+    synchronized (this) {
+      jobs = new ArrayList<Job>(running);
+    } for (Job job : jobs) {
+      job.limitStreams(admission.streams());
+    } synchronized (this) {
+      popQueue();
+    }
+  }
+
+  // Start jobs from the queue while there are slots free.
+  private void popQueue() {
+    while (!queue.isEmpty() && hasFreeSlot())
+      runJob(queue.remove(0));
+  }
+
+  /** Puts a job in the queue behind those which should run before it. */
+  private void enqueue(Job job) {
+    boolean paused = job.status() == JobStatus.paused;
+    ListIterator<Job> it = queue.listIterator();
+    while (it.hasNext()) {
+      Job j = it.next();
+      if (j.priority() < job.priority() || j.priority() == job.priority() &&
+          paused && j.status() != JobStatus.paused) {
+        it.previous();
+        break;
+      }
+    }
+    it.add(job);
+  }
+
+  /**
+   * Pauses the running job with the lowest priority below that of {@code
+   * job}, if there is one. It gives up its slot once it has paused. Like
+   * {@link #applyLimits()}, this doesn't hold the scheduler's lock while
+   * calling into jobs.
+   */
+  private void preemptFor(Job job) {
+    List<Job> jobs;
+    synchronized (this) {
+      jobs = new ArrayList<Job>(running);
+    }
+
+    Job victim = null;
+    for (Job j : jobs) {
+      if (j.priority() >= job.priority() || !j.canBePaused())
+        continue;
+      if (victim == null || j.priority() <= victim.priority())
+        victim = j;
+    } if (victim == null) {
+      return;
+    } try {
+      victim.pause();
+    } catch (Exception e) {
+      Log.warning("Couldn't preempt job ", victim.uuid(), ": ", e);
+      return;
+    } synchronized (this) {
+      running.remove(victim);
+    }
+    Log.info("Preempted job ", victim.uuid(), " for job ", job.uuid());
+  }
+
+  /** Starts or resumes the job and registers callbacks. */
   private synchronized void runJob(final Job job) {
-    running++;
-    job.start().new Promise() {
-      protected void always() { jobTerminated(); }
+    slots++;
+    running.add(job);
+    job.limitStreams(admission.streams());
+    Bell<Job> bell = (job.status() == paused) ? job.resume() : job.start();
+    bell.new Promise() {
+      protected void always() { jobStopped(job); }
     };
   }
 
-  /** Called when a job has completed or failed to start. */
-  private synchronized void jobTerminated() {
-    running--;
-    if (!queue.isEmpty())
-      runJob(queue.remove(0));
+  /** Called when a job has stopped, paused, or failed to start. */
+  private synchronized void jobStopped(Job job) {
+    slots--;
+    running.remove(job);
+    if (job.status() == paused)
+      enqueue(job);
+    popQueue();
   }
 }
@@ -22,12 +22,21 @@ import static stork.feather.util.Time.now;
 public class Job {
   private JobStatus status = scheduled;
   private JobEndpointRequest src, dest;
+  private JobEndpointRequest[] replicas;
+  private boolean drop_failed_replicas = false;
+  private boolean sync = false, sync_checksum = false, sync_delete = false;
+  private boolean dry_run = false;
+  /** Listings to pre-scan the source with at once, or zero to not. */
+  private int prescan = 0;
+  /** Jobs with a higher priority may preempt those with a lower one. */
+  private int priority = 0;
+  private SyncReport sync_report;
   private int attempts = 0, max_attempts = 10;
   private String message;
 
   /** Byte progress of the transfer. */
   public TransferInfo bytes;
-  /** File progress of the transfer. Currently unused. */
+  /** File progress of the transfer. */
   public TransferInfo files;
 
   /** An ID meaningful to the user who owns the job. */
@@ -63,6 +72,14 @@ public class Job {
   }
 
   private transient Transfer transfer;
+  // The resources the transfer is between, and a bell which rings when the
+  // transfer stops or pauses.
+  private transient Resource[] resources;
+  private transient Bell<Job> running;
+  // The most files the transfer may move at once, or zero for no limit.
+  private transient int streams;
+  // Limits the data the job's transfers may buffer. Kept across pauses.
+  private transient Budget buffers;
 
   protected Scheduler scheduler() { return scheduler; }
 
@@ -71,6 +88,17 @@ public class Job {
     public User user() { return Job.this.user(); }
   }
 
+  // Get the replica endpoints. Elements of unmarshalled arrays aren't given
+  // the right enclosing instance, so they're copied into ones that are.
+  private JobEndpointRequest[] replicas() {
+    if (replicas == null)
+      return new JobEndpointRequest[0];
+    JobEndpointRequest[] r = new JobEndpointRequest[replicas.length];
+    for (int i = 0; i < r.length; i++)
+      r[i] = Ad.marshal(replicas[i]).unmarshal(new JobEndpointRequest());
+    return r;
+  }
+
   public int jobId() {
     return job_id;
   }
@@ -80,6 +108,11 @@ public class Job {
     return this;
   }
 
+  /** Get the priority of the job. */
+  public int priority() {
+    return priority;
+  }
+
   /** Get the status of the job. */
   public synchronized JobStatus status() { return status; }
 
@@ -94,12 +127,16 @@ public class Job {
     if (this.status == status)
       return this;
 
-    // Handle leaving the current state.
-    if (this.status != null) switch (this.status) {
-      case processing:
-        if (transfer != null)
-          transfer.stop();
-        transfer = null;
+    // Handle leaving the current state. The transfer is kept while the job
+    // pauses, and until it is resumed.
+    JobStatus from = this.status;
+    boolean active = from == processing || from == paused;
+    boolean pausing = from == processing && status == paused;
+    boolean resuming = from == paused && status == processing;
+    if (active && !pausing && !resuming) {
+      if (transfer != null)
+        transfer.stop();
+      transfer = null;
     }
 
     // Handle entering the new state.
@@ -107,16 +144,26 @@ public class Job {
       case scheduled:
         times.scheduled = now(); break;
       case processing:
-        times.started = now(); break;
+        if (from != paused)
+          times.started = now();
+        break;
       case removed:
       case failed:
       case complete:
         if (transfer != null)
           transfer.cancel();
         times.completed = now(); break;
-    } return this;
+    }
+
+    // Let anyone watching know.
+    if (scheduler != null && scheduler.server() != null)
+      scheduler.server().events.statusChanged(this);
+    return this;
   }
 
+  /** Get the message associated with the job. */
+  public synchronized String message() { return message; }
+
   /** Set the message associated with the job. */
   public synchronized Job message(String message) {
     this.message = message;
@@ -147,11 +194,16 @@ public class Job {
     return this;
   }
 
-  /** Reschedule the job, if possible. */
-  public synchronized Job reschedule() {
-    if (!canBeScheduled())
-      throw new RuntimeException("Job cannot be automatically rescheduled.");
-    status(scheduled);
+  /**
+   * Reschedule the job, if possible. The scheduler calls into jobs with its
+   * lock held, so it's called without holding the job's lock.
+   */
+  public Job reschedule() {
+    synchronized (this) {
+      if (!canBeScheduled())
+        throw new RuntimeException("Job cannot be automatically rescheduled.");
+      status(scheduled);
+    }
     scheduler.schedule(this);
     return this;
   }
@@ -176,12 +228,37 @@ public class Job {
         return hasMoreAttempts();
       case scheduled:
       case processing:
+      case paused:
         return true;
       default:
         return false;
     }
   }
 
+  /**
+   * Limit the number of files the job's transfer may move at once. This
+   * carries over to the transfers it's resumed with after a pause.
+   *
+   * @param streams the most files to move at once, or zero for no limit.
+   * @return This job.
+   */
+  public synchronized Job limitStreams(int streams) {
+    this.streams = streams;
+    if (transfer != null)
+      transfer.limitStreams(streams);
+    return this;
+  }
+
+  /** Check if the job is running and can be paused. */
+  public synchronized boolean canBePaused() {
+    return status == processing && transfer != null && transfer.pausable();
+  }
+
+  /** Get the time the job terminated, or 0 if it hasn't or isn't known. */
+  public synchronized long completedTime() {
+    return (isDone() && times.completed != null) ? times.completed : 0;
+  }
+
   /** Return whether or not the job has terminated. */
   public synchronized boolean isDone() {
     return done.filter().contains(status);
@@ -210,21 +287,196 @@ public class Job {
 
     status(processing);
 
-    // Keep this as a temporary in case we get unlucky and the job fails before
-    // we return, because the done handler sets this.transfer to null.
-    Transfer transfer =
-      src.resolveAs("source").transferTo(dest.resolveAs("destination"));
+    Transfer transfer = newTransfer(false);
+    Bell<Job> bell = run(transfer);
+
+    // Wish me luck!
+    transfer.start();
+
+    return bell;
+  }
+
+  /**
+   * Pause the job, e.g. to let a more important job run. Its transfer stops
+   * moving data, keeping track of what it has done, and once it has, the
+   * {@code Bell} returned by {@link #start()} or {@link #resume()} rings and
+   * the job's sessions are returned to its owner's session pool.
+   *
+   * @return A {@code Bell} which rings once the job has paused.
+   */
+  public synchronized Bell<Job> pause() {
+    if (!canBePaused())
+      throw new RuntimeException("Job cannot be paused.");
+    final Transfer transfer = this.transfer;
+    final Bell<Job> bell = running;
+    final Resource[] resources = this.resources;
+
+    Log.info("Pausing job: ", uuid());
+    status(paused);
+    transfer.pause().new Promise() {
+      public void always() {
+        if (!transfer.isDone())
+          release(resources);
+        bell.ring(Job.this);
+      }
+    };
+    return bell;
+  }
+
+  /**
+   * Resume a paused job where it left off, on sessions from its owner's
+   * session pool if there are any, or else new ones. If it can't be resumed,
+   * it fails and is rescheduled if possible.
+   *
+   * @return A {@code Bell} which rings when the job stops or pauses again.
+   */
+  public synchronized Bell<Job> resume() {
+    try {
+      Log.info("Resuming job: ", uuid());
+      return resume0();
+    } catch (Exception e) {
+      Log.warning("Job failed to resume: ", e);
+      status(failed, e.getMessage());
+      attempts++;
+      if (canBeScheduled())
+        reschedule();
+      return new Bell<Job>(e);
+    }
+  }
+
+  private synchronized Bell<Job> resume0() throws Exception {
+    if (status != paused)
+      throw new Exception("Job is not paused.");
+
+    // A job paused before the server restarted has no transfer to pick up
+    // from, so it starts over.
+    if (!(transfer instanceof ProxyTransfer)) {
+      Log.info("No paused transfer to resume, starting over: ", uuid());
+      status(scheduled);
+      return start0();
+    }
+
+    ProxyTransfer last = (ProxyTransfer) transfer;
+    Transfer transfer = newTransfer(true);
+    ((ProxyTransfer) transfer).resumeFrom(last);
+
+    status(processing);
+    Bell<Job> bell = run(transfer);
+    transfer.start();
+
+    return bell;
+  }
+
+  // Resolve the endpoints and create a transfer between them. If pooled,
+  // sessions are taken from the owner's session pool where possible.
+  private synchronized Transfer newTransfer(boolean pooled) {
+    JobEndpointRequest[] reps = replicas();
+    Resource[] copies = new Resource[reps.length];
+    for (int i = 0; i < reps.length; i++)
+      copies[i] = take(reps[i].resolveAs("replica"), pooled);
+
+    Resource from = take(src.resolveAs("source"), pooled);
+    Resource to = take(dest.resolveAs("destination"), pooled);
+
+    resources = new Resource[copies.length+2];
+    resources[0] = from;
+    resources[1] = to;
+    System.arraycopy(copies, 0, resources, 2, copies.length);
+
+    // Syncing compares listings, so it's always done by proxy.
+    final Transfer transfer = syncing() ?
+      new ProxyTransfer(from, to).replicate(copies).sync(sync)
+        .checksum(sync_checksum).deleteExtraneous(sync_delete)
+        .dryRun(dry_run) :
+      from.transferTo(to, copies);
+    if (transfer instanceof ProxyTransfer)
+      ((ProxyTransfer) transfer).dropFailedReplicas(drop_failed_replicas)
+        .prescan(prescan).concurrency(concurrency());
+    return transfer.budget(buffers());
+  }
+
+  // Get the most files the job's transfers may move at once. Only one if
+  // there is no server to get it from.
+  private int concurrency() {
+    if (scheduler() == null || scheduler().server() == null)
+      return 1;
+    return scheduler().server().config.max_streams;
+  }
+
+  // Get the budget for data the job's transfers buffer, which is a part of
+  // the owner's budget, or the owner's budget itself if jobs have no limit of
+  // their own. Null if there is no server to get it from.
+  private Budget buffers() {
+    if (buffers != null)
+      return buffers;
+    if (scheduler() == null || scheduler().server() == null)
+      return null;
+    Server server = scheduler().server();
+    User user = user();
+    Budget parent = (user != null) ? user.buffers() : server.buffers;
+    long limit = server.config.job_buffer_budget*1024L*1024L;
+    return buffers = (limit > 0) ? parent.child(limit) : parent;
+  }
+
+  // Take a resource's session from the owner's pool, if there's one there.
+  private Resource take(Resource resource, boolean pooled) {
+    SessionCache pool = pool();
+    return (pooled && pool != null) ? pool.take(resource) : resource;
+  }
+
+  // Return the sessions of a paused transfer to the owner's pool, or close
+  // them if there is no pool or the pool already has one like it.
+  private void release(Resource[] resources) {
+    SessionCache pool = pool();
+    for (Resource r : resources) {
+      Session session = r.session;
+      if (pool == null || pool.put(session) != session)
+        session.close();
+    }
+  }
+
+  // Get the owner's session pool, if there is a server to find it on.
+  private SessionCache pool() {
+    if (scheduler() == null || scheduler().server() == null)
+      return null;
+    User user = user();
+    return (user != null) ? user.sessions : null;
+  }
+
+  // Check if a transfer is the one the job is running. Stale transfers, such
+  // as one which has been picked up from after a pause, are ignored.
+  private synchronized boolean isCurrent(Transfer transfer) {
+    return this.transfer == transfer;
+  }
+
+  // Start watching a transfer, returning a bell which rings when it stops or
+  // the job is paused.
+  private synchronized Bell<Job> run(final Transfer transfer) {
+    if (syncing())
+      sync_report = ((ProxyTransfer) transfer).syncReport();
 
     this.transfer = transfer;
+    transfer.limitStreams(streams);
 
     bytes = transfer.info;
+    files = transfer.files;
 
     transfer.onStop().new Promise() {
       public void done() {
+        if (!isCurrent(transfer))
+          return;
         // We did it! The transfer completed successfully.
         Log.info("Job complete: ", uuid());
-        status(complete);
+        String dropped = droppedReplicas(transfer);
+        if (sync_report == null)
+          status(complete, dropped);
+        else if (dropped == null)
+          status(complete, sync_report.toString());
+        else
+          status(complete, sync_report+" "+dropped);
       } public void fail(Throwable t) {
+        if (!isCurrent(transfer))
+          return;
         // There was some problem during the transfer. Reschedule if possible.
         Log.warning("Job failed: ", uuid(), " ", t);
         status(failed, t.getMessage());
@@ -233,10 +485,27 @@ public class Job {
       }
     };
 
-    // Wish me luck!
-    transfer.start();
+    return running = transfer.onStop().as(this).promise(new Bell<Job>());
+  }
+
+  // Check if the job is in sync mode.
+  private boolean syncing() {
+    return sync || sync_checksum || sync_delete || dry_run;
+  }
 
-    return transfer.onStop().as(this);
+  // Describe any replicas dropped from a transfer, or return null.
+  private static String droppedReplicas(Transfer transfer) {
+    if (!(transfer instanceof ProxyTransfer))
+      return null;
+    Map<Resource<?,?>,Throwable> failed =
+      ((ProxyTransfer<?,?>) transfer).failedReplicas();
+    if (failed.isEmpty())
+      return null;
+    StringBuilder sb = new StringBuilder("Dropped failed replicas:");
+    for (Map.Entry<Resource<?,?>,Throwable> e : failed.entrySet())
+      sb.append(" ").append(e.getKey()).append(" (")
+        .append(e.getValue().getMessage()).append(")");
+    return sb.toString();
   }
 
   public String toString() {
@@ -77,7 +77,7 @@ public abstract class Scheduler implements Set<Job> {
     pending = null;
   }
 
-  public final boolean addAll(Collection<? extends Job> jobs) {
+  public final synchronized boolean addAll(Collection<? extends Job> jobs) {
     if (jobs.isEmpty())
       return false;
     for (Job job : jobs)
@@ -85,6 +85,18 @@ public abstract class Scheduler implements Set<Job> {
     return true;
   }
 
+  /**
+   * Forget a job which has terminated, e.g. because it has been archived.
+   * Jobs which haven't terminated are never forgotten.
+   *
+   * @return Whether the job was forgotten.
+   */
+  public final synchronized boolean retire(Job job) {
+    if (!job.isDone())
+      return false;
+    return jobs.remove(job.uuid()) != null;
+  }
+
   /** Jobs cannot be removed. */
   public void clear() {
     throw new UnsupportedOperationException();
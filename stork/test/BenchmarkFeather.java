@@ -1,6 +1,12 @@
 package stork.test;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
 import stork.feather.*;
+import stork.feather.net.TCPSocket;
 import stork.feather.util.*;
 import stork.module.ftp.*;
 import stork.module.sftp.*;
@@ -14,6 +20,7 @@ public class BenchmarkFeather {
     //benchmarkStreams();
     //benchmarkThroughput();
     //benchmarkOverhead();
+    //benchmarkEcho();
   }
 
   public static void benchmarkTransfers() {
@@ -50,6 +57,192 @@ public class BenchmarkFeather {
     return src.transferTo(dest).start();
   }
 
+  /**
+   * Benchmark moving many small files to and from an FTP server, with and
+   * without data channel reuse. {@code url} should name a writable directory
+   * on the server, and {@code dir} a scratch directory on the local disk.
+   * Both will have a subdirectory created for each run.
+   */
+  public static void benchmarkSmallFiles(String dir, String url) {
+    benchmarkSmallFiles(dir, url, 10000, 1024);
+  }
+
+  public static void benchmarkSmallFiles(
+      String dir, String url, int count, int size) {
+    File local = new File(dir, "up");
+    makeFiles(local, count, size);
+
+    for (boolean cache : new boolean[] { false, true }) {
+      URI uri = URI.create(url);
+      FTPSession ftp = new FTPSession(uri.endpointURI(), null);
+      ftp.cacheDataChannels(cache);
+      Path path = uri.path().appendLiteral("bench-"+cache);
+      FTPResource remote = ftp.select(path);
+
+      Resource up = new LocalSession(local.getPath()).root();
+      Resource down = new LocalSession(dir+"/down-"+cache).root();
+
+      System.out.println("Data channel reuse: "+cache);
+      timeFiles("  upload", count, up.transferTo(remote));
+      timeFiles("  download", count, remote.transferTo(down));
+      ftp.close();
+    }
+  }
+
+  // Create a directory of count files of the given size.
+  private static void makeFiles(File dir, int count, int size) {
+    dir.mkdirs();
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < count; i++) try {
+      FileOutputStream out = new FileOutputStream(new File(dir, "f"+i));
+      out.write(bytes);
+      out.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Run a transfer to completion and print the file rate.
+  private static void timeFiles(String what, int count, Transfer t) {
+    long start = System.nanoTime();
+    t.start().onStop().sync();
+    double secs = (System.nanoTime()-start)/1E9;
+    System.out.printf("%s: %d files in %.2fs (%.1f files/s)%n",
+      what, count, secs, count/secs);
+  }
+
+  /**
+   * Benchmark building, hashing, and storing a large tree of {@code Path}s.
+   * This should be run with enough heap for {@code count} paths, e.g.
+   * {@code -Xmx2g} for the default of five million.
+   */
+  public static void benchmarkPaths() {
+    benchmarkPaths(5000000);
+  }
+
+  public static void benchmarkPaths(int count) {
+    long before = usedMemory();
+    long start = System.nanoTime();
+
+    // A tree of 100-entry directories, like a large transfer would build.
+    Path[] paths = new Path[count];
+    for (int i = 0; i < count; i++) {
+      paths[i] = Path.ROOT
+        .appendLiteral("dir"+(i/1000000))
+        .appendLiteral("dir"+(i/10000%100))
+        .appendLiteral("dir"+(i/100%100))
+        .appendLiteral("file"+(i%100));
+    }
+
+    long built = System.nanoTime();
+    long used = usedMemory()-before;
+    System.out.printf("Built %d paths in %.2fs, %d bytes/path%n",
+      count, (built-start)/1E9, used/count);
+
+    // Re-parsing should find the existing paths.
+    start = System.nanoTime();
+    for (int i = 0; i < count; i += 10) {
+      if (Path.create(paths[i].toString()) != paths[i])
+        throw new RuntimeException("Path was not canonical: "+paths[i]);
+    } System.out.printf("Parsed %d paths in %.2fs%n",
+      count/10, (System.nanoTime()-start)/1E9);
+
+    start = System.nanoTime();
+    java.util.Set<Path> set = new java.util.HashSet<Path>();
+    for (Path p : paths)
+      set.add(p);
+    for (Path p : paths)
+      set.contains(p);
+    System.out.printf("Hashed %d paths twice in %.2fs%n",
+      count, (System.nanoTime()-start)/1E9);
+  }
+
+  // Get the amount of heap in use after a garbage collection.
+  private static long usedMemory() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) System.gc();
+    return rt.totalMemory()-rt.freeMemory();
+  }
+
+  /**
+   * Benchmark the feather.net transport. This starts a {@code TCPSocket} echo
+   * server, then has a number of blocking clients write blocks to it and read
+   * them back for a while, and reports the rate at which bytes made the round
+   * trip.
+   */
+  public static void benchmarkEcho() throws Exception {
+    benchmarkEcho(4*stork.feather.net.Selector.LOOPS, 10, 16384, 12346);
+  }
+
+  public static void benchmarkEcho(
+      int clients, int seconds, final int block, int port) throws Exception {
+    new TCPSocket(port) {
+      public void accept(stork.feather.net.Socket socket) {
+        socket.join(socket);
+      }
+    }.listen().onListen().sync();
+
+    System.out.println(clients+" clients, "+stork.feather.net.Selector.LOOPS+
+                       " selector loops, "+block+" byte blocks");
+
+    final AtomicLong echoed = new AtomicLong();
+    final long end = System.currentTimeMillis() + seconds*1000L;
+    final java.net.SocketAddress addr =
+      new java.net.InetSocketAddress("127.0.0.1", port);
+    Thread[] threads = new Thread[clients];
+
+    for (int i = 0; i < clients; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            echoClient(addr, block, end, echoed);
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    long start = System.currentTimeMillis(), last = 0;
+    while (System.currentTimeMillis() < end) {
+      Thread.sleep(1000);
+      long now = echoed.get();
+      System.out.printf("%8.1f MB/s%n", (now-last)/1e6);
+      last = now;
+    }
+
+    for (Thread t : threads)
+      t.join();
+    double time = (System.currentTimeMillis()-start)/1000.0;
+    System.out.printf("Average: %.1f MB/s%n", echoed.get()/time/1e6);
+  }
+
+  // Write a block and read it back until the time is up.
+  private static void echoClient(java.net.SocketAddress addr, int size,
+                                 long end, AtomicLong echoed)
+  throws Exception {
+    SocketChannel ch = SocketChannel.open(addr);
+    ch.socket().setTcpNoDelay(true);
+    ByteBuffer out = ByteBuffer.allocateDirect(size);
+    ByteBuffer in = ByteBuffer.allocateDirect(size);
+
+    try {
+      while (System.currentTimeMillis() < end) {
+        out.clear();
+        while (out.hasRemaining())
+          ch.write(out);
+        in.clear();
+        while (in.hasRemaining())
+          if (ch.read(in) < 0)
+            throw new ClosedChannelException();
+        echoed.addAndGet(size);
+      }
+    } finally {
+      ch.close();
+    }
+  }
+
   public static void benchmarkStreams() {
   }
 
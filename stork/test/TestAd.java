@@ -1,9 +1,15 @@
 package stork.test;
 
+import java.util.*;
+
+import io.netty.buffer.*;
+import io.netty.channel.embedded.*;
+import io.netty.util.CharsetUtil;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 import stork.ad.*;
+import stork.core.net.*;
 
 /** Tests for Ad. */
 public class TestAd {
@@ -23,4 +29,38 @@ public class TestAd {
       assertTrue(s.contains("0"));
     }
   }
+
+  // Decode ads from data arriving in pieces of the given size.
+  private static List<Ad> decode(String data, int piece) {
+    EmbeddedChannel ch = new EmbeddedChannel(new AdDecoder());
+    for (int i = 0; i < data.length(); i += piece) {
+      String s = data.substring(i, Math.min(i+piece, data.length()));
+      ch.writeInbound(Unpooled.copiedBuffer(s, CharsetUtil.UTF_8));
+    }
+    List<Ad> ads = new ArrayList<Ad>();
+    for (Ad ad; (ad = ch.readInbound()) != null;)
+      ads.add(ad);
+    return ads;
+  }
+
+  @Test
+  public void testAdDecoder() {
+    String data =
+      "junk # [ not an ad\n"+
+      "[ a = \"x]}\\\"{\" # ] ignored\n"+
+      "  b = 1 // } also ignored\n"+
+      "  c = { d = \"//#\" } ]\n"+
+      "// [ between ads\n"+
+      "{ e = 2 }";
+
+    for (int piece : new int[] { data.length(), 7, 1 }) {
+      List<Ad> ads = decode(data, piece);
+      assertEquals("Bad number of ads.", 2, ads.size());
+      Ad ad = ads.get(0);
+      assertEquals("Bad string.", "x]}\"{", ad.get("a"));
+      assertEquals("Bad value.", 1, ad.getInt("b"));
+      assertEquals("Bad nested string.", "//#", ad.getAd("c").get("d"));
+      assertEquals("Bad value.", 2, ads.get(1).getInt("e"));
+    }
+  }
 }
@@ -1,9 +1,12 @@
 package stork.test;
 
+import java.util.*;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 import stork.cred.*;
+import stork.feather.*;
 
 /** Tests for Cred. */
 public class TestCred {
@@ -31,4 +34,57 @@ public class TestCred {
     assertEquals("Cred equality failed.", a, b);
     assertNotEquals("Cred inequality failed.", a, c);
   }
+
+  @Test
+  public void testCredentialCache() {
+    final List<Bell<String>> fetches = new ArrayList<Bell<String>>();
+    final long[] life = { 3600*1000 };
+    CredentialCache<String,String> cache =
+      new CredentialCache<String,String>(24*3600*1000) {
+        protected Bell<String> fetch(String cred) {
+          Bell<String> bell = new Bell<String>();
+          fetches.add(bell);
+          return bell;
+        } protected long expiration(String value) {
+          return System.currentTimeMillis() + life[0];
+        }
+      };
+
+    Bell<String> a = cache.get("cred");
+    Bell<String> b = cache.get("cred");
+    assertEquals("Concurrent gets did not share a fetch.", 1, fetches.size());
+
+    fetches.get(0).ring("one");
+    assertEquals("Waiting get was not rung.", "one", a.sync());
+    assertEquals("Waiting get was not rung.", "one", b.sync());
+    assertEquals("Cached value was not used.", "one", cache.get("cred").sync());
+    assertEquals("Fresh value was refreshed.", 1, fetches.size());
+
+    // A value near expiration is still used, but refreshed.
+    cache.invalidate("cred");
+    life[0] = 2000;
+    cache.get("cred");
+    fetches.get(1).ring("two");
+    assertEquals("Cached value was not used.", "two", cache.get("cred").sync());
+    assertEquals("Fresh value was refreshed.", 2, fetches.size());
+    try {
+      Thread.sleep(1600);
+    } catch (InterruptedException e) { }
+    assertEquals("Valid value was not used.", "two", cache.get("cred").sync());
+    assertEquals("Value was not refreshed.", 3, fetches.size());
+
+    cache.get("other");
+    assertEquals("Different credentials shared a fetch.", 4, fetches.size());
+
+    // A credential which can't be fetched isn't kept.
+    assertEquals("Bad cache size.", 2, cache.size());
+    fetches.get(3).ring(new Exception("Bad password."));
+    for (int i = 0; i < 100 && cache.size() > 1; i++) try {
+      Thread.sleep(10);
+    } catch (InterruptedException e) { }
+    assertEquals("Failed credential was kept.", 1, cache.size());
+    cache.get("other");
+    assertEquals("Failed credential was not fetched again.",
+      5, fetches.size());
+  }
 }
@@ -0,0 +1,204 @@
+package stork.test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import stork.feather.*;
+import stork.feather.URI;
+import stork.feather.util.*;
+import stork.module.ftp.*;
+
+/** Tests for the FTP module. */
+public class TestFTP {
+  // A scripted FTP server for one client which serves files from a map. It
+  // advertises GridFTP extensions, and counts the data connections it makes.
+  private static class Server extends Thread {
+    final ServerSocket control;
+    final Map<String,String> files = new HashMap<String,String>();
+    final List<String> commands =
+      Collections.synchronizedList(new ArrayList<String>());
+    volatile boolean refusePort = false;
+    private int connections = 0;
+
+    Server(String... files) throws IOException {
+      control = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+      for (int i = 0; i < files.length; i += 2)
+        this.files.put("./"+files[i], files[i+1]);
+      setDaemon(true);
+      start();
+    }
+
+    URI uri() {
+      return URI.create("ftp://127.0.0.1:"+control.getLocalPort());
+    }
+
+    synchronized int connections() { return connections; }
+
+    private synchronized void connected() { connections++; }
+
+    public void run() {
+      try {
+        Socket s = control.accept();
+        try {
+          serve(new BufferedReader(
+            new InputStreamReader(s.getInputStream(), "UTF-8")),
+            s.getOutputStream());
+        } finally {
+          s.close();
+          control.close();
+        }
+      } catch (IOException e) {
+        // The client went away.
+      }
+    }
+
+    private void serve(BufferedReader in, OutputStream out)
+    throws IOException {
+      char mode = 'S';
+      Socket data = null;
+      ServerSocket pasv = null;
+
+      reply(out, "220 Ready.");
+      for (String line; (line = in.readLine()) != null;) {
+        commands.add(line);
+        String[] c = line.split(" ", 2);
+        String cmd = c[0].toUpperCase(), arg = (c.length > 1) ? c[1] : "";
+
+        if (cmd.equals("USER")) {
+          reply(out, "331 Password required.");
+        } else if (cmd.equals("PASS")) {
+          reply(out, "230 Logged in.");
+        } else if (line.equalsIgnoreCase("HELP")) {
+          reply(out, "214-Commands:\r\n ESTO ERET SPAS\r\n214 End.");
+        } else if (cmd.equals("MODE")) {
+          mode = arg.charAt(0);
+          reply(out, "200 Mode set.");
+        } else if (cmd.equals("PORT") && refusePort) {
+          reply(out, "500 Illegal PORT command.");
+        } else if (cmd.equals("PORT")) {
+          String[] p = arg.split(",");
+          String host = p[0]+"."+p[1]+"."+p[2]+"."+p[3];
+          int port = Integer.parseInt(p[4])*256 + Integer.parseInt(p[5]);
+          if (data != null)
+            data.close();
+          data = new Socket(host, port);
+          connected();
+          reply(out, "200 PORT command successful.");
+        } else if (cmd.equals("PASV")) {
+          pasv = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+          int port = pasv.getLocalPort();
+          reply(out, "227 Entering Passive Mode (127,0,0,1,"+
+            (port >> 8)+","+(port & 255)+").");
+        } else if (cmd.equals("RETR")) {
+          String file = files.get(arg);
+          if (file == null) {
+            reply(out, "550 No such file.");
+            continue;
+          }
+          byte[] bytes = file.getBytes("UTF-8");
+          reply(out, "150 Opening data connection.");
+          if (mode == 'E') {
+            // Send one block, then end of data without closing.
+            DataOutputStream d = new DataOutputStream(data.getOutputStream());
+            d.writeByte(0);
+            d.writeLong(bytes.length);
+            d.writeLong(0);
+            d.write(bytes);
+            d.writeByte(64);
+            d.writeLong(0);
+            d.writeLong(0);
+            d.flush();
+          } else {
+            Socket d = pasv.accept();
+            connected();
+            d.getOutputStream().write(bytes);
+            d.close();
+            pasv.close();
+          }
+          reply(out, "226 Transfer complete.");
+        } else if (cmd.equals("QUIT")) {
+          reply(out, "221 Goodbye.");
+          break;
+        } else {
+          reply(out, "200 Okay.");
+        }
+      }
+
+      if (data != null)
+        data.close();
+    }
+
+    private void reply(OutputStream out, String reply) throws IOException {
+      out.write((reply+"\r\n").getBytes("UTF-8"));
+      out.flush();
+    }
+  }
+
+  // Read everything from a tap.
+  private static Bell<String> read(Tap tap) {
+    final StringBuilder got = new StringBuilder();
+    final Bell<String> result = new Bell<String>();
+    tap.attach(new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        got.append(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+        return null;
+      } public void finish(Throwable t) {
+        if (t == null)
+          result.ring(got.toString());
+        else
+          result.ring(t);
+      }
+    });
+    tap.start();
+    return result;
+  }
+
+  private static String read(FTPSession session, String path) {
+    return read(session.select(Path.create(path)).tap()).sync();
+  }
+
+  @Test(timeout = 5000)
+  public void testDataChannelReuse() throws Exception {
+    Server server = new Server("a", "hello", "b", "world");
+    FTPSession session = new FTPSession(server.uri(), null)
+      .cacheDataChannels(true).extendedMode(true);
+
+    assertEquals("Bad data.", "hello", read(session, "/a"));
+    assertEquals("Bad data.", "world", read(session, "/b"));
+    assertTrue("Extended block mode was not used.",
+      server.commands.contains("MODE E"));
+    assertEquals("Data connection was not reused.", 1, server.connections());
+    session.close();
+  }
+
+  @Test(timeout = 5000)
+  public void testExtendedModeFallback() throws Exception {
+    Server server = new Server("a", "hello", "b", "world");
+    server.refusePort = true;
+    FTPSession session = new FTPSession(server.uri(), null).extendedMode(true);
+
+    assertEquals("Bad data.", "hello", read(session, "/a"));
+    assertEquals("Bad data.", "world", read(session, "/b"));
+    assertTrue("Did not fall back to stream mode.",
+      server.commands.contains("MODE S"));
+    session.close();
+  }
+
+  @Test(timeout = 5000)
+  public void testStreamModeByDefault() throws Exception {
+    Server server = new Server("a", "hello", "b", "world");
+    FTPSession session = new FTPSession(server.uri(), null);
+
+    assertEquals("Bad data.", "hello", read(session, "/a"));
+    assertEquals("Bad data.", "world", read(session, "/b"));
+    assertFalse("Extended block mode was used without being enabled.",
+      server.commands.contains("MODE E"));
+    assertEquals("Bad number of data connections.", 2, server.connections());
+    session.close();
+  }
+}
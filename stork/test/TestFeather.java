@@ -1,11 +1,15 @@
 package stork.test;
 
 import java.io.*;
+import java.net.*;
+import java.util.*;
 
+import io.netty.util.CharsetUtil;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 import stork.feather.*;
+import stork.feather.net.*;
 import stork.feather.util.*;
 
 /** Tests for Feather. */
@@ -84,6 +88,38 @@ public class TestFeather {
     assertEquals("Third queued emit failed.", c.sync(), "three");
   }
 
+  @Test public void testPath() {
+    Path a = Path.create("/one/two/three");
+    Path b = Path.ROOT.append("one//two").appendLiteral("three");
+    assertSame("Equal paths were not canonical.", a, b);
+    assertEquals("Bad path string.", "/one/two/three", a.toString());
+    assertEquals("Path hash differs from string hash.",
+      a.toString().hashCode(), a.hashCode());
+    assertSame("Path parent was not shared.", a.up(), Path.create("/one/two"));
+    assertTrue("Path prefix failed.", a.up(2).prefixes(a));
+    assertFalse("Path prefix succeeded.", a.prefixes(a.up()));
+
+    Path r = Path.create("../x/y");
+    assertEquals("Bad relative path string.", "../x/y", r.toString());
+    assertSame("Relative path was not canonical.", r, Path.create("../x/y"));
+    assertSame("Appended relative path was wrong.",
+      Path.create("/one/x/y"), a.up().append(r));
+
+    Path g = Path.create("/one/t*");
+    assertNotSame("Glob and literal were equal.", g, Path.ROOT.append("one")
+      .appendLiteral("t*"));
+    assertTrue("Glob did not match.", g.matches(a.up(1)));
+    assertFalse("Glob matched.", g.matches(Path.create("/one/x")));
+    assertTrue("Glob did not match.",
+      Path.create("/*/t*o/*e").matches(a));
+    assertFalse("Glob matched a longer path.",
+      Path.create("/*/*").matches(a));
+    assertFalse("Glob matched a shorter path.",
+      Path.create("/*/*").matches(Path.create("/one")));
+    assertFalse("Glob matched the root.", Path.create("/*").matches(Path.ROOT));
+    assertTrue("Root did not match itself.", Path.ROOT.matches(Path.ROOT));
+  }
+
   @Test(timeout = 3000)
   public void testTapAsInputStream() throws Exception {
     String expect = "This is the expected string.";
@@ -96,4 +132,511 @@ public class TestFeather {
 
     assertEquals("Read bad string: "+got, got, expect);
   }
+
+  @Test(timeout = 3000)
+  public void testTee() throws Exception {
+    String expect = "This is the expected string.";
+    Pipes.AggregatorSink a = Pipes.aggregatorSink(),
+                         b = Pipes.aggregatorSink();
+    Sink broken = new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        slice.asByteBuf().release();
+        return new Bell(new Exception("Broken sink."));
+      } public void finish(Throwable t) { }
+    };
+    Tap tap = Pipes.tapFromString(expect);
+    tap.attach(new Tee(a, broken, b) {
+      protected boolean drop(Sink sink, Throwable error) { return true; }
+    });
+    tap.start();
+
+    String gotA = a.bell().sync().asByteBuf().toString(CharsetUtil.UTF_8);
+    String gotB = b.bell().sync().asByteBuf().toString(CharsetUtil.UTF_8);
+    assertEquals("First sink got bad string: "+gotA, expect, gotA);
+    assertEquals("Second sink got bad string: "+gotB, expect, gotB);
+  }
+
+  @Test(timeout = 3000)
+  public void testBufferedPipe() throws Exception {
+    final StringBuilder expect = new StringBuilder(), got = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+      expect.append(i).append(' ');
+
+    // Emit each number as a slice without waiting for the sink.
+    Tap tap = new Tap(Resources.anonymous()) {
+      public Bell start(Bell bell) {
+        return bell.new Promise() {
+          public void done() {
+            for (int i = 0; i < 100; i++)
+              drain(new Slice((i+" ").getBytes()));
+            finish();
+          }
+        };
+      }
+    };
+
+    // A slow sink which finishes each drain a little later.
+    final Bell<String> result = new Bell<String>();
+    Sink sink = new Sink(Resources.anonymous()) {
+      public Bell drain(final Slice slice) {
+        final Bell bell = new Bell();
+        Bell.dispatch(new Runnable() {
+          public void run() {
+            got.append(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+            bell.ring();
+          }
+        }, .001);
+        return bell;
+      } public void finish(Throwable t) {
+        result.ring(got.toString());
+      }
+    };
+
+    tap.attach(Pipes.buffer(64)).attach(sink);
+    tap.start();
+    assertEquals("Buffered slices were reordered.",
+      expect.toString(), result.sync());
+  }
+
+  @Test(timeout = 3000)
+  public void testRechunker() throws Exception {
+    final String[] parts = { "ab", "cdefghijklmnopq", "r", "stuvwxyz0123" };
+    final StringBuilder got = new StringBuilder(), chunks = new StringBuilder();
+
+    // Emit the parts starting at offset 2.
+    Tap tap = new Tap(Resources.anonymous()) {
+      public Bell start(Bell bell) {
+        return bell.new Promise() {
+          public void done() {
+            drain(new Slice(parts[0].getBytes(), 2));
+            for (int i = 1; i < parts.length; i++)
+              drain(new Slice(parts[i].getBytes()));
+            finish();
+          }
+        };
+      }
+    };
+
+    final Bell<String> result = new Bell<String>();
+    Sink sink = new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        got.append(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+        chunks.append(slice.offset()).append('+').append(slice.length())
+              .append(' ');
+        slice.asByteBuf().release();
+        return null;
+      } public void finish(Throwable t) {
+        result.ring(chunks.toString());
+      }
+    };
+
+    tap.attach(new Rechunker(8, 4)).attach(sink);
+    tap.start();
+    assertEquals("Bad chunks.", "2+6 8+8 16+8 24+8 ", result.sync());
+    assertEquals("Rechunked data was wrong.",
+      "abcdefghijklmnopqrstuvwxyz0123", got.toString());
+  }
+
+  @Test public void testRanges() {
+    Ranges r = new Ranges().add(10, 20).add(30, 40).add(20, 25);
+    assertEquals("Bad ranges.", "10-25,30-40", r.toString());
+    assertEquals("Ranges did not parse.", r, Ranges.parse(r.toString()));
+    assertTrue("Range not contained.", r.contains(12, 25));
+    assertFalse("Range contained.", r.contains(20, 31));
+    assertEquals("Bad missing ranges.", "0-10,25-30,40-50",
+      r.missing(50).toString());
+    assertEquals("Bad merged ranges.", "0-50",
+      r.add(0, 10).add(24, 41).add(41, 50).toString());
+  }
+
+  @Test(timeout = 3000)
+  public void testReorderer() throws Exception {
+    final String[] parts = { "ghi", "abc", "jkl", "def" };
+    final long[] offsets = { 6, 0, 9, 3 };
+    final StringBuilder got = new StringBuilder();
+
+    Tap tap = new Tap(Resources.anonymous()) {
+      public Bell start(Bell bell) {
+        return bell.new Promise() {
+          public void done() {
+            for (int i = 0; i < parts.length; i++)
+              drain(new Slice(parts[i].getBytes(), offsets[i]));
+            finish();
+          }
+        };
+      }
+    };
+
+    final Bell<String> result = new Bell<String>();
+    final Sink sink = new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        got.append(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+        return null;
+      } public void finish(Throwable t) {
+        result.ring(got.toString());
+      }
+    };
+
+    tap.attach(new Reorderer()).attach(sink);
+    tap.start();
+    assertEquals("Slices were not reordered.", "abcdefghijkl", result.sync());
+    assertEquals("Bad completed ranges.", "0-12", sink.completed().toString());
+  }
+
+  // A Reorderer which can be drained directly.
+  private static class TestReorderer extends Reorderer {
+    TestReorderer(long limit) { super(0, limit); }
+
+    Bell drain(String data, long offset) throws Exception {
+      return drain(new Slice(data.getBytes(), offset));
+    }
+  }
+
+  @Test(timeout = 3000)
+  public void testReordererLimit() throws Exception {
+    final StringBuilder got = new StringBuilder();
+    Tap tap = new Tap(Resources.anonymous()) {
+      public Bell start(Bell bell) { return bell; }
+    };
+    Sink sink = new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        synchronized (got) {
+          got.append(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+        } return null;
+      } public void finish(Throwable t) { }
+    };
+
+    TestReorderer r = new TestReorderer(4);
+    tap.attach(r).attach(sink);
+    tap.start().sync();
+
+    assertEquals("Bad window.", 4, r.window());
+    assertTrue("Held data under the limit held up the pipe.",
+      r.drain("def", 3).isDone());
+    Bell over = r.drain("ghi", 6);
+    assertFalse("Held data over the limit didn't hold up the pipe.",
+      over.isDone());
+    r.drain("abc", 0);
+    over.sync();
+
+    for (int i = 0; i < 100 && got.length() < 9; i++)
+      Thread.sleep(10);
+    synchronized (got) {
+      assertEquals("Slices were not reordered.", "abcdefghi", got.toString());
+    }
+  }
+
+  @Test(timeout = 3000)
+  public void testDispatcherOrder() throws Exception {
+    Dispatcher dispatcher = new Dispatcher("Test Dispatcher");
+    final List<Integer> order =
+      Collections.synchronizedList(new ArrayList<Integer>());
+    final Bell<Object> done = new Bell<Object>();
+
+    for (int i = 0; i < 1000; i++) {
+      final int n = i;
+      dispatcher.dispatch(new Runnable() {
+        public void run() {
+          order.add(n);
+          if (n == 999) done.ring();
+        }
+      }, .01);
+    }
+
+    done.sync();
+    for (int i = 0; i < 1000; i++)
+      assertEquals("Tasks ran out of order.", i, (int) order.get(i));
+  }
+
+  @Test(timeout = 3000)
+  public void testBudget() {
+    Budget root = new Budget(100);
+    Budget a = root.child(60), b = root.child(0);
+
+    assertTrue("Reservation wasn't granted.", a.reserve(50).isDone());
+    Bell<Long> heldByA = a.reserve(20);
+    assertFalse("Reservation over the limit was granted.", heldByA.isDone());
+    assertTrue("Reservation was held up by another sub-budget.",
+      b.reserve(40).isDone());
+    Bell<Long> heldByRoot = b.reserve(20);
+    assertFalse("Reservation over the limit was granted.",
+      heldByRoot.isDone());
+    assertFalse("Reservation jumped the queue.", b.tryReserve(1));
+    assertEquals("Bad number waiting.", 2, root.waiting());
+
+    a.release(50);
+    assertEquals("Reservation wasn't granted.", 20, (long) heldByA.sync());
+    assertEquals("Reservation wasn't granted.", 20, (long) heldByRoot.sync());
+    assertEquals("Bad number waiting.", 0, root.waiting());
+    assertEquals("Bad amount used.", 80, root.used());
+    assertEquals("Bad amount used.", 20, a.used());
+    assertEquals("Bad peak.", 90, root.peak());
+
+    // A cancelled reservation is never counted.
+    Bell<Long> cancelled = root.reserve(50);
+    cancelled.cancel();
+    a.release(20);
+    assertEquals("Cancelled reservation was counted.", 60, root.used());
+
+    // A reservation larger than the limit is granted when nothing is used.
+    Budget small = new Budget(10);
+    assertTrue("Large reservation wasn't granted.",
+      small.reserve(50).isDone());
+    Bell<Long> next = small.reserve(1);
+    assertFalse("Reservation over the limit was granted.", next.isDone());
+    small.release(50);
+    assertTrue("Reservation wasn't granted.", next.isDone());
+  }
+
+  @Test(timeout = 3000)
+  public void testTapBudget() throws Exception {
+    final Budget budget = new Budget(64*1024);
+    final Bell<Long> peak = new Bell<Long>();
+
+    Tap tap = new Tap(Resources.anonymous()) {
+      public Bell start(Bell bell) {
+        return bell.new Promise() {
+          public void done() { next(0); }
+        };
+      } void next(final int i) {
+        if (i == 1000) {
+          finish();
+        } else drain(new Slice(new byte[1024])).new Promise() {
+          public void done() { next(i+1); }
+        };
+      }
+    };
+    tap.budget(budget).attach(new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        return Bell.timerBell(0);
+      } public void finish(Throwable t) {
+        peak.ring(budget.peak());
+      }
+    });
+    tap.start();
+
+    assertTrue("Budget was exceeded.", peak.sync() <= 64*1024+1024);
+    for (int i = 0; i < 100 && budget.used() > 0; i++)
+      Thread.sleep(10);
+    assertEquals("Budget wasn't given back.", 0, budget.used());
+  }
+
+  @Test(timeout = 3000)
+  public void testDNSResolver() throws Exception {
+    DNSResolver.Stub dns = new DNSResolver.Stub(200, 200);
+    dns.add("example.org", "10.0.0.1", "::1", "10.0.0.2", "::2").delay(50);
+
+    // Concurrent lookups should share one query, and later ones be cached.
+    Bell<InetAddress[]> a = dns.lookupAll("example.org");
+    Bell<InetAddress[]> b = dns.lookupAll("EXAMPLE.org");
+    assertArrayEquals("Lookups differ.", a.sync(), b.sync());
+    dns.lookupAll("example.org").sync();
+    assertEquals("Lookups were not shared.", 1, dns.queries());
+
+    // Addresses should alternate families, preferring the first one.
+    InetAddress[] ia = a.sync();
+    assertEquals("Bad address order.", "10.0.0.1", ia[0].getHostAddress());
+    assertTrue("Bad address order.", ia[1] instanceof Inet6Address);
+    assertEquals("Bad address order.", "10.0.0.2", ia[2].getHostAddress());
+
+    // Failures should be cached too.
+    for (int i = 0; i < 2; i++) try {
+      dns.lookup("nowhere.org").sync();
+      fail("Unknown host was resolved.");
+    } catch (RuntimeException e) { }
+    assertEquals("Failure was not cached.", 2, dns.queries());
+
+    // Literals need no query, and expired answers are looked up again.
+    dns.lookup("127.0.0.1").sync();
+    Thread.sleep(250);
+    dns.lookup("example.org").sync();
+    assertEquals("Bad query count.", 3, dns.queries());
+  }
+
+  @Test(timeout = 3000)
+  public void testCounter() throws Exception {
+    final Counter counter = new Counter();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 100000; j++)
+            counter.increment();
+        }
+      };
+      threads[i].start();
+    } for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals("Bad counter sum.", 400000, counter.sum());
+
+    TransferInfo info = new TransferInfo();
+    Meter meter = new Meter(info).start();
+    meter.add(1000, 4000);
+    meter.add(1000);
+    Thread.sleep(Meter.TICK*3/2);
+    assertEquals("Meter was not sampled.", 2000, info.snapshot().done);
+    assertTrue("Bad instantaneous rate.", info.snapshot().inst > 0);
+    meter.add(500);
+    meter.stop();
+    TransferInfo last = info.snapshot();
+    assertEquals("Bad final progress.", 2500, last.done);
+    assertEquals("Bad final total.", 4000, last.total);
+    assertTrue("Bad average rate.", last.avg > 0);
+    assertTrue("Bad time remaining.", last.eta > 0);
+    assertEquals("Rate should stop with the meter.", 0, last.inst, 0);
+  }
+
+  @Test(timeout = 10000)
+  public void testPauseResume() throws Exception {
+    File dir = File.createTempFile("feather", "");
+    dir.delete();
+    File src = new File(dir, "src"), dest = new File(dir, "dest");
+    src.mkdirs();
+    dest.mkdirs();
+
+    byte[] data = new byte[8 << 20];
+    new java.util.Random(1).nextBytes(data);
+    for (int i = 0; i < 3; i++) {
+      FileOutputStream out = new FileOutputStream(new File(src, "f"+i));
+      out.write(data);
+      out.close();
+    }
+
+    // Pause, then pick up on new sessions, a few times over. The first pause
+    // comes before the transfer has begun, and the rest while data is
+    // moving.
+    ProxyTransfer t = pauseResumeTransfer(src, dest);
+    t.start();
+    for (int i = 0; i < 3 && !t.isDone(); i++) {
+      long moved = Transfer.bytesMoved();
+      while (i > 0 && Transfer.bytesMoved()-moved < (1 << 20) && !t.isDone())
+        Thread.sleep(1);
+      t.pause().sync();
+      assertTrue("Transfer should be paused.", t.isPaused());
+      ProxyTransfer next = pauseResumeTransfer(src, dest).resumeFrom(t);
+      next.start();
+      t = next;
+    }
+    t.onStop().sync();
+
+    for (int i = 0; i < 3; i++) {
+      File f = new File(dest, "f"+i);
+      assertEquals("Bad size after resuming.", data.length, f.length());
+      DataInputStream in = new DataInputStream(new FileInputStream(f));
+      byte[] got = new byte[data.length];
+      in.readFully(got);
+      in.close();
+      assertTrue("Bad data after resuming.",
+                 java.util.Arrays.equals(data, got));
+      f.delete();
+      new File(src, "f"+i).delete();
+    }
+    src.delete();
+    dest.delete();
+    dir.delete();
+
+    Thread.sleep(Meter.TICK*3/2);
+    assertEquals("Bytes were counted twice.", 3*data.length, t.info.done);
+    assertEquals("Files were counted twice.", 3, t.files.done);
+  }
+
+  private static ProxyTransfer pauseResumeTransfer(File src, File dest) {
+    return new ProxyTransfer(
+      new LocalSession(Path.create(src.getPath())).root(),
+      new LocalSession(Path.create(dest.getPath())).root());
+  }
+
+  // A source tree of directories holding one-byte files, counting how often
+  // each directory is listed.
+  private static Resource tree(
+      final int dirs, final int files, final Map<Path,Integer> listings) {
+    return new Session(stork.feather.URI.create("tree://test"), null) {
+      public Resource select(final Path path) {
+        return new Resource(this, path) {
+          public Bell<Stat> stat() {
+            Stat stat = new Stat(path.name());
+            int n = path.length();
+            if (n == 2) {
+              stat.file = true;
+              stat.size = 1;
+              return new Bell<Stat>(stat);
+            }
+            synchronized (listings) {
+              Integer c = listings.get(path);
+              listings.put(path, (c == null) ? 1 : c+1);
+            }
+            stat.dir = true;
+            stat.files = new Stat[(n == 0) ? dirs : files];
+            for (int i = 0; i < stat.files.length; i++) {
+              stat.files[i] = new Stat(((n == 0) ? "d" : "f")+i);
+              stat.files[i].dir = n == 0;
+              stat.files[i].file = n != 0;
+              stat.files[i].size = (n == 0) ? 0 : 1;
+            }
+            return new Bell<Stat>(stat);
+          } public Tap tap() {
+            return Pipes.tapFromSlice(this, new Slice(new byte[] { 1 }));
+          }
+        };
+      }
+    }.root();
+  }
+
+  private static void prescan(int dirs, int files) throws Exception {
+    File dest = File.createTempFile("feather", "");
+    dest.delete();
+    dest.mkdirs();
+    Map<Path,Integer> listings = new HashMap<Path,Integer>();
+
+    ProxyTransfer t = new ProxyTransfer(
+      tree(dirs, files, listings),
+      new LocalSession(Path.create(dest.getPath())).root()).prescan(4);
+    t.start().onStop().sync();
+
+    assertEquals("Bad file total.", dirs*files, t.files.total);
+    assertEquals("Bad byte total.", dirs*files, t.info.total);
+    assertEquals("Not every directory was listed.", dirs+1, listings.size());
+    int twice = 0;
+    for (int c : listings.values()) {
+      assertTrue("Directory was listed too often.", c <= 2);
+      if (c > 1) twice++;
+    }
+    if (dirs < 1024)
+      assertEquals("Listings were not shared.", 0, twice);
+
+    for (int i = 0; i < dirs; i++) {
+      File d = new File(dest, "d"+i);
+      assertEquals("Bad number of files.", files, d.list().length);
+      for (File f : d.listFiles())
+        f.delete();
+      d.delete();
+    }
+    dest.delete();
+  }
+
+  @Test public void testSessionConcurrency() {
+    ProxyTransfer t = new ProxyTransfer(
+      new LocalSession(Path.ROOT).root(),
+      new LocalSession(Path.ROOT) {
+        public int concurrency() { return 2; }
+      }.root()).concurrency(4);
+    assertEquals("Session limit was ignored.", 2, t.streams());
+    t.limitStreams(1);
+    assertEquals("Stream limit was ignored.", 1, t.streams());
+    t.concurrency(0);
+    t.limitStreams(0);
+    assertEquals("Session limit was ignored.", 2, t.streams());
+  }
+
+  @Test(timeout = 10000)
+  public void testPrescan() throws Exception {
+    prescan(20, 5);
+  }
+
+  @Test(timeout = 30000)
+  public void testPrescanLarge() throws Exception {
+    // More directories than the scan keeps listings for.
+    prescan(3000, 1);
+  }
 }
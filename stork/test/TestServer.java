@@ -0,0 +1,324 @@
+package stork.test;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import stork.core.*;
+import stork.core.net.*;
+import stork.core.server.*;
+import stork.cred.*;
+import stork.feather.*;
+import stork.feather.URI;
+import stork.feather.util.*;
+import stork.scheduler.*;
+
+/** Tests for the server. */
+public class TestServer {
+  // A Tap which drains what the test gives it.
+  private static class PushTap extends Tap {
+    PushTap(Resource resource) { super(resource); }
+
+    protected Bell start(Bell bell) { return bell; }
+
+    Bell push(String data) { return drain(new Slice(data.getBytes())); }
+
+    void end() { finish(); }
+  }
+
+  // A file read with the given credential. Fetches are added to fetches.
+  private static Resource file(
+      Credential cred, final List<PushTap> fetches, String data) {
+    final Stat stat = new Stat();
+    stat.file = true;
+    stat.size = data.length();
+    stat.time = 1;
+    return new Session(URI.create("ftp://example.org"), cred) {
+      public Resource select(Path path) {
+        return new Resource(this, path) {
+          public Bell<Stat> stat() {
+            return new Bell<Stat>(stat);
+          } public Tap tap() {
+            PushTap tap = new PushTap(this);
+            fetches.add(tap);
+            return tap;
+          }
+        };
+      }
+    }.select(Path.create("/file"));
+  }
+
+  // Read everything from a tap.
+  private static Bell<String> read(Tap tap) {
+    final StringBuilder got = new StringBuilder();
+    final Bell<String> result = new Bell<String>();
+    tap.attach(new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        got.append(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+        return null;
+      } public void finish(Throwable t) {
+        if (t == null)
+          result.ring(got.toString());
+        else
+          result.ring(t);
+      }
+    });
+    tap.start();
+    return result;
+  }
+
+  private static ContentCache cache() throws Exception {
+    File dir = Files.createTempDirectory("cache").toFile();
+    dir.deleteOnExit();
+    return new ContentCache(dir.getPath(), 1024);
+  }
+
+  @Test(timeout = 3000)
+  public void testContentCache() throws Exception {
+    ContentCache cache = cache();
+    List<PushTap> fetches =
+      Collections.synchronizedList(new ArrayList<PushTap>());
+    Credential alice = new StorkUserinfo("alice", "secret");
+
+    Bell<String> first = read(cache.tap(file(alice, fetches, "hello")).sync());
+    assertEquals("File was not fetched.", 1, fetches.size());
+    fetches.get(0).push("hello");
+    fetches.get(0).end();
+    assertEquals("Bad data from cache.", "hello", first.sync());
+
+    alice = new StorkUserinfo("alice", "secret");
+    Bell<String> second =
+      read(cache.tap(file(alice, fetches, "hello")).sync());
+    assertEquals("Bad data from cache.", "hello", second.sync());
+    assertEquals("Cached file was fetched again.", 1, fetches.size());
+
+    Credential mallory = new StorkUserinfo("mallory", "guess");
+    read(cache.tap(file(mallory, fetches, "hello")).sync());
+    assertEquals("Cached file was served for another credential.",
+      2, fetches.size());
+  }
+
+  @Test(timeout = 3000)
+  public void testContentCacheCancel() throws Exception {
+    ContentCache cache = cache();
+    List<PushTap> fetches =
+      Collections.synchronizedList(new ArrayList<PushTap>());
+    Resource file = file(null, fetches, "hello");
+
+    // A reader which leaves as soon as it gets anything.
+    Tap tap = cache.tap(file).sync();
+    tap.attach(new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        return new Bell(new IOException("Client went away."));
+      } public void finish(Throwable t) { }
+    });
+    tap.start();
+
+    PushTap fill = fetches.get(0);
+    fill.push("he");
+    Bell bell = null;
+    for (int i = 0; i < 100; i++) try {
+      (bell = fill.push("l")).sync();
+      Thread.sleep(10);
+    } catch (Exception e) {
+      break;
+    }
+    assertTrue("Fetch was not cancelled.", bell.isFailed());
+
+    cache.tap(file).sync();
+    assertEquals("Cancelled fetch was reused.", 2, fetches.size());
+  }
+
+  private static Job job(int id, JobStatus status) {
+    Job job = new Job().jobId(id).status(status).message("job "+id);
+    job.owner = "alice@example.org";
+    return job;
+  }
+
+  @Test(timeout = 3000)
+  public void testJobArchive() throws Exception {
+    File dir = Files.createTempDirectory("archive").toFile();
+    dir.deleteOnExit();
+    JobArchive archive = new JobArchive(dir.getPath());
+    Job a = job(1, JobStatus.complete), b = job(2, JobStatus.failed);
+
+    archive.archive(Arrays.asList(a, b));
+    assertTrue("Segment was not written.",
+      new File(dir, "000000.seg").length() > 0);
+    assertEquals("Bad archive size.", 2, archive.size());
+    assertTrue("Job is not in the index.", archive.contains(a.uuid()));
+    assertEquals("Bad status in the index.",
+      JobStatus.failed, archive.status(b.uuid()));
+    assertNull("Unknown job is in the index.",
+      archive.status(UUID.randomUUID()));
+
+    // Archiving a job again replaces its index entry.
+    archive.archive(Arrays.asList(b.status(JobStatus.removed)));
+
+    archive = new JobArchive(dir.getPath());
+    assertEquals("Bad archive size after reload.", 2, archive.size());
+    assertEquals("Bad status after reload.",
+      JobStatus.removed, archive.status(b.uuid()));
+    Job loaded = archive.load(a.uuid());
+    assertNotNull("Job could not be loaded.", loaded);
+    assertEquals("Bad job loaded.", 1, loaded.jobId());
+    assertEquals("Bad job loaded.", "job 1", loaded.message());
+    assertEquals("Bad job loaded.", JobStatus.complete, loaded.status());
+    assertEquals("Bad job loaded.", JobStatus.removed,
+      archive.load(b.uuid()).status());
+  }
+
+  // An admission controller told how many jobs are running and waiting.
+  private static class Admission extends AdmissionController {
+    int running, waiting;
+
+    Admission(Config config) { super(config); }
+
+    protected int running() { return running; }
+    protected int waiting() { return waiting; }
+    protected void limitsChanged() { }
+
+    public boolean adjust(double goodput, long lag, double heap) {
+      return super.adjust(goodput, lag, heap);
+    }
+
+    boolean adjust(double goodput) { return adjust(goodput, 0, 0); }
+  }
+
+  private static Config admissionConfig(int jobs) {
+    Config config = new Config();
+    config.max_jobs = jobs;
+    config.max_streams = 4;
+    config.admission_interval = 0;
+    return config;
+  }
+
+  @Test
+  public void testAdmissionIncrease() {
+    Admission a = new Admission(admissionConfig(2));
+    a.waiting = 1;
+
+    a.running = 2;
+    assertTrue("Limit was not raised.", a.adjust(100));
+    assertEquals("Bad job limit.", 3, a.jobs());
+    a.running = 3;
+    a.adjust(200);
+    assertEquals("Limit was not raised while goodput rose.", 4, a.jobs());
+
+    // Hold on a plateau, then try again.
+    a.running = 4;
+    for (int i = 0; i < 6; i++) {
+      assertFalse("Limit changed on a plateau.", a.adjust(200));
+      assertEquals("Bad job limit.", 4, a.jobs());
+    }
+    a.adjust(200);
+    assertEquals("Limit was not raised after holding.", 5, a.jobs());
+
+    // Step back when goodput falls.
+    a.running = 5;
+    a.adjust(100);
+    assertEquals("Limit was not lowered when goodput fell.", 4, a.jobs());
+
+    // Nothing is gained by raising the limit without a backlog.
+    a.running = 3;
+    a.waiting = 0;
+    assertFalse("Limit changed without a backlog.", a.adjust(1000));
+    assertEquals("Bad job limit.", 4, a.jobs());
+  }
+
+  @Test
+  public void testAdmissionBackoff() {
+    Admission a = new Admission(admissionConfig(10));
+    long lag = 1000*1000*1000;
+    a.running = 10;
+    assertEquals("Bad stream limit.", 4, a.streams());
+
+    // Cut the job limit multiplicatively, then the stream limit.
+    int[] jobs    = { 7, 4, 2, 1, 1, 1, 1 };
+    int[] streams = { 4, 4, 4, 4, 2, 1, 1 };
+    for (int i = 0; i < jobs.length; i++) {
+      a.adjust(0, lag, 0);
+      assertEquals("Bad job limit.", jobs[i], a.jobs());
+      assertEquals("Bad stream limit.", streams[i], a.streams());
+    }
+
+    // Streams come back additively once the host is healthy.
+    a.running = 1;
+    for (int s = 2; s <= 4; s++) {
+      a.adjust(0);
+      assertEquals("Bad stream limit.", s, a.streams());
+    }
+    a.adjust(0);
+    assertEquals("Stream limit exceeded max_streams.", 4, a.streams());
+
+    // Heap pressure counts as overload too.
+    a.adjust(0, 0, .95);
+    assertEquals("Bad stream limit.", 2, a.streams());
+  }
+
+  private static void write(File file, String data) throws IOException {
+    file.getParentFile().mkdirs();
+    Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    w.write(data);
+    w.close();
+  }
+
+  // Get a page from a server, or the response code if it's not 200.
+  private static String get(String url) throws IOException {
+    HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+    if (c.getResponseCode() != 200)
+      return String.valueOf(c.getResponseCode());
+    BufferedReader r = new BufferedReader(
+      new InputStreamReader(c.getInputStream(), "UTF-8"));
+    try {
+      return r.readLine();
+    } finally {
+      r.close();
+    }
+  }
+
+  // Start a static server on a free port, and wait until it's listening.
+  // Another process may take the port before we bind it, so try a few.
+  private static String staticServer(File root) throws Exception {
+    for (int i = 0; ; i++) {
+      ServerSocket ss = new ServerSocket(0);
+      int port = ss.getLocalPort();
+      ss.close();
+      String url = "http://127.0.0.1:"+port;
+      HTTPServer.createStaticServer(URI.create(url+"/"), root.getPath());
+      try {
+        HTTPServer.create("127.0.0.1", port).bound().sync();
+        return url;
+      } catch (Exception e) {
+        if (i == 4) throw e;
+      }
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testStaticRoute() throws Exception {
+    File dir = Files.createTempDirectory("web").toFile();
+    File root = new File(dir, "root");
+    write(new File(root, "index.html"), "index");
+    write(new File(root, "a b.txt"), "spaced");
+    write(new File(root, "a[1]*.txt"), "glob");
+    write(new File(root, "sub/index.html"), "sub");
+    write(new File(dir, "rootless.txt"), "secret");
+
+    String url = staticServer(root);
+
+    assertEquals("Bad file served.", "index", get(url+"/index.html"));
+    assertEquals("Bad file served.", "spaced", get(url+"/a%20b.txt"));
+    assertEquals("Bad file served.", "glob", get(url+"/a%5B1%5D%2A.txt"));
+    assertEquals("Bad directory index.", "sub", get(url+"/sub/"));
+    assertEquals("Missing file wasn't given the index.",
+      "index", get(url+"/nothing/here"));
+    assertFalse("File outside the root was served.",
+      "secret".equals(get(url+"/%2E%2E/rootless.txt")));
+  }
+}
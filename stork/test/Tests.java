@@ -8,6 +8,8 @@ import org.junit.runners.Suite;
   TestAd.class,
   TestFeather.class,
   TestCred.class,
+  TestServer.class,
+  TestFTP.class,
 })
 
 public class Tests { }
@@ -1,58 +1,398 @@
 package stork.util;
 
-import java.util.logging.*;
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.Level;
 import static java.util.logging.Level.*;
 
 // A slightly more convenient logging utility.
+//
+// Logging calls never block and never format anything on the calling thread.
+// A call that passes the level check captures its arguments in a record and
+// puts it in a fixed-size ring buffer, and a background thread stringifies
+// and writes records in order. If the ring is full, records are dropped and
+// counted rather than making the caller wait. Since arguments are formatted
+// later, callers should pass values that won't change underneath the logger,
+// or guard expensive arguments with isLoggable().
+//
+// Levels can be set per category. Categories are dot-separated names which
+// inherit the level of their parent, e.g. "ftp.data" inherits from "ftp",
+// which inherits from the root category. They can be set at runtime or with
+// system properties:
+//
+//   stork.log.level=FINE            the root level (default INFO)
+//   stork.log.level.ftp=FINER       the level for the ftp category
+//   stork.log.callers=true          include the calling method in output
+//   stork.log.buffer=8192           the number of records to buffer
 
 public abstract class Log {
-  private final static Logger log = Logger.getAnonymousLogger();
   public static boolean just_log_to_stdout_who_cares = false;
 
+  private static final Map<String,Level> levels =
+    new ConcurrentHashMap<String,Level>();
+  private static final ConcurrentMap<String,Category> categories =
+    new ConcurrentHashMap<String,Category>();
+  private static volatile int version = 0;  // Bumped when levels change.
+  private static volatile boolean callers =
+    Boolean.getBoolean("stork.log.callers");
+
+  private static final Ring ring =
+    new Ring(Integer.getInteger("stork.log.buffer", 8192));
+  private static PrintStream out = System.err;
+
+  /** The root category, which the static methods log to. */
+  public static final Category root = category("");
+
+  static {
+    levels.put("", INFO);
+    for (String key : System.getProperties().stringPropertyNames()) try {
+      if (key.equals("stork.log.level"))
+        level(Level.parse(System.getProperty(key)));
+      else if (key.startsWith("stork.log.level."))
+        level(key.substring(16), Level.parse(System.getProperty(key)));
+    } catch (IllegalArgumentException e) {
+      System.err.println("Bad log level for "+key);
+    }
+  }
+
+  /** Get the category with the given name. */
+  public static Category category(String name) {
+    Category c = categories.get(name);
+    if (c == null) {
+      Category nc = new Category(name);
+      c = categories.putIfAbsent(name, nc);
+      if (c == null) c = nc;
+    } return c;
+  }
+
+  /** Set the root level. */
+  public static void level(Level level) {
+    level("", level);
+  }
+
+  /** Set the level of a category and its children, or unset it if null. */
+  public static synchronized void level(String category, Level level) {
+    if (level == null && !category.isEmpty())
+      levels.remove(category);
+    else if (level != null)
+      levels.put(category, level);
+    version++;
+  }
+
+  /** Include the calling method in output. This requires a stack walk. */
+  public static void callers(boolean enable) {
+    callers = enable;
+  }
+
+  /** Send output somewhere other than standard error. */
+  public static synchronized void output(PrintStream stream) {
+    out = stream;
+  }
+
+  /** Wait until everything logged so far has been written. */
+  public static void flush() {
+    ring.flush();
+  }
+
+  /** Get the number of records dropped because the buffer was full. */
+  public static long dropped() {
+    return ring.dropped.get();
+  }
+
+  /** Check if the root category logs at the given level. */
+  public static boolean isLoggable(Level l) {
+    return root.isLoggable(l);
+  }
+
   // Convenience logging methods that take variadic arguments. The last
   // object can optionally be a throwable to print a stack trace.
   public static void log(Level l, Object... o) {
-    if (just_log_to_stdout_who_cares) {
+    root.log(l, o);
+  } public static void finest(Object... o) {
+    root.log(FINEST, o);
+  } public static void finer(Object... o) {
+    root.log(FINER, o);
+  } public static void fine(Object... o) {
+    root.log(FINE, o);
+  } public static void config(Object... o) {
+    root.log(CONFIG, o);
+  } public static void info(Object... o) {
+    root.log(INFO, o);
+  } public static void warning(Object... o) {
+    root.log(WARNING, o);
+  } public static void severe(Object... o) {
+    root.log(SEVERE, o);
+  }
+
+  /**
+   * A named logging category. Get one with {@link Log#category(String)} and
+   * keep it in a static field.
+   */
+  public static class Category {
+    public final String name;
+
+    // The effective level in the low bits, and the version of the level
+    // table it was computed from in the high bits.
+    private volatile long cached = -1;
+
+    private Category(String name) {
+      this.name = name;
+    }
+
+    // Find the effective level, caching it until levels change.
+    private int threshold() {
+      long c = cached;
+      int v = version;
+      if ((int) (c >>> 32) == v && c != -1)
+        return (int) c;
+
+      String n = name;
+      Level l = levels.get(n);
+      while (l == null) {
+        int i = n.lastIndexOf('.');
+        n = (i < 0) ? "" : n.substring(0, i);
+        l = levels.get(n);
+      }
+
+      cached = ((long) v << 32) | (l.intValue() & 0xFFFFFFFFL);
+      return l.intValue();
+    }
+
+    /** Check if a message at the given level would be logged. */
+    public boolean isLoggable(Level l) {
+      return just_log_to_stdout_who_cares || l.intValue() >= threshold();
+    }
+
+    /**
+     * Get a view of this category which only logs one out of every {@code n}
+     * messages. Use this for messages that could be logged at a high rate.
+     * Each sampled view keeps its own count, so use one per call site.
+     */
+    public Category sample(int n) {
+      return (n <= 1) ? this : new Sampled(this, n);
+    }
+
+    public void log(Level l, Object... o) {
+      if (isLoggable(l))
+        write(this, l, o, 1);
+    } public void finest(Object... o) {
+      log(FINEST, o);
+    } public void finer(Object... o) {
+      log(FINER, o);
+    } public void fine(Object... o) {
+      log(FINE, o);
+    } public void config(Object... o) {
+      log(CONFIG, o);
+    } public void info(Object... o) {
+      log(INFO, o);
+    } public void warning(Object... o) {
+      log(WARNING, o);
+    } public void severe(Object... o) {
+      log(SEVERE, o);
+    }
+
+    public String toString() {
+      return name.isEmpty() ? "root" : name;
+    }
+  }
+
+  // A category view which drops all but every nth message.
+  private static class Sampled extends Category {
+    private final Category parent;
+    private final int n;
+    private final AtomicLong count = new AtomicLong();
+
+    Sampled(Category parent, int n) {
+      super(parent.name);
+      this.parent = parent;
+      this.n = n;
+    }
+
+    public boolean isLoggable(Level l) {
+      return parent.isLoggable(l);
+    }
+
+    public Category sample(int n) {
+      return parent.sample(this.n*n);
+    }
+
+    public void log(Level l, Object... o) {
+      if (isLoggable(l) && count.getAndIncrement() % n == 0)
+        write(parent, l, o, n);
+    }
+  }
+
+  // Capture a record and hand it to the writer.
+  private static void write(Category c, Level l, Object[] o, int sample) {
+    Record r = new Record(c, l, o, sample);
+    if (callers)
+      r.caller = new Throwable();
+    if (just_log_to_stdout_who_cares)
       System.out.println(StorkUtil.joinWith("", o));
-    } else if (log.isLoggable(l)) {
-      // Get the caller.
-      int i;
-      StackTraceElement[] st = Thread.currentThread().getStackTrace();
-      for (i = 1; i < st.length; i++) {
-        if (!st[i].getClassName().equals(Log.class.getName()))
-          break;
+    else
+      ring.offer(r);
+  }
+
+  // A message waiting to be written.
+  private static class Record {
+    final long time = System.currentTimeMillis();
+    final Category category;
+    final Level level;
+    final Object[] args;
+    final int sample;
+    Throwable caller;
+
+    Record(Category category, Level level, Object[] args, int sample) {
+      this.category = category;
+      this.level = level;
+      this.args = args;
+      this.sample = sample;
+    }
+  }
+
+  // A bounded multi-producer, single-consumer ring. Producers claim a
+  // sequence number with a CAS and publish into the slot; the writer thread
+  // consumes slots in sequence order. Producers never wait: if the ring is
+  // full, the record is dropped.
+  private static class Ring extends Thread {
+    final AtomicReferenceArray<Record> slots;
+    final int mask;
+    final AtomicLong tail = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    volatile long head = 0;  // Only written by the consumer.
+    volatile boolean parked = false;
+    long reportedDrops = 0;
+
+    private final SimpleDateFormat date =
+      new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private final StringBuilder sb = new StringBuilder();
+
+    Ring(int size) {
+      super("Log Writer");
+      int cap = Integer.highestOneBit(Math.max(size, 2)-1) << 1;
+      slots = new AtomicReferenceArray<Record>(cap);
+      mask = cap-1;
+      setDaemon(true);
+      start();
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() { drain(); }
+      });
+    }
+
+    void offer(Record r) {
+      long t;
+      do {
+        t = tail.get();
+        if (t-head >= slots.length()) {
+          dropped.incrementAndGet();
+          return;
+        }
+      } while (!tail.compareAndSet(t, t+1));
+      slots.set((int) t & mask, r);
+      if (parked)
+        LockSupport.unpark(this);
+    }
+
+    public void run() {
+      while (true) {
+        if (!drain()) {
+          parked = true;
+          if (head == tail.get())
+            LockSupport.parkNanos(this, 100000000L);
+          parked = false;
+        }
       }
+    }
+
+    // Write everything that has been published. Returns false if there was
+    // nothing to write.
+    synchronized boolean drain() {
+      boolean any = false;
+      Record r;
+      while ((r = poll()) != null) {
+        format(r);
+        any = true;
+      } if (any) {
+        reportDrops();
+        synchronized (Log.class) { out.flush(); }
+      } return any;
+    }
+
+    private Record poll() {
+      int i = (int) head & mask;
+      Record r = slots.get(i);
+      if (r == null)
+        return null;
+      slots.set(i, null);
+      head++;
+      return r;
+    }
+
+    // Wait for records published so far to be written.
+    void flush() {
+      long t = tail.get();
+      while (head < t) {
+        if (!drain()) Thread.yield();
+      }
+    }
+
+    private void reportDrops() {
+      long d = dropped.get();
+      if (d != reportedDrops) {
+        emit(WARNING, "", (d-reportedDrops)+" log messages were dropped.");
+        reportedDrops = d;
+      }
+    }
+
+    private void format(Record r) {
+      Object[] o = r.args;
+      Throwable thrown = null;
 
       // Check for a throwable.
-      Throwable t = null;
       if (o.length > 0 && o[o.length-1] instanceof Throwable) {
-        t = (Throwable) o[o.length-1];
-        o[o.length-1] = null;
+        thrown = (Throwable) o[o.length-1];
+        o = Arrays.copyOf(o, o.length-1);
       }
 
-      LogRecord lr = new LogRecord(l, StorkUtil.joinWith("", o));
-      lr.setThrown(t);
+      String msg;
+      try {
+        msg = StorkUtil.joinWith("", o);
+      } catch (Exception e) {
+        msg = "(could not format message: "+e+")";
+      } if (r.sample > 1) {
+        msg += " (sampled 1 in "+r.sample+")";
+      } if (r.caller != null) {
+        msg += " ["+caller(r.caller)+"]";
+      }
 
-      if (i < st.length) {
-        lr.setSourceClassName(st[i].getClassName());
-        lr.setSourceMethodName(st[i].getMethodName());
+      sb.setLength(0);
+      sb.append(date.format(new Date(r.time))).append(' ');
+      sb.append(r.level.getName()).append(' ');
+      if (!r.category.name.isEmpty())
+        sb.append(r.category.name).append(": ");
+      sb.append(msg);
+
+      synchronized (Log.class) {
+        out.println(sb);
+        if (thrown != null) thrown.printStackTrace(out);
       }
+    }
 
-      log.log(lr);
+    private void emit(Level l, String category, String msg) {
+      Record r = new Record(category(category), l, new Object[] { msg }, 1);
+      format(r);
+    }
+
+    // Find the first frame outside of this class.
+    private String caller(Throwable t) {
+      for (StackTraceElement e : t.getStackTrace()) {
+        if (!e.getClassName().startsWith(Log.class.getName()))
+          return e.getClassName()+"."+e.getMethodName();
+      } return "?";
     }
-  } public static void finest(Object... o) {
-    log(FINEST, o);
-  } public static void finer(Object... o) {
-    log(FINER, o);
-  } public static void fine(Object... o) {
-    log(FINE, o);
-  } public static void config(Object... o) {
-    log(CONFIG, o);
-  } public static void info(Object... o) {
-    log(INFO, o);
-  } public static void warning(Object... o) {
-    log(WARNING, o);
-  } public static void severe(Object... o) {
-    log(SEVERE, o);
   }
 }
@@ -0,0 +1,91 @@
+package stork.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Named counters and latency recorders for reporting server statistics. Get
+ * one with {@link #counter(String)} or {@link #latency(String)} and keep it
+ * in a static field. Names are dot-separated, like log categories. Updating a
+ * metric never blocks.
+ */
+public abstract class Metrics {
+  private static final ConcurrentMap<String,Metric> metrics =
+    new ConcurrentSkipListMap<String,Metric>();
+
+  /** Something which can be reported. */
+  public interface Metric {
+    /** Get a value suitable for marshalling. */
+    Object value();
+  }
+
+  /** A monotonically increasing count. */
+  public static class Counter implements Metric {
+    private final AtomicLong count = new AtomicLong();
+
+    public void increment() { count.incrementAndGet(); }
+    public void add(long n) { count.addAndGet(n); }
+    public long get() { return count.get(); }
+    public Object value() { return get(); }
+  }
+
+  /** A record of how long some operation takes. */
+  public static class Latency implements Metric {
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Get a start time to pass to {@link #stop(long)}. */
+    public long start() { return System.nanoTime(); }
+
+    /** Record the time since {@code start}. */
+    public void stop(long start) { record(System.nanoTime()-start); }
+
+    /** Record an operation which took {@code nanos} nanoseconds. */
+    public void record(long nanos) {
+      count.incrementAndGet();
+      total.addAndGet(nanos);
+      long m;
+      while ((m = max.get()) < nanos && !max.compareAndSet(m, nanos))
+        continue;
+    }
+
+    public Object value() {
+      final long c = count.get(), t = total.get();
+      return new Object() {
+        long count = c;
+        double total_ms = t/1E6;
+        double mean_ms = (c == 0) ? 0 : t/1E6/c;
+        double max_ms = max.get()/1E6;
+      };
+    }
+  }
+
+  /** Get the counter with the given name, creating it if necessary. */
+  public static Counter counter(String name) {
+    return register(name, new Counter());
+  }
+
+  /** Get the latency recorder with the given name. */
+  public static Latency latency(String name) {
+    return register(name, new Latency());
+  }
+
+  /**
+   * Register a metric under the given name. If one is already registered,
+   * the existing metric is returned.
+   */
+  public static <M extends Metric> M register(String name, M metric) {
+    Metric m = metrics.putIfAbsent(name, metric);
+    return (m == null) ? metric : (M) m;
+  }
+
+  /** Get the current value of every metric, sorted by name. */
+  public static Map<String,Object> snapshot() {
+    Map<String,Object> map = new LinkedHashMap<String,Object>();
+    for (Map.Entry<String,Metric> e : metrics.entrySet())
+      map.put(e.getKey(), e.getValue().value());
+    return map;
+  }
+}
@@ -144,6 +144,47 @@ angular.module('stork', [
         'range': range
       });
     },
+    /**
+     * Call handler with each event for the user's jobs, sending progress
+     * every interval seconds. The returned promise is rejected when the
+     * stream ends, and has a close() method to stop watching. The stream is
+     * ended once a lot has been read, since the browser keeps all of it.
+     */
+    watch: function (interval, handler) {
+      var xhr = new XMLHttpRequest();
+      var deferred = $q.defer();
+      var promise = deferred.promise;
+      var seen = 0;
+
+      var read = function () {
+        if (xhr.status != 200)
+          return;
+        var text = xhr.responseText, end;
+        while ((end = text.indexOf('\n', seen)) >= 0) {
+          var line = text.substring(seen, end);
+          seen = end+1;
+          if (line)
+            handler(JSON.parse(line));
+        } if (seen > 1<<20) {
+          xhr.abort();
+        }
+      };
+
+      xhr.open('POST', this.$uri('watch'));
+      xhr.setRequestHeader('Content-Type', 'application/json');
+      xhr.onprogress = read;
+      xhr.onload = xhr.onerror = xhr.onabort = function () {
+        read();
+        deferred.reject(xhr.status);
+      };
+      xhr.send(JSON.stringify({ interval: interval }));
+
+      promise.close = function () {
+        promise.closed = true;
+        xhr.abort();
+      };
+      return promise;
+    },
     mkdir: function (ep) {
       if (typeof ep === 'string')
         ep = { uri: ep };
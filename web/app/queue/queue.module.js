@@ -52,32 +52,71 @@ angular.module('stork.transfer.queue', [])
     $scope.page = p;
   };
 
-  $scope.$on('$destroy', function (event) {
-    // Clean up the auto-refresh timer.
+  // Stop following updates.
+  var stopAuto = function () {
     if ($rootScope.autoTimer) {
       $timeout.cancel($rootScope.autoTimer);
       delete $rootScope.autoTimer;
+    } if ($rootScope.autoWatch) {
+      $rootScope.autoWatch.close();
+      delete $rootScope.autoWatch;
     }
+  };
+
+  $scope.$on('$destroy', function (event) {
+    // Clean up the event stream and the auto-refresh timer.
+    stopAuto();
   });
 
   $scope.toggleAuto = function () {
     if ($scope.auto = !$scope.auto)
       $scope.autoRefresh();
+    else
+      stopAuto();
   };
 
+  // Load the jobs, then follow events for them. If the stream ends, or
+  // can't be opened, start over after a second.
   $scope.autoRefresh = function () {
-    if ($rootScope.autoTimer) {
-      $timeout.cancel($rootScope.autoTimer);
-      delete $rootScope.autoTimer;
-    } if ($scope.auto) {
+    stopAuto();
+    if ($scope.auto) {
       $scope.refresh().then(function () {
-        $rootScope.autoTimer = $timeout($scope.autoRefresh, 1000)
+        var watch = $rootScope.autoWatch = stork.watch(1, function (e) {
+          $scope.$apply(function () {
+            $scope.update(e);
+          });
+        });
+        watch.then(null, function () {
+          if (watch.closed)
+            return;
+          delete $rootScope.autoWatch;
+          $rootScope.autoTimer = $timeout($scope.autoRefresh, 1000)
+        });
       }, function () {
         $scope.auto = false
       });
     }
   };
 
+  // Apply an event from the stream.
+  $scope.update = function (e) {
+    if (e.type == 'resync')
+      return merge(e.jobs);
+    if (e.type == 'job')
+      return merge([e.job]);
+
+    var j = $scope.jobs[e.job_id+''];
+    if (!j) {
+      return;
+    } if (e.type == 'status') {
+      j.status = e.status;
+      if (e.message)
+        j.message = e.message;
+    } else if (e.type == 'progress') {
+      j.bytes = e.bytes;
+    }
+  };
+
   $scope.cancel = function (j) {
     $modal({
       contentTemplate: 'cancel-job.html'
@@ -101,23 +140,24 @@ angular.module('stork.transfer.queue', [])
     return j && $scope.filter_set[$scope.filter][j.status];
   }
 
+  // Add jobs to the list, or update the ones we have.
+  var merge = function (jobs) {
+    for (var i in jobs) {
+      var j = jobs[i];
+      var id = j.job_id+'';
+      if (!j.job_id)
+        continue;
+      if (!$scope.jobs)
+        $scope.jobs = { };
+      if ($scope.jobs[id])
+        angular.extend($scope.jobs[id], j);
+      else
+        $scope.jobs[id] = j;
+    }
+  };
+
   $scope.refresh = function () {
-    return stork.q().then(
-      function (jobs) {
-        for (var i in jobs) {
-          var j = jobs[i];
-          var i = j.job_id+'';
-          if (!i)
-            continue;
-          if (!$scope.jobs)
-            $scope.jobs = { };
-          if ($scope.jobs[i])
-            angular.extend($scope.jobs[i], j);
-          else
-            $scope.jobs[i] = j;
-        }
-      }
-    );
+    return stork.q().then(merge);
   };
   $scope.color = {
     processing: 'progress-bar-success progress-striped active',
@@ -20,10 +20,15 @@ angular.module('stork.user', [
     $rootScope.$user = u;
     $cookies.email = u.email;
     $cookies.hash = u.hash;
+    // The server authenticates later requests by this token.
+    if (u.token)
+      $cookies.token = u.token;
   };
   this.forgetLogin = function () {
     delete $rootScope.$user;
     delete $cookies.email;
+    delete $cookies.hash;
+    delete $cookies.token;
   };
   this.checkAccess = function (redirectTo) {
     if (!$rootScope.$user)
@@ -37,13 +42,14 @@ angular.module('stork.user', [
     });
   };
 
-  // If there's a cookie, attempt to log in.
+  // If there's a cookie, attempt to log in, preferring the session token.
   var u = {
     email: $cookies.email,
-    hash:  $cookies.hash
+    hash:  $cookies.hash,
+    token: $cookies.token
   };
 
-  if (u.email && u.hash)
+  if (u.token || u.email && u.hash)
     this.login(u);
   else
     this.forgetLogin();